@@ -43,7 +43,7 @@ import org.apache.manifoldcf.ui.util.Encoder;
 
 // Here are the imports that are specific for this connector
 import org.apache.manifoldcf.examples.docs4u.Docs4UAPI;
-import org.apache.manifoldcf.examples.docs4u.D4UFactory;
+import org.apache.manifoldcf.examples.docs4u.D4USessionRegistry;
 import org.apache.manifoldcf.examples.docs4u.D4UException;
 
 /** This is the Docs4U authority connector class.  This extends the base authorities class,
@@ -226,7 +226,7 @@ public class Docs4UAuthorityConnector extends BaseAuthorityConnector
       // We need to establish a new session
       try
       {
-        session = D4UFactory.makeAPI(rootDirectory);
+        session = D4USessionRegistry.acquire(rootDirectory);
       }
       catch (D4UException e)
       {
@@ -239,10 +239,13 @@ public class Docs4UAuthorityConnector extends BaseAuthorityConnector
     return session;
   }
   
-  /** Expire any current session.
+  /** Expire any current session.  The shared session, and the caches behind it, stay
+  * around for as long as other connector instances are using the same root.
   */
   protected void expireSession()
   {
+    if (session != null)
+      D4USessionRegistry.release(session);
     session = null;
     sessionExpiration = -1L;
   }
@@ -144,6 +144,11 @@ public class AddDocument
         e.printStackTrace(System.err);
         System.exit(2);
       }
+      catch (InterruptedException e)
+      {
+        e.printStackTrace(System.err);
+        System.exit(100);
+      }
       finally
       {
         is.close();
@@ -69,6 +69,11 @@ public class AddUserOrGroup
       e.printStackTrace(System.err);
       System.exit(2);
     }
+    catch (InterruptedException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(100);
+    }
   }
   
 }
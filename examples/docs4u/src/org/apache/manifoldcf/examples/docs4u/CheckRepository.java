@@ -0,0 +1,85 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+/** This class performs a deep integrity check of the Docs4U content management system,
+* optionally repairing what it finds.
+*/
+public class CheckRepository
+{
+  private CheckRepository()
+  {
+  }
+  
+  public static void main(String[] argv)
+  {
+    if (argv.length < 1)
+    {
+      System.err.println("Usage: CheckRepository <directory> [-repair] [<thread_count>]");
+      System.exit(1);
+    }
+    
+    String directory = argv[0];
+    boolean repair = false;
+    int threadCount = Runtime.getRuntime().availableProcessors();
+    int i = 1;
+    while (i < argv.length)
+    {
+      String arg = argv[i++];
+      if (arg.equals("-repair"))
+        repair = true;
+      else
+      {
+        try
+        {
+          threadCount = Integer.parseInt(arg);
+        }
+        catch (NumberFormatException e)
+        {
+          System.err.println("Argument '"+arg+"' unrecognized");
+          System.exit(1);
+        }
+      }
+    }
+    
+    try
+    {
+      Docs4UAPI api = D4UFactory.makeAPI(directory);
+      String[] problems = api.checkIntegrity(repair,threadCount,true);
+      i = 0;
+      while (i < problems.length)
+      {
+        System.out.println(problems[i++]);
+      }
+      if (problems.length > 0 && !repair)
+        System.exit(4);
+    }
+    catch (InterruptedException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(100);
+    }
+    catch (D4UException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(2);
+    }
+  }
+  
+}
@@ -0,0 +1,269 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/** This class stores each distinct document ACL of a Docs4U repository once.  There is one
+* instance per root per process, obtained with getStore().
+*
+* An ACL set is the sorted, de-duplicated list of user/group IDs, and is kept in the ACL set
+* area under the SHA-1 hash of its content, so the same set always gets the same ID and a set
+* file never changes once written.  A document's allowed and disallowed files then hold just
+* a reference, a single line of "@" followed by the set ID.  Files written before sets were
+* interned hold the list itself, and are still read as such.
+*
+* Since sets never change, parsed sets are cached by ID without any checking.  Writers hold
+* the docs lock; a set is written before anything refers to it, and its modification time is
+* brought up to date each time it is used.  Sets nothing refers to any more are removed by
+* D4UExpirySweeper from time to time, as long as they haven't been used since it began looking
+* for references, and by CheckRepository -repair under the docs lock.
+*/
+public class D4UAclSetStore
+{
+  /** Number of parsed sets to cache */
+  protected final static int CACHE_SIZE = Integer.getInteger("docs4u.aclsets.cachesize",10000).intValue();
+  /** Start of a reference to a set, in a document's ACL file */
+  protected final static String REFERENCE_PREFIX = "@";
+  
+  /** Stores, keyed by canonical root path */
+  protected final static Map instances = new HashMap();
+  
+  protected final File aclSetFolder;
+  /** Set ID to parsed set, least recently used first */
+  protected final Map cache = new LinkedHashMap(16,0.75f,true)
+    {
+      protected boolean removeEldestEntry(Map.Entry eldest)
+      {
+        return size() > CACHE_SIZE;
+      }
+    };
+  
+  protected D4UAclSetStore(String root)
+  {
+    this.aclSetFolder = new File(root,Docs4UAPIImpl.aclSetArea);
+  }
+  
+  /** Get the store for a repository root, creating it if needed.
+  *@param root is the repository root directory.
+  */
+  public static D4UAclSetStore getStore(String root)
+  {
+    String key;
+    try
+    {
+      key = new File(root).getCanonicalPath();
+    }
+    catch (IOException e)
+    {
+      key = new File(root).getAbsolutePath();
+    }
+    synchronized (instances)
+    {
+      D4UAclSetStore rval = (D4UAclSetStore)instances.get(key);
+      if (rval == null)
+      {
+        rval = new D4UAclSetStore(key);
+        instances.put(key,rval);
+      }
+      return rval;
+    }
+  }
+  
+  /** Read a document's ACL file, following its reference if it has one.
+  *@param aclFile is the document's allowed or disallowed file.
+  *@return the user/group IDs, or null if the file or its set can't be read.
+  */
+  public String[] readAcl(File aclFile)
+  {
+    String[] values = Docs4UAPIImpl.readValues(aclFile);
+    if (values == null)
+      return null;
+    String setID = getReference(values);
+    if (setID == null)
+      return values;
+    return getAclSet(setID);
+  }
+  
+  /** Write a document's ACL file as a reference to the interned set.  Call with the docs
+  * lock held.
+  *@param aclFile is the document's allowed or disallowed file.
+  *@param userGroupIDs are the user/group IDs.
+  */
+  public void writeAcl(File aclFile, String[] userGroupIDs)
+    throws D4UException
+  {
+    String setID = intern(userGroupIDs);
+    if (Docs4UAPIImpl.writeValues(aclFile,new String[]{REFERENCE_PREFIX+setID}) == false)
+      throw new D4UException("Could not write ACL file '"+aclFile+"'");
+  }
+  
+  /** Get the ID of the set a document's ACL file refers to.
+  *@return the set ID, or null if the file holds a list or can't be read.
+  */
+  public static String getSetID(File aclFile)
+  {
+    String[] values = Docs4UAPIImpl.readValues(aclFile);
+    if (values == null)
+      return null;
+    return getReference(values);
+  }
+  
+  /** Get a digest of the user/group IDs in a document's ACL file.  This is the ID of the set
+  * they make up, whether the file refers to the set or still holds a list.
+  *@return the digest, or null if the file can't be read.
+  */
+  public static String getAclDigest(File aclFile)
+    throws D4UException
+  {
+    String[] values = Docs4UAPIImpl.readValues(aclFile);
+    if (values == null)
+      return null;
+    String setID = getReference(values);
+    if (setID != null)
+      return setID;
+    return makeSetID((String[])new TreeSet(Arrays.asList(values)).toArray(new String[0]));
+  }
+  
+  /** Get a set by ID.
+  *@return a copy of the user/group IDs in the set, or null if there's no such set.
+  */
+  public String[] getAclSet(String setID)
+  {
+    String[] rval;
+    synchronized (cache)
+    {
+      rval = (String[])cache.get(setID);
+    }
+    if (rval == null)
+    {
+      File setFile = new File(aclSetFolder,setID);
+      if (!setFile.exists())
+        return null;
+      rval = Docs4UAPIImpl.readValues(setFile);
+      if (rval == null)
+        return null;
+      synchronized (cache)
+      {
+        cache.put(setID,rval);
+      }
+    }
+    return rval.clone();
+  }
+  
+  /** Make sure a set is stored.  Call with the docs lock held.
+  *@param userGroupIDs are the user/group IDs, in any order.
+  *@return the set ID.
+  */
+  public String intern(String[] userGroupIDs)
+    throws D4UException
+  {
+    String[] canonical = (String[])new TreeSet(Arrays.asList(userGroupIDs)).toArray(new String[0]);
+    String setID = makeSetID(canonical);
+    File setFile = new File(aclSetFolder,setID);
+    String[] cached;
+    synchronized (cache)
+    {
+      cached = (String[])cache.get(setID);
+    }
+    // A cached set may still have been removed as unused, by another process
+    if (cached == null || !setFile.exists())
+    {
+      String[] existing = setFile.exists()?Docs4UAPIImpl.readValues(setFile):null;
+      if (existing == null || !Arrays.equals(existing,canonical))
+      {
+        // An area added since the repository was installed may not be there yet
+        if (!aclSetFolder.exists())
+          aclSetFolder.mkdir();
+        if (Docs4UAPIImpl.writeValues(setFile,canonical) == false)
+          throw new D4UException("Could not write ACL set '"+setID+"'");
+      }
+      synchronized (cache)
+      {
+        cache.put(setID,canonical);
+      }
+    }
+    // Mark the set as just used, by this machine's clock, so that a collection of unused sets
+    // already under way leaves it alone
+    setFile.setLastModified(System.currentTimeMillis());
+    return setID;
+  }
+  
+  /** Forget all cached sets.  Used when the repository is uninstalled.
+  */
+  public void invalidate()
+  {
+    synchronized (cache)
+    {
+      cache.clear();
+    }
+  }
+  
+  protected static String getReference(String[] values)
+  {
+    if (values.length == 1 && values[0].startsWith(REFERENCE_PREFIX))
+      return values[0].substring(REFERENCE_PREFIX.length());
+    return null;
+  }
+  
+  /** Compute a set's ID, the hex SHA-1 hash of its sorted entries.
+  */
+  protected static String makeSetID(String[] canonical)
+    throws D4UException
+  {
+    return makeDigest(canonical);
+  }
+  
+  /** Compute the hex SHA-1 hash of a list of strings.
+  */
+  protected static String makeDigest(String[] values)
+    throws D4UException
+  {
+    try
+    {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      int i = 0;
+      while (i < values.length)
+      {
+        digest.update(values[i++].getBytes("UTF-8"));
+        digest.update((byte)'\n');
+      }
+      byte[] hash = digest.digest();
+      StringBuffer sb = new StringBuffer();
+      i = 0;
+      while (i < hash.length)
+      {
+        int value = hash[i++] & 0xff;
+        sb.append(Character.forDigit(value >> 4,16)).append(Character.forDigit(value & 0xf,16));
+      }
+      return sb.toString();
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new D4UException(e.getMessage(),e);
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new D4UException(e.getMessage(),e);
+    }
+  }
+  
+}
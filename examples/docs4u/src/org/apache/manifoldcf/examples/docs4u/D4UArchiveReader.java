@@ -0,0 +1,259 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.util.zip.*;
+
+/** This class reads a Docs4U archive, as written by D4UArchiveWriter.  Records are read
+* strictly in sequence; call next() to advance, and then use the accessors appropriate to the
+* returned record type.  Compressed archives are detected automatically.
+*/
+public class D4UArchiveReader
+{
+  protected DataInputStream in;
+  protected byte[] buffer = new byte[65536];
+  
+  // Current record
+  protected String[] metadataNames = null;
+  protected String userGroupID = null;
+  protected String userGroupName = null;
+  protected String loginID = null;
+  protected String[] groups = null;
+  protected String docID = null;
+  
+  /** Constructor.
+  *@param is is the stream to read the archive from.  The caller is responsible for closing it.
+  */
+  public D4UArchiveReader(InputStream is)
+    throws D4UException
+  {
+    try
+    {
+      BufferedInputStream bis = new BufferedInputStream(is,65536);
+      // Sniff for the gzip header
+      bis.mark(2);
+      int b1 = bis.read();
+      int b2 = bis.read();
+      bis.reset();
+      InputStream source = bis;
+      if (b1 == 0x1f && b2 == 0x8b)
+        source = new BufferedInputStream(new GZIPInputStream(bis,65536),65536);
+      in = new DataInputStream(source);
+      if (in.readInt() != D4UArchiveWriter.ARCHIVE_MAGIC)
+        throw new D4UException("Not a Docs4U archive");
+      int version = in.readInt();
+      if (version != D4UArchiveWriter.ARCHIVE_VERSION)
+        throw new D4UException("Unsupported Docs4U archive version "+Integer.toString(version));
+    }
+    catch (IOException e)
+    {
+      throw new D4UException(e.getMessage(),e);
+    }
+  }
+  
+  /** Read the next record header.  For document records, the document's metadata and
+  * security are placed in the supplied document info object, and its content must then be
+  * consumed by calling readContent() before the next call to this method.
+  *@param docInfo is the document info object to fill in if the record is a document.
+  *@return the record type, one of the D4UArchiveWriter.RECORD_xxx values.
+  */
+  public byte next(D4UDocInfo docInfo)
+    throws D4UException
+  {
+    try
+    {
+      byte recordType = in.readByte();
+      switch (recordType)
+      {
+      case D4UArchiveWriter.RECORD_METADATA_NAMES:
+        metadataNames = readStrings(in);
+        break;
+      case D4UArchiveWriter.RECORD_USER_OR_GROUP:
+        userGroupID = readString(in);
+        userGroupName = readString(in);
+        loginID = readString(in);
+        groups = readStrings(in);
+        break;
+      case D4UArchiveWriter.RECORD_DOCUMENT:
+        docID = readString(in);
+        docInfo.clearMetadata();
+        int count = in.readInt();
+        int i = 0;
+        while (i < count)
+        {
+          String metadataName = readString(in);
+          docInfo.setMetadata(metadataName,readStrings(in));
+          i++;
+        }
+        docInfo.setAllowed(readStrings(in));
+        docInfo.setDisallowed(readStrings(in));
+        break;
+      case D4UArchiveWriter.RECORD_END:
+        break;
+      default:
+        throw new D4UException("Corrupt archive: unknown record type "+Integer.toString((int)recordType));
+      }
+      return recordType;
+    }
+    catch (EOFException e)
+    {
+      throw new D4UException("Archive truncated",e);
+    }
+    catch (IOException e)
+    {
+      throw new D4UException(e.getMessage(),e);
+    }
+  }
+  
+  /** Read the content of the current document record into a document info object.
+  *@param docInfo is the document info object to receive the content.
+  */
+  public void readContent(D4UDocInfo docInfo)
+    throws D4UException
+  {
+    try
+    {
+      long length = in.readLong();
+      if (length < 0L)
+        throw new D4UException("Corrupt archive: negative content length");
+      docInfo.setData(new BoundedInputStream(in,length));
+    }
+    catch (EOFException e)
+    {
+      throw new D4UException("Archive truncated",e);
+    }
+    catch (IOException e)
+    {
+      throw new D4UException(e.getMessage(),e);
+    }
+  }
+  
+  /** Get the metadata names from a metadata names record. */
+  public String[] getMetadataNames()
+  {
+    return metadataNames;
+  }
+  
+  /** Get the user or group ID from a user or group record. */
+  public String getUserOrGroupID()
+  {
+    return userGroupID;
+  }
+  
+  /** Get the user or group name from a user or group record. */
+  public String getUserOrGroupName()
+  {
+    return userGroupName;
+  }
+  
+  /** Get the login ID from a user or group record; null for groups. */
+  public String getLoginID()
+  {
+    return loginID;
+  }
+  
+  /** Get the group IDs from a user or group record. */
+  public String[] getGroups()
+  {
+    return groups;
+  }
+  
+  /** Get the document ID from a document record. */
+  public String getDocumentID()
+  {
+    return docID;
+  }
+  
+  /** Read a string, which may be null.
+  */
+  protected String readString(DataInputStream in)
+    throws IOException
+  {
+    int length = in.readInt();
+    if (length == -1)
+      return null;
+    if (length < 0)
+      throw new IOException("Corrupt archive: negative string length");
+    byte[] bytes = (length <= buffer.length)?buffer:new byte[length];
+    in.readFully(bytes,0,length);
+    return new String(bytes,0,length,"utf-8");
+  }
+  
+  /** Read an array of strings.
+  */
+  protected String[] readStrings(DataInputStream in)
+    throws IOException
+  {
+    int count = in.readInt();
+    if (count < 0)
+      throw new IOException("Corrupt archive: negative string count");
+    String[] rval = new String[count];
+    int i = 0;
+    while (i < count)
+    {
+      rval[i++] = readString(in);
+    }
+    return rval;
+  }
+  
+  /** Input stream which presents only the next N bytes of an underlying stream, and never
+  * closes it.
+  */
+  protected static class BoundedInputStream extends InputStream
+  {
+    protected InputStream is;
+    protected long remaining;
+    
+    public BoundedInputStream(InputStream is, long length)
+    {
+      this.is = is;
+      this.remaining = length;
+    }
+    
+    public int read()
+      throws IOException
+    {
+      if (remaining == 0L)
+        return -1;
+      int rval = is.read();
+      if (rval == -1)
+        throw new EOFException("Archive truncated");
+      remaining--;
+      return rval;
+    }
+    
+    public int read(byte[] b, int off, int len)
+      throws IOException
+    {
+      if (remaining == 0L)
+        return -1;
+      int amt = is.read(b,off,(int)Math.min((long)len,remaining));
+      if (amt == -1)
+        throw new EOFException("Archive truncated");
+      remaining -= (long)amt;
+      return amt;
+    }
+    
+    public void close()
+    {
+    }
+  }
+  
+}
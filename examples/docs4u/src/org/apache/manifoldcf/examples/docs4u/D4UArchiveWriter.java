@@ -0,0 +1,219 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.util.zip.*;
+
+/** This class writes a Docs4U archive.  An archive is a single sequential stream of
+* records, each beginning with a one-byte record type.  Metadata name records and user/group
+* records come first, followed by document records, which carry their content inline.  The
+* stream ends with an end record.  The whole stream may optionally be gzip-compressed.
+*/
+public class D4UArchiveWriter
+{
+  /** Archive magic number */
+  public final static int ARCHIVE_MAGIC = 0x44345541;
+  /** Archive format version */
+  public final static int ARCHIVE_VERSION = 1;
+  
+  /** Metadata names record */
+  public final static byte RECORD_METADATA_NAMES = 'N';
+  /** User or group record */
+  public final static byte RECORD_USER_OR_GROUP = 'U';
+  /** Document record */
+  public final static byte RECORD_DOCUMENT = 'D';
+  /** End of archive record */
+  public final static byte RECORD_END = 'E';
+  
+  protected DataOutputStream out;
+  protected GZIPOutputStream compressor = null;
+  protected byte[] buffer = new byte[65536];
+  
+  /** Constructor.
+  *@param os is the stream to write the archive to.  The caller is responsible for closing it.
+  *@param compress is true if the archive should be gzip-compressed.
+  */
+  public D4UArchiveWriter(OutputStream os, boolean compress)
+    throws D4UException
+  {
+    try
+    {
+      OutputStream target = os;
+      if (compress)
+      {
+        compressor = new GZIPOutputStream(os,65536);
+        target = compressor;
+      }
+      out = new DataOutputStream(new BufferedOutputStream(target,65536));
+      out.writeInt(ARCHIVE_MAGIC);
+      out.writeInt(ARCHIVE_VERSION);
+    }
+    catch (IOException e)
+    {
+      throw new D4UException(e.getMessage(),e);
+    }
+  }
+  
+  /** Write the set of legal metadata names.
+  *@param names are the metadata names.
+  */
+  public void writeMetadataNames(String[] names)
+    throws D4UException
+  {
+    try
+    {
+      out.writeByte(RECORD_METADATA_NAMES);
+      writeStrings(out,names);
+    }
+    catch (IOException e)
+    {
+      throw new D4UException(e.getMessage(),e);
+    }
+  }
+  
+  /** Write a user or group.
+  *@param userGroupID is the user or group ID.
+  *@param name is the user or group's name.
+  *@param loginID is the user's login ID, null if this is a group.
+  *@param groups are the group IDs.
+  */
+  public void writeUserOrGroup(String userGroupID, String name, String loginID, String[] groups)
+    throws D4UException
+  {
+    try
+    {
+      out.writeByte(RECORD_USER_OR_GROUP);
+      writeString(out,userGroupID);
+      writeString(out,name);
+      writeString(out,loginID);
+      writeStrings(out,groups);
+    }
+    catch (IOException e)
+    {
+      throw new D4UException(e.getMessage(),e);
+    }
+  }
+  
+  /** Write a document, including its content.
+  *@param docID is the document identifier.
+  *@param docInfo is the document information.
+  */
+  public void writeDocument(String docID, D4UDocInfo docInfo)
+    throws D4UException
+  {
+    try
+    {
+      out.writeByte(RECORD_DOCUMENT);
+      writeString(out,docID);
+      String[] metadataNames = docInfo.getMetadataNames();
+      out.writeInt(metadataNames.length);
+      int i = 0;
+      while (i < metadataNames.length)
+      {
+        String metadataName = metadataNames[i++];
+        writeString(out,metadataName);
+        writeStrings(out,docInfo.getMetadata(metadataName));
+      }
+      writeStrings(out,docInfo.getAllowed());
+      writeStrings(out,docInfo.getDisallowed());
+      
+      Long length = docInfo.readDataLength();
+      InputStream is = docInfo.readData();
+      if (length == null || is == null)
+      {
+        out.writeLong(0L);
+        return;
+      }
+      try
+      {
+        long remaining = length.longValue();
+        out.writeLong(remaining);
+        while (remaining > 0L)
+        {
+          int amt = is.read(buffer,0,(int)Math.min((long)buffer.length,remaining));
+          if (amt == -1)
+            throw new D4UException("Document '"+docID+"' content shorter than its recorded length");
+          out.write(buffer,0,amt);
+          remaining -= (long)amt;
+        }
+      }
+      finally
+      {
+        is.close();
+      }
+    }
+    catch (IOException e)
+    {
+      throw new D4UException(e.getMessage(),e);
+    }
+  }
+  
+  /** Write the end record and flush everything to the underlying stream.
+  */
+  public void finish()
+    throws D4UException
+  {
+    try
+    {
+      out.writeByte(RECORD_END);
+      out.flush();
+      if (compressor != null)
+        compressor.finish();
+    }
+    catch (IOException e)
+    {
+      throw new D4UException(e.getMessage(),e);
+    }
+  }
+  
+  /** Write a string, which may be null.
+  */
+  protected static void writeString(DataOutputStream out, String value)
+    throws IOException
+  {
+    if (value == null)
+    {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes("utf-8");
+    out.writeInt(bytes.length);
+    out.write(bytes,0,bytes.length);
+  }
+  
+  /** Write an array of strings.  A null array is written as an empty one.
+  */
+  protected static void writeStrings(DataOutputStream out, String[] values)
+    throws IOException
+  {
+    if (values == null)
+    {
+      out.writeInt(0);
+      return;
+    }
+    out.writeInt(values.length);
+    int i = 0;
+    while (i < values.length)
+    {
+      writeString(out,values[i++]);
+    }
+  }
+  
+}
@@ -0,0 +1,737 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+/** This class is a compressed set of non-negative integers, organized the way roaring bitmaps
+* are.  Values are split by their high 16 bits into chunks, and each chunk is stored either as
+* a sorted array of low halves, when it holds few values, or as a 65536-bit bitmap, when it
+* holds many.  Sparse sets therefore cost about two bytes per value and dense ones about one
+* bit, and intersections, unions, and differences work a chunk at a time.
+*
+* Instances are not thread-safe.  The set algebra methods return new bitmaps and leave their
+* operands alone.
+*/
+public class D4UBitmap
+{
+  /** Largest number of values an array chunk holds before it becomes a bitmap chunk */
+  protected final static int ARRAY_LIMIT = 4096;
+  
+  /** High halves of the chunks, in increasing order */
+  protected int[] keys;
+  /** The chunks, parallel to keys */
+  protected Container[] containers;
+  /** Number of chunks */
+  protected int size = 0;
+  
+  public D4UBitmap()
+  {
+    keys = new int[4];
+    containers = new Container[4];
+  }
+  
+  protected D4UBitmap(int capacity)
+  {
+    keys = new int[Math.max(capacity,4)];
+    containers = new Container[keys.length];
+  }
+  
+  /** Build a bitmap from a set of values. */
+  public static D4UBitmap of(int[] values)
+  {
+    D4UBitmap rval = new D4UBitmap();
+    int i = 0;
+    while (i < values.length)
+    {
+      rval.add(values[i++]);
+    }
+    return rval;
+  }
+  
+  /** Add a value. */
+  public void add(int value)
+  {
+    int key = value >>> 16;
+    int index = findKey(key);
+    if (index >= 0)
+      containers[index] = containers[index].add(value & 0xffff);
+    else
+      insertContainer(-index - 1,key,new ArrayContainer().add(value & 0xffff));
+  }
+  
+  /** Remove a value. */
+  public void remove(int value)
+  {
+    int index = findKey(value >>> 16);
+    if (index < 0)
+      return;
+    Container c = containers[index].remove(value & 0xffff);
+    if (c.cardinality() == 0)
+      removeContainer(index);
+    else
+      containers[index] = c;
+  }
+  
+  /** Check for a value. */
+  public boolean contains(int value)
+  {
+    int index = findKey(value >>> 16);
+    return index >= 0 && containers[index].contains(value & 0xffff);
+  }
+  
+  /** Count the values. */
+  public int cardinality()
+  {
+    int rval = 0;
+    int i = 0;
+    while (i < size)
+    {
+      rval += containers[i++].cardinality();
+    }
+    return rval;
+  }
+  
+  public boolean isEmpty()
+  {
+    return size == 0;
+  }
+  
+  /** Get the values in increasing order. */
+  public int[] toArray()
+  {
+    int[] rval = new int[cardinality()];
+    int pos = 0;
+    int i = 0;
+    while (i < size)
+    {
+      pos = containers[i].fill(rval,pos,keys[i] << 16,0,rval.length);
+      i++;
+    }
+    return rval;
+  }
+  
+  /** Get some of the values in increasing order, without visiting the rest.  Values are
+  * compared as unsigned, so negative values sort after positive ones.
+  *@param fromValue is the smallest value wanted.
+  *@param maxCount is the most values wanted.
+  *@return the values.
+  */
+  public int[] toArray(int fromValue, int maxCount)
+  {
+    int fromKey = fromValue >>> 16;
+    int index = findKey(fromKey);
+    if (index < 0)
+      index = -index - 1;
+    int[] buffer = new int[Math.min(maxCount,64)];
+    int pos = 0;
+    while (index < size && pos < maxCount)
+    {
+      int fromLow = (keys[index] == fromKey)?(fromValue & 0xffff):0;
+      int wanted = Math.min(maxCount,pos + containers[index].cardinality());
+      if (wanted > buffer.length)
+      {
+        int[] newBuffer = new int[Math.min(maxCount,Math.max(wanted,buffer.length * 2))];
+        System.arraycopy(buffer,0,newBuffer,0,pos);
+        buffer = newBuffer;
+      }
+      pos = containers[index].fill(buffer,pos,keys[index] << 16,fromLow,wanted);
+      index++;
+    }
+    int[] rval = new int[pos];
+    System.arraycopy(buffer,0,rval,0,pos);
+    return rval;
+  }
+  
+  /** Make an independent copy. */
+  public D4UBitmap copy()
+  {
+    D4UBitmap rval = new D4UBitmap(size);
+    int i = 0;
+    while (i < size)
+    {
+      rval.keys[i] = keys[i];
+      rval.containers[i] = containers[i].copy();
+      i++;
+    }
+    rval.size = size;
+    return rval;
+  }
+  
+  /** Get the values in both this and another bitmap. */
+  public D4UBitmap and(D4UBitmap other)
+  {
+    D4UBitmap rval = new D4UBitmap(Math.min(size,other.size));
+    int i = 0;
+    int j = 0;
+    while (i < size && j < other.size)
+    {
+      if (keys[i] < other.keys[j])
+        i++;
+      else if (keys[i] > other.keys[j])
+        j++;
+      else
+      {
+        Container c = containers[i].and(other.containers[j]);
+        if (c.cardinality() > 0)
+          rval.appendContainer(keys[i],c);
+        i++;
+        j++;
+      }
+    }
+    return rval;
+  }
+  
+  /** Get the values in either this or another bitmap. */
+  public D4UBitmap or(D4UBitmap other)
+  {
+    D4UBitmap rval = new D4UBitmap(size + other.size);
+    int i = 0;
+    int j = 0;
+    while (i < size || j < other.size)
+    {
+      if (j == other.size || (i < size && keys[i] < other.keys[j]))
+      {
+        rval.appendContainer(keys[i],containers[i].copy());
+        i++;
+      }
+      else if (i == size || keys[i] > other.keys[j])
+      {
+        rval.appendContainer(other.keys[j],other.containers[j].copy());
+        j++;
+      }
+      else
+      {
+        rval.appendContainer(keys[i],containers[i].or(other.containers[j]));
+        i++;
+        j++;
+      }
+    }
+    return rval;
+  }
+  
+  /** Get the values in this bitmap but not in another. */
+  public D4UBitmap andNot(D4UBitmap other)
+  {
+    D4UBitmap rval = new D4UBitmap(size);
+    int i = 0;
+    int j = 0;
+    while (i < size)
+    {
+      while (j < other.size && other.keys[j] < keys[i])
+      {
+        j++;
+      }
+      Container c;
+      if (j < other.size && other.keys[j] == keys[i])
+        c = containers[i].andNot(other.containers[j]);
+      else
+        c = containers[i].copy();
+      if (c.cardinality() > 0)
+        rval.appendContainer(keys[i],c);
+      i++;
+    }
+    return rval;
+  }
+  
+  /** Estimate the memory used, in bytes. */
+  public long getSizeInBytes()
+  {
+    long rval = 16L + 8L * (long)keys.length;
+    int i = 0;
+    while (i < size)
+    {
+      rval += containers[i++].getSizeInBytes();
+    }
+    return rval;
+  }
+  
+  public boolean equals(Object o)
+  {
+    if (!(o instanceof D4UBitmap))
+      return false;
+    D4UBitmap other = (D4UBitmap)o;
+    return java.util.Arrays.equals(toArray(),other.toArray());
+  }
+  
+  public int hashCode()
+  {
+    return java.util.Arrays.hashCode(toArray());
+  }
+  
+  // Internals
+  
+  /** Binary search for a chunk.
+  *@return the index, or (-(insertion point) - 1) if it isn't there.
+  */
+  protected int findKey(int key)
+  {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high)
+    {
+      int mid = (low + high) >>> 1;
+      if (keys[mid] < key)
+        low = mid + 1;
+      else if (keys[mid] > key)
+        high = mid - 1;
+      else
+        return mid;
+    }
+    return -(low + 1);
+  }
+  
+  protected void insertContainer(int index, int key, Container c)
+  {
+    ensureCapacity(size + 1);
+    System.arraycopy(keys,index,keys,index + 1,size - index);
+    System.arraycopy(containers,index,containers,index + 1,size - index);
+    keys[index] = key;
+    containers[index] = c;
+    size++;
+  }
+  
+  protected void removeContainer(int index)
+  {
+    System.arraycopy(keys,index + 1,keys,index,size - index - 1);
+    System.arraycopy(containers,index + 1,containers,index,size - index - 1);
+    size--;
+    containers[size] = null;
+  }
+  
+  protected void appendContainer(int key, Container c)
+  {
+    ensureCapacity(size + 1);
+    keys[size] = key;
+    containers[size] = c;
+    size++;
+  }
+  
+  protected void ensureCapacity(int capacity)
+  {
+    if (capacity <= keys.length)
+      return;
+    int newLength = Math.max(capacity,keys.length * 2);
+    int[] newKeys = new int[newLength];
+    System.arraycopy(keys,0,newKeys,0,size);
+    Container[] newContainers = new Container[newLength];
+    System.arraycopy(containers,0,newContainers,0,size);
+    keys = newKeys;
+    containers = newContainers;
+  }
+  
+  /** One chunk of up to 65536 values, all sharing the same high 16 bits.  Values passed in and
+  * out are the low 16 bits.  Operations that change a chunk return the chunk to use from then
+  * on, which may have changed representation.
+  */
+  protected static abstract class Container
+  {
+    public abstract boolean contains(int low);
+    public abstract Container add(int low);
+    public abstract Container remove(int low);
+    public abstract int cardinality();
+    public abstract Container copy();
+    public abstract long getSizeInBytes();
+    /** Write the values from fromLow upward, with the high bits added, into an array,
+    * stopping at position limit.
+    *@return the next free position. */
+    public abstract int fill(int[] out, int pos, int high, int fromLow, int limit);
+    public abstract Container and(Container other);
+    public abstract Container or(Container other);
+    public abstract Container andNot(Container other);
+  }
+  
+  /** A chunk stored as a sorted array of low halves.
+  */
+  protected static class ArrayContainer extends Container
+  {
+    protected char[] values;
+    protected int cardinality = 0;
+    
+    public ArrayContainer()
+    {
+      values = new char[4];
+    }
+    
+    public ArrayContainer(char[] values, int cardinality)
+    {
+      this.values = values;
+      this.cardinality = cardinality;
+    }
+    
+    protected int find(int low)
+    {
+      int lo = 0;
+      int hi = cardinality - 1;
+      while (lo <= hi)
+      {
+        int mid = (lo + hi) >>> 1;
+        int v = values[mid];
+        if (v < low)
+          lo = mid + 1;
+        else if (v > low)
+          hi = mid - 1;
+        else
+          return mid;
+      }
+      return -(lo + 1);
+    }
+    
+    public boolean contains(int low)
+    {
+      return find(low) >= 0;
+    }
+    
+    public Container add(int low)
+    {
+      int index = find(low);
+      if (index >= 0)
+        return this;
+      if (cardinality == ARRAY_LIMIT)
+        return toBitmap().add(low);
+      index = -index - 1;
+      if (cardinality == values.length)
+      {
+        char[] newValues = new char[Math.min(values.length * 2,ARRAY_LIMIT)];
+        System.arraycopy(values,0,newValues,0,cardinality);
+        values = newValues;
+      }
+      System.arraycopy(values,index,values,index + 1,cardinality - index);
+      values[index] = (char)low;
+      cardinality++;
+      return this;
+    }
+    
+    public Container remove(int low)
+    {
+      int index = find(low);
+      if (index >= 0)
+      {
+        System.arraycopy(values,index + 1,values,index,cardinality - index - 1);
+        cardinality--;
+      }
+      return this;
+    }
+    
+    public int cardinality()
+    {
+      return cardinality;
+    }
+    
+    public Container copy()
+    {
+      char[] newValues = new char[Math.max(cardinality,4)];
+      System.arraycopy(values,0,newValues,0,cardinality);
+      return new ArrayContainer(newValues,cardinality);
+    }
+    
+    public long getSizeInBytes()
+    {
+      return 24L + 2L * (long)values.length;
+    }
+    
+    public int fill(int[] out, int pos, int high, int fromLow, int limit)
+    {
+      int i = find(fromLow);
+      if (i < 0)
+        i = -i - 1;
+      while (i < cardinality && pos < limit)
+      {
+        out[pos++] = high | values[i++];
+      }
+      return pos;
+    }
+    
+    public BitmapContainer toBitmap()
+    {
+      BitmapContainer rval = new BitmapContainer();
+      int i = 0;
+      while (i < cardinality)
+      {
+        rval.set(values[i++]);
+      }
+      return rval;
+    }
+    
+    public Container and(Container other)
+    {
+      char[] result = new char[Math.max(cardinality,4)];
+      int count = 0;
+      if (other instanceof ArrayContainer)
+      {
+        ArrayContainer o = (ArrayContainer)other;
+        int i = 0;
+        int j = 0;
+        while (i < cardinality && j < o.cardinality)
+        {
+          if (values[i] < o.values[j])
+            i++;
+          else if (values[i] > o.values[j])
+            j++;
+          else
+          {
+            result[count++] = values[i];
+            i++;
+            j++;
+          }
+        }
+      }
+      else
+      {
+        int i = 0;
+        while (i < cardinality)
+        {
+          if (other.contains(values[i]))
+            result[count++] = values[i];
+          i++;
+        }
+      }
+      return new ArrayContainer(result,count);
+    }
+    
+    public Container or(Container other)
+    {
+      if (!(other instanceof ArrayContainer))
+        return other.or(this);
+      ArrayContainer o = (ArrayContainer)other;
+      if (cardinality + o.cardinality > ARRAY_LIMIT)
+        return toBitmap().or(o);
+      char[] result = new char[Math.max(cardinality + o.cardinality,4)];
+      int count = 0;
+      int i = 0;
+      int j = 0;
+      while (i < cardinality || j < o.cardinality)
+      {
+        if (j == o.cardinality || (i < cardinality && values[i] < o.values[j]))
+          result[count++] = values[i++];
+        else if (i == cardinality || values[i] > o.values[j])
+          result[count++] = o.values[j++];
+        else
+        {
+          result[count++] = values[i];
+          i++;
+          j++;
+        }
+      }
+      return new ArrayContainer(result,count);
+    }
+    
+    public Container andNot(Container other)
+    {
+      char[] result = new char[Math.max(cardinality,4)];
+      int count = 0;
+      int i = 0;
+      while (i < cardinality)
+      {
+        if (!other.contains(values[i]))
+          result[count++] = values[i];
+        i++;
+      }
+      return new ArrayContainer(result,count);
+    }
+  }
+  
+  /** A chunk stored as a 65536-bit bitmap.
+  */
+  protected static class BitmapContainer extends Container
+  {
+    protected long[] words;
+    protected int cardinality = 0;
+    
+    public BitmapContainer()
+    {
+      words = new long[1024];
+    }
+    
+    protected BitmapContainer(long[] words)
+    {
+      this.words = words;
+      int count = 0;
+      int i = 0;
+      while (i < words.length)
+      {
+        count += Long.bitCount(words[i++]);
+      }
+      this.cardinality = count;
+    }
+    
+    public void set(int low)
+    {
+      long bit = 1L << low;
+      if ((words[low >>> 6] & bit) == 0L)
+      {
+        words[low >>> 6] |= bit;
+        cardinality++;
+      }
+    }
+    
+    public boolean contains(int low)
+    {
+      return (words[low >>> 6] & (1L << low)) != 0L;
+    }
+    
+    public Container add(int low)
+    {
+      set(low);
+      return this;
+    }
+    
+    public Container remove(int low)
+    {
+      long bit = 1L << low;
+      if ((words[low >>> 6] & bit) != 0L)
+      {
+        words[low >>> 6] &= ~bit;
+        cardinality--;
+        if (cardinality <= ARRAY_LIMIT / 2)
+          return toArrayContainer();
+      }
+      return this;
+    }
+    
+    public int cardinality()
+    {
+      return cardinality;
+    }
+    
+    public Container copy()
+    {
+      long[] newWords = new long[1024];
+      System.arraycopy(words,0,newWords,0,1024);
+      BitmapContainer rval = new BitmapContainer();
+      rval.words = newWords;
+      rval.cardinality = cardinality;
+      return rval;
+    }
+    
+    public long getSizeInBytes()
+    {
+      return 24L + 8L * 1024L;
+    }
+    
+    public int fill(int[] out, int pos, int high, int fromLow, int limit)
+    {
+      int i = fromLow >>> 6;
+      while (i < words.length && pos < limit)
+      {
+        long word = words[i];
+        if (i == (fromLow >>> 6))
+          word &= -1L << fromLow;
+        while (word != 0L && pos < limit)
+        {
+          out[pos++] = high | ((i << 6) + Long.numberOfTrailingZeros(word));
+          word &= word - 1L;
+        }
+        i++;
+      }
+      return pos;
+    }
+    
+    protected ArrayContainer toArrayContainer()
+    {
+      char[] values = new char[Math.max(cardinality,4)];
+      int count = 0;
+      int i = 0;
+      while (i < words.length)
+      {
+        long word = words[i];
+        while (word != 0L)
+        {
+          values[count++] = (char)((i << 6) + Long.numberOfTrailingZeros(word));
+          word &= word - 1L;
+        }
+        i++;
+      }
+      return new ArrayContainer(values,count);
+    }
+    
+    /** Pick the smaller representation for a computed result. */
+    protected static Container normalize(long[] words)
+    {
+      BitmapContainer rval = new BitmapContainer(words);
+      if (rval.cardinality <= ARRAY_LIMIT)
+        return rval.toArrayContainer();
+      return rval;
+    }
+    
+    public Container and(Container other)
+    {
+      if (other instanceof ArrayContainer)
+        return other.and(this);
+      long[] o = ((BitmapContainer)other).words;
+      long[] result = new long[1024];
+      int i = 0;
+      while (i < 1024)
+      {
+        result[i] = words[i] & o[i];
+        i++;
+      }
+      return normalize(result);
+    }
+    
+    public Container or(Container other)
+    {
+      BitmapContainer rval = (BitmapContainer)copy();
+      if (other instanceof ArrayContainer)
+      {
+        ArrayContainer o = (ArrayContainer)other;
+        int i = 0;
+        while (i < o.cardinality)
+        {
+          rval.set(o.values[i++]);
+        }
+        return rval;
+      }
+      long[] o = ((BitmapContainer)other).words;
+      int i = 0;
+      while (i < 1024)
+      {
+        rval.words[i] |= o[i];
+        i++;
+      }
+      return new BitmapContainer(rval.words);
+    }
+    
+    public Container andNot(Container other)
+    {
+      long[] result = new long[1024];
+      System.arraycopy(words,0,result,0,1024);
+      if (other instanceof ArrayContainer)
+      {
+        ArrayContainer o = (ArrayContainer)other;
+        int i = 0;
+        while (i < o.cardinality)
+        {
+          int low = o.values[i++];
+          result[low >>> 6] &= ~(1L << low);
+        }
+      }
+      else
+      {
+        long[] o = ((BitmapContainer)other).words;
+        int i = 0;
+        while (i < 1024)
+        {
+          result[i] &= ~o[i];
+          i++;
+        }
+      }
+      return normalize(result);
+    }
+  }
+  
+}
@@ -0,0 +1,87 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+/** This class describes one change to a Docs4U repository, as recorded in its change journal.
+*/
+public class D4UChange
+{
+  /** The change was to a document */
+  public final static int TYPE_DOCUMENT = 0;
+  /** The change was to a user or group */
+  public final static int TYPE_USER_OR_GROUP = 1;
+  
+  /** The item was created */
+  public final static int ACTION_CREATE = 0;
+  /** The item was updated */
+  public final static int ACTION_UPDATE = 1;
+  /** The item was deleted */
+  public final static int ACTION_DELETE = 2;
+  
+  protected final int type;
+  protected final int action;
+  protected final String id;
+  protected final long time;
+  
+  /** Constructor.
+  *@param type is the kind of item, TYPE_DOCUMENT or TYPE_USER_OR_GROUP.
+  *@param action is what happened, ACTION_CREATE, ACTION_UPDATE, or ACTION_DELETE.
+  *@param id is the document or user/group identifier.
+  *@param time is when the change was made, in ms since epoch.
+  */
+  public D4UChange(int type, int action, String id, long time)
+  {
+    this.type = type;
+    this.action = action;
+    this.id = id;
+    this.time = time;
+  }
+  
+  /** Get the kind of item that changed. */
+  public int getType()
+  {
+    return type;
+  }
+  
+  /** Get what happened to it. */
+  public int getAction()
+  {
+    return action;
+  }
+  
+  /** Get the document or user/group identifier. */
+  public String getID()
+  {
+    return id;
+  }
+  
+  /** Get when the change was made, in ms since epoch. */
+  public long getTime()
+  {
+    return time;
+  }
+  
+  public String toString()
+  {
+    String typeName = (type == TYPE_DOCUMENT)?"document":"user/group";
+    String actionName = (action == ACTION_CREATE)?"created":((action == ACTION_UPDATE)?"updated":"deleted");
+    return typeName+" '"+id+"' "+actionName+" at "+time;
+  }
+  
+}
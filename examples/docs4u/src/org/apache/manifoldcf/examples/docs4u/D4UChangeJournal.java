@@ -0,0 +1,664 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.util.*;
+
+/** This class is a Docs4U repository's change journal: an append-only file in the root, with
+* one line per change to a document or user/group.  There is one instance per root per
+* process, obtained with getJournal().
+*
+* Changes are appended after the change itself is made, while the lock that guarded the
+* change is still held, so the journal's order is the order in which changes happened.
+* Documents and users/groups are guarded by different locks, and append-mode writes are not
+* atomic on every file system (NFS in particular), so each record is also written under the
+* journal's own lock, at the end of the file as that lock's holder finds it.
+*
+* Readers keep their place with a checkpoint, which names the journal's installation and a
+* position in it.  A checkpoint from before a reinstall is refused, rather than silently
+* pointing somewhere else.  A read may wait for changes; it is woken at once by changes made
+* in this process, and notices changes made by others within the poll interval.
+*
+* Once the journal is larger than its size limit, the changes older than the retention
+* window are dropped, by writing the rest to a new file that replaces the old one.  The
+* header then records the position of the first change kept, so that positions, and the
+* checkpoints holding them, stay the same; and the time since which every change is kept, so
+* that a checkpoint for an earlier time is refused like one from before the journal began.
+* A checkpoint for a change that has been dropped is refused when read from.
+*/
+public class D4UChangeJournal
+{
+  /** How often a waiting read checks for changes made by other processes, in milliseconds */
+  protected final static long POLL_INTERVAL = Long.getLong("docs4u.changes.pollinterval",50L).longValue();
+  /** How much of the journal to read at a time */
+  protected final static int READ_SIZE = 65536;
+  /** First word of the journal's header line */
+  protected final static String HEADER_PREFIX = "docs4u-changes ";
+  /** Size beyond which old changes are dropped, in bytes */
+  protected final static long MAX_SIZE = Long.getLong("docs4u.changes.maxsize",67108864L).longValue();
+  /** How long changes are kept once the journal is larger than its size limit, in milliseconds */
+  protected final static long RETENTION = Long.getLong("docs4u.changes.retention",604800000L).longValue();
+  
+  /** Journals, keyed by canonical root path */
+  protected final static Map instances = new HashMap();
+  
+  protected final File journalFile;
+  protected final File journalLockFile;
+  protected final Random random = new Random();
+  
+  protected D4UChangeJournal(String root)
+  {
+    this.journalFile = new File(root,Docs4UAPIImpl.journalFileName);
+    this.journalLockFile = new File(root,Docs4UAPIImpl.journalLockFileName);
+  }
+  
+  /** Get the journal for a repository root.
+  *@param root is the repository root directory.
+  */
+  public static D4UChangeJournal getJournal(String root)
+  {
+    String key;
+    try
+    {
+      key = new File(root).getCanonicalPath();
+    }
+    catch (IOException e)
+    {
+      key = new File(root).getAbsolutePath();
+    }
+    synchronized (instances)
+    {
+      D4UChangeJournal rval = (D4UChangeJournal)instances.get(key);
+      if (rval == null)
+      {
+        rval = new D4UChangeJournal(key);
+        instances.put(key,rval);
+      }
+      return rval;
+    }
+  }
+  
+  /** Start a new, empty journal.  Used when the repository is installed.
+  */
+  public void create()
+    throws D4UException
+  {
+    // A fresh installation identifier makes checkpoints from any earlier journal invalid
+    String installation = Long.toString(System.currentTimeMillis(),36) + "-" +
+      Integer.toString(random.nextInt() & 0x7fffffff,36);
+    try
+    {
+      OutputStream os = new FileOutputStream(journalFile);
+      try
+      {
+        os.write((HEADER_PREFIX+installation+"\n").getBytes("UTF-8"));
+      }
+      finally
+      {
+        os.close();
+      }
+    }
+    catch (IOException e)
+    {
+      throw new D4UException("Could not create change journal: "+e.getMessage(),e);
+    }
+  }
+  
+  /** Remove the journal.  Used when the repository is removed.
+  */
+  public void delete()
+  {
+    journalFile.delete();
+    synchronized (this)
+    {
+      notifyAll();
+    }
+  }
+  
+  /** Record a change.  Call with the lock that guarded the change still held.
+  *@param type is D4UChange.TYPE_DOCUMENT or D4UChange.TYPE_USER_OR_GROUP.
+  *@param action is D4UChange.ACTION_CREATE, ACTION_UPDATE, or ACTION_DELETE.
+  *@param id is the identifier of the item that changed.
+  */
+  public void append(int type, int action, String id)
+    throws InterruptedException, D4UException
+  {
+    ensureExists();
+    StringBuffer sb = new StringBuffer();
+    sb.append(System.currentTimeMillis()).append('\t');
+    sb.append((type == D4UChange.TYPE_DOCUMENT)?'D':'U');
+    sb.append((action == D4UChange.ACTION_CREATE)?'C':((action == D4UChange.ACTION_UPDATE)?'U':'D'));
+    sb.append('\t');
+    escape(sb,id);
+    sb.append('\n');
+    File[] journalLocks = new File[]{journalLockFile};
+    Docs4UAPIImpl.makeLocks(journalLocks);
+    try
+    {
+      // The journal may have been removed since we looked
+      if (!journalFile.exists())
+        create();
+      long length;
+      RandomAccessFile raf = new RandomAccessFile(journalFile,"rw");
+      try
+      {
+        length = raf.length();
+        raf.seek(length);
+        raf.write(sb.toString().getBytes("UTF-8"));
+        length = raf.length();
+      }
+      finally
+      {
+        raf.close();
+      }
+      if (length > MAX_SIZE)
+        compact();
+    }
+    catch (IOException e)
+    {
+      throw new D4UException("Could not write change journal: "+e.getMessage(),e);
+    }
+    finally
+    {
+      Docs4UAPIImpl.clearLocks(journalLocks);
+    }
+    synchronized (this)
+    {
+      notifyAll();
+    }
+  }
+  
+  /** Get a checkpoint for the end of the journal, so that reading from it returns only
+  * changes made from now on.
+  */
+  public String getCheckpoint()
+    throws InterruptedException, D4UException
+  {
+    ensureExists();
+    try
+    {
+      RandomAccessFile raf = new RandomAccessFile(journalFile,"r");
+      try
+      {
+        Header header = readHeader(raf);
+        return header.installation + ":" + Long.toString(header.toPosition(raf.length()));
+      }
+      finally
+      {
+        raf.close();
+      }
+    }
+    catch (IOException e)
+    {
+      throw new D4UException("Could not read change journal: "+e.getMessage(),e);
+    }
+  }
+  
+  /** Get a checkpoint for the first change made at or after a given time.
+  *@param time is the time, in ms since epoch.
+  *@return the checkpoint, or null if the journal was started after that time, or no longer
+  * keeps the changes from then, so that some changes made since then may not be in it.
+  */
+  public String getCheckpoint(long time)
+    throws InterruptedException, D4UException
+  {
+    ensureExists();
+    try
+    {
+      RandomAccessFile raf = new RandomAccessFile(journalFile,"r");
+      try
+      {
+        Header header = readHeader(raf);
+        if (header.since > time)
+          return null;
+        long offset = findRecord(raf,header.start,raf.length(),time);
+        return header.installation + ":" + Long.toString(header.toPosition(offset));
+      }
+      finally
+      {
+        raf.close();
+      }
+    }
+    catch (IOException e)
+    {
+      throw new D4UException("Could not read change journal: "+e.getMessage(),e);
+    }
+  }
+  
+  /** Read changes made after a checkpoint.
+  *@param checkpoint is where to start, as returned by getCheckpoint() or by a previous read.
+  *@param limit is the largest number of changes to return.
+  *@param waitMillis is how long to wait for a change if there are none yet; 0 not to wait.
+  *@return the changes, and the checkpoint to read from next.
+  */
+  public D4UChangePage read(String checkpoint, int limit, long waitMillis)
+    throws InterruptedException, D4UException
+  {
+    if (limit < 1)
+      throw new D4UException("Change limit must be at least 1");
+    int colon = checkpoint.lastIndexOf(':');
+    if (colon == -1)
+      throw new D4UException("Bad change checkpoint: '"+checkpoint+"'");
+    String installation = checkpoint.substring(0,colon);
+    long position;
+    try
+    {
+      position = Long.parseLong(checkpoint.substring(colon+1));
+    }
+    catch (NumberFormatException e)
+    {
+      throw new D4UException("Bad change checkpoint: '"+checkpoint+"'");
+    }
+    
+    ensureExists();
+    long giveUpTime = System.currentTimeMillis() + waitMillis;
+    while (true)
+    {
+      List changes = new ArrayList();
+      long newPosition;
+      try
+      {
+        RandomAccessFile raf = new RandomAccessFile(journalFile,"r");
+        try
+        {
+          Header header = readHeader(raf);
+          if (!header.installation.equals(installation))
+            throw new D4UException("Change checkpoint '"+checkpoint+"' is from an earlier installation of the repository");
+          if (position < header.base)
+            throw new D4UException("Change checkpoint '"+checkpoint+"' is older than the oldest change kept");
+          long offset = header.toOffset(position);
+          if (offset > raf.length())
+            throw new D4UException("Change checkpoint '"+checkpoint+"' is outside the journal");
+          newPosition = header.toPosition(readRecords(raf,offset,limit,changes));
+        }
+        finally
+        {
+          raf.close();
+        }
+      }
+      catch (FileNotFoundException e)
+      {
+        throw new D4UException("Change journal is gone; the repository was removed");
+      }
+      catch (IOException e)
+      {
+        throw new D4UException("Could not read change journal: "+e.getMessage(),e);
+      }
+      
+      long remaining = giveUpTime - System.currentTimeMillis();
+      if (changes.size() > 0 || remaining <= 0L)
+        return new D4UChangePage((D4UChange[])changes.toArray(new D4UChange[0]),installation+":"+Long.toString(newPosition));
+      position = newPosition;
+      synchronized (this)
+      {
+        wait(Math.min(remaining,POLL_INTERVAL));
+      }
+    }
+  }
+  
+  // Internals
+  
+  /** Create the journal if it isn't there, as for a repository installed before journals
+  * existed.
+  */
+  protected void ensureExists()
+    throws InterruptedException, D4UException
+  {
+    if (journalFile.exists())
+      return;
+    File[] journalLocks = new File[]{journalLockFile};
+    Docs4UAPIImpl.makeLocks(journalLocks);
+    try
+    {
+      if (!journalFile.exists())
+        create();
+    }
+    finally
+    {
+      Docs4UAPIImpl.clearLocks(journalLocks);
+    }
+  }
+  
+  /** Drop the changes older than the retention window, if there are any.  Call with the
+  * journal lock held.
+  */
+  protected void compact()
+    throws IOException, D4UException
+  {
+    long cutoff = System.currentTimeMillis() - RETENTION;
+    File newFile = new File(journalFile.getPath()+".new");
+    RandomAccessFile raf = new RandomAccessFile(journalFile,"r");
+    try
+    {
+      Header header = readHeader(raf);
+      // Most of the time there is nothing old enough yet
+      D4UChange first = parseRecord(raf.readLine());
+      if (first != null && first.getTime() >= cutoff)
+        return;
+      long length = raf.length();
+      long keepFrom = findRecord(raf,header.start,length,cutoff);
+      if (keepFrom == header.start)
+        return;
+      OutputStream os = new FileOutputStream(newFile);
+      try
+      {
+        os.write((HEADER_PREFIX+header.installation+" "+Long.toString(header.toPosition(keepFrom))+" "+
+          Long.toString(Math.max(cutoff,header.since))+"\n").getBytes("UTF-8"));
+        byte[] buffer = new byte[READ_SIZE];
+        raf.seek(keepFrom);
+        long remaining = length - keepFrom;
+        while (remaining > 0L)
+        {
+          int amount = (int)Math.min((long)buffer.length,remaining);
+          raf.readFully(buffer,0,amount);
+          os.write(buffer,0,amount);
+          remaining -= amount;
+        }
+      }
+      finally
+      {
+        os.close();
+      }
+    }
+    finally
+    {
+      raf.close();
+    }
+    if (newFile.renameTo(journalFile) == false)
+    {
+      // Some platforms won't rename over an existing file
+      journalFile.delete();
+      if (newFile.renameTo(journalFile) == false)
+        throw new D4UException("Could not replace change journal with its compacted copy");
+    }
+  }
+  
+  /** Read the header, leaving the file positioned after it.
+  */
+  protected static Header readHeader(RandomAccessFile raf)
+    throws IOException, D4UException
+  {
+    raf.seek(0L);
+    String line = raf.readLine();
+    if (line == null || !line.startsWith(HEADER_PREFIX))
+      throw new D4UException("Change journal has a bad header");
+    long start = raf.getFilePointer();
+    String[] fields = line.substring(HEADER_PREFIX.length()).split(" ");
+    // A journal that has never been compacted keeps everything since it began
+    if (fields.length == 1)
+      return new Header(fields[0],start,getInstallationTime(fields[0]),start);
+    if (fields.length != 3)
+      throw new D4UException("Change journal has a bad header");
+    try
+    {
+      return new Header(fields[0],Long.parseLong(fields[1]),Long.parseLong(fields[2]),start);
+    }
+    catch (NumberFormatException e)
+    {
+      throw new D4UException("Change journal has a bad header");
+    }
+  }
+  
+  /** Get the time a journal was started, from its installation identifier.
+  *@return the time in ms since epoch, or Long.MAX_VALUE if the identifier doesn't say.
+  */
+  protected static long getInstallationTime(String installation)
+  {
+    int dash = installation.indexOf('-');
+    if (dash == -1)
+      return Long.MAX_VALUE;
+    try
+    {
+      return Long.parseLong(installation.substring(0,dash),36);
+    }
+    catch (NumberFormatException e)
+    {
+      return Long.MAX_VALUE;
+    }
+  }
+  
+  /** Find the first record made at or after a given time.  Records are in time order as long
+  * as the clock doesn't go backwards, so they are binary searched.
+  *@param start is the offset of the first record.
+  *@param limit is the offset of the end of the last record.
+  *@return the offset of the record, or the limit if there is none.
+  */
+  protected static long findRecord(RandomAccessFile raf, long start, long limit, long time)
+    throws IOException
+  {
+    long lo = start;
+    long hi = limit;
+    long best = hi;
+    while (lo < hi)
+    {
+      long mid = lo + (hi - lo) / 2L;
+      long lineStart = findLineStart(raf,mid,hi);
+      if (lineStart >= hi)
+      {
+        hi = mid;
+        continue;
+      }
+      raf.seek(lineStart);
+      D4UChange change = parseRecord(raf.readLine());
+      // A record that can't be read might be anywhere, so don't skip past it
+      if (change == null || change.getTime() >= time)
+      {
+        best = lineStart;
+        hi = mid;
+      }
+      else
+        lo = lineStart + 1L;
+    }
+    return best;
+  }
+  
+  /** Find the first record that starts at or after an offset.  The file position is left
+  * undefined.
+  *@return the offset of the record, or the limit if none starts before it.
+  */
+  protected static long findLineStart(RandomAccessFile raf, long offset, long limit)
+    throws IOException
+  {
+    raf.seek(offset - 1L);
+    byte[] buffer = new byte[256];
+    long position = offset - 1L;
+    while (position < limit)
+    {
+      int amount = raf.read(buffer,0,(int)Math.min((long)buffer.length,limit - position));
+      if (amount <= 0)
+        break;
+      int i = 0;
+      while (i < amount)
+      {
+        if (buffer[i] == '\n')
+          return position + i + 1L;
+        i++;
+      }
+      position += amount;
+    }
+    return limit;
+  }
+  
+  /** Read complete records from an offset.  A record still being written is left for next
+  * time.
+  *@return the offset after the last record read.
+  */
+  protected static long readRecords(RandomAccessFile raf, long offset, int limit, List changes)
+    throws IOException
+  {
+    long length = raf.length();
+    byte[] buffer = new byte[READ_SIZE];
+    while (offset < length && changes.size() < limit)
+    {
+      raf.seek(offset);
+      int amount = (int)Math.min((long)buffer.length,length - offset);
+      raf.readFully(buffer,0,amount);
+      int lineStart = 0;
+      int i = 0;
+      while (i < amount && changes.size() < limit)
+      {
+        if (buffer[i] == '\n')
+        {
+          D4UChange change = parseRecord(new String(buffer,lineStart,i - lineStart,"UTF-8"));
+          if (change != null)
+            changes.add(change);
+          lineStart = i + 1;
+        }
+        i++;
+      }
+      if (lineStart == 0)
+      {
+        // No complete record in the buffer; either it's partly written, or absurdly long
+        if (amount < buffer.length)
+          break;
+        buffer = new byte[buffer.length * 2];
+        continue;
+      }
+      offset += lineStart;
+    }
+    return offset;
+  }
+  
+  /** Parse one record.
+  *@return the change, or null if the record can't be understood.
+  */
+  protected static D4UChange parseRecord(String record)
+  {
+    int firstTab = record.indexOf('\t');
+    if (firstTab == -1 || record.length() < firstTab + 4 || record.charAt(firstTab + 3) != '\t')
+      return null;
+    long time;
+    try
+    {
+      time = Long.parseLong(record.substring(0,firstTab));
+    }
+    catch (NumberFormatException e)
+    {
+      return null;
+    }
+    int type;
+    switch (record.charAt(firstTab + 1))
+    {
+    case 'D':
+      type = D4UChange.TYPE_DOCUMENT;
+      break;
+    case 'U':
+      type = D4UChange.TYPE_USER_OR_GROUP;
+      break;
+    default:
+      return null;
+    }
+    int action;
+    switch (record.charAt(firstTab + 2))
+    {
+    case 'C':
+      action = D4UChange.ACTION_CREATE;
+      break;
+    case 'U':
+      action = D4UChange.ACTION_UPDATE;
+      break;
+    case 'D':
+      action = D4UChange.ACTION_DELETE;
+      break;
+    default:
+      return null;
+    }
+    return new D4UChange(type,action,unescape(record.substring(firstTab + 4)),time);
+  }
+  
+  /** Append an identifier, with tabs, newlines and backslashes escaped. */
+  protected static void escape(StringBuffer sb, String value)
+  {
+    int i = 0;
+    while (i < value.length())
+    {
+      char c = value.charAt(i++);
+      if (c == '\\')
+        sb.append("\\\\");
+      else if (c == '\t')
+        sb.append("\\t");
+      else if (c == '\n')
+        sb.append("\\n");
+      else if (c == '\r')
+        sb.append("\\r");
+      else
+        sb.append(c);
+    }
+  }
+  
+  protected static String unescape(String value)
+  {
+    if (value.indexOf('\\') == -1)
+      return value;
+    StringBuffer sb = new StringBuffer();
+    int i = 0;
+    while (i < value.length())
+    {
+      char c = value.charAt(i++);
+      if (c == '\\' && i < value.length())
+      {
+        c = value.charAt(i++);
+        if (c == 't')
+          c = '\t';
+        else if (c == 'n')
+          c = '\n';
+        else if (c == 'r')
+          c = '\r';
+      }
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+  
+  /** What a journal's header says.
+  */
+  protected static class Header
+  {
+    /** The installation identifier */
+    public final String installation;
+    /** The position of the first record in the file */
+    public final long base;
+    /** The time since which every change is in the file, in ms since epoch */
+    public final long since;
+    /** The offset in the file of the first record */
+    public final long start;
+    
+    public Header(String installation, long base, long since, long start)
+    {
+      this.installation = installation;
+      this.base = base;
+      this.since = since;
+      this.start = start;
+    }
+    
+    /** Convert an offset in the file to a position. */
+    public long toPosition(long offset)
+    {
+      return base + (offset - start);
+    }
+    
+    /** Convert a position to an offset in the file. */
+    public long toOffset(long position)
+    {
+      return start + (position - base);
+    }
+  }
+  
+}
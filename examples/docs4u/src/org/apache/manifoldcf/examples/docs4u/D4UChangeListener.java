@@ -0,0 +1,38 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+/** This interface is implemented by anything that wants to hear about changes to the
+* documents and users of a Docs4U repository.  Register with D4UChangeNotifier.addListener().
+*/
+public interface D4UChangeListener
+{
+  /** Some changes have been made.  This is called from the notifier's thread, so it should
+  * return quickly.
+  *@param changes are the changes, oldest first, with repeated changes to the same item merged.
+  */
+  public void changesOccurred(D4UChange[] changes);
+  
+  /** Changes may have been missed, because the repository was reinstalled or the journal
+  * could not be read from where the notifier left off.  Anything derived from the repository
+  * should be rebuilt.  Notification continues from the present.
+  */
+  public void changesLost();
+  
+}
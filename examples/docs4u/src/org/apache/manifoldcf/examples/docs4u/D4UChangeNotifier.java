@@ -0,0 +1,269 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** This class pushes changes from a Docs4U repository's change journal to listeners, so
+* they need not poll the repository themselves.  It works through any Docs4UAPI, local or
+* remote.
+*
+* A single thread waits on the journal.  When a change arrives it keeps collecting until the
+* journal has been quiet for the debounce interval, or the batch is full, or the oldest change
+* has waited the maximum delay, and then hands the batch to every listener.  Repeated changes
+* to the same item within a batch are merged into one.
+*/
+public class D4UChangeNotifier
+{
+  /** How long the journal must be quiet before a batch is delivered, in milliseconds */
+  protected final static long DEBOUNCE_INTERVAL = Long.getLong("docs4u.changes.debounce",20L).longValue();
+  /** The longest a change is held back, in milliseconds */
+  protected final static long MAX_DELAY = Long.getLong("docs4u.changes.maxdelay",250L).longValue();
+  /** The most changes delivered in one batch */
+  protected final static int MAX_BATCH = Integer.getInteger("docs4u.changes.maxbatch",1000).intValue();
+  /** How long each wait on the journal lasts, in milliseconds */
+  protected final static long WAIT_INTERVAL = 5000L;
+  /** How long to pause after an error before trying again, in milliseconds */
+  protected final static long RETRY_INTERVAL = 1000L;
+  
+  protected final Docs4UAPI api;
+  protected final List listeners = new CopyOnWriteArrayList();
+  protected String checkpoint;
+  protected Thread notifierThread = null;
+  
+  /** Constructor.  Notification starts with changes made after this point.
+  *@param api is the repository to watch.
+  */
+  public D4UChangeNotifier(Docs4UAPI api)
+    throws InterruptedException, D4UException
+  {
+    this(api,null);
+  }
+  
+  /** Constructor.
+  *@param api is the repository to watch.
+  *@param checkpoint is the journal checkpoint to start from, or null to start from now.
+  */
+  public D4UChangeNotifier(Docs4UAPI api, String checkpoint)
+    throws InterruptedException, D4UException
+  {
+    this.api = api;
+    this.checkpoint = (checkpoint == null)?api.getChangeCheckpoint():checkpoint;
+  }
+  
+  /** Register a listener.  The notifier thread runs while there are listeners.
+  */
+  public void addListener(D4UChangeListener listener)
+  {
+    listeners.add(listener);
+    synchronized (this)
+    {
+      if (notifierThread == null)
+      {
+        notifierThread = new NotifierThread();
+        notifierThread.start();
+      }
+    }
+  }
+  
+  /** Remove a listener.
+  */
+  public void removeListener(D4UChangeListener listener)
+  {
+    listeners.remove(listener);
+    synchronized (this)
+    {
+      if (listeners.size() == 0 && notifierThread != null)
+      {
+        notifierThread.interrupt();
+        notifierThread = null;
+      }
+    }
+  }
+  
+  /** Get the checkpoint following the last change delivered.  A caller that saves this can
+  * pick up where it left off with a new notifier later.
+  */
+  public synchronized String getCheckpoint()
+  {
+    return checkpoint;
+  }
+  
+  // Internals
+  
+  /** Collect one batch of changes.
+  *@return the changes, merged, oldest first.
+  */
+  protected D4UChange[] collectBatch()
+    throws InterruptedException, D4UException
+  {
+    String current = getCheckpoint();
+    // Wait for the first change
+    D4UChangePage page = api.getChanges(current,MAX_BATCH,WAIT_INTERVAL);
+    if (page.getChanges().length == 0)
+    {
+      setCheckpoint(page.getCheckpoint());
+      return null;
+    }
+    long deliverBy = System.currentTimeMillis() + MAX_DELAY;
+    Map merged = new LinkedHashMap();
+    int count = 0;
+    while (true)
+    {
+      D4UChange[] changes = page.getChanges();
+      int i = 0;
+      while (i < changes.length)
+      {
+        merge(merged,changes[i++]);
+      }
+      count += changes.length;
+      current = page.getCheckpoint();
+      long remaining = deliverBy - System.currentTimeMillis();
+      if (changes.length == 0 || count >= MAX_BATCH || remaining <= 0L)
+        break;
+      // Keep going until the journal is quiet
+      page = api.getChanges(current,MAX_BATCH - count,Math.min(DEBOUNCE_INTERVAL,remaining));
+    }
+    setCheckpoint(current);
+    return (D4UChange[])merged.values().toArray(new D4UChange[0]);
+  }
+  
+  /** Merge a change into the batch.  A create followed by anything stays a create, unless
+  * it ends in a delete, in which case listeners never need hear of it.
+  */
+  protected static void merge(Map merged, D4UChange change)
+  {
+    String key = Integer.toString(change.getType()) + ":" + change.getID();
+    D4UChange previous = (D4UChange)merged.remove(key);
+    if (previous != null && previous.getAction() == D4UChange.ACTION_CREATE)
+    {
+      if (change.getAction() == D4UChange.ACTION_DELETE)
+        return;
+      change = new D4UChange(change.getType(),D4UChange.ACTION_CREATE,change.getID(),change.getTime());
+    }
+    // Re-inserting moves the item to the end, which is when it last changed
+    merged.put(key,change);
+  }
+  
+  protected synchronized void setCheckpoint(String checkpoint)
+  {
+    this.checkpoint = checkpoint;
+  }
+  
+  /** Decide what an error means.  If the journal has been replaced, changes were lost and we
+  * start again from the present; otherwise it was likely transient.
+  *@return true if changes were lost.
+  */
+  protected boolean checkForLostChanges()
+    throws InterruptedException
+  {
+    try
+    {
+      String newCheckpoint = api.getChangeCheckpoint();
+      String current = getCheckpoint();
+      String currentInstallation = current.substring(0,Math.max(current.lastIndexOf(':'),0));
+      if (newCheckpoint.startsWith(currentInstallation + ":"))
+        return false;
+      setCheckpoint(newCheckpoint);
+      return true;
+    }
+    catch (D4UException e)
+    {
+      // Can't even get a checkpoint; try again later
+      return false;
+    }
+  }
+  
+  protected void notifyChanges(D4UChange[] changes)
+  {
+    Iterator iter = listeners.iterator();
+    while (iter.hasNext())
+    {
+      D4UChangeListener listener = (D4UChangeListener)iter.next();
+      try
+      {
+        listener.changesOccurred(changes);
+      }
+      catch (RuntimeException e)
+      {
+        // One bad listener mustn't keep the others from hearing about it
+        e.printStackTrace(System.err);
+      }
+    }
+  }
+  
+  protected void notifyLost()
+  {
+    Iterator iter = listeners.iterator();
+    while (iter.hasNext())
+    {
+      D4UChangeListener listener = (D4UChangeListener)iter.next();
+      try
+      {
+        listener.changesLost();
+      }
+      catch (RuntimeException e)
+      {
+        e.printStackTrace(System.err);
+      }
+    }
+  }
+  
+  /** Thread that waits on the journal and delivers batches, while there are listeners.
+  */
+  protected class NotifierThread extends Thread
+  {
+    public NotifierThread()
+    {
+      super("Docs4U change notifier");
+      setDaemon(true);
+    }
+    
+    public void run()
+    {
+      while (true)
+      {
+        try
+        {
+          if (isInterrupted())
+            return;
+          try
+          {
+            D4UChange[] changes = collectBatch();
+            if (changes != null && changes.length > 0)
+              notifyChanges(changes);
+          }
+          catch (D4UException e)
+          {
+            if (checkForLostChanges())
+              notifyLost();
+            else
+              Thread.sleep(RETRY_INTERVAL);
+          }
+        }
+        catch (InterruptedException e)
+        {
+          return;
+        }
+      }
+    }
+  }
+  
+}
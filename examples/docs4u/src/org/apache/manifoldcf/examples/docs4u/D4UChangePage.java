@@ -0,0 +1,54 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+/** This class holds a run of changes read from a Docs4U change journal, along with the
+* checkpoint to pass back to read the changes after them.
+*/
+public class D4UChangePage
+{
+  protected final D4UChange[] changes;
+  protected final String checkpoint;
+  
+  /** Constructor.
+  *@param changes are the changes, oldest first.
+  *@param checkpoint is the checkpoint following the last change.
+  */
+  public D4UChangePage(D4UChange[] changes, String checkpoint)
+  {
+    this.changes = changes;
+    this.checkpoint = checkpoint;
+  }
+  
+  /** Get the changes, oldest first.
+  */
+  public D4UChange[] getChanges()
+  {
+    return changes;
+  }
+  
+  /** Get the checkpoint following the last change.  It is never null; when there were no
+  * changes it is the checkpoint that was passed in.
+  */
+  public String getCheckpoint()
+  {
+    return checkpoint;
+  }
+  
+}
@@ -0,0 +1,280 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.util.*;
+
+/** This class generates synthetic Docs4U content.  All choices are driven by a seeded random
+* number generator, so the same settings always produce the same corpus.  It is used by the
+* benchmark and load-generation tools.
+*/
+public class D4UCorpusGenerator
+{
+  /** Default metadata names */
+  public final static String[] DEFAULT_METADATA_NAMES = new String[]{"category","author","date"};
+  
+  protected long seed = 1L;
+  protected String[] metadataNames = DEFAULT_METADATA_NAMES;
+  protected int metadataCardinality = 10;
+  protected int[] contentSizes = new int[]{1024};
+  protected int userCount = 100;
+  protected int groupCount = 10;
+  protected int aclFanout = 1;
+  protected int groupDepth = 1;
+  
+  public D4UCorpusGenerator()
+  {
+  }
+  
+  /** Set the random seed. */
+  public void setSeed(long seed)
+  {
+    this.seed = seed;
+  }
+  
+  /** Set the metadata names every document gets a value for. */
+  public void setMetadataNames(String[] metadataNames)
+  {
+    this.metadataNames = metadataNames;
+  }
+  
+  /** Set the number of distinct values each metadata name takes.  A filter on one value
+  * therefore matches about 1/cardinality of the corpus. */
+  public void setMetadataCardinality(int metadataCardinality)
+  {
+    this.metadataCardinality = metadataCardinality;
+  }
+  
+  /** Set the document content sizes, one of which is picked at random for each document. */
+  public void setContentSizes(int[] contentSizes)
+  {
+    this.contentSizes = contentSizes;
+  }
+  
+  /** Set the number of users to create. */
+  public void setUserCount(int userCount)
+  {
+    this.userCount = userCount;
+  }
+  
+  /** Set the number of groups to create. */
+  public void setGroupCount(int groupCount)
+  {
+    this.groupCount = groupCount;
+  }
+  
+  /** Set the number of users and groups each document's allowed list names. */
+  public void setAclFanout(int aclFanout)
+  {
+    this.aclFanout = aclFanout;
+  }
+  
+  /** Set how deeply groups nest.  With a depth of 1 all groups are top-level; otherwise the
+  * groups are split into that many levels, and each group below the top belongs to a group
+  * in the level above it. */
+  public void setGroupDepth(int groupDepth)
+  {
+    this.groupDepth = groupDepth;
+  }
+  
+  /** Describe the settings, so that a corpus on disk can be matched with what generated it.
+  */
+  public String describe()
+  {
+    StringBuffer sb = new StringBuffer();
+    sb.append("seed=").append(seed);
+    sb.append(" metadata=").append(Arrays.asList(metadataNames));
+    sb.append(" cardinality=").append(metadataCardinality);
+    sb.append(" sizes=");
+    int i = 0;
+    while (i < contentSizes.length)
+    {
+      if (i > 0)
+        sb.append(",");
+      sb.append(contentSizes[i++]);
+    }
+    sb.append(" users=").append(userCount);
+    sb.append(" groups=").append(groupCount);
+    if (aclFanout != 1)
+      sb.append(" fanout=").append(aclFanout);
+    if (groupDepth != 1)
+      sb.append(" depth=").append(groupDepth);
+    return sb.toString();
+  }
+  
+  /** Populate a freshly installed repository.
+  *@param api is the repository.
+  *@param documentCount is the number of documents to create.
+  *@return the generated user IDs; the login ID for user N is "userN".
+  */
+  public String[] generate(Docs4UAPI api, int documentCount)
+    throws InterruptedException, D4UException
+  {
+    Random random = new Random(seed);
+    api.setMetadataNames(metadataNames);
+    String[] principals = generateUsersAndGroups(api,random);
+    String[] ids = null;
+    int index = 0;
+    int i = 0;
+    while (i < documentCount)
+    {
+      if (ids == null || index == ids.length)
+      {
+        ids = api.reserveIDs(Math.min(1024,documentCount - i));
+        index = 0;
+      }
+      D4UDocInfo docInfo = makeDocument(random,principals);
+      try
+      {
+        api.updateDocument(ids[index++],docInfo);
+      }
+      finally
+      {
+        docInfo.close();
+      }
+      i++;
+    }
+    String[] rval = new String[userCount];
+    System.arraycopy(principals,groupCount,rval,0,userCount);
+    return rval;
+  }
+  
+  /** Create the users and groups.
+  *@return all the user and group IDs, groups first.
+  */
+  protected String[] generateUsersAndGroups(Docs4UAPI api, Random random)
+    throws InterruptedException, D4UException
+  {
+    String[] rval = new String[groupCount + userCount];
+    int i = 0;
+    while (i < groupCount)
+    {
+      // Levels are contiguous runs of groups, so a group's parent level is already created
+      int level = getGroupLevel(i);
+      String[] parents = new String[0];
+      if (level > 0)
+      {
+        int parentStart = getLevelStart(level - 1);
+        int parentEnd = getLevelStart(level);
+        parents = new String[]{rval[parentStart + random.nextInt(parentEnd - parentStart)]};
+      }
+      rval[i] = api.createUserOrGroup("group"+i,null,parents);
+      i++;
+    }
+    i = 0;
+    while (i < userCount)
+    {
+      String[] groups;
+      if (groupCount > 0)
+        groups = new String[]{rval[random.nextInt(groupCount)]};
+      else
+        groups = new String[0];
+      rval[groupCount + i] = api.createUserOrGroup("user"+i,"user"+i,groups);
+      i++;
+    }
+    return rval;
+  }
+  
+  /** Get the nesting level of a group. */
+  protected int getGroupLevel(int groupIndex)
+  {
+    int depth = Math.max(1,Math.min(groupDepth,groupCount));
+    return (int)((long)groupIndex * (long)depth / (long)groupCount);
+  }
+  
+  /** Get the index of the first group in a level. */
+  protected int getLevelStart(int level)
+  {
+    int depth = Math.max(1,Math.min(groupDepth,groupCount));
+    return (int)(((long)level * (long)groupCount + (long)depth - 1L) / (long)depth);
+  }
+  
+  /** Make one synthetic document.  The caller must close it.
+  *@param random is the random number generator to draw from.
+  *@param principals are the user and group IDs to pick security from.
+  */
+  public D4UDocInfo makeDocument(Random random, String[] principals)
+    throws D4UException
+  {
+    D4UDocInfo docInfo = D4UFactory.makeDocInfo();
+    int size = contentSizes[random.nextInt(contentSizes.length)];
+    docInfo.setData(new SyntheticInputStream(size,random.nextLong()));
+    int i = 0;
+    while (i < metadataNames.length)
+    {
+      docInfo.setMetadata(metadataNames[i],new String[]{metadataValue(random.nextInt(metadataCardinality))});
+      i++;
+    }
+    if (principals.length > 0 && aclFanout > 0)
+    {
+      Set allowed = new HashSet();
+      int fanout = Math.min(aclFanout,principals.length);
+      while (allowed.size() < fanout)
+      {
+        allowed.add(principals[random.nextInt(principals.length)]);
+      }
+      docInfo.setAllowed((String[])allowed.toArray(new String[0]));
+    }
+    return docInfo;
+  }
+  
+  /** Get the Nth metadata value. */
+  public static String metadataValue(int n)
+  {
+    return "value"+n;
+  }
+  
+  /** Stream of pseudo-random printable text of a fixed length.
+  */
+  public static class SyntheticInputStream extends InputStream
+  {
+    protected long remaining;
+    protected Random random;
+    
+    public SyntheticInputStream(long length, long seed)
+    {
+      this.remaining = length;
+      this.random = new Random(seed);
+    }
+    
+    public int read()
+    {
+      if (remaining == 0L)
+        return -1;
+      remaining--;
+      return 'a' + random.nextInt(26);
+    }
+    
+    public int read(byte[] b, int off, int len)
+    {
+      if (remaining == 0L)
+        return -1;
+      int amt = (int)Math.min((long)len,remaining);
+      int i = 0;
+      while (i < amt)
+      {
+        b[off + i++] = (byte)('a' + random.nextInt(26));
+      }
+      remaining -= (long)amt;
+      return amt;
+    }
+  }
+  
+}
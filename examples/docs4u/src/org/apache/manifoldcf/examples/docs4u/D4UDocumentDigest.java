@@ -0,0 +1,87 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+/** This class summarizes the state of a Docs4U document in separate parts, so that a caller
+* can tell whether its content, its metadata, or only its security has changed, without
+* fetching it.
+*/
+public class D4UDocumentDigest
+{
+  protected final long contentTime;
+  protected final long contentLength;
+  protected final String metadataDigest;
+  protected final String allowedDigest;
+  protected final String disallowedDigest;
+  
+  /** Constructor.
+  *@param contentTime is when the content was last written, in ms since epoch.
+  *@param contentLength is the length of the content.
+  *@param metadataDigest is the digest of the metadata.
+  *@param allowedDigest is the digest of the allowed users and groups.
+  *@param disallowedDigest is the digest of the disallowed users and groups.
+  */
+  public D4UDocumentDigest(long contentTime, long contentLength, String metadataDigest,
+    String allowedDigest, String disallowedDigest)
+  {
+    this.contentTime = contentTime;
+    this.contentLength = contentLength;
+    this.metadataDigest = metadataDigest;
+    this.allowedDigest = allowedDigest;
+    this.disallowedDigest = disallowedDigest;
+  }
+  
+  /** Get when the content was last written, in ms since epoch. */
+  public long getContentTime()
+  {
+    return contentTime;
+  }
+  
+  /** Get the length of the content. */
+  public long getContentLength()
+  {
+    return contentLength;
+  }
+  
+  /** Get the digest of the metadata. */
+  public String getMetadataDigest()
+  {
+    return metadataDigest;
+  }
+  
+  /** Get the digest of the allowed users and groups.  Documents allowing the same set have
+  * the same digest, whatever the order. */
+  public String getAllowedDigest()
+  {
+    return allowedDigest;
+  }
+  
+  /** Get the digest of the disallowed users and groups. */
+  public String getDisallowedDigest()
+  {
+    return disallowedDigest;
+  }
+  
+  public String toString()
+  {
+    return "content "+contentTime+"/"+contentLength+", metadata "+metadataDigest+
+      ", allowed "+allowedDigest+", disallowed "+disallowedDigest;
+  }
+  
+}
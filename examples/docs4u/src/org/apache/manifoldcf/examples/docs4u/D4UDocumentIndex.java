@@ -0,0 +1,721 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.util.*;
+
+/** This class is an in-memory index over a Docs4U repository's document metadata and
+* permissions, used to answer document queries without reading every metadata file.  There is
+* one instance per root per process, obtained with getIndex().
+*
+* Document identifiers handed out by the repository are decimal integers, so the index uses
+* the integer itself as the document's slot.  Each metadata name/value pair, and each user or
+* group named in an allowed or disallowed list, has a posting list held as a D4UBitmap, and a
+* query is an intersection of those bitmaps.  Documents whose names are not canonical
+* integers (which the API never creates, but which could be copied in by hand) are not
+* indexed; they are checked by reading their files on every query, as before.
+*
+* Every query lists the metadata area, because that is what decides which documents exist,
+* and looks at the length and modification time of each document's disallowed permissions
+* file.  That file is the last of the document's files written by an update, so if it is
+* unchanged the indexed entry is still good, and only the documents for which it has changed
+* are read again.  This keeps the index right when other processes change the repository.
+* Files touched too recently for their timestamps to be trusted are read again on the next
+* query.
+*/
+public class D4UDocumentIndex
+{
+  /** Files modified within this many milliseconds of being indexed are re-read next time,
+  * since a second change within the file system's timestamp granularity would go unseen */
+  protected final static long RACY_WINDOW = Long.getLong("docs4u.index.racywindow",2000L).longValue();
+  /** Identifiers at or above this are left unindexed, since slots are array positions */
+  protected final static int MAX_SLOT = Integer.getInteger("docs4u.index.maxslot",1 << 24).intValue();
+  
+  /** Posting key prefixes */
+  protected final static char METADATA_PREFIX = 'M';
+  protected final static char ALLOWED_PREFIX = 'A';
+  protected final static char DISALLOWED_PREFIX = 'D';
+  
+  /** Indexes, keyed by canonical root path */
+  protected final static Map instances = new HashMap();
+  
+  protected final File docMetadataFolder;
+  protected final File docAllowedPermissionsFolder;
+  protected final File docDisallowedPermissionsFolder;
+  protected final D4UAclSetStore aclSetStore;
+  
+  // Everything below is guarded by this object's monitor.
+  
+  /** Posting key to Integer posting ordinal */
+  protected final Map postingOrdinals = new HashMap();
+  /** Posting lists, by ordinal */
+  protected D4UBitmap[] postings = new D4UBitmap[16];
+  protected int postingCount = 0;
+  /** Every indexed document */
+  protected D4UBitmap allDocs = new D4UBitmap();
+  /** Per document: modification time of the disallowed file when indexed, or 0 if the entry
+  * must be re-read */
+  protected long[] stamps = new long[0];
+  /** Per document: length of the disallowed file when indexed */
+  protected long[] lengths = new long[0];
+  /** Per document: modification time of the metadata file, for time window queries */
+  protected long[] modified = new long[0];
+  /** Per document: ordinals of the postings the document is in */
+  protected int[][] docPostings = new int[0][];
+  
+  protected D4UDocumentIndex(String root)
+  {
+    this.docMetadataFolder = new File(root,Docs4UAPIImpl.docMetadataArea);
+    this.docAllowedPermissionsFolder = new File(root,Docs4UAPIImpl.docAllowedPermissionsArea);
+    this.docDisallowedPermissionsFolder = new File(root,Docs4UAPIImpl.docDisallowedPermissionsArea);
+    this.aclSetStore = D4UAclSetStore.getStore(root);
+  }
+  
+  /** Get the index for a repository root, creating it if needed.
+  *@param root is the repository root directory.
+  */
+  public static D4UDocumentIndex getIndex(String root)
+  {
+    String key;
+    try
+    {
+      key = new File(root).getCanonicalPath();
+    }
+    catch (IOException e)
+    {
+      key = new File(root).getAbsolutePath();
+    }
+    synchronized (instances)
+    {
+      D4UDocumentIndex rval = (D4UDocumentIndex)instances.get(key);
+      if (rval == null)
+      {
+        rval = new D4UDocumentIndex(key);
+        instances.put(key,rval);
+      }
+      return rval;
+    }
+  }
+  
+  /** Find documents.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMap is a map of metadata name to desired value, or null if none.
+  *@param userGroupIDs are the users and groups the caller belongs to, or null for no security
+  * check.  A document qualifies if it allows at least one of them and disallows none.
+  *@param metrics is where to record the directory scan.
+  *@return the matching document identifiers, as a list of strings.
+  */
+  public List findDocuments(Long startTime, Long endTime, Map metadataMap, String[] userGroupIDs,
+    D4UMetrics metrics)
+    throws D4UException
+  {
+    List unindexed = refresh(metrics);
+    
+    int[] ids;
+    synchronized (this)
+    {
+      ids = match(metadataMap,userGroupIDs).toArray();
+      if (startTime != null || endTime != null)
+        ids = filterWindow(ids,startTime,endTime);
+    }
+    
+    List rval = new ArrayList(ids.length + unindexed.size());
+    int i = 0;
+    while (i < ids.length)
+    {
+      rval.add(Integer.toString(ids[i++]));
+    }
+    i = 0;
+    while (i < unindexed.size())
+    {
+      String docID = (String)unindexed.get(i++);
+      if (matchesDirectly(docID,startTime,endTime,metadataMap,userGroupIDs))
+        rval.add(docID);
+    }
+    return rval;
+  }
+  
+  /** Find documents matching any of several sets of metadata criteria.  The repository is
+  * scanned once, and the sets are combined as bitmaps, so each document appears only once.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMaps are the sets of criteria, each a map of metadata name to desired value.
+  *@param metrics is where to record the directory scan.
+  *@return the matching document identifiers, as a list of strings.
+  */
+  public List findDocumentsMatchingAny(Long startTime, Long endTime, Map[] metadataMaps,
+    D4UMetrics metrics)
+    throws D4UException
+  {
+    List unindexed = refresh(metrics);
+    
+    int[] ids;
+    synchronized (this)
+    {
+      D4UBitmap result = new D4UBitmap();
+      int i = 0;
+      while (i < metadataMaps.length)
+      {
+        result = result.or(match(metadataMaps[i++],null));
+      }
+      ids = result.toArray();
+      if (startTime != null || endTime != null)
+        ids = filterWindow(ids,startTime,endTime);
+    }
+    
+    List rval = new ArrayList(ids.length + unindexed.size());
+    int i = 0;
+    while (i < ids.length)
+    {
+      rval.add(Integer.toString(ids[i++]));
+    }
+    i = 0;
+    while (i < unindexed.size())
+    {
+      String docID = (String)unindexed.get(i++);
+      int j = 0;
+      while (j < metadataMaps.length)
+      {
+        if (matchesDirectly(docID,startTime,endTime,metadataMaps[j++],null))
+        {
+          rval.add(docID);
+          break;
+        }
+      }
+    }
+    return rval;
+  }
+  
+  /** Find one page of documents.  Results come in a stable order, indexed documents by number
+  * and then the rest by name, so a continuation picks up after the last document returned
+  * even if the repository has changed in between.  Only as much of the result as the page
+  * needs is produced.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMap is a map of metadata name to desired value, or null if none.
+  *@param continuation is the continuation from the previous page, or null to start.
+  *@param limit is the largest number of documents to return.
+  *@param metrics is where to record the directory scan.
+  *@return the page.
+  */
+  public D4UDocumentPage findDocumentPage(Long startTime, Long endTime, Map metadataMap,
+    String continuation, int limit, D4UMetrics metrics)
+    throws D4UException
+  {
+    if (limit < 1)
+      throw new D4UException("Page limit must be at least 1");
+    // Decode where to start.  An indexed position is "i" followed by the last slot returned;
+    // an unindexed one is "n" followed by the last name returned.
+    int fromID = 0;
+    String fromName = null;
+    if (continuation != null)
+    {
+      if (continuation.startsWith("i"))
+      {
+        fromID = parseID(continuation.substring(1));
+        if (fromID < 0)
+          throw new D4UException("Bad continuation: '"+continuation+"'");
+        fromID++;
+      }
+      else if (continuation.startsWith("n"))
+      {
+        fromID = -1;
+        fromName = continuation.substring(1);
+      }
+      else
+        throw new D4UException("Bad continuation: '"+continuation+"'");
+    }
+    
+    List unindexed = refresh(metrics);
+    
+    // Look for one more than asked for, so we know whether there's another page
+    int wanted = (limit == Integer.MAX_VALUE)?limit:limit + 1;
+    
+    int[] ids;
+    if (fromID >= 0)
+    {
+      synchronized (this)
+      {
+        D4UBitmap result = match(metadataMap,null);
+        if (startTime == null && endTime == null)
+          ids = result.toArray(fromID,wanted);
+        else
+        {
+          // Take candidates a batch at a time until enough are in the window
+          ids = new int[0];
+          while (ids.length < wanted)
+          {
+            int[] batch = result.toArray(fromID,wanted - ids.length);
+            if (batch.length == 0)
+              break;
+            fromID = batch[batch.length - 1] + 1;
+            int[] filtered = filterWindow(batch,startTime,endTime);
+            int[] newIDs = new int[ids.length + filtered.length];
+            System.arraycopy(ids,0,newIDs,0,ids.length);
+            System.arraycopy(filtered,0,newIDs,ids.length,filtered.length);
+            ids = newIDs;
+          }
+        }
+      }
+    }
+    else
+      ids = new int[0];
+    
+    List rval = new ArrayList(Math.min(wanted,ids.length + unindexed.size()));
+    int i = 0;
+    while (i < ids.length)
+    {
+      rval.add(Integer.toString(ids[i++]));
+    }
+    if (rval.size() < wanted && unindexed.size() > 0)
+    {
+      Collections.sort(unindexed);
+      i = 0;
+      while (i < unindexed.size() && rval.size() < wanted)
+      {
+        String docID = (String)unindexed.get(i++);
+        if (fromName != null && docID.compareTo(fromName) <= 0)
+          continue;
+        if (matchesDirectly(docID,startTime,endTime,metadataMap,null))
+          rval.add(docID);
+      }
+    }
+    
+    String nextContinuation = null;
+    if (rval.size() > limit)
+    {
+      rval.remove(limit);
+      String lastID = (String)rval.get(limit - 1);
+      if (limit > ids.length)
+        nextContinuation = "n" + lastID;
+      else
+        nextContinuation = "i" + lastID;
+    }
+    return new D4UDocumentPage((String[])rval.toArray(new String[0]),nextContinuation);
+  }
+  
+  /** Count documents, without producing their identifiers.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMap is a map of metadata name to desired value, or null if none.
+  *@param metrics is where to record the directory scan.
+  *@return the number of matching documents.
+  */
+  public long countDocuments(Long startTime, Long endTime, Map metadataMap, D4UMetrics metrics)
+    throws D4UException
+  {
+    List unindexed = refresh(metrics);
+    
+    long rval;
+    synchronized (this)
+    {
+      D4UBitmap result = match(metadataMap,null);
+      if (startTime == null && endTime == null)
+        rval = result.cardinality();
+      else
+      {
+        int[] ids = result.toArray();
+        rval = filterWindow(ids,startTime,endTime).length;
+      }
+    }
+    int i = 0;
+    while (i < unindexed.size())
+    {
+      if (matchesDirectly((String)unindexed.get(i++),startTime,endTime,metadataMap,null))
+        rval++;
+    }
+    return rval;
+  }
+  
+  /** Forget everything, so the next query reads the whole repository.  Used when the
+  * repository is removed.
+  */
+  public synchronized void invalidate()
+  {
+    postingOrdinals.clear();
+    postings = new D4UBitmap[16];
+    postingCount = 0;
+    allDocs = new D4UBitmap();
+    stamps = new long[0];
+    lengths = new long[0];
+    modified = new long[0];
+    docPostings = new int[0][];
+  }
+  
+  /** Estimate the memory used by the posting lists, in bytes. */
+  public synchronized long getPostingSizeInBytes()
+  {
+    long rval = allDocs.getSizeInBytes();
+    int i = 0;
+    while (i < postingCount)
+    {
+      rval += postings[i++].getSizeInBytes();
+    }
+    return rval;
+  }
+  
+  // Internals
+  
+  /** Bring the index up to date with the repository.
+  *@return the documents that exist but cannot be indexed, as a list of strings.
+  */
+  protected List refresh(D4UMetrics metrics)
+    throws D4UException
+  {
+    String[] names = docMetadataFolder.list();
+    if (names == null)
+      throw new D4UException("Could not list doc metadata area");
+    metrics.recordDirectoryScan(names.length);
+    
+    // Look at every document's disallowed file, without holding anything
+    List unindexed = new ArrayList();
+    int[] ids = new int[names.length];
+    long[] seenStamps = new long[names.length];
+    long[] seenLengths = new long[names.length];
+    int count = 0;
+    int i = 0;
+    while (i < names.length)
+    {
+      String name = names[i++];
+      int id = parseID(name);
+      if (id < 0 || id >= MAX_SLOT)
+      {
+        unindexed.add(name);
+        continue;
+      }
+      File disallowedFile = new File(docDisallowedPermissionsFolder,name);
+      ids[count] = id;
+      seenStamps[count] = disallowedFile.lastModified();
+      seenLengths[count] = disallowedFile.length();
+      count++;
+    }
+    
+    // Drop documents that are gone, and find the ones that changed
+    D4UBitmap present = new D4UBitmap();
+    int[] stale = new int[count];
+    int staleCount = 0;
+    synchronized (this)
+    {
+      i = 0;
+      while (i < count)
+      {
+        int id = ids[i];
+        present.add(id);
+        if (id >= stamps.length || stamps[id] == 0L || stamps[id] != seenStamps[i] || lengths[id] != seenLengths[i])
+          stale[staleCount++] = i;
+        i++;
+      }
+      int[] removed = allDocs.andNot(present).toArray();
+      i = 0;
+      while (i < removed.length)
+      {
+        removeDocument(removed[i++]);
+      }
+    }
+    if (staleCount == 0)
+      return unindexed;
+    
+    // Read the changed documents, without holding anything
+    long now = System.currentTimeMillis();
+    long[] newModified = new long[staleCount];
+    String[][] newKeys = new String[staleCount][];
+    i = 0;
+    while (i < staleCount)
+    {
+      String name = Integer.toString(ids[stale[i]]);
+      newModified[i] = new File(docMetadataFolder,name).lastModified();
+      newKeys[i] = readPostingKeys(name);
+      i++;
+    }
+    
+    synchronized (this)
+    {
+      i = 0;
+      while (i < staleCount)
+      {
+        int index = stale[i];
+        long stamp = seenStamps[index];
+        // A file changed too recently to trust its timestamp; read it again next time
+        if (stamp + RACY_WINDOW > now)
+          stamp = 0L;
+        setDocument(ids[index],stamp,seenLengths[index],newModified[i],newKeys[i]);
+        i++;
+      }
+    }
+    return unindexed;
+  }
+  
+  /** Get the indexed documents matching metadata and security criteria.  Call with the
+  * monitor held, and don't change the result.
+  */
+  protected D4UBitmap match(Map metadataMap, String[] userGroupIDs)
+  {
+    D4UBitmap result = allDocs;
+    if (metadataMap != null)
+    {
+      Iterator iter = metadataMap.keySet().iterator();
+      while (iter.hasNext())
+      {
+        String attributeName = (String)iter.next();
+        String value = (String)metadataMap.get(attributeName);
+        result = result.and(getPosting(makeMetadataKey(attributeName,value)));
+      }
+    }
+    if (userGroupIDs != null)
+    {
+      D4UBitmap allowed = new D4UBitmap();
+      D4UBitmap disallowed = new D4UBitmap();
+      int i = 0;
+      while (i < userGroupIDs.length)
+      {
+        String userGroupID = userGroupIDs[i++];
+        allowed = allowed.or(getPosting(ALLOWED_PREFIX+userGroupID));
+        disallowed = disallowed.or(getPosting(DISALLOWED_PREFIX+userGroupID));
+      }
+      result = result.and(allowed).andNot(disallowed);
+    }
+    return result;
+  }
+  
+  /** Keep the indexed documents whose metadata was modified within a time window.  Call with
+  * the monitor held.
+  */
+  protected int[] filterWindow(int[] ids, Long startTime, Long endTime)
+  {
+    int count = ids.length;
+    int[] rval = new int[count];
+    int rvalCount = 0;
+    int i = 0;
+    while (i < count)
+    {
+      int id = ids[i++];
+      long fileStamp = modified[id];
+      if (startTime != null && startTime.longValue() > fileStamp)
+        continue;
+      if (endTime != null && endTime.longValue() < fileStamp)
+        continue;
+      rval[rvalCount++] = id;
+    }
+    if (rvalCount == count)
+      return rval;
+    int[] newRval = new int[rvalCount];
+    System.arraycopy(rval,0,newRval,0,rvalCount);
+    return newRval;
+  }
+  
+  /** Read a document's posting keys from its files.
+  */
+  protected String[] readPostingKeys(String docID)
+  {
+    List rval = new ArrayList();
+    String[] content = Docs4UAPIImpl.readValues(new File(docMetadataFolder,docID));
+    if (content != null)
+    {
+      D4UDocInfo docInfo = new D4UDocInfoImpl();
+      Docs4UAPIImpl.getMetadataContent(docInfo,content);
+      String[] metadataNames = docInfo.getMetadataNames();
+      int i = 0;
+      while (i < metadataNames.length)
+      {
+        String metadataName = metadataNames[i++];
+        String[] values = docInfo.getMetadata(metadataName);
+        int j = 0;
+        while (j < values.length)
+        {
+          rval.add(makeMetadataKey(metadataName,values[j++]));
+        }
+      }
+    }
+    addKeys(rval,ALLOWED_PREFIX,aclSetStore.readAcl(new File(docAllowedPermissionsFolder,docID)));
+    addKeys(rval,DISALLOWED_PREFIX,aclSetStore.readAcl(new File(docDisallowedPermissionsFolder,docID)));
+    return (String[])rval.toArray(new String[0]);
+  }
+  
+  protected static void addKeys(List keys, char prefix, String[] values)
+  {
+    if (values == null)
+      return;
+    int i = 0;
+    while (i < values.length)
+    {
+      keys.add(prefix+values[i++]);
+    }
+  }
+  
+  /** Check an unindexed document by reading its files.
+  */
+  protected boolean matchesDirectly(String docID, Long startTime, Long endTime, Map metadataMap,
+    String[] userGroupIDs)
+  {
+    File metadataFile = new File(docMetadataFolder,docID);
+    long fileStamp = metadataFile.lastModified();
+    if (startTime != null && startTime.longValue() > fileStamp)
+      return false;
+    if (endTime != null && endTime.longValue() < fileStamp)
+      return false;
+    if (metadataMap == null && userGroupIDs == null)
+      return true;
+    Set keys = new HashSet(Arrays.asList(readPostingKeys(docID)));
+    if (metadataMap != null)
+    {
+      Iterator iter = metadataMap.keySet().iterator();
+      while (iter.hasNext())
+      {
+        String attributeName = (String)iter.next();
+        if (!keys.contains(makeMetadataKey(attributeName,(String)metadataMap.get(attributeName))))
+          return false;
+      }
+    }
+    if (userGroupIDs != null)
+    {
+      boolean allowed = false;
+      int i = 0;
+      while (i < userGroupIDs.length)
+      {
+        String userGroupID = userGroupIDs[i++];
+        if (keys.contains(DISALLOWED_PREFIX+userGroupID))
+          return false;
+        if (keys.contains(ALLOWED_PREFIX+userGroupID))
+          allowed = true;
+      }
+      if (!allowed)
+        return false;
+    }
+    return true;
+  }
+  
+  /** Record a document's current state. */
+  protected void setDocument(int id, long stamp, long length, long modifiedTime, String[] keys)
+  {
+    ensureCapacity(id + 1);
+    clearPostings(id);
+    int[] ordinals = new int[keys.length];
+    int i = 0;
+    while (i < keys.length)
+    {
+      int ordinal = getOrdinal(keys[i]);
+      postings[ordinal].add(id);
+      ordinals[i++] = ordinal;
+    }
+    docPostings[id] = ordinals;
+    stamps[id] = stamp;
+    lengths[id] = length;
+    modified[id] = modifiedTime;
+    allDocs.add(id);
+  }
+  
+  /** Forget a document. */
+  protected void removeDocument(int id)
+  {
+    clearPostings(id);
+    stamps[id] = 0L;
+    allDocs.remove(id);
+  }
+  
+  protected void clearPostings(int id)
+  {
+    int[] ordinals = docPostings[id];
+    if (ordinals == null)
+      return;
+    int i = 0;
+    while (i < ordinals.length)
+    {
+      postings[ordinals[i++]].remove(id);
+    }
+    docPostings[id] = null;
+  }
+  
+  /** Get the ordinal for a posting key, creating an empty posting if there isn't one. */
+  protected int getOrdinal(String key)
+  {
+    Integer ordinal = (Integer)postingOrdinals.get(key);
+    if (ordinal != null)
+      return ordinal.intValue();
+    if (postingCount == postings.length)
+    {
+      D4UBitmap[] newPostings = new D4UBitmap[postings.length * 2];
+      System.arraycopy(postings,0,newPostings,0,postingCount);
+      postings = newPostings;
+    }
+    postings[postingCount] = new D4UBitmap();
+    postingOrdinals.put(key,new Integer(postingCount));
+    return postingCount++;
+  }
+  
+  /** Get the posting for a key, or an empty one if there isn't one. */
+  protected D4UBitmap getPosting(String key)
+  {
+    Integer ordinal = (Integer)postingOrdinals.get(key);
+    if (ordinal == null)
+      return new D4UBitmap();
+    return postings[ordinal.intValue()];
+  }
+  
+  protected void ensureCapacity(int capacity)
+  {
+    if (capacity <= stamps.length)
+      return;
+    int newLength = Math.max(capacity,stamps.length * 2);
+    long[] newStamps = new long[newLength];
+    System.arraycopy(stamps,0,newStamps,0,stamps.length);
+    stamps = newStamps;
+    long[] newLengths = new long[newLength];
+    System.arraycopy(lengths,0,newLengths,0,lengths.length);
+    lengths = newLengths;
+    long[] newModified = new long[newLength];
+    System.arraycopy(modified,0,newModified,0,modified.length);
+    modified = newModified;
+    int[][] newDocPostings = new int[newLength][];
+    System.arraycopy(docPostings,0,newDocPostings,0,docPostings.length);
+    docPostings = newDocPostings;
+  }
+  
+  /** Make the posting key for a metadata value.  A null value matches nothing. */
+  protected static String makeMetadataKey(String name, String value)
+  {
+    if (value == null)
+      return "";
+    return METADATA_PREFIX+name+"\u0000"+value;
+  }
+  
+  /** Get a document's slot from its identifier.
+  *@return the slot, or -1 if the identifier is not a canonical non-negative integer.
+  */
+  protected static int parseID(String docID)
+  {
+    int length = docID.length();
+    if (length == 0 || length > 10 || (length > 1 && docID.charAt(0) == '0'))
+      return -1;
+    long rval = 0L;
+    int i = 0;
+    while (i < length)
+    {
+      char c = docID.charAt(i++);
+      if (c < '0' || c > '9')
+        return -1;
+      rval = rval * 10L + (long)(c - '0');
+    }
+    if (rval > (long)Integer.MAX_VALUE)
+      return -1;
+    return (int)rval;
+  }
+  
+}
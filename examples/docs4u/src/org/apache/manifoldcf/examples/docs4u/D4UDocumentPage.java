@@ -0,0 +1,54 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+/** This class holds one page of document identifiers found by a query, along with the
+* continuation to pass back to get the next page.
+*/
+public class D4UDocumentPage
+{
+  protected final String[] documentIDs;
+  protected final String continuation;
+  
+  /** Constructor.
+  *@param documentIDs are the document identifiers on this page.
+  *@param continuation is the continuation for the next page, or null if this is the last.
+  */
+  public D4UDocumentPage(String[] documentIDs, String continuation)
+  {
+    this.documentIDs = documentIDs;
+    this.continuation = continuation;
+  }
+  
+  /** Get the document identifiers on this page.
+  */
+  public String[] getDocumentIDs()
+  {
+    return documentIDs;
+  }
+  
+  /** Get the continuation to pass to get the next page.
+  *@return the continuation, or null if there are no more pages.
+  */
+  public String getContinuation()
+  {
+    return continuation;
+  }
+  
+}
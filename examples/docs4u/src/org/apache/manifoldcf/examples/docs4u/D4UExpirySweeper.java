@@ -0,0 +1,360 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.util.*;
+
+/** This class deletes expired documents from a Docs4U repository.
+*
+* Expiration times are indexed in hour-wide buckets, one folder per bucket under the expiry
+* index area, so a sweep only lists the buckets whose hour has begun and the entries in
+* them, never the whole repository.  Documents are deleted in batches, each under a single
+* acquisition of the docs lock.  After each batch the sweeper sleeps long enough to keep
+* its share of the time at or below the duty cycle, and its deletion rate at or below the
+* rate limit if there is one, so foreground work keeps most of the disk.
+*
+* Every so often a sweep also removes the interned ACL sets that no document refers to any
+* more.  Documents' ACL files are read without the lock; a set some writer has used since the
+* collection began is kept, and removals are batched and throttled like deletions.
+*/
+public class D4UExpirySweeper
+{
+  /** Documents deleted per lock acquisition */
+  public final static int DEFAULT_BATCH_SIZE = 100;
+  /** Default share of the time spent deleting, in percent */
+  public final static int DEFAULT_DUTY_CYCLE = 25;
+  /** Default time between collections of unused ACL sets, in milliseconds */
+  public final static long DEFAULT_ACL_SET_INTERVAL = 3600000L;
+  
+  protected Docs4UAPIImpl impl;
+  protected int batchSize = DEFAULT_BATCH_SIZE;
+  protected int dutyCycle = DEFAULT_DUTY_CYCLE;
+  protected double maxRate = 0.0;
+  protected long aclSetInterval = DEFAULT_ACL_SET_INTERVAL;
+  protected long lastAclSetCollection = 0L;
+  protected int lastDeletedCount = 0;
+  
+  /** Constructor.
+  *@param root is the repository root.
+  */
+  public D4UExpirySweeper(String root)
+    throws D4UException
+  {
+    this.impl = new Docs4UAPIImpl(root);
+  }
+  
+  /** Set the number of documents deleted per lock acquisition. */
+  public void setBatchSize(int batchSize)
+  {
+    this.batchSize = (batchSize < 1)?1:batchSize;
+  }
+  
+  /** Set the largest share of the time to spend deleting, in percent. */
+  public void setDutyCycle(int dutyCycle)
+  {
+    this.dutyCycle = (dutyCycle < 1)?1:((dutyCycle > 100)?100:dutyCycle);
+  }
+  
+  /** Set the largest number of documents to delete per second, or 0.0 for no limit. */
+  public void setMaxRate(double maxRate)
+  {
+    this.maxRate = maxRate;
+  }
+  
+  /** Set the time between collections of unused ACL sets, in milliseconds. */
+  public void setAclSetInterval(long aclSetInterval)
+  {
+    this.aclSetInterval = aclSetInterval;
+  }
+  
+  /** Delete everything that has expired.
+  *@return a one-line summary of what was done.
+  */
+  public String sweep()
+    throws InterruptedException, D4UException
+  {
+    long startTime = System.currentTimeMillis();
+    long now = startTime;
+    int deletedCount = 0;
+    int bucketCount = 0;
+    String[] bucketNames = impl.expiryIndexFolder.list();
+    if (bucketNames == null)
+      bucketNames = new String[0];
+    // Oldest first, so that a sweep cut short has done the most overdue work
+    long[] buckets = new long[bucketNames.length];
+    int count = 0;
+    int i = 0;
+    while (i < bucketNames.length)
+    {
+      try
+      {
+        long bucket = Long.parseLong(bucketNames[i]);
+        if (bucket <= now)
+          buckets[count++] = bucket;
+      }
+      catch (NumberFormatException e)
+      {
+      }
+      i++;
+    }
+    Arrays.sort(buckets,0,count);
+    
+    i = 0;
+    while (i < count)
+    {
+      long bucket = buckets[i++];
+      File bucketFolder = new File(impl.expiryIndexFolder,Long.toString(bucket));
+      String[] docIDs = bucketFolder.list();
+      if (docIDs == null)
+        continue;
+      bucketCount++;
+      int j = 0;
+      while (j < docIDs.length)
+      {
+        int amount = Math.min(batchSize,docIDs.length - j);
+        String[] batch = new String[amount];
+        System.arraycopy(docIDs,j,batch,0,amount);
+        j += amount;
+        long batchStart = System.currentTimeMillis();
+        deletedCount += impl.deleteExpiredDocuments(bucket,batch,now);
+        throttle(System.currentTimeMillis() - batchStart,amount);
+      }
+      // Only succeeds once the bucket has emptied; a bucket still holding future expirations stays
+      bucketFolder.delete();
+    }
+    
+    int removedSetCount = 0;
+    if (System.currentTimeMillis() - lastAclSetCollection >= aclSetInterval)
+    {
+      removedSetCount = collectAclSets();
+      lastAclSetCollection = System.currentTimeMillis();
+    }
+    lastDeletedCount = deletedCount + removedSetCount;
+    return "Swept '"+impl.root+"': "+deletedCount+" expired documents deleted from "+bucketCount+
+      " buckets, "+removedSetCount+" unused ACL sets removed, in "+(System.currentTimeMillis() - startTime)+" ms";
+  }
+  
+  /** Remove the interned ACL sets that no document refers to any more.
+  *@return the number of sets removed.
+  */
+  protected int collectAclSets()
+    throws InterruptedException, D4UException
+  {
+    long collectionStart = impl.beginAclSetCollection();
+    String[] setIDs = impl.aclSetFolder.list();
+    if (setIDs == null || setIDs.length == 0)
+      return 0;
+    Set referenced = new HashSet();
+    addReferences(referenced,impl.docAllowedPermissionsFolder);
+    addReferences(referenced,impl.docDisallowedPermissionsFolder);
+    List unused = new ArrayList();
+    int i = 0;
+    while (i < setIDs.length)
+    {
+      String setID = setIDs[i++];
+      if (!referenced.contains(setID))
+        unused.add(setID);
+    }
+    int rval = 0;
+    i = 0;
+    while (i < unused.size())
+    {
+      int amount = Math.min(batchSize,unused.size() - i);
+      String[] batch = (String[])unused.subList(i,i + amount).toArray(new String[0]);
+      i += amount;
+      long batchStart = System.currentTimeMillis();
+      rval += impl.removeUnusedAclSets(batch,collectionStart);
+      throttle(System.currentTimeMillis() - batchStart,amount);
+    }
+    return rval;
+  }
+  
+  /** Add the IDs of the sets that the ACL files in a folder refer to.
+  */
+  protected static void addReferences(Set referenced, File aclFolder)
+  {
+    String[] docIDs = aclFolder.list();
+    if (docIDs == null)
+      return;
+    int i = 0;
+    while (i < docIDs.length)
+    {
+      String setID = D4UAclSetStore.getSetID(new File(aclFolder,docIDs[i++]));
+      if (setID != null)
+        referenced.add(setID);
+    }
+  }
+  
+  /** Get the number of documents and ACL sets the most recent sweep removed. */
+  public int getLastDeletedCount()
+  {
+    return lastDeletedCount;
+  }
+  
+  /** Sleep after a batch, to stay within the duty cycle and the rate limit.
+  *@param elapsed is how long the batch took, in milliseconds.
+  *@param amount is the number of documents in the batch.
+  */
+  protected void throttle(long elapsed, int amount)
+    throws InterruptedException
+  {
+    long sleepTime = elapsed * (long)(100 - dutyCycle) / (long)dutyCycle;
+    if (maxRate > 0.0)
+    {
+      long minimumTime = (long)((double)amount * 1000.0 / maxRate);
+      sleepTime = Math.max(sleepTime,minimumTime - elapsed);
+    }
+    if (sleepTime > 0L)
+      Thread.sleep(sleepTime);
+  }
+  
+  /** Start a daemon thread that sweeps at an interval.
+  *@param intervalMilliseconds is the time between sweeps.
+  *@return the thread, which may be interrupted to stop it.
+  */
+  public Thread startSweeping(long intervalMilliseconds)
+  {
+    Thread rval = new SweeperThread(this,intervalMilliseconds,false);
+    rval.setDaemon(true);
+    rval.start();
+    return rval;
+  }
+  
+  public static void main(String[] argv)
+  {
+    long intervalSeconds = 60L;
+    boolean once = false;
+    int batchSize = DEFAULT_BATCH_SIZE;
+    int dutyCycle = DEFAULT_DUTY_CYCLE;
+    double maxRate = 0.0;
+    long aclSetIntervalSeconds = DEFAULT_ACL_SET_INTERVAL / 1000L;
+    boolean bad = (argv.length < 1);
+    int i = 1;
+    try
+    {
+      while (i < argv.length)
+      {
+        String arg = argv[i++];
+        if (arg.equals("-once"))
+          once = true;
+        else if (arg.equals("-interval") && i < argv.length)
+          intervalSeconds = Long.parseLong(argv[i++]);
+        else if (arg.equals("-batch") && i < argv.length)
+          batchSize = Integer.parseInt(argv[i++]);
+        else if (arg.equals("-duty") && i < argv.length)
+          dutyCycle = Integer.parseInt(argv[i++]);
+        else if (arg.equals("-rate") && i < argv.length)
+          maxRate = Double.parseDouble(argv[i++]);
+        else if (arg.equals("-aclinterval") && i < argv.length)
+          aclSetIntervalSeconds = Long.parseLong(argv[i++]);
+        else
+          bad = true;
+      }
+    }
+    catch (NumberFormatException e)
+    {
+      bad = true;
+    }
+    if (bad || intervalSeconds < 1L || dutyCycle < 1 || dutyCycle > 100 || batchSize < 1 || aclSetIntervalSeconds < 0L)
+    {
+      System.err.println("Usage: D4UExpirySweeper <directory> [-interval <seconds>] [-once] [-batch <count>] [-duty <percent>] [-rate <docs_per_second>] [-aclinterval <seconds>]");
+      System.exit(1);
+    }
+    
+    try
+    {
+      D4UExpirySweeper sweeper = new D4UExpirySweeper(argv[0]);
+      sweeper.setBatchSize(batchSize);
+      sweeper.setDutyCycle(dutyCycle);
+      sweeper.setMaxRate(maxRate);
+      sweeper.setAclSetInterval(aclSetIntervalSeconds * 1000L);
+      SweeperThread thread = new SweeperThread(sweeper,intervalSeconds * 1000L,once);
+      thread.start();
+      thread.join();
+      System.exit((thread.getException() != null)?2:0);
+    }
+    catch (InterruptedException e)
+    {
+      System.exit(100);
+    }
+    catch (D4UException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(2);
+    }
+  }
+  
+  /** Thread that runs sweeps at an interval.
+  */
+  protected static class SweeperThread extends Thread
+  {
+    protected D4UExpirySweeper sweeper;
+    protected long intervalMilliseconds;
+    protected boolean once;
+    protected D4UException exception = null;
+    
+    public SweeperThread(D4UExpirySweeper sweeper, long intervalMilliseconds, boolean once)
+    {
+      super("Docs4U expiry sweeper");
+      this.sweeper = sweeper;
+      this.intervalMilliseconds = intervalMilliseconds;
+      this.once = once;
+    }
+    
+    public void run()
+    {
+      try
+      {
+        while (true)
+        {
+          try
+          {
+            String summary = sweeper.sweep();
+            // Sweeps that find nothing are routine, so only report them when asked for one
+            if (once || sweeper.getLastDeletedCount() > 0)
+              System.err.println(summary);
+          }
+          catch (D4UException e)
+          {
+            // A failed sweep is retried next time, unless there won't be a next time
+            System.err.println("Sweep of '"+sweeper.impl.root+"' failed: "+e.getMessage());
+            if (once)
+            {
+              exception = e;
+              return;
+            }
+          }
+          if (once)
+            return;
+          Thread.sleep(intervalMilliseconds);
+        }
+      }
+      catch (InterruptedException e)
+      {
+      }
+    }
+    
+    public D4UException getException()
+    {
+      return exception;
+    }
+  }
+  
+}
@@ -26,13 +26,26 @@ public class D4UFactory
   {
   }
   
-  /** Create an instance of the Docs4U api.
-  *@param root is the root directory for the system instance.
+  /** Create an instance of the Docs4U api.  Calls through the instance are recorded in the
+  * root's D4UMetrics object.
+  *@param root is the root directory for the system instance, or the URL of a D4UServer, in
+  * the form d4u://host[:port].  Instances for the same server share its connection pool.
+  * Replica roots maintained by D4UReplicator are opened read-only.  A root of the form
+  * d4ufed:root1,root2,... federates several roots, as described in D4UFederatedAPI.
   */
   public static Docs4UAPI makeAPI(String root)
     throws D4UException
   {
-    return new Docs4UAPIImpl(root);
+    Docs4UAPI api;
+    if (root.startsWith(D4UProtocol.URL_PREFIX))
+      api = D4URemoteAPI.getInstance(root);
+    else if (root.startsWith(D4UFederatedAPI.URL_PREFIX))
+      api = D4UFederatedAPI.getInstance(root);
+    else if (D4UReplicator.isReplica(root))
+      api = D4UReadOnlyHandler.wrap(new Docs4UAPIImpl(root),root);
+    else
+      api = new Docs4UAPIImpl(root);
+    return D4UInstrumentationHandler.wrap(api,D4UMetrics.getMetrics(root));
   }
 
   /** Create an instance of the D4UDocInfo object.
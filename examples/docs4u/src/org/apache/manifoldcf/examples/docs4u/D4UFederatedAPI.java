@@ -0,0 +1,1610 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** This class implements Docs4UAPI over several repository roots at once, so that documents
+* can be spread across disks or servers behind a single root, of the form
+* d4ufed:root1,root2,...  Each root may be a directory or a D4UServer URL.
+*
+* Documents are placed by consistent hashing of their identifiers: each root owns many points
+* on a hash ring, derived from the root's name, and a document lives on the root owning the
+* first point at or after the hash of its ID.  Adding a root therefore moves only the share
+* of documents that the new root takes over.  Documents written before the change are still
+* found, by asking the other roots when the owner doesn't have one, and are moved to their
+* owner the next time they are updated.
+*
+* Users and groups are few and small, and every root's document ACLs and group lists refer to
+* them, so each one is written to every root and read from whichever root its key hashes to.
+* The first root allocates all identifiers and is the reference copy for metadata names and
+* for the list of users and groups.  IDs must be unique across roots, so the roots of a
+* federation should only be written through it.  The ID files of the other roots are unused,
+* so checking the federation compares the first root's against the documents on all of them.
+*
+* Queries, counts, checks and change reads are sent to every root at once on a shared pool of
+* threads, and their results merged.
+*/
+public class D4UFederatedAPI implements Docs4UAPI
+{
+  /** Prefix of a federated root */
+  public final static String URL_PREFIX = "d4ufed:";
+  /** Number of ring points per root */
+  protected final static int POINTS_PER_ROOT = 128;
+  /** Number of identifiers reserved from the first root at a time */
+  protected final static int ID_BLOCK_SIZE = Integer.getInteger("docs4u.federation.idblock",100).intValue();
+  
+  /** Shared instances, keyed by root */
+  protected final static Map instances = new HashMap();
+  
+  protected String url;
+  protected String[] memberRoots;
+  protected Docs4UAPI[] members;
+  protected int[] allMembers;
+  /** The hash ring: sorted points, and the member owning each */
+  protected long[] ringPoints;
+  protected int[] ringMembers;
+  protected ExecutorService executor;
+  /** Identifiers reserved from the first root but not yet used */
+  protected LinkedList reservedIDs = new LinkedList();
+  /** Member whose changes come first in the next page of changes */
+  protected int nextChangeMember = 0;
+  
+  /** Constructor.
+  *@param memberRoots are the roots to federate, the first of which allocates identifiers.
+  */
+  public D4UFederatedAPI(String[] memberRoots)
+    throws D4UException
+  {
+    if (memberRoots.length == 0)
+      throw new D4UException("A federation needs at least one root");
+    this.memberRoots = memberRoots;
+    this.members = new Docs4UAPI[memberRoots.length];
+    this.allMembers = new int[memberRoots.length];
+    StringBuffer sb = new StringBuffer(URL_PREFIX);
+    TreeMap ring = new TreeMap();
+    int i = 0;
+    while (i < memberRoots.length)
+    {
+      String root = memberRoots[i];
+      if (root.startsWith(URL_PREFIX))
+        throw new D4UException("Federations can't be nested: '"+root+"'");
+      members[i] = D4UFactory.makeAPI(root);
+      allMembers[i] = i;
+      if (i > 0)
+        sb.append(",");
+      sb.append(root);
+      String ringName = getRingName(root);
+      int j = 0;
+      while (j < POINTS_PER_ROOT)
+      {
+        ring.put(new Long(hash(ringName+"#"+Integer.toString(j))),new Integer(i));
+        j++;
+      }
+      i++;
+    }
+    this.url = sb.toString();
+    this.ringPoints = new long[ring.size()];
+    this.ringMembers = new int[ring.size()];
+    Iterator iter = ring.entrySet().iterator();
+    i = 0;
+    while (iter.hasNext())
+    {
+      Map.Entry entry = (Map.Entry)iter.next();
+      ringPoints[i] = ((Long)entry.getKey()).longValue();
+      ringMembers[i] = ((Integer)entry.getValue()).intValue();
+      i++;
+    }
+    this.executor = Executors.newCachedThreadPool(new FederationThreadFactory());
+  }
+  
+  /** Get the shared instance for a federated root.
+  *@param url is the root, of the form d4ufed:root1,root2,...
+  */
+  public static D4UFederatedAPI getInstance(String url)
+    throws D4UException
+  {
+    String[] roots = parseURL(url);
+    if (roots == null)
+      throw new D4UException("Not a Docs4U federation: '"+url+"'");
+    synchronized (instances)
+    {
+      D4UFederatedAPI rval = (D4UFederatedAPI)instances.get(url);
+      if (rval == null)
+      {
+        rval = new D4UFederatedAPI(roots);
+        instances.put(url,rval);
+      }
+      return rval;
+    }
+  }
+  
+  /** Split a federated root into its member roots.
+  *@return the member roots, or null if the root isn't a federation.
+  */
+  public static String[] parseURL(String url)
+  {
+    if (!url.startsWith(URL_PREFIX))
+      return null;
+    List roots = new ArrayList();
+    StringTokenizer st = new StringTokenizer(url.substring(URL_PREFIX.length()),",");
+    while (st.hasMoreTokens())
+    {
+      String root = st.nextToken().trim();
+      if (root.length() > 0)
+        roots.add(root);
+    }
+    if (roots.size() == 0)
+      return null;
+    return (String[])roots.toArray(new String[0]);
+  }
+  
+  /** Get the member roots. */
+  public String[] getMemberRoots()
+  {
+    return memberRoots;
+  }
+  
+  /** Get the member root that owns a document, without asking any root.  This is where the
+  * document is written, and where it is, unless it was written before the owning root joined.
+  *@param docID is the document identifier.
+  *@return the member root.
+  */
+  public String getMemberRoot(String docID)
+  {
+    return memberRoots[getOwner(docID)];
+  }
+  
+  /** Create the instance.
+  */
+  public void install()
+    throws D4UException
+  {
+    fanOutUninterruptibly(new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          member.install();
+          return null;
+        }
+      });
+  }
+  
+  /** Remove the instance.
+  */
+  public void uninstall()
+    throws D4UException
+  {
+    fanOutUninterruptibly(new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          member.uninstall();
+          return null;
+        }
+      });
+    synchronized (reservedIDs)
+    {
+      reservedIDs.clear();
+    }
+  }
+  
+  /** Check the instance.
+  */
+  public void sanityCheck()
+    throws D4UException
+  {
+    fanOutUninterruptibly(new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          member.sanityCheck();
+          return null;
+        }
+      });
+  }
+  
+  /** Check every root thoroughly.  Only the first root's ID file is in use, so only it is
+  * checked, against the identifiers in use on every root.
+  *@param repair is true if problems should be fixed as well as reported.
+  *@param threadCount is the number of threads each root is scanned with.
+  *@param checkIDFile is false if the federation's identifiers are allocated elsewhere.
+  *@return descriptions of the problems found, each prefixed by its root.
+  */
+  public String[] checkIntegrity(final boolean repair, final int threadCount, final boolean checkIDFile)
+    throws InterruptedException, D4UException
+  {
+    Object[] results = fanOut(allMembers,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          return member.checkIntegrity(repair,threadCount,checkIDFile && index == 0);
+        }
+      });
+    List rval = new ArrayList();
+    int i = 0;
+    while (i < results.length)
+    {
+      String[] problems = (String[])results[i];
+      int j = 0;
+      while (j < problems.length)
+      {
+        rval.add(memberRoots[i]+": "+problems[j++]);
+      }
+      i++;
+    }
+    if (checkIDFile && members.length > 1)
+      checkIDFile(repair,rval);
+    return (String[])rval.toArray(new String[0]);
+  }
+  
+  /** Get the current metadata names, from the first root.
+  *@return the global list of legal names of metadata.
+  */
+  public String[] getMetadataNames()
+    throws InterruptedException, D4UException
+  {
+    return members[0].getMetadataNames();
+  }
+  
+  /** Set the current metadata names, on every root.
+  *@param names is the global set of legal names of metadata.
+  */
+  public void setMetadataNames(final String[] names)
+    throws InterruptedException, D4UException
+  {
+    fanOut(allMembers,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          member.setMetadataNames(names);
+          return null;
+        }
+      });
+  }
+  
+  // User/group methods
+  
+  /** Create a user or group, on every root.
+  *@param name is the user or group's name.
+  *@param loginID is the user's login ID, null if this is a group.
+  *@param groups are the group IDs.
+  *@return the user/group ID.
+  */
+  public String createUserOrGroup(String name, String loginID, String[] groups)
+    throws InterruptedException, D4UException
+  {
+    String id = getNewID();
+    updateUserOrGroup(id,name,loginID,groups);
+    return id;
+  }
+  
+  /** Find a user based on login ID.
+  *@param loginID is the login ID.
+  *@return the user ID, or null if it was not found.
+  */
+  public String findUser(String loginID)
+    throws InterruptedException, D4UException
+  {
+    return members[getOwner(loginID)].findUser(loginID);
+  }
+  
+  /** Find a user or group by name.
+  *@param name is the user or group name.
+  *@return the user or group ID, or null if it was not found.
+  */
+  public String findUserOrGroup(String name)
+    throws InterruptedException, D4UException
+  {
+    return members[getOwner(name)].findUserOrGroup(name);
+  }
+  
+  /** Update a user or group, on every root.
+  *@param userGroupID is the user or group ID.
+  *@param name is the user or group's name.
+  *@param loginID is the user's login ID, null if this is a group.
+  *@param groups are the group IDs.
+  */
+  public void updateUserOrGroup(final String userGroupID, final String name, final String loginID, final String[] groups)
+    throws InterruptedException, D4UException
+  {
+    fanOut(allMembers,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          member.updateUserOrGroup(userGroupID,name,loginID,groups);
+          return null;
+        }
+      });
+  }
+  
+  /** Get a user or group's name.
+  *@param userGroupID is the user or group ID.
+  *@return the name, or null if the ID did not exist.
+  */
+  public String getUserOrGroupName(String userGroupID)
+    throws InterruptedException, D4UException
+  {
+    return members[getOwner(userGroupID)].getUserOrGroupName(userGroupID);
+  }
+  
+  /** Get a user's login ID.
+  *@param userGroupID is the user or group ID.
+  *@return the login ID, or null if the ID did not exist or describes a group.
+  */
+  public String getUserLoginID(String userGroupID)
+    throws InterruptedException, D4UException
+  {
+    return members[getOwner(userGroupID)].getUserLoginID(userGroupID);
+  }
+  
+  /** Get a user or group's groups.
+  *@param userGroupID is the user or group ID.
+  *@return the group IDs, or null if the ID did not exist.
+  */
+  public String[] getUserOrGroupGroups(String userGroupID)
+    throws InterruptedException, D4UException
+  {
+    return members[getOwner(userGroupID)].getUserOrGroupGroups(userGroupID);
+  }
+  
+  /** Get the identifiers of all users and groups, from the first root.
+  *@return the user and group IDs.
+  */
+  public String[] getUserOrGroupIDs()
+    throws InterruptedException, D4UException
+  {
+    return members[0].getUserOrGroupIDs();
+  }
+  
+  /** Delete a user or group, from every root.
+  *@param userGroupID is the user or group ID.
+  */
+  public void deleteUserOrGroup(final String userGroupID)
+    throws InterruptedException, D4UException
+  {
+    fanOut(allMembers,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          member.deleteUserOrGroup(userGroupID);
+          return null;
+        }
+      });
+  }
+  
+  // Document methods
+  
+  /** Find documents, on every root at once.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMap is a map of metadata name to desired value.
+  *@return the iterator of document identifiers matching all the criteria.
+  */
+  public D4UDocumentIterator findDocuments(final Long startTime, final Long endTime, final Map metadataMap)
+    throws InterruptedException, D4UException
+  {
+    return mergeDocuments(fanOut(allMembers,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          return readAll(member.findDocuments(startTime,endTime,metadataMap));
+        }
+      }));
+  }
+  
+  /** Find documents which match any one of several sets of metadata criteria, on every root
+  * at once.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMaps are the sets of criteria, each a map of metadata name to desired value.
+  *@return the iterator of matching document identifiers.
+  */
+  public D4UDocumentIterator findDocumentsMatchingAny(final Long startTime, final Long endTime, final Map[] metadataMaps)
+    throws InterruptedException, D4UException
+  {
+    return mergeDocuments(fanOut(allMembers,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          return readAll(member.findDocumentsMatchingAny(startTime,endTime,metadataMaps));
+        }
+      }));
+  }
+  
+  /** Find documents that a user may see, on every root at once.
+  *@param userGroupIDs are the identifiers of the user and all the groups the user belongs to.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMap is a map of metadata name to desired value, or null if none.
+  *@return the iterator of matching document identifiers.
+  */
+  public D4UDocumentIterator findAccessibleDocuments(final String[] userGroupIDs, final Long startTime, final Long endTime, final Map metadataMap)
+    throws InterruptedException, D4UException
+  {
+    return mergeDocuments(fanOut(allMembers,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          return readAll(member.findAccessibleDocuments(userGroupIDs,startTime,endTime,metadataMap));
+        }
+      }));
+  }
+  
+  /** Find one page of documents.  Each root with documents left is asked for its share of
+  * the page at once, so a page can be short of the limit without being the last.  The
+  * continuation holds every root's own continuation.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMap is a map of metadata name to desired value, or null if none.
+  *@param continuation is the continuation from the previous page, or null for the first page.
+  *@param limit is the largest number of document identifiers to return.
+  *@return the page of document identifiers.
+  */
+  public D4UDocumentPage findDocumentPage(final Long startTime, final Long endTime, final Map metadataMap, String continuation, int limit)
+    throws InterruptedException, D4UException
+  {
+    if (limit < 1)
+      throw new D4UException("Page limit must be at least 1");
+    final String[] memberContinuations = parseContinuation(continuation);
+    final boolean[] exhausted = new boolean[members.length];
+    int active = 0;
+    int i = 0;
+    while (i < members.length)
+    {
+      exhausted[i] = (memberContinuations[i] == EXHAUSTED);
+      if (!exhausted[i])
+        active++;
+      i++;
+    }
+    if (active == 0)
+      return new D4UDocumentPage(new String[0],null);
+    
+    // Share the page out among the roots with documents left, earliest first
+    final int[] quotas = new int[members.length];
+    int base = limit / active;
+    int extra = limit % active;
+    int asked = 0;
+    i = 0;
+    while (i < members.length)
+    {
+      if (!exhausted[i])
+      {
+        quotas[i] = base + ((extra > 0)?1:0);
+        if (extra > 0)
+          extra--;
+        if (quotas[i] > 0)
+          asked++;
+      }
+      i++;
+    }
+    int[] askedMembers = new int[asked];
+    asked = 0;
+    i = 0;
+    while (i < members.length)
+    {
+      if (quotas[i] > 0)
+        askedMembers[asked++] = i;
+      i++;
+    }
+    Object[] pages = fanOut(askedMembers,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          return member.findDocumentPage(startTime,endTime,metadataMap,memberContinuations[index],quotas[index]);
+        }
+      });
+    
+    List docIDs = new ArrayList();
+    String[] nextContinuations = memberContinuations.clone();
+    i = 0;
+    while (i < askedMembers.length)
+    {
+      D4UDocumentPage page = (D4UDocumentPage)pages[i];
+      int member = askedMembers[i++];
+      docIDs.addAll(Arrays.asList(page.getDocumentIDs()));
+      nextContinuations[member] = (page.getContinuation() == null)?EXHAUSTED:page.getContinuation();
+    }
+    return new D4UDocumentPage((String[])docIDs.toArray(new String[0]),formatContinuation(nextContinuations));
+  }
+  
+  /** Count documents, on every root at once.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMap is a map of metadata name to desired value, or null if none.
+  *@return the number of matching documents.
+  */
+  public long countDocuments(final Long startTime, final Long endTime, final Map metadataMap)
+    throws InterruptedException, D4UException
+  {
+    Object[] counts = fanOut(allMembers,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          return new Long(member.countDocuments(startTime,endTime,metadataMap));
+        }
+      });
+    long rval = 0L;
+    int i = 0;
+    while (i < counts.length)
+    {
+      rval += ((Long)counts[i++]).longValue();
+    }
+    return rval;
+  }
+  
+  /** Get a checkpoint marking the present end of every root's change journal.  It has the
+  * form inst1,inst2,...:offset1,offset2,..., so that it names a new installation whenever any
+  * root is reinstalled.
+  *@return the checkpoint, to pass to getChanges() to read changes made from now on.
+  */
+  public String getChangeCheckpoint()
+    throws InterruptedException, D4UException
+  {
+    Object[] checkpoints = fanOut(allMembers,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          return member.getChangeCheckpoint();
+        }
+      });
+    String[] rval = new String[checkpoints.length];
+    System.arraycopy(checkpoints,0,rval,0,checkpoints.length);
+    return formatCheckpoint(rval);
+  }
+  
+  /** Get a checkpoint for the first change made at or after a given time, on every root.
+  *@param time is the time, in ms since epoch.
+  *@return the checkpoint, or null if any root's change journal does not go back that far.
+  */
+  public String getChangeCheckpointAt(final long time)
+    throws InterruptedException, D4UException
+  {
+    Object[] checkpoints = fanOut(allMembers,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          return member.getChangeCheckpointAt(time);
+        }
+      });
+    String[] rval = new String[checkpoints.length];
+    int i = 0;
+    while (i < checkpoints.length)
+    {
+      if (checkpoints[i] == null)
+        return null;
+      rval[i] = (String)checkpoints[i];
+      i++;
+    }
+    return formatCheckpoint(rval);
+  }
+  
+  /** Read changes made after a checkpoint, from every root at once.  Changes to users and
+  * groups, which every root records, are reported from the first root only.  Changes from
+  * different roots are not in time order with respect to each other.
+  *@param checkpoint is where to start, from getChangeCheckpoint() or from an earlier page.
+  *@param limit is the largest number of changes to return.
+  *@param waitMillis is how long to wait for a change, if there are none yet; 0 not to wait.
+  *@return the changes, and the checkpoint to continue from.
+  */
+  public D4UChangePage getChanges(String checkpoint, final int limit, long waitMillis)
+    throws InterruptedException, D4UException
+  {
+    final String[] memberCheckpoints = parseCheckpoint(checkpoint);
+    Object[] pages = fanOut(allMembers,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          return member.getChanges(memberCheckpoints[index],limit,0L);
+        }
+      });
+    if (waitMillis > 0L && countChanges(pages) == 0)
+      pages = waitForChanges(memberCheckpoints,limit,waitMillis);
+    
+    // Take whole pages, starting from a different root each time so none is starved, for
+    // as long as they fit; roots left out keep their checkpoints and are read next time.
+    int start;
+    synchronized (this)
+    {
+      start = nextChangeMember;
+      nextChangeMember = (nextChangeMember + 1) % members.length;
+    }
+    List changes = new ArrayList();
+    String[] nextCheckpoints = memberCheckpoints.clone();
+    int i = 0;
+    while (i < members.length)
+    {
+      int member = (start + i++) % members.length;
+      D4UChangePage page = (D4UChangePage)pages[member];
+      if (page == null)
+        continue;
+      D4UChange[] memberChanges = page.getChanges();
+      if (changes.size() + memberChanges.length > limit)
+        continue;
+      int j = 0;
+      while (j < memberChanges.length)
+      {
+        D4UChange change = memberChanges[j++];
+        if (member == 0 || change.getType() != D4UChange.TYPE_USER_OR_GROUP)
+          changes.add(change);
+      }
+      nextCheckpoints[member] = page.getCheckpoint();
+    }
+    return new D4UChangePage((D4UChange[])changes.toArray(new D4UChange[0]),formatCheckpoint(nextCheckpoints));
+  }
+  
+  /** Create a document, on the root that owns its new identifier.
+  *@param docInfo is the document info structure.  Note that it is the responsibility
+  * of the caller to close the docInfo object when they are done with it.
+  *@return the new document identifier.
+  */
+  public String createDocument(D4UDocInfo docInfo)
+    throws InterruptedException, D4UException
+  {
+    String id = getNewID();
+    members[getOwner(id)].updateDocument(id,docInfo);
+    return id;
+  }
+  
+  /** Update a document, on the root that owns it.  A copy left on another root since before
+  * the root was added is removed.
+  *@param docID is the document identifier.
+  *@param docInfo is the updated document information.
+  */
+  public void updateDocument(String docID, D4UDocInfo docInfo)
+    throws InterruptedException, D4UException
+  {
+    int owner = getOwner(docID);
+    int location = locateDocument(docID);
+    members[owner].updateDocument(docID,docInfo);
+    if (location != -1 && location != owner)
+    {
+      // The journal of the old root records a delete; the owner's records a create
+      Long expiration = members[location].getDocumentExpiration(docID);
+      if (expiration != null)
+        members[owner].setDocumentExpiration(docID,expiration);
+      members[location].deleteDocument(docID);
+    }
+  }
+  
+  /** Find a document.
+  *@param docID is the document identifier.
+  *@param docInfo is the document information object to be filled in.  Note that
+  * it is the responsibility of the caller to close the docInfo object when they are done
+  * with it.
+  *@return true if document exists, false otherwise.
+  */
+  public boolean getDocument(String docID, D4UDocInfo docInfo)
+    throws InterruptedException, D4UException
+  {
+    int owner = getOwner(docID);
+    if (members[owner].getDocument(docID,docInfo))
+      return true;
+    int location = locateElsewhere(docID,owner);
+    if (location == -1)
+      return false;
+    return members[location].getDocument(docID,docInfo);
+  }
+  
+  /** Find several documents at once.  Identifiers are grouped by the root that owns them,
+  * and each root is asked for its group in one request, all roots in parallel.  Documents
+  * that are not where they belong are then looked for one at a time.
+  *@param docIDs are the document identifiers.
+  *@param docInfos are the document information objects to be filled in, one per identifier.
+  *@return true for each document that exists, false otherwise.
+  */
+  public boolean[] getDocuments(String[] docIDs, D4UDocInfo[] docInfos)
+    throws InterruptedException, D4UException
+  {
+    final List[] groups = groupByOwner(docIDs);
+    int[] askedMembers = getGroupOwners(groups);
+    final String[] ids = docIDs;
+    final D4UDocInfo[] infos = docInfos;
+    Object[] founds = fanOut(askedMembers,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          List group = groups[index];
+          String[] groupIDs = new String[group.size()];
+          D4UDocInfo[] groupInfos = new D4UDocInfo[group.size()];
+          int j = 0;
+          while (j < groupIDs.length)
+          {
+            int k = ((Integer)group.get(j)).intValue();
+            groupIDs[j] = ids[k];
+            groupInfos[j++] = infos[k];
+          }
+          return member.getDocuments(groupIDs,groupInfos);
+        }
+      });
+    
+    boolean[] rval = new boolean[docIDs.length];
+    int i = 0;
+    while (i < askedMembers.length)
+    {
+      int owner = askedMembers[i];
+      List group = groups[owner];
+      boolean[] found = (boolean[])founds[i++];
+      int j = 0;
+      while (j < found.length)
+      {
+        int k = ((Integer)group.get(j)).intValue();
+        if (found[j])
+          rval[k] = true;
+        else
+        {
+          int location = locateElsewhere(docIDs[k],owner);
+          if (location != -1)
+            rval[k] = members[location].getDocument(docIDs[k],docInfos[k]);
+        }
+        j++;
+      }
+    }
+    return rval;
+  }
+  
+  /** Get a document's last updated timestamp.
+  *@param docID is the document identifier.
+  *@return the timestamp, in ms since epoch, or null if the document doesn't exist.
+  */
+  public Long getDocumentUpdatedTime(String docID)
+    throws InterruptedException, D4UException
+  {
+    int owner = getOwner(docID);
+    Long rval = members[owner].getDocumentUpdatedTime(docID);
+    if (rval != null)
+      return rval;
+    int location = locateElsewhere(docID,owner);
+    if (location == -1)
+      return null;
+    return members[location].getDocumentUpdatedTime(docID);
+  }
+  
+  /** Get the last updated timestamps of several documents at once.  As for getDocuments(),
+  * each root is asked about the documents it owns, all roots in parallel.
+  *@param docIDs are the document identifiers.
+  *@return the timestamps, in ms since epoch, one per identifier; null for documents that don't exist.
+  */
+  public Long[] getDocumentUpdatedTimes(String[] docIDs)
+    throws InterruptedException, D4UException
+  {
+    final List[] groups = groupByOwner(docIDs);
+    int[] askedMembers = getGroupOwners(groups);
+    final String[] ids = docIDs;
+    Object[] times = fanOut(askedMembers,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          List group = groups[index];
+          String[] groupIDs = new String[group.size()];
+          int j = 0;
+          while (j < groupIDs.length)
+          {
+            groupIDs[j] = ids[((Integer)group.get(j)).intValue()];
+            j++;
+          }
+          return member.getDocumentUpdatedTimes(groupIDs);
+        }
+      });
+    
+    Long[] rval = new Long[docIDs.length];
+    int i = 0;
+    while (i < askedMembers.length)
+    {
+      int owner = askedMembers[i];
+      List group = groups[owner];
+      Long[] found = (Long[])times[i++];
+      int j = 0;
+      while (j < found.length)
+      {
+        int k = ((Integer)group.get(j)).intValue();
+        if (found[j] != null)
+          rval[k] = found[j];
+        else
+        {
+          int location = locateElsewhere(docIDs[k],owner);
+          if (location != -1)
+            rval[k] = members[location].getDocumentUpdatedTime(docIDs[k]);
+        }
+        j++;
+      }
+    }
+    return rval;
+  }
+  
+  /** Summarize several documents' content, metadata and security separately.  As for
+  * getDocuments(), each root is asked about the documents it owns, all roots in parallel.
+  *@param docIDs are the document identifiers.
+  *@return the digests, one per identifier; null for documents that don't exist.
+  */
+  public D4UDocumentDigest[] getDocumentDigests(String[] docIDs)
+    throws InterruptedException, D4UException
+  {
+    final List[] groups = groupByOwner(docIDs);
+    int[] askedMembers = getGroupOwners(groups);
+    final String[] ids = docIDs;
+    Object[] digests = fanOut(askedMembers,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          List group = groups[index];
+          String[] groupIDs = new String[group.size()];
+          int j = 0;
+          while (j < groupIDs.length)
+          {
+            groupIDs[j] = ids[((Integer)group.get(j)).intValue()];
+            j++;
+          }
+          return member.getDocumentDigests(groupIDs);
+        }
+      });
+    
+    D4UDocumentDigest[] rval = new D4UDocumentDigest[docIDs.length];
+    int i = 0;
+    while (i < askedMembers.length)
+    {
+      int owner = askedMembers[i];
+      List group = groups[owner];
+      D4UDocumentDigest[] found = (D4UDocumentDigest[])digests[i++];
+      int j = 0;
+      while (j < found.length)
+      {
+        int k = ((Integer)group.get(j)).intValue();
+        if (found[j] != null)
+          rval[k] = found[j];
+        else
+        {
+          int location = locateElsewhere(docIDs[k],owner);
+          if (location != -1)
+            rval[k] = members[location].getDocumentDigests(new String[]{docIDs[k]})[0];
+        }
+        j++;
+      }
+    }
+    return rval;
+  }
+  
+  /** Delete a document.
+  *@param docID is the document identifier.
+  */
+  public void deleteDocument(String docID)
+    throws InterruptedException, D4UException
+  {
+    int location = locateDocument(docID);
+    if (location != -1)
+      members[location].deleteDocument(docID);
+  }
+  
+  /** Set or clear a document's expiration time.
+  *@param docID is the document identifier.
+  *@param expirationTime is the time in ms since epoch, or null if the document never expires.
+  */
+  public void setDocumentExpiration(String docID, Long expirationTime)
+    throws InterruptedException, D4UException
+  {
+    int location = locateDocument(docID);
+    members[(location == -1)?getOwner(docID):location].setDocumentExpiration(docID,expirationTime);
+  }
+  
+  /** Get a document's expiration time.
+  *@param docID is the document identifier.
+  *@return the time in ms since epoch, or null if the document does not expire or does not exist.
+  */
+  public Long getDocumentExpiration(String docID)
+    throws InterruptedException, D4UException
+  {
+    int location = locateDocument(docID);
+    if (location == -1)
+      return null;
+    return members[location].getDocumentExpiration(docID);
+  }
+  
+  /** Reserve identifiers from the first root.
+  *@param count is the number of identifiers desired.
+  *@return the reserved identifiers.
+  */
+  public String[] reserveIDs(int count)
+    throws InterruptedException, D4UException
+  {
+    return members[0].reserveIDs(count);
+  }
+  
+  /** Find out where identifier allocation has got to, without allocating anything.  The
+  * first root allocates all identifiers, including the blocks handed out here.
+  *@return the next identifier to be allocated.
+  */
+  public String getNextID()
+    throws InterruptedException, D4UException
+  {
+    return members[0].getNextID();
+  }
+  
+  /** Get a document's URL, as a string.
+  *@param docID is the document identifier.
+  *@return the URL to use to access the document.
+  */
+  public String getDocumentURL(String docID)
+    throws D4UException
+  {
+    try
+    {
+      int location = locateDocument(docID);
+      return members[(location == -1)?getOwner(docID):location].getDocumentURL(docID);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new D4UException("Interrupted locating document '"+docID+"'",e);
+    }
+  }
+  
+  /** Get several documents' URLs at once.  Each root is asked, all roots in parallel, for the
+  * URLs of the documents it owns and whether it has them; only documents their owners don't
+  * have are looked for one at a time.
+  *@param docIDs are the document identifiers.
+  *@return the URLs to use to access the documents, one per identifier.
+  */
+  public String[] getDocumentURLs(String[] docIDs)
+    throws InterruptedException, D4UException
+  {
+    final List[] groups = groupByOwner(docIDs);
+    int[] askedMembers = getGroupOwners(groups);
+    final String[] ids = docIDs;
+    Object[] answers = fanOut(askedMembers,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          List group = groups[index];
+          String[] groupIDs = new String[group.size()];
+          int j = 0;
+          while (j < groupIDs.length)
+          {
+            groupIDs[j] = ids[((Integer)group.get(j)).intValue()];
+            j++;
+          }
+          return new Object[]{member.getDocumentUpdatedTimes(groupIDs),member.getDocumentURLs(groupIDs)};
+        }
+      });
+    
+    String[] rval = new String[docIDs.length];
+    int i = 0;
+    while (i < askedMembers.length)
+    {
+      int owner = askedMembers[i];
+      List group = groups[owner];
+      Object[] answer = (Object[])answers[i++];
+      Long[] times = (Long[])answer[0];
+      String[] urls = (String[])answer[1];
+      int j = 0;
+      while (j < urls.length)
+      {
+        int k = ((Integer)group.get(j)).intValue();
+        rval[k] = urls[j];
+        if (times[j] == null)
+        {
+          int location = locateElsewhere(docIDs[k],owner);
+          if (location != -1)
+            rval[k] = members[location].getDocumentURL(docIDs[k]);
+        }
+        j++;
+      }
+    }
+    return rval;
+  }
+  
+  // Internals
+  
+  /** Marker for a root that has no more pages */
+  protected final static String EXHAUSTED = "-";
+  
+  /** Get the next identifier, reserving a block from the first root when none are left.
+  */
+  protected String getNewID()
+    throws InterruptedException, D4UException
+  {
+    synchronized (reservedIDs)
+    {
+      if (reservedIDs.size() == 0)
+        reservedIDs.addAll(Arrays.asList(members[0].reserveIDs(ID_BLOCK_SIZE)));
+      return (String)reservedIDs.removeFirst();
+    }
+  }
+  
+  /** Find the root that owns a key.
+  *@return the member index.
+  */
+  protected int getOwner(String key)
+  {
+    int pos = Arrays.binarySearch(ringPoints,hash(key));
+    if (pos < 0)
+      pos = -pos - 1;
+    if (pos == ringPoints.length)
+      pos = 0;
+    return ringMembers[pos];
+  }
+  
+  /** Make sure the first root's ID file is beyond the documents on the other roots.  The first
+  * root's own check has already covered its documents, and the users and groups, which every
+  * root shares.
+  *@param repair is true if the ID file should be moved on as well as reported.
+  *@param problems is where a problem is added, prefixed by the first root.
+  */
+  protected void checkIDFile(boolean repair, List problems)
+    throws InterruptedException, D4UException
+  {
+    int[] otherMembers = new int[members.length - 1];
+    int i = 0;
+    while (i < otherMembers.length)
+    {
+      otherMembers[i] = i + 1;
+      i++;
+    }
+    Object[] results = fanOut(otherMembers,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          long maxID = -1L;
+          D4UDocumentIterator iter = member.findDocuments(null,null,null);
+          while (iter.hasNext())
+          {
+            try
+            {
+              maxID = Math.max(maxID,Long.parseLong(iter.getNext()));
+            }
+            catch (NumberFormatException e)
+            {
+              // The root's own check reports these
+            }
+          }
+          return new Long(maxID);
+        }
+      });
+    long maxID = -1L;
+    i = 0;
+    while (i < results.length)
+    {
+      maxID = Math.max(maxID,((Long)results[i++]).longValue());
+    }
+    long nextID;
+    try
+    {
+      nextID = Long.parseLong(members[0].getNextID());
+    }
+    catch (NumberFormatException e)
+    {
+      // An unreadable ID file has been reported by the first root's own check
+      return;
+    }
+    catch (D4UException e)
+    {
+      return;
+    }
+    if (nextID > maxID)
+      return;
+    String description = "ID file is not beyond highest ID in use on another root ("+Long.toString(maxID)+")";
+    if (repair)
+    {
+      members[0].reserveIDs((int)(maxID + 1L - nextID));
+      description += " (reset)";
+    }
+    problems.add(memberRoots[0]+": "+description);
+  }
+  
+  /** Find the root that has a document, trying its owner first.
+  *@return the member index, or -1 if no root has it.
+  */
+  protected int locateDocument(String docID)
+    throws InterruptedException, D4UException
+  {
+    int owner = getOwner(docID);
+    if (members[owner].getDocumentUpdatedTime(docID) != null)
+      return owner;
+    return locateElsewhere(docID,owner);
+  }
+  
+  /** Ask every root but a document's owner, at once, whether it has the document.
+  *@return the member index, or -1 if none has it.
+  */
+  protected int locateElsewhere(final String docID, int owner)
+    throws InterruptedException, D4UException
+  {
+    if (members.length == 1)
+      return -1;
+    int[] others = new int[members.length - 1];
+    int i = 0;
+    while (i < others.length)
+    {
+      others[i] = (i < owner)?i:i + 1;
+      i++;
+    }
+    Object[] times = fanOut(others,new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          return member.getDocumentUpdatedTime(docID);
+        }
+      });
+    i = 0;
+    while (i < times.length)
+    {
+      if (times[i] != null)
+        return others[i];
+      i++;
+    }
+    return -1;
+  }
+  
+  /** Run a task against some of the roots at once, and wait for them all.  The first runs
+  * on the calling thread.  If any fails, the rest are cancelled and the failure thrown.
+  *@param indexes are the member indexes.
+  *@return the results, in the same order as the indexes.
+  */
+  protected Object[] fanOut(int[] indexes, MemberTask task)
+    throws InterruptedException, D4UException
+  {
+    Object[] rval = new Object[indexes.length];
+    Future[] futures = new Future[indexes.length];
+    try
+    {
+      int i = 1;
+      while (i < indexes.length)
+      {
+        futures[i] = executor.submit(new MemberCall(task,members[indexes[i]],indexes[i]));
+        i++;
+      }
+      if (indexes.length > 0)
+        rval[0] = task.run(members[indexes[0]],indexes[0]);
+      i = 1;
+      while (i < indexes.length)
+      {
+        rval[i] = getResult(futures[i]);
+        futures[i] = null;
+        i++;
+      }
+      return rval;
+    }
+    finally
+    {
+      int i = 1;
+      while (i < futures.length)
+      {
+        if (futures[i] != null)
+          futures[i].cancel(true);
+        i++;
+      }
+    }
+  }
+  
+  /** Sort document identifiers by the root that owns them.
+  *@return a list of identifier indexes for each member, or null for members that own none.
+  */
+  protected List[] groupByOwner(String[] docIDs)
+  {
+    List[] groups = new List[members.length];
+    int i = 0;
+    while (i < docIDs.length)
+    {
+      int owner = getOwner(docIDs[i]);
+      if (groups[owner] == null)
+        groups[owner] = new ArrayList();
+      groups[owner].add(new Integer(i));
+      i++;
+    }
+    return groups;
+  }
+  
+  /** Find the members that have a group.
+  *@return the member indexes.
+  */
+  protected int[] getGroupOwners(List[] groups)
+  {
+    int count = 0;
+    int i = 0;
+    while (i < groups.length)
+    {
+      if (groups[i] != null)
+        count++;
+      i++;
+    }
+    int[] rval = new int[count];
+    count = 0;
+    i = 0;
+    while (i < groups.length)
+    {
+      if (groups[i] != null)
+        rval[count++] = i;
+      i++;
+    }
+    return rval;
+  }
+  
+  /** Run a task against every root, for the few interface methods that can't throw
+  * InterruptedException.
+  */
+  protected void fanOutUninterruptibly(MemberTask task)
+    throws D4UException
+  {
+    try
+    {
+      fanOut(allMembers,task);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new D4UException("Interrupted waiting for federated roots",e);
+    }
+  }
+  
+  /** Wait on every root at once for changes, and return as soon as any has some.
+  *@return the pages, by member; null for roots that were still waiting.
+  */
+  protected Object[] waitForChanges(final String[] memberCheckpoints, final int limit, final long waitMillis)
+    throws InterruptedException, D4UException
+  {
+    CompletionService completions = new ExecutorCompletionService(executor);
+    Map futureMembers = new HashMap();
+    MemberTask task = new MemberTask()
+      {
+        public Object run(Docs4UAPI member, int index)
+          throws InterruptedException, D4UException
+        {
+          return member.getChanges(memberCheckpoints[index],limit,waitMillis);
+        }
+      };
+    Object[] rval = new Object[members.length];
+    try
+    {
+      int i = 0;
+      while (i < members.length)
+      {
+        futureMembers.put(completions.submit(new MemberCall(task,members[i],i)),new Integer(i));
+        i++;
+      }
+      while (futureMembers.size() > 0)
+      {
+        Future future = completions.take();
+        int member = ((Integer)futureMembers.remove(future)).intValue();
+        D4UChangePage page = (D4UChangePage)getResult(future);
+        rval[member] = page;
+        if (page.getChanges().length > 0)
+        {
+          // Gather whatever else is already done, and stop waiting for the rest
+          while (true)
+          {
+            future = completions.poll();
+            if (future == null)
+              break;
+            member = ((Integer)futureMembers.remove(future)).intValue();
+            rval[member] = getResult(future);
+          }
+          break;
+        }
+      }
+      return rval;
+    }
+    finally
+    {
+      Iterator iter = futureMembers.keySet().iterator();
+      while (iter.hasNext())
+      {
+        ((Future)iter.next()).cancel(true);
+      }
+    }
+  }
+  
+  protected static int countChanges(Object[] pages)
+  {
+    int rval = 0;
+    int i = 0;
+    while (i < pages.length)
+    {
+      D4UChangePage page = (D4UChangePage)pages[i++];
+      if (page != null)
+        rval += page.getChanges().length;
+    }
+    return rval;
+  }
+  
+  /** Split a federated checkpoint into the roots' checkpoints.
+  */
+  protected String[] parseCheckpoint(String checkpoint)
+    throws D4UException
+  {
+    int colon = checkpoint.lastIndexOf(':');
+    if (colon != -1)
+    {
+      String[] installations = split(checkpoint.substring(0,colon));
+      String[] offsets = split(checkpoint.substring(colon+1));
+      if (installations.length == members.length && offsets.length == members.length)
+      {
+        String[] rval = new String[members.length];
+        int i = 0;
+        while (i < rval.length)
+        {
+          rval[i] = installations[i] + ":" + offsets[i];
+          i++;
+        }
+        return rval;
+      }
+    }
+    throw new D4UException("Change checkpoint '"+checkpoint+"' is not from this federation");
+  }
+  
+  /** Combine the roots' checkpoints into a federated checkpoint.
+  */
+  protected static String formatCheckpoint(String[] memberCheckpoints)
+  {
+    StringBuffer installations = new StringBuffer();
+    StringBuffer offsets = new StringBuffer();
+    int i = 0;
+    while (i < memberCheckpoints.length)
+    {
+      String checkpoint = memberCheckpoints[i];
+      int colon = checkpoint.lastIndexOf(':');
+      if (i > 0)
+      {
+        installations.append(",");
+        offsets.append(",");
+      }
+      installations.append(checkpoint.substring(0,colon));
+      offsets.append(checkpoint.substring(colon+1));
+      i++;
+    }
+    return installations.toString() + ":" + offsets.toString();
+  }
+  
+  /** Split a federated page continuation into the roots' continuations.  Each is written as
+  * "*" before the first page, "-" after the last, or "+" and its length, ":" and itself.
+  *@return the continuations, null for roots not yet started and EXHAUSTED for those done.
+  */
+  protected String[] parseContinuation(String continuation)
+    throws D4UException
+  {
+    String[] rval = new String[members.length];
+    if (continuation == null)
+      return rval;
+    try
+    {
+      int pos = 0;
+      int i = 0;
+      while (i < members.length)
+      {
+        char c = continuation.charAt(pos++);
+        if (c == '-')
+          rval[i] = EXHAUSTED;
+        else if (c == '+')
+        {
+          int colon = continuation.indexOf(':',pos);
+          int length = Integer.parseInt(continuation.substring(pos,colon));
+          rval[i] = continuation.substring(colon+1,colon+1+length);
+          pos = colon+1+length;
+        }
+        else if (c != '*')
+          throw new D4UException("Bad page continuation '"+continuation+"'");
+        i++;
+      }
+      if (pos != continuation.length())
+        throw new D4UException("Bad page continuation '"+continuation+"'");
+      return rval;
+    }
+    catch (RuntimeException e)
+    {
+      throw new D4UException("Bad page continuation '"+continuation+"'",e);
+    }
+  }
+  
+  /** Combine the roots' continuations into a federated page continuation.
+  *@return the continuation, or null if every root is exhausted.
+  */
+  protected static String formatContinuation(String[] memberContinuations)
+  {
+    StringBuffer sb = new StringBuffer();
+    boolean more = false;
+    int i = 0;
+    while (i < memberContinuations.length)
+    {
+      String continuation = memberContinuations[i++];
+      if (continuation == EXHAUSTED)
+        sb.append("-");
+      else
+      {
+        more = true;
+        if (continuation == null)
+          sb.append("*");
+        else
+          sb.append("+").append(continuation.length()).append(":").append(continuation);
+      }
+    }
+    return more?sb.toString():null;
+  }
+  
+  protected static String[] split(String value)
+  {
+    List rval = new ArrayList();
+    int pos = 0;
+    while (true)
+    {
+      int comma = value.indexOf(',',pos);
+      if (comma == -1)
+      {
+        rval.add(value.substring(pos));
+        break;
+      }
+      rval.add(value.substring(pos,comma));
+      pos = comma+1;
+    }
+    return (String[])rval.toArray(new String[0]);
+  }
+  
+  /** Read every identifier from a document iterator. */
+  protected static String[] readAll(D4UDocumentIterator iter)
+    throws D4UException
+  {
+    List rval = new ArrayList();
+    while (iter.hasNext())
+    {
+      rval.add(iter.getNext());
+    }
+    return (String[])rval.toArray(new String[0]);
+  }
+  
+  /** Concatenate the identifiers found on each root. */
+  protected static D4UDocumentIterator mergeDocuments(Object[] results)
+  {
+    List rval = new ArrayList();
+    int i = 0;
+    while (i < results.length)
+    {
+      rval.addAll(Arrays.asList((String[])results[i++]));
+    }
+    return new Docs4UAPIImpl.DocIterator(rval);
+  }
+  
+  /** Get the name a root's ring points are derived from, which stays the same however the
+  * root is written.
+  */
+  protected static String getRingName(String root)
+  {
+    if (root.startsWith(D4UProtocol.URL_PREFIX))
+      return root;
+    try
+    {
+      return new File(root).getCanonicalPath();
+    }
+    catch (IOException e)
+    {
+      return new File(root).getAbsolutePath();
+    }
+  }
+  
+  /** Hash a key onto the ring: 64-bit FNV-1a, with a final mix so that keys differing only
+  * in their last characters land far apart.
+  */
+  protected static long hash(String key)
+  {
+    long h = 0xcbf29ce484222325L;
+    int i = 0;
+    while (i < key.length())
+    {
+      h ^= key.charAt(i++);
+      h *= 0x100000001b3L;
+    }
+    h ^= (h >>> 33);
+    h *= 0xff51afd7ed558ccdL;
+    h ^= (h >>> 33);
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= (h >>> 33);
+    return h;
+  }
+  
+  /** Get the result of a task run on another thread, rethrowing whatever it threw.
+  */
+  protected static Object getResult(Future future)
+    throws InterruptedException, D4UException
+  {
+    try
+    {
+      return future.get();
+    }
+    catch (ExecutionException e)
+    {
+      Throwable cause = e.getCause();
+      if (cause instanceof D4UException)
+        throw (D4UException)cause;
+      if (cause instanceof InterruptedException)
+        throw (InterruptedException)cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      if (cause instanceof Error)
+        throw (Error)cause;
+      throw new D4UException(cause.getMessage(),cause);
+    }
+  }
+  
+  /** Work to do against one root.
+  */
+  protected static abstract class MemberTask
+  {
+    /** Do the work.
+    *@param member is the root's API.
+    *@param index is the root's member index.
+    *@return the result, if any.
+    */
+    public abstract Object run(Docs4UAPI member, int index)
+      throws InterruptedException, D4UException;
+  }
+  
+  /** A MemberTask bound to a root, to run on the pool.
+  */
+  protected static class MemberCall implements Callable
+  {
+    protected MemberTask task;
+    protected Docs4UAPI member;
+    protected int index;
+    
+    public MemberCall(MemberTask task, Docs4UAPI member, int index)
+    {
+      this.task = task;
+      this.member = member;
+      this.index = index;
+    }
+    
+    public Object call()
+      throws Exception
+    {
+      return task.run(member,index);
+    }
+  }
+  
+  /** Makes the pool's threads daemons, so an idle federation doesn't keep the JVM up.
+  */
+  protected static class FederationThreadFactory implements ThreadFactory
+  {
+    public Thread newThread(Runnable r)
+    {
+      Thread rval = new Thread(r,"Docs4U federation");
+      rval.setDaemon(true);
+      return rval;
+    }
+  }
+  
+}
@@ -0,0 +1,183 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.util.concurrent.atomic.*;
+
+/** This class is a thread-safe histogram with power-of-two buckets, suitable for latencies
+* and sizes.  Bucket 0 counts values below 2; bucket N counts values from 2^N up to 2^(N+1).
+* Percentiles are therefore approximate, reported as the upper bound of the bucket in which
+* they fall.
+*/
+public class D4UHistogram
+{
+  /** Number of buckets */
+  protected final static int BUCKET_COUNT = 48;
+  
+  protected final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  protected final AtomicLong count = new AtomicLong(0L);
+  protected final AtomicLong sum = new AtomicLong(0L);
+  protected final AtomicLong max = new AtomicLong(0L);
+  
+  public D4UHistogram()
+  {
+  }
+  
+  /** Record a value.
+  *@param value is the value, which is treated as zero if negative.
+  */
+  public void record(long value)
+  {
+    if (value < 0L)
+      value = 0L;
+    buckets.incrementAndGet(bucketFor(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    while (true)
+    {
+      long currentMax = max.get();
+      if (value <= currentMax || max.compareAndSet(currentMax,value))
+        break;
+    }
+  }
+  
+  /** Get the number of values recorded. */
+  public long getCount()
+  {
+    return count.get();
+  }
+  
+  /** Get the sum of the values recorded. */
+  public long getSum()
+  {
+    return sum.get();
+  }
+  
+  /** Get the largest value recorded. */
+  public long getMax()
+  {
+    return max.get();
+  }
+  
+  /** Get the mean of the values recorded, or 0.0 if there are none. */
+  public double getMean()
+  {
+    long c = count.get();
+    if (c == 0L)
+      return 0.0;
+    return (double)sum.get() / (double)c;
+  }
+  
+  /** Get an approximate percentile.
+  *@param percentile is the desired percentile, from 0.0 to 100.0.
+  *@return the upper bound of the bucket containing that percentile, or 0 if there is no data.
+  */
+  public long getPercentile(double percentile)
+  {
+    long[] snapshot = new long[BUCKET_COUNT];
+    long total = 0L;
+    int i = 0;
+    while (i < BUCKET_COUNT)
+    {
+      snapshot[i] = buckets.get(i);
+      total += snapshot[i];
+      i++;
+    }
+    if (total == 0L)
+      return 0L;
+    long threshold = (long)Math.ceil(total * percentile / 100.0);
+    if (threshold < 1L)
+      threshold = 1L;
+    long cumulative = 0L;
+    i = 0;
+    while (i < BUCKET_COUNT)
+    {
+      cumulative += snapshot[i];
+      if (cumulative >= threshold)
+        return Math.min((1L << (i + 1)) - 1L,max.get());
+      i++;
+    }
+    return max.get();
+  }
+  
+  /** Get the raw bucket counts.
+  *@return the counts, where element N counts values from 2^N up to 2^(N+1).
+  */
+  public long[] getBuckets()
+  {
+    long[] rval = new long[BUCKET_COUNT];
+    int i = 0;
+    while (i < BUCKET_COUNT)
+    {
+      rval[i] = buckets.get(i);
+      i++;
+    }
+    return rval;
+  }
+  
+  /** Add in values recorded by another histogram, perhaps in another process.
+  *@param bucketCounts are the other histogram's bucket counts, as returned by getBuckets().
+  *@param otherSum is the other histogram's sum.
+  *@param otherMax is the other histogram's maximum.
+  */
+  public void merge(long[] bucketCounts, long otherSum, long otherMax)
+  {
+    long otherCount = 0L;
+    int i = 0;
+    while (i < bucketCounts.length && i < BUCKET_COUNT)
+    {
+      buckets.addAndGet(i,bucketCounts[i]);
+      otherCount += bucketCounts[i];
+      i++;
+    }
+    count.addAndGet(otherCount);
+    sum.addAndGet(otherSum);
+    while (true)
+    {
+      long currentMax = max.get();
+      if (otherMax <= currentMax || max.compareAndSet(currentMax,otherMax))
+        break;
+    }
+  }
+
+  /** Clear all recorded values.
+  */
+  public void reset()
+  {
+    int i = 0;
+    while (i < BUCKET_COUNT)
+    {
+      buckets.set(i++,0L);
+    }
+    count.set(0L);
+    sum.set(0L);
+    max.set(0L);
+  }
+  
+  protected static int bucketFor(long value)
+  {
+    int bucket = 63 - Long.numberOfLeadingZeros(value);
+    if (bucket < 0)
+      return 0;
+    if (bucket >= BUCKET_COUNT)
+      return BUCKET_COUNT - 1;
+    return bucket;
+  }
+  
+}
@@ -0,0 +1,115 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.lang.reflect.*;
+
+/** This class wraps a Docs4UAPI implementation so that every call through the interface is
+* timed and counted in a D4UMetrics object, along with the amount of document content moved.
+* It works as a dynamic proxy so that it covers every API method without change as the
+* interface grows.
+*/
+public class D4UInstrumentationHandler implements InvocationHandler
+{
+  protected Docs4UAPI delegate;
+  protected D4UMetrics metrics;
+  
+  protected D4UInstrumentationHandler(Docs4UAPI delegate, D4UMetrics metrics)
+  {
+    this.delegate = delegate;
+    this.metrics = metrics;
+  }
+  
+  /** Wrap an API implementation.
+  *@param delegate is the implementation to wrap.
+  *@param metrics is where to record what happens.
+  *@return the instrumented API.
+  */
+  public static Docs4UAPI wrap(Docs4UAPI delegate, D4UMetrics metrics)
+  {
+    return (Docs4UAPI)Proxy.newProxyInstance(Docs4UAPI.class.getClassLoader(),
+      new Class[]{Docs4UAPI.class},new D4UInstrumentationHandler(delegate,metrics));
+  }
+  
+  /** Handle a call.
+  */
+  public Object invoke(Object proxy, Method method, Object[] args)
+    throws Throwable
+  {
+    // Object methods are not API operations
+    if (method.getDeclaringClass() == Object.class)
+      return method.invoke(delegate,args);
+    String operationName = method.getName();
+    long startTime = System.nanoTime();
+    boolean error = true;
+    try
+    {
+      Object rval = method.invoke(delegate,args);
+      error = false;
+      recordContent(operationName,args,rval);
+      return rval;
+    }
+    catch (InvocationTargetException e)
+    {
+      throw e.getCause();
+    }
+    finally
+    {
+      metrics.recordCall(operationName,System.nanoTime() - startTime,error);
+    }
+  }
+  
+  /** Record content bytes moved by a successful call.
+  */
+  protected void recordContent(String operationName, Object[] args, Object rval)
+    throws D4UException
+  {
+    if (operationName.equals("getDocument"))
+    {
+      if (((Boolean)rval).booleanValue())
+        metrics.recordBytesRead(getLength((D4UDocInfo)args[1]));
+    }
+    else if (operationName.equals("getDocuments"))
+    {
+      boolean[] found = (boolean[])rval;
+      D4UDocInfo[] docInfos = (D4UDocInfo[])args[1];
+      long total = 0L;
+      int i = 0;
+      while (i < found.length)
+      {
+        if (found[i])
+          total += getLength(docInfos[i]);
+        i++;
+      }
+      metrics.recordBytesRead(total);
+    }
+    else if (operationName.equals("createDocument"))
+      metrics.recordBytesWritten(getLength((D4UDocInfo)args[0]));
+    else if (operationName.equals("updateDocument"))
+      metrics.recordBytesWritten(getLength((D4UDocInfo)args[1]));
+  }
+  
+  protected static long getLength(D4UDocInfo docInfo)
+    throws D4UException
+  {
+    Long length = docInfo.readDataLength();
+    return (length == null)?0L:length.longValue();
+  }
+  
+}
@@ -0,0 +1,604 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** This class performs a deep integrity check of a Docs4U repository, and optionally repairs
+* what it finds.  Records are first scanned without locks, in parallel, in chunks spread across
+* a thread pool.  Anything suspicious is then checked again, under the appropriate lock when
+* repairing, so that writes in progress are not mistaken for damage.
+*/
+public class D4UIntegrityChecker
+{
+  /** Age of the last heartbeat after which a lock is presumed to have been abandoned.  Waiters
+  * break abandoned leases on their own much sooner; this catches locks nobody is waiting for. */
+  protected final static long STALE_LOCK_MILLISECONDS = 60000L;
+  /** Number of record IDs each scan task handles */
+  protected final static int CHUNK_SIZE = 1000;
+  
+  protected Docs4UAPIImpl impl;
+  protected boolean repair;
+  protected int threadCount;
+  protected boolean checkIDFile;
+  
+  /** Problems found so far */
+  protected List problems = new ArrayList();
+  
+  /** Constructor.
+  *@param impl is the repository to check.
+  *@param repair is true if problems should be fixed where possible.
+  *@param threadCount is the number of scanning threads.
+  *@param checkIDFile is false if the repository's identifiers are allocated by another one.
+  */
+  public D4UIntegrityChecker(Docs4UAPIImpl impl, boolean repair, int threadCount, boolean checkIDFile)
+  {
+    this.impl = impl;
+    this.repair = repair;
+    this.threadCount = (threadCount < 1)?1:threadCount;
+    this.checkIDFile = checkIDFile;
+  }
+  
+  /** Run the check.
+  *@return the descriptions of the problems found.
+  */
+  public String[] check()
+    throws InterruptedException, D4UException
+  {
+    // Stale locks must be dealt with first, since the rest of the check may need them.
+    checkLocks();
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try
+    {
+      Set userGroupIDs = checkUsersAndGroups(executor);
+      Set docIDs = checkDocuments(executor,userGroupIDs);
+      checkAclSets(docIDs);
+      if (checkIDFile)
+        checkIDFile(userGroupIDs,docIDs);
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+    return (String[])problems.toArray(new String[0]);
+  }
+  
+  // Locks
+  
+  /** Look for locks whose holders have stopped renewing their leases.
+  */
+  protected void checkLocks()
+    throws D4UException
+  {
+    File[] lockDirs = new File[]{impl.idLockFile,impl.metadataLockFile,impl.docsLockFile,impl.usersLockFile};
+    long now = System.currentTimeMillis();
+    int i = 0;
+    while (i < lockDirs.length)
+    {
+      File lockDir = lockDirs[i++];
+      long lastModified = D4ULockManager.getLastHeartbeat(lockDir);
+      if (lastModified == 0L || now - lastModified < STALE_LOCK_MILLISECONDS)
+        continue;
+      String description = "Lock '"+lockDir.getName()+"' has not been renewed for "+
+        Long.toString((now - lastModified)/1000L)+" seconds and is probably stale";
+      if (repair)
+      {
+        Docs4UAPIImpl.deleteAll(lockDir);
+        description += " (removed)";
+      }
+      addProblem(description);
+    }
+  }
+  
+  // Users and groups
+  
+  /** Check all user and group records.
+  *@return the set of valid user and group IDs.
+  */
+  protected Set checkUsersAndGroups(ExecutorService executor)
+    throws InterruptedException, D4UException
+  {
+    List ids = listIDs(new File[]{impl.usersFolder,impl.userGroupsFolder});
+    // First pass: which records are intact?
+    Collection suspects = scan(executor,ids,new RecordChecker()
+      {
+        public boolean isSuspect(String id)
+        {
+          return checkUserOrGroupRecord(id) != null;
+        }
+      });
+    Set validIDs = new HashSet(ids);
+    File[] usersLocks = new File[]{impl.usersLockFile};
+    lock(usersLocks);
+    try
+    {
+      Iterator iter = suspects.iterator();
+      while (iter.hasNext())
+      {
+        String id = (String)iter.next();
+        String description = checkUserOrGroupRecord(id);
+        if (description == null)
+          continue;
+        if (new File(impl.usersFolder,id).exists() == false ||
+          Docs4UAPIImpl.readValues(new File(impl.usersFolder,id)) == null)
+        {
+          validIDs.remove(id);
+          if (repair)
+          {
+            new File(impl.usersFolder,id).delete();
+            new File(impl.userGroupsFolder,id).delete();
+            description += " (removed)";
+          }
+        }
+        else if (repair)
+        {
+          Docs4UAPIImpl.writeValues(new File(impl.userGroupsFolder,id),new String[0]);
+          description += " (group list reset)";
+        }
+        addProblem(description);
+      }
+    }
+    finally
+    {
+      unlock(usersLocks);
+    }
+    
+    // Second pass: group memberships must refer to valid records.
+    final Set finalValidIDs = validIDs;
+    suspects = scan(executor,new ArrayList(validIDs),new RecordChecker()
+      {
+        public boolean isSuspect(String id)
+        {
+          String[] dangling = findDangling(new File(impl.userGroupsFolder,id),finalValidIDs);
+          return dangling != null && dangling.length > 0;
+        }
+      });
+    lock(usersLocks);
+    try
+    {
+      Iterator iter = suspects.iterator();
+      while (iter.hasNext())
+      {
+        String id = (String)iter.next();
+        File groupsFile = new File(impl.userGroupsFolder,id);
+        String[] dangling = findDangling(groupsFile,validIDs);
+        if (dangling == null || dangling.length == 0)
+          continue;
+        String description = "User/group '"+id+"' belongs to missing groups "+formatList(dangling);
+        if (repair)
+        {
+          Docs4UAPIImpl.writeValues(groupsFile,removeAll(Docs4UAPIImpl.readValues(groupsFile),dangling));
+          description += " (removed)";
+        }
+        addProblem(description);
+      }
+    }
+    finally
+    {
+      unlock(usersLocks);
+    }
+    return validIDs;
+  }
+  
+  /** Check one user/group record.
+  *@return a description of what's wrong with it, or null if it is ok.
+  */
+  protected String checkUserOrGroupRecord(String id)
+  {
+    File usersFile = new File(impl.usersFolder,id);
+    File groupsFile = new File(impl.userGroupsFolder,id);
+    if (!usersFile.exists())
+      return "User/group '"+id+"' has a group list but no name record";
+    String[] content = Docs4UAPIImpl.readValues(usersFile);
+    if (content == null || content.length < 1 || content.length > 2)
+      return "User/group '"+id+"' has an unreadable name record";
+    if (!groupsFile.exists() || Docs4UAPIImpl.readValues(groupsFile) == null)
+      return "User/group '"+id+"' has no readable group list";
+    return null;
+  }
+  
+  // Documents
+  
+  /** Check all document records.
+  *@param userGroupIDs are the valid user and group IDs, for checking ACLs.
+  *@return the set of document IDs remaining.
+  */
+  protected Set checkDocuments(ExecutorService executor, final Set userGroupIDs)
+    throws InterruptedException, D4UException
+  {
+    List ids = listIDs(new File[]{impl.docsFolder,impl.docMetadataFolder,
+      impl.docAllowedPermissionsFolder,impl.docDisallowedPermissionsFolder});
+    Collection suspects = scan(executor,ids,new RecordChecker()
+      {
+        public boolean isSuspect(String id)
+        {
+          return checkDocumentRecord(id,userGroupIDs) != null;
+        }
+      });
+    Set validIDs = new HashSet(ids);
+    File[] docsLocks = new File[]{impl.docsLockFile};
+    lock(docsLocks);
+    try
+    {
+      Iterator iter = suspects.iterator();
+      while (iter.hasNext())
+      {
+        String id = (String)iter.next();
+        String description = checkDocumentRecord(id,userGroupIDs);
+        if (description == null)
+          continue;
+        if (isDocumentComplete(id))
+        {
+          // Only the ACLs are wrong
+          if (repair)
+          {
+            removeDangling(new File(impl.docAllowedPermissionsFolder,id),userGroupIDs);
+            removeDangling(new File(impl.docDisallowedPermissionsFolder,id),userGroupIDs);
+            description += " (removed)";
+          }
+        }
+        else
+        {
+          validIDs.remove(id);
+          if (repair)
+          {
+            new File(impl.docsFolder,id).delete();
+            new File(impl.docMetadataFolder,id).delete();
+            new File(impl.docAllowedPermissionsFolder,id).delete();
+            new File(impl.docDisallowedPermissionsFolder,id).delete();
+            description += " (document removed)";
+          }
+        }
+        addProblem(description);
+      }
+    }
+    finally
+    {
+      unlock(docsLocks);
+    }
+    return validIDs;
+  }
+  
+  /** Check one document record.
+  *@return a description of what's wrong with it, or null if it is ok.
+  */
+  protected String checkDocumentRecord(String id, Set userGroupIDs)
+  {
+    if (!new File(impl.docsFolder,id).exists())
+      return "Document '"+id+"' has no content file";
+    File metadataFile = new File(impl.docMetadataFolder,id);
+    if (!metadataFile.exists())
+      return "Document '"+id+"' has no metadata file";
+    if (!isValidMetadataContent(Docs4UAPIImpl.readValues(metadataFile)))
+      return "Document '"+id+"' has unparseable metadata";
+    File allowedFile = new File(impl.docAllowedPermissionsFolder,id);
+    if (!allowedFile.exists())
+      return "Document '"+id+"' has no allowed permissions file";
+    File disallowedFile = new File(impl.docDisallowedPermissionsFolder,id);
+    if (!disallowedFile.exists())
+      return "Document '"+id+"' has no disallowed permissions file";
+    String[] dangling = findDangling(allowedFile,userGroupIDs);
+    if (dangling == null)
+      return "Document '"+id+"' has unreadable allowed permissions";
+    String[] danglingDisallowed = findDangling(disallowedFile,userGroupIDs);
+    if (danglingDisallowed == null)
+      return "Document '"+id+"' has unreadable disallowed permissions";
+    if (dangling.length > 0 || danglingDisallowed.length > 0)
+    {
+      Set missing = new TreeSet(Arrays.asList(dangling));
+      missing.addAll(Arrays.asList(danglingDisallowed));
+      return "Document '"+id+"' refers to missing users/groups "+
+        formatList((String[])missing.toArray(new String[0]));
+    }
+    return null;
+  }
+  
+  /** Check whether all four of a document's files exist and parse.
+  */
+  protected boolean isDocumentComplete(String id)
+  {
+    return new File(impl.docsFolder,id).exists() &&
+      new File(impl.docMetadataFolder,id).exists() &&
+      isValidMetadataContent(Docs4UAPIImpl.readValues(new File(impl.docMetadataFolder,id))) &&
+      new File(impl.docAllowedPermissionsFolder,id).exists() &&
+      impl.aclSetStore.readAcl(new File(impl.docAllowedPermissionsFolder,id)) != null &&
+      new File(impl.docDisallowedPermissionsFolder,id).exists() &&
+      impl.aclSetStore.readAcl(new File(impl.docDisallowedPermissionsFolder,id)) != null;
+  }
+  
+  /** Check metadata content strictly: each name must be followed by a count, and then by
+  * that many values.
+  */
+  protected static boolean isValidMetadataContent(String[] content)
+  {
+    if (content == null)
+      return false;
+    int i = 0;
+    while (i < content.length)
+    {
+      i++;
+      if (i == content.length)
+        return false;
+      int size;
+      try
+      {
+        size = Integer.parseInt(content[i++]);
+      }
+      catch (NumberFormatException e)
+      {
+        return false;
+      }
+      if (size < 0 || size > content.length - i)
+        return false;
+      i += size;
+    }
+    return true;
+  }
+  
+  // ACL sets
+  
+  /** Remove interned ACL sets that no document refers to any more, when repairing.  Unused
+  * sets are not damage, since D4UExpirySweeper collects them in the normal course of things,
+  * so a plain check doesn't report them.
+  *@param docIDs are the documents remaining.
+  */
+  protected void checkAclSets(Set docIDs)
+    throws InterruptedException, D4UException
+  {
+    if (!repair)
+      return;
+    File[] docsLocks = new File[]{impl.docsLockFile};
+    lock(docsLocks);
+    try
+    {
+      String[] setIDs = impl.aclSetFolder.list();
+      if (setIDs == null || setIDs.length == 0)
+        return;
+      Set referenced = new HashSet();
+      Iterator iter = docIDs.iterator();
+      while (iter.hasNext())
+      {
+        String id = (String)iter.next();
+        String setID = D4UAclSetStore.getSetID(new File(impl.docAllowedPermissionsFolder,id));
+        if (setID != null)
+          referenced.add(setID);
+        setID = D4UAclSetStore.getSetID(new File(impl.docDisallowedPermissionsFolder,id));
+        if (setID != null)
+          referenced.add(setID);
+      }
+      int unused = 0;
+      int i = 0;
+      while (i < setIDs.length)
+      {
+        String setID = setIDs[i++];
+        if (referenced.contains(setID))
+          continue;
+        unused++;
+        new File(impl.aclSetFolder,setID).delete();
+      }
+      if (unused > 0)
+        addProblem(Integer.toString(unused)+" ACL sets are not used by any document (removed)");
+    }
+    finally
+    {
+      unlock(docsLocks);
+    }
+  }
+  
+  // ID file
+  
+  /** Make sure the ID file is beyond every ID in use.
+  */
+  protected void checkIDFile(Set userGroupIDs, Set docIDs)
+    throws InterruptedException, D4UException
+  {
+    int maxID = Math.max(findMaxID(userGroupIDs),findMaxID(docIDs));
+    File[] idLocks = new File[]{impl.idLockFile};
+    lock(idLocks);
+    try
+    {
+      String value = Docs4UAPIImpl.readValue(impl.idFile);
+      int nextID;
+      try
+      {
+        nextID = (value == null)?-1:Integer.parseInt(value);
+      }
+      catch (NumberFormatException e)
+      {
+        nextID = -1;
+      }
+      if (nextID > maxID)
+        return;
+      String description = "ID file is not beyond highest ID in use ("+Integer.toString(maxID)+")";
+      if (repair)
+      {
+        if (Docs4UAPIImpl.writeValue(impl.idFile,Integer.toString(maxID+1)) == false)
+          throw new D4UException("Could not write ID file");
+        description += " (reset)";
+      }
+      addProblem(description);
+    }
+    finally
+    {
+      unlock(idLocks);
+    }
+  }
+  
+  protected static int findMaxID(Set ids)
+  {
+    int rval = -1;
+    Iterator iter = ids.iterator();
+    while (iter.hasNext())
+    {
+      try
+      {
+        int value = Integer.parseInt((String)iter.next());
+        if (value > rval)
+          rval = value;
+      }
+      catch (NumberFormatException e)
+      {
+        // Not one of ours; ignore
+      }
+    }
+    return rval;
+  }
+  
+  // Utility methods
+  
+  /** Interface describing a per-record check that can run in any thread.
+  */
+  protected interface RecordChecker
+  {
+    public boolean isSuspect(String id);
+  }
+  
+  /** Run a check over a list of record IDs in parallel.
+  *@return the IDs found to be suspect.
+  */
+  protected Collection scan(ExecutorService executor, List ids, final RecordChecker checker)
+    throws InterruptedException, D4UException
+  {
+    final Collection suspects = new ConcurrentLinkedQueue();
+    List futures = new ArrayList();
+    int start = 0;
+    while (start < ids.size())
+    {
+      final List chunk = ids.subList(start,Math.min(start + CHUNK_SIZE,ids.size()));
+      futures.add(executor.submit(new Runnable()
+        {
+          public void run()
+          {
+            Iterator iter = chunk.iterator();
+            while (iter.hasNext())
+            {
+              String id = (String)iter.next();
+              if (checker.isSuspect(id))
+                suspects.add(id);
+            }
+          }
+        }));
+      start += CHUNK_SIZE;
+    }
+    Iterator iter = futures.iterator();
+    while (iter.hasNext())
+    {
+      try
+      {
+        ((Future)iter.next()).get();
+      }
+      catch (ExecutionException e)
+      {
+        throw new D4UException("Integrity scan failed: "+e.getCause().getMessage(),e.getCause());
+      }
+    }
+    return suspects;
+  }
+  
+  /** List the union of file names across a set of areas.
+  */
+  protected static List listIDs(File[] areas)
+  {
+    Set rval = new HashSet();
+    int i = 0;
+    while (i < areas.length)
+    {
+      String[] names = areas[i++].list();
+      if (names != null)
+        rval.addAll(Arrays.asList(names));
+    }
+    return new ArrayList(rval);
+  }
+  
+  /** Find the entries in a file of IDs that are not in a valid set.
+  *@return the dangling IDs, or null if the file can't be read.
+  */
+  protected String[] findDangling(File file, Set validIDs)
+  {
+    String[] values = impl.aclSetStore.readAcl(file);
+    if (values == null)
+      return null;
+    List rval = new ArrayList();
+    int i = 0;
+    while (i < values.length)
+    {
+      String value = values[i++];
+      if (!validIDs.contains(value))
+        rval.add(value);
+    }
+    return (String[])rval.toArray(new String[0]);
+  }
+  
+  /** Rewrite a document's ACL file without those entries not in a valid set.  The ACL's old
+  * set is left for checkAclSets() or D4UExpirySweeper to remove if nothing else uses it.
+  */
+  protected void removeDangling(File file, Set validIDs)
+    throws D4UException
+  {
+    String[] dangling = findDangling(file,validIDs);
+    if (dangling != null && dangling.length > 0)
+      impl.aclSetStore.writeAcl(file,removeAll(impl.aclSetStore.readAcl(file),dangling));
+  }
+  
+  protected static String[] removeAll(String[] values, String[] toRemove)
+  {
+    List rval = new ArrayList(Arrays.asList(values));
+    rval.removeAll(Arrays.asList(toRemove));
+    return (String[])rval.toArray(new String[0]);
+  }
+  
+  protected static String formatList(String[] values)
+  {
+    StringBuffer sb = new StringBuffer("(");
+    int i = 0;
+    while (i < values.length)
+    {
+      if (i > 0)
+        sb.append(",");
+      sb.append(values[i++]);
+    }
+    sb.append(")");
+    return sb.toString();
+  }
+  
+  /** Take locks, but only when repairing; a read-only check must never wait on a lock that
+  * might be stale.
+  */
+  protected void lock(File[] lockDirs)
+    throws InterruptedException, D4UException
+  {
+    if (repair)
+      Docs4UAPIImpl.makeLocks(lockDirs);
+  }
+  
+  protected void unlock(File[] lockDirs)
+    throws D4UException
+  {
+    if (repair)
+      Docs4UAPIImpl.clearLocks(lockDirs);
+  }
+  
+  protected synchronized void addProblem(String description)
+  {
+    problems.add(description);
+  }
+  
+}
@@ -0,0 +1,654 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/** This class manages Docs4U's cross-process locks.  A lock is still a directory, since
+* directory creation is atomic, but the holder also keeps a lease file inside it that records
+* an owner ID, the holder's process ID, a heartbeat timestamp, and the holder's host.  A
+* background thread refreshes the heartbeat of every lease this process holds.
+*
+* A waiter never compares timestamps against its own clock, since lock directories may live on
+* a shared filesystem whose clients disagree about the time.  Instead it watches the lease, and
+* if the heartbeat has not moved for a full lease timeout of its own elapsed time, it breaks
+* the lease.  Breaking is done by renaming the lock directory aside, which only one waiter can
+* succeed at; the renamed lease is then checked to make sure it was still the stale one.  A
+* waiter on the holder's own host doesn't wait that long if it can see, under /proc, that the
+* holder's process has gone; a reused process ID only means falling back to the timeout.
+*
+* A holder only finds out that its lease was broken when it releases the lock, by which time
+* its writes may have overlapped another holder's.  So the lease timeout has to be longer than
+* any pause a live holder might suffer, such as a garbage collection, swapping, or a stalled
+* NFS server, and it defaults to thirty seconds.  The price is that a lock left behind by a
+* crashed process on another host, or on one without /proc, blocks everyone else for that
+* long; lower docs4u.lock.leasetimeout only where pauses are known to be short.  It must stay below docs4u.lock.maxwait, or waiters
+* will give up before they can break an abandoned lease.
+*
+* All waits are bounded, and the counters kept here describe how much waiting has gone on.
+*/
+public class D4ULockManager
+{
+  /** Name of the lease file inside a lock directory */
+  protected final static String leaseFileName = "lease.txt";
+  
+  /** Heartbeat interval, in milliseconds */
+  protected final static long HEARTBEAT_INTERVAL = Long.getLong("docs4u.lock.heartbeat",200L).longValue();
+  /** Time a heartbeat may stay unchanged before its lease is considered abandoned; this must
+  * be longer than any pause a live holder may suffer */
+  protected final static long LEASE_TIMEOUT = Long.getLong("docs4u.lock.leasetimeout",30000L).longValue();
+  /** Longest time to wait for a lock before giving up */
+  protected final static long MAX_WAIT = Long.getLong("docs4u.lock.maxwait",60000L).longValue();
+  /** Initial retry interval */
+  protected final static long MIN_BACKOFF = 2L;
+  /** Largest retry interval */
+  protected final static long MAX_BACKOFF = 100L;
+  
+  /** This process's identity, used as the base for lease owner IDs. */
+  protected final static String processID;
+  /** The process number, or the full runtime name if that can't be determined. */
+  protected final static String pid;
+  /** The host name, or an empty string if it can't be determined. */
+  protected final static String host;
+  static
+  {
+    String runtimeName = java.lang.management.ManagementFactory.getRuntimeMXBean().getName();
+    int index = runtimeName.indexOf("@");
+    pid = (index == -1)?runtimeName:runtimeName.substring(0,index);
+    host = (index == -1)?"":runtimeName.substring(index+1);
+    processID = runtimeName + ":" + Long.toHexString(new Random().nextLong());
+  }
+  /** Where process directories are found, on systems that have them */
+  protected final static File procFolder = new File("/proc");
+  
+  /** Counter used to make every acquisition's owner ID unique. */
+  protected final static AtomicLong ownerCounter = new AtomicLong(0L);
+  
+  /** In-process locks, keyed by lock directory path. */
+  protected final static Map localLocks = new HashMap();
+  /** Leases held by this process, keyed by lock directory path. */
+  protected final static Map heldLeases = new HashMap();
+  /** The heartbeat thread, once started. */
+  protected static Thread heartbeatThread = null;
+  
+  /** Random number generator, for retry jitter. */
+  protected final static Random randomGenerator = new Random();
+  
+  // Statistics
+  
+  protected final static AtomicLong acquisitionCount = new AtomicLong(0L);
+  protected final static AtomicLong attemptCount = new AtomicLong(0L);
+  protected final static AtomicLong contendedCount = new AtomicLong(0L);
+  protected final static AtomicLong totalWaitMillis = new AtomicLong(0L);
+  protected final static AtomicLong maxWaitMillis = new AtomicLong(0L);
+  protected final static AtomicLong timeoutCount = new AtomicLong(0L);
+  protected final static AtomicLong brokenLeaseCount = new AtomicLong(0L);
+  protected final static AtomicLong lostLeaseCount = new AtomicLong(0L);
+  /** Time each thread has spent acquiring locks, as a one-element long array */
+  protected final static ThreadLocal threadWaitMillis = new ThreadLocal()
+    {
+      protected Object initialValue()
+      {
+        return new long[1];
+      }
+    };
+  
+  private D4ULockManager()
+  {
+  }
+  
+  /** Acquire a set of locks, waiting no longer than the configured maximum.
+  *@param lockDirs are the lock directories.
+  */
+  public static void makeLocks(File[] lockDirs)
+    throws InterruptedException, D4UException
+  {
+    long startTime = System.currentTimeMillis();
+    // Threads within this process queue up on an in-memory lock first, so they never
+    // have to poll the lock directory against one another.  That wait counts against the
+    // same deadline as the directory locks.
+    makeLocalLocks(lockDirs,startTime);
+    try
+    {
+      String ownerID = processID + ":" + Long.toString(ownerCounter.incrementAndGet());
+      Map observations = new HashMap();
+      long backoff = MIN_BACKOFF;
+      boolean contended = false;
+      while (true)
+      {
+        attemptCount.incrementAndGet();
+        File blocker = makeLocksNoWait(lockDirs,ownerID);
+        if (blocker == null)
+          break;
+        contended = true;
+        Observation expired = findExpiredLease(blocker,observations);
+        if (expired != null)
+        {
+          breakLease(blocker,expired.state);
+          observations.remove(blocker.getPath());
+          continue;
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (elapsed >= MAX_WAIT)
+        {
+          timeoutCount.incrementAndGet();
+          throw new D4UException("Timed out after "+Long.toString(elapsed)+" ms waiting for lock '"+
+            blocker.getName()+"'"+describeLease(blocker));
+        }
+        long amt = backoff + (long)randomGenerator.nextInt((int)backoff + 1);
+        Thread.sleep(Math.min(amt,MAX_WAIT - elapsed));
+        backoff = Math.min(backoff * 2L,MAX_BACKOFF);
+      }
+      // Got them all
+      synchronized (heldLeases)
+      {
+        int i = 0;
+        while (i < lockDirs.length)
+        {
+          heldLeases.put(lockDirs[i].getPath(),ownerID);
+          i++;
+        }
+        startHeartbeat();
+      }
+      long waitTime = System.currentTimeMillis() - startTime;
+      acquisitionCount.incrementAndGet();
+      if (contended)
+        contendedCount.incrementAndGet();
+      totalWaitMillis.addAndGet(waitTime);
+      ((long[])threadWaitMillis.get())[0] += waitTime;
+      while (true)
+      {
+        long currentMax = maxWaitMillis.get();
+        if (waitTime <= currentMax || maxWaitMillis.compareAndSet(currentMax,waitTime))
+          break;
+      }
+    }
+    catch (InterruptedException e)
+    {
+      clearLocalLocks(lockDirs);
+      throw e;
+    }
+    catch (D4UException e)
+    {
+      clearLocalLocks(lockDirs);
+      throw e;
+    }
+  }
+  
+  /** Release a set of locks.  If any lease turns out to have been broken by another process
+  * while it was held, an exception is thrown once all the locks are released, since whatever
+  * was done under that lock may have been interfered with.
+  *@param lockDirs are the lock directories.
+  */
+  public static void clearLocks(File[] lockDirs)
+    throws D4UException
+  {
+    try
+    {
+      String lostLock = null;
+      int i = 0;
+      while (i < lockDirs.length)
+      {
+        File lockDir = lockDirs[i++];
+        String ownerID;
+        synchronized (heldLeases)
+        {
+          ownerID = (String)heldLeases.remove(lockDir.getPath());
+        }
+        String[] lease = readLease(lockDir);
+        if (ownerID == null || lease == null || !lease[0].equals(ownerID))
+        {
+          lostLeaseCount.incrementAndGet();
+          lostLock = lockDir.getName();
+          continue;
+        }
+        new File(lockDir,leaseFileName).delete();
+        if (lockDir.delete() == false)
+          throw new D4UException("Couldn't clean up locks; failing");
+      }
+      if (lostLock != null)
+        throw new D4UException("Lease on lock '"+lostLock+"' was broken by another process while held");
+    }
+    finally
+    {
+      clearLocalLocks(lockDirs);
+    }
+  }
+  
+  /** Find the last sign of life from a lock's holder.
+  *@param lockDir is the lock directory.
+  *@return the last-modified time of its lease, or of the directory itself if there is no lease
+  * yet, or 0L if the lock isn't held.
+  */
+  public static long getLastHeartbeat(File lockDir)
+  {
+    long rval = new File(lockDir,leaseFileName).lastModified();
+    if (rval == 0L)
+      rval = lockDir.lastModified();
+    return rval;
+  }
+  
+  // Statistics
+  
+  /** Get the number of successful lock acquisitions. */
+  public static long getAcquisitionCount()
+  {
+    return acquisitionCount.get();
+  }
+  
+  /** Get the number of attempts to create lock directories. */
+  public static long getAttemptCount()
+  {
+    return attemptCount.get();
+  }
+  
+  /** Get the number of acquisitions that had to wait for another holder. */
+  public static long getContendedCount()
+  {
+    return contendedCount.get();
+  }
+  
+  /** Get the total time spent acquiring locks, in milliseconds. */
+  public static long getTotalWaitMillis()
+  {
+    return totalWaitMillis.get();
+  }
+  
+  /** Get the total time the current thread has spent acquiring locks, in milliseconds.  The
+  * difference across a call is how long that call waited for locks in this thread. */
+  public static long getThreadWaitMillis()
+  {
+    return ((long[])threadWaitMillis.get())[0];
+  }
+  
+  /** Get the longest time any single acquisition took, in milliseconds. */
+  public static long getMaxWaitMillis()
+  {
+    return maxWaitMillis.get();
+  }
+  
+  /** Get the number of acquisitions that gave up. */
+  public static long getTimeoutCount()
+  {
+    return timeoutCount.get();
+  }
+  
+  /** Get the number of abandoned leases this process has broken. */
+  public static long getBrokenLeaseCount()
+  {
+    return brokenLeaseCount.get();
+  }
+  
+  /** Get the number of this process's leases that were broken by someone else. */
+  public static long getLostLeaseCount()
+  {
+    return lostLeaseCount.get();
+  }
+  
+  // Internals
+  
+  /** Try to create all the lock directories, without waiting.
+  *@return null if all were created, otherwise the directory that was already held.  In that
+  * case none of the locks are held on return.
+  */
+  protected static File makeLocksNoWait(File[] lockDirs, String ownerID)
+    throws D4UException
+  {
+    int i = 0;
+    while (i < lockDirs.length)
+    {
+      File lockDir = lockDirs[i];
+      if (lockDir.mkdir() == false)
+      {
+        // Assume we didn't get lock i.
+        while (i > 0)
+        {
+          File heldDir = lockDirs[--i];
+          new File(heldDir,leaseFileName).delete();
+          if (heldDir.delete() == false)
+            throw new D4UException("Couldn't clean up locks; failing");
+        }
+        return lockDir;
+      }
+      writeLease(lockDir,ownerID);
+      i++;
+    }
+    return null;
+  }
+  
+  /** Decide whether a lease has been abandoned.  Each call records what the lease looked
+  * like and when it was first seen that way.
+  *@return the observation of the abandoned lease, or null if it is still live.
+  */
+  protected static Observation findExpiredLease(File lockDir, Map observations)
+  {
+    String state = getLeaseState(lockDir);
+    if (state == null)
+    {
+      // Gone already
+      observations.remove(lockDir.getPath());
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    if (isHolderGone(lockDir))
+      return new Observation(state,now);
+    Observation o = (Observation)observations.get(lockDir.getPath());
+    if (o == null || !o.state.equals(state))
+    {
+      observations.put(lockDir.getPath(),new Observation(state,now));
+      return null;
+    }
+    if (now - o.firstSeen < LEASE_TIMEOUT)
+      return null;
+    return o;
+  }
+  
+  /** Check whether a lease's holder ran on this host and its process no longer exists.
+  *@return true only if the holder is certainly gone; false if it may be alive, or can't be
+  * checked from here.
+  */
+  protected static boolean isHolderGone(File lockDir)
+  {
+    String[] lease = readLease(lockDir);
+    if (lease == null || lease.length < 4 || host.length() == 0 || !lease[3].equals(host))
+      return false;
+    String holderPID = lease[1];
+    if (holderPID.length() == 0 || holderPID.equals(pid))
+      return false;
+    int i = 0;
+    while (i < holderPID.length())
+    {
+      if (!Character.isDigit(holderPID.charAt(i++)))
+        return false;
+    }
+    // Without a /proc of our own, a missing entry proves nothing
+    if (!new File(procFolder,pid).exists())
+      return false;
+    return !new File(procFolder,holderPID).exists();
+  }
+  
+  /** Break an abandoned lease.
+  *@param lockDir is the lock directory.
+  *@param expectedState is the lease state that was observed to be stale.
+  */
+  protected static void breakLease(File lockDir, String expectedState)
+    throws D4UException
+  {
+    File tombstone = new File(lockDir.getParentFile(),lockDir.getName()+".broken."+
+      Long.toString(ownerCounter.incrementAndGet())+"."+pid);
+    if (lockDir.renameTo(tombstone) == false)
+    {
+      // Somebody else broke it, or the holder released it; either way, try again
+      return;
+    }
+    String brokenState = getLeaseState(tombstone);
+    if (brokenState != null && !brokenState.equals(expectedState))
+    {
+      // The holder came back to life in the meantime.  Put the lock back if we can;
+      // if we can't, the holder will find out when it releases.
+      if (tombstone.renameTo(lockDir))
+        return;
+    }
+    brokenLeaseCount.incrementAndGet();
+    Docs4UAPIImpl.deleteAll(tombstone);
+  }
+  
+  /** Describe a lease, for error messages.
+  */
+  protected static String describeLease(File lockDir)
+  {
+    String[] lease = readLease(lockDir);
+    if (lease == null || lease.length < 3)
+      return "";
+    return " (held by process "+lease[1]+", owner "+lease[0]+")";
+  }
+  
+  /** Get a string representing the current state of a lease, or null if the lock isn't held.
+  */
+  protected static String getLeaseState(File lockDir)
+  {
+    String[] lease = readLease(lockDir);
+    if (lease != null && lease.length >= 3)
+      return lease[0] + "/" + lease[2];
+    // Lease not written yet, or unreadable: go by the directory itself
+    long lastModified = lockDir.lastModified();
+    if (lastModified == 0L)
+      return null;
+    return "dir/" + Long.toString(lastModified);
+  }
+  
+  /** Write a lease file.
+  */
+  protected static boolean writeLease(File lockDir, String ownerID)
+  {
+    try
+    {
+      OutputStream os = new FileOutputStream(new File(lockDir,leaseFileName));
+      try
+      {
+        byte[] bytes = (ownerID + "\n" + pid + "\n" + Long.toString(System.currentTimeMillis()) + "\n" +
+          host + "\n").getBytes("utf-8");
+        os.write(bytes,0,bytes.length);
+        return true;
+      }
+      finally
+      {
+        os.close();
+      }
+    }
+    catch (IOException e)
+    {
+      // Directory removed from under us, most likely
+      return false;
+    }
+  }
+  
+  /** Read a lease file.
+  *@return the owner ID, process ID, heartbeat, and host (if recorded), or null if there is no
+  * readable lease.
+  */
+  protected static String[] readLease(File lockDir)
+  {
+    File leaseFile = new File(lockDir,leaseFileName);
+    if (!leaseFile.exists())
+      return null;
+    try
+    {
+      InputStream is = new FileInputStream(leaseFile);
+      try
+      {
+        Reader r = new InputStreamReader(is,"utf-8");
+        StringBuffer sb = new StringBuffer();
+        char[] buffer = new char[256];
+        while (true)
+        {
+          int amt = r.read(buffer);
+          if (amt == -1)
+            break;
+          sb.append(buffer,0,amt);
+        }
+        String[] rval = sb.toString().split("\n");
+        if (rval.length < 3)
+          return null;
+        return rval;
+      }
+      finally
+      {
+        is.close();
+      }
+    }
+    catch (IOException e)
+    {
+      return null;
+    }
+  }
+  
+  /** Start the heartbeat thread, if it isn't already running.  Call with heldLeases locked.
+  */
+  protected static void startHeartbeat()
+  {
+    if (heartbeatThread != null)
+      return;
+    heartbeatThread = new HeartbeatThread();
+    heartbeatThread.start();
+  }
+  
+  /** Refresh every lease this process holds.
+  */
+  protected static void heartbeat()
+  {
+    Map leases;
+    synchronized (heldLeases)
+    {
+      leases = new HashMap(heldLeases);
+    }
+    Iterator iter = leases.keySet().iterator();
+    while (iter.hasNext())
+    {
+      String path = (String)iter.next();
+      String ownerID = (String)leases.get(path);
+      File lockDir = new File(path);
+      // Rewriting the lease truncates it first, so this must not overlap with clearLocks()
+      // reading it back; holding heldLeases, and rechecking it, keeps the two apart.
+      synchronized (heldLeases)
+      {
+        if (!ownerID.equals(heldLeases.get(path)))
+          continue;
+        String[] lease = readLease(lockDir);
+        // Never write into a lock directory that now belongs to somebody else
+        if (lease != null && lease[0].equals(ownerID))
+          writeLease(lockDir,ownerID);
+      }
+    }
+  }
+  
+  /** Acquire the in-process locks corresponding to a set of lock directories, giving up once
+  * the configured maximum wait has passed since the start time.  On failure, none of them
+  * are held.
+  *@param lockDirs are the lock directories.
+  *@param startTime is when the caller began waiting.
+  */
+  protected static void makeLocalLocks(File[] lockDirs, long startTime)
+    throws InterruptedException, D4UException
+  {
+    int i = 0;
+    boolean success = false;
+    try
+    {
+      while (i < lockDirs.length)
+      {
+        long remaining = MAX_WAIT - (System.currentTimeMillis() - startTime);
+        if (getLocalLock(lockDirs[i]).tryLock(Math.max(remaining,0L),TimeUnit.MILLISECONDS) == false)
+        {
+          timeoutCount.incrementAndGet();
+          throw new D4UException("Timed out after "+Long.toString(System.currentTimeMillis() - startTime)+
+            " ms waiting for lock '"+lockDirs[i].getName()+"' within this process");
+        }
+        i++;
+      }
+      success = true;
+    }
+    finally
+    {
+      if (!success)
+      {
+        while (i > 0)
+        {
+          getLocalLock(lockDirs[--i]).unlock();
+        }
+      }
+    }
+  }
+  
+  /** Release the in-process locks corresponding to a set of lock directories.
+  */
+  protected static void clearLocalLocks(File[] lockDirs)
+  {
+    int i = lockDirs.length;
+    while (i > 0)
+    {
+      ReentrantLock lock = getLocalLock(lockDirs[--i]);
+      if (lock.isHeldByCurrentThread())
+        lock.unlock();
+    }
+  }
+  
+  /** Find the in-process lock for a lock directory.
+  */
+  protected static ReentrantLock getLocalLock(File lockDir)
+  {
+    String key = lockDir.getAbsolutePath();
+    synchronized (localLocks)
+    {
+      ReentrantLock rval = (ReentrantLock)localLocks.get(key);
+      if (rval == null)
+      {
+        rval = new ReentrantLock();
+        localLocks.put(key,rval);
+      }
+      return rval;
+    }
+  }
+  
+  /** What a waiter saw of a lease, and when it first saw it.
+  */
+  protected static class Observation
+  {
+    public String state;
+    public long firstSeen;
+    
+    public Observation(String state, long firstSeen)
+    {
+      this.state = state;
+      this.firstSeen = firstSeen;
+    }
+  }
+  
+  /** Thread that keeps this process's leases alive.
+  */
+  protected static class HeartbeatThread extends Thread
+  {
+    public HeartbeatThread()
+    {
+      super("Docs4U lease heartbeat");
+      setDaemon(true);
+    }
+    
+    public void run()
+    {
+      while (true)
+      {
+        try
+        {
+          Thread.sleep(HEARTBEAT_INTERVAL);
+        }
+        catch (InterruptedException e)
+        {
+          return;
+        }
+        heartbeat();
+      }
+    }
+  }
+  
+}
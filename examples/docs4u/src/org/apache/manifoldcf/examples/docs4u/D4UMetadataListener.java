@@ -0,0 +1,34 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+/** This interface is implemented by anything that wants to hear about changes to a Docs4U
+* repository's set of legal metadata names.  Register with D4UMetadataRegistry.addListener().
+*/
+public interface D4UMetadataListener
+{
+  /** The metadata names have changed.  This is called from whichever thread noticed the
+  * change, so it should return quickly.
+  *@param root is the repository root.
+  *@param names are the new metadata names.
+  *@param generation is the registry's new generation number.
+  */
+  public void metadataNamesChanged(String root, String[] names, long generation);
+  
+}
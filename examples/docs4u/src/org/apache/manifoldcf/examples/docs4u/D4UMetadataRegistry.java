@@ -0,0 +1,310 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** This class caches a Docs4U repository's legal metadata names in memory.  There is one
+* instance per root per process, obtained with getRegistry().
+*
+* A read only looks at the metadata file's length and modification time, without taking any
+* lock, and returns the cached names if neither has changed.  Otherwise the file is re-read
+* under the metadata lock, the generation number goes up, and listeners are told.  Changes
+* made through this process's API instances update the registry directly.  Changes made by
+* other processes are noticed on the next read, or within the polling interval if anyone is
+* listening.
+*/
+public class D4UMetadataRegistry
+{
+  /** How often to check the file for changes while there are listeners, in milliseconds */
+  protected final static long POLL_INTERVAL = Long.getLong("docs4u.metadata.pollinterval",1000L).longValue();
+  
+  /** Registries, keyed by canonical root path */
+  protected final static Map instances = new HashMap();
+  
+  protected final String root;
+  protected final File metadataFile;
+  protected final File metadataLockFile;
+  protected final List listeners = new CopyOnWriteArrayList();
+  
+  /** The current cached state */
+  protected volatile Snapshot snapshot = null;
+  /** Thread polling for changes, while there are listeners */
+  protected Thread pollingThread = null;
+  
+  protected D4UMetadataRegistry(String root)
+  {
+    this.root = root;
+    this.metadataFile = new File(root,Docs4UAPIImpl.metadataFileName);
+    this.metadataLockFile = new File(root,Docs4UAPIImpl.metadataLockFileName);
+  }
+  
+  /** Get the registry for a repository root, creating it if needed.
+  *@param root is the repository root directory.
+  */
+  public static D4UMetadataRegistry getRegistry(String root)
+  {
+    String key;
+    try
+    {
+      key = new File(root).getCanonicalPath();
+    }
+    catch (IOException e)
+    {
+      key = new File(root).getAbsolutePath();
+    }
+    synchronized (instances)
+    {
+      D4UMetadataRegistry rval = (D4UMetadataRegistry)instances.get(key);
+      if (rval == null)
+      {
+        rval = new D4UMetadataRegistry(key);
+        instances.put(key,rval);
+      }
+      return rval;
+    }
+  }
+  
+  /** Get the current metadata names.
+  *@return a copy of the names, which the caller may change.
+  */
+  public String[] getMetadataNames()
+    throws InterruptedException, D4UException
+  {
+    return getCurrent().getNames();
+  }
+  
+  /** Get the generation number.  It goes up by one each time the names are seen to change,
+  * so callers that derive something from the names can tell cheaply when to redo it.
+  */
+  public long getGeneration()
+    throws InterruptedException, D4UException
+  {
+    return getCurrent().generation;
+  }
+  
+  /** Set the metadata names, writing them to the repository.
+  *@param names are the new names.
+  */
+  public void setMetadataNames(String[] names)
+    throws InterruptedException, D4UException
+  {
+    File[] metadataLocks = new File[]{metadataLockFile};
+    Docs4UAPIImpl.makeLocks(metadataLocks);
+    try
+    {
+      if (Docs4UAPIImpl.writeValues(metadataFile,names) == false)
+        throw new D4UException("Could not write to metadata file");
+      // Read back rather than trusting the argument, so the cache holds exactly what the file does
+      load();
+    }
+    finally
+    {
+      Docs4UAPIImpl.clearLocks(metadataLocks);
+    }
+  }
+  
+  /** Check for changes made by other processes now, rather than waiting for the next read.
+  */
+  public void refresh()
+    throws InterruptedException, D4UException
+  {
+    getCurrent();
+  }
+  
+  /** Register a listener.  Polling for changes by other processes runs while there are
+  * listeners.
+  */
+  public void addListener(D4UMetadataListener listener)
+  {
+    listeners.add(listener);
+    synchronized (this)
+    {
+      if (pollingThread == null)
+      {
+        pollingThread = new PollingThread();
+        pollingThread.start();
+      }
+    }
+  }
+  
+  /** Remove a listener.
+  */
+  public void removeListener(D4UMetadataListener listener)
+  {
+    listeners.remove(listener);
+    synchronized (this)
+    {
+      if (listeners.size() == 0 && pollingThread != null)
+      {
+        pollingThread.interrupt();
+        pollingThread = null;
+      }
+    }
+  }
+  
+  /** Forget the cached names, so the next read goes to the file.  Used when the repository
+  * is removed.
+  */
+  public void invalidate()
+  {
+    synchronized (this)
+    {
+      snapshot = null;
+    }
+  }
+  
+  // Internals
+  
+  /** Get the current state, reloading it if the file has changed.
+  */
+  protected Snapshot getCurrent()
+    throws InterruptedException, D4UException
+  {
+    Snapshot current = snapshot;
+    if (current != null && current.matches(metadataFile))
+      return current;
+    File[] metadataLocks = new File[]{metadataLockFile};
+    Docs4UAPIImpl.makeLocks(metadataLocks);
+    try
+    {
+      // Somebody else may have reloaded it while we waited
+      current = snapshot;
+      if (current != null && current.matches(metadataFile))
+        return current;
+      return load();
+    }
+    finally
+    {
+      Docs4UAPIImpl.clearLocks(metadataLocks);
+    }
+  }
+  
+  /** Read the file and install the result.  Call with the metadata lock held.
+  */
+  protected Snapshot load()
+    throws D4UException
+  {
+    // Take the stamp first; if the file changes during the read, the next check catches it
+    long length = metadataFile.length();
+    long lastModified = metadataFile.lastModified();
+    String[] names = Docs4UAPIImpl.readValues(metadataFile);
+    if (names == null)
+      throw new D4UException("No metadata file found");
+    Snapshot newSnapshot;
+    boolean changed;
+    synchronized (this)
+    {
+      Snapshot old = snapshot;
+      changed = (old == null || !Arrays.equals(old.names,names));
+      long generation = (old == null)?1L:(changed?old.generation + 1L:old.generation);
+      newSnapshot = new Snapshot(names,generation,length,lastModified);
+      snapshot = newSnapshot;
+      // The very first load isn't a change anybody can have been waiting for
+      if (old == null)
+        changed = false;
+    }
+    if (changed)
+      notifyListeners(newSnapshot);
+    return newSnapshot;
+  }
+  
+  protected void notifyListeners(Snapshot s)
+  {
+    Iterator iter = listeners.iterator();
+    while (iter.hasNext())
+    {
+      D4UMetadataListener listener = (D4UMetadataListener)iter.next();
+      try
+      {
+        listener.metadataNamesChanged(root,s.getNames(),s.generation);
+      }
+      catch (RuntimeException e)
+      {
+        // One bad listener mustn't keep the others from hearing about it
+        e.printStackTrace(System.err);
+      }
+    }
+  }
+  
+  /** An immutable view of the names, and the file stamp they were read with.
+  */
+  protected static class Snapshot
+  {
+    public final String[] names;
+    public final long generation;
+    public final long length;
+    public final long lastModified;
+    
+    public Snapshot(String[] names, long generation, long length, long lastModified)
+    {
+      this.names = names;
+      this.generation = generation;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+    
+    public boolean matches(File file)
+    {
+      return file.lastModified() == lastModified && file.length() == length;
+    }
+    
+    public String[] getNames()
+    {
+      String[] rval = new String[names.length];
+      System.arraycopy(names,0,rval,0,names.length);
+      return rval;
+    }
+  }
+  
+  /** Thread that checks for changes made by other processes, while there are listeners.
+  */
+  protected class PollingThread extends Thread
+  {
+    public PollingThread()
+    {
+      super("Docs4U metadata registry poller");
+      setDaemon(true);
+    }
+    
+    public void run()
+    {
+      while (true)
+      {
+        try
+        {
+          Thread.sleep(POLL_INTERVAL);
+          if (metadataFile.exists())
+            getCurrent();
+        }
+        catch (InterruptedException e)
+        {
+          return;
+        }
+        catch (D4UException e)
+        {
+          // The repository may be mid-install or gone; try again later
+        }
+      }
+    }
+  }
+  
+}
@@ -0,0 +1,491 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.lang.management.*;
+import javax.management.*;
+
+/** This class collects metrics for one Docs4U repository root.  There is one instance per
+* root per process, obtained with getMetrics(), and each is registered as a JMX MBean named
+* "org.apache.manifoldcf.examples.docs4u:type=Docs4U,root=&lt;root&gt;".
+*
+* Metrics may also be pushed to a reporter on a schedule.  Set the system property
+* docs4u.metrics.reporter to the name of a D4UMetricsReporter class (or "print" for
+* D4UMetricsPrintReporter), and docs4u.metrics.interval to the period in milliseconds, or call
+* setReporter().
+*/
+public class D4UMetrics implements D4UMetricsMBean
+{
+  /** JMX domain */
+  public final static String JMX_DOMAIN = "org.apache.manifoldcf.examples.docs4u";
+  
+  /** Metrics objects, keyed by canonical root path */
+  protected final static Map instances = new HashMap();
+  
+  /** The reporter, if any */
+  protected static D4UMetricsReporter reporter = null;
+  /** The reporting thread, if any */
+  protected static Thread reporterThread = null;
+  
+  static
+  {
+    String reporterClassName = System.getProperty("docs4u.metrics.reporter");
+    if (reporterClassName != null)
+    {
+      if (reporterClassName.equals("print"))
+        reporterClassName = D4UMetricsPrintReporter.class.getName();
+      try
+      {
+        setReporter((D4UMetricsReporter)Class.forName(reporterClassName).newInstance(),
+          Long.getLong("docs4u.metrics.interval",60000L).longValue());
+      }
+      catch (Exception e)
+      {
+        System.err.println("Docs4U: Couldn't create metrics reporter '"+reporterClassName+"': "+e.getMessage());
+      }
+    }
+  }
+  
+  protected final String root;
+  protected final Map operations = new ConcurrentHashMap();
+  protected final AtomicLong bytesRead = new AtomicLong(0L);
+  protected final AtomicLong bytesWritten = new AtomicLong(0L);
+  protected final D4UHistogram directoryScans = new D4UHistogram();
+  protected final Map phases = new ConcurrentHashMap();
+  protected final Map gauges = new ConcurrentHashMap();
+  
+  protected D4UMetrics(String root)
+  {
+    this.root = root;
+  }
+  
+  /** Get the metrics object for a repository root, creating and registering it if needed.
+  *@param root is the repository root directory, a Docs4U server URL, or a federation.
+  *@return the metrics object.
+  */
+  public static D4UMetrics getMetrics(String root)
+  {
+    String key;
+    try
+    {
+      if (root.startsWith(D4UProtocol.URL_PREFIX) || root.startsWith(D4UFederatedAPI.URL_PREFIX))
+        key = root;
+      else
+        key = new File(root).getCanonicalPath();
+    }
+    catch (IOException e)
+    {
+      key = new File(root).getAbsolutePath();
+    }
+    synchronized (instances)
+    {
+      D4UMetrics rval = (D4UMetrics)instances.get(key);
+      if (rval == null)
+      {
+        rval = new D4UMetrics(key);
+        instances.put(key,rval);
+        rval.register();
+      }
+      return rval;
+    }
+  }
+  
+  /** Get the metrics objects for all repository roots in use.
+  */
+  public static D4UMetrics[] getAllMetrics()
+  {
+    synchronized (instances)
+    {
+      return (D4UMetrics[])instances.values().toArray(new D4UMetrics[0]);
+    }
+  }
+  
+  /** Install a reporter, replacing any previous one.
+  *@param newReporter is the reporter, or null to stop reporting.
+  *@param intervalMilliseconds is the time between reports.
+  */
+  public static synchronized void setReporter(D4UMetricsReporter newReporter, final long intervalMilliseconds)
+  {
+    if (reporterThread != null)
+    {
+      reporterThread.interrupt();
+      reporterThread = null;
+    }
+    reporter = newReporter;
+    if (newReporter == null)
+      return;
+    final D4UMetricsReporter theReporter = newReporter;
+    reporterThread = new Thread("Docs4U metrics reporter")
+    {
+      public void run()
+      {
+        while (true)
+        {
+          try
+          {
+            Thread.sleep(intervalMilliseconds);
+          }
+          catch (InterruptedException e)
+          {
+            return;
+          }
+          D4UMetrics[] all = getAllMetrics();
+          int i = 0;
+          while (i < all.length)
+          {
+            try
+            {
+              theReporter.report(all[i++]);
+            }
+            catch (RuntimeException e)
+            {
+              e.printStackTrace(System.err);
+            }
+          }
+        }
+      }
+    };
+    reporterThread.setDaemon(true);
+    reporterThread.start();
+  }
+  
+  /** Register this object with the platform MBean server.  Failure is not fatal.
+  */
+  protected void register()
+  {
+    try
+    {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(JMX_DOMAIN+":type=Docs4U,root="+ObjectName.quote(root));
+      if (!server.isRegistered(name))
+        server.registerMBean(this,name);
+    }
+    catch (JMException e)
+    {
+      System.err.println("Docs4U: Couldn't register metrics MBean: "+e.getMessage());
+    }
+  }
+  
+  // Recording
+  
+  /** Record a call to an API operation.
+  *@param operationName is the operation name.
+  *@param elapsedNanos is the call's duration.
+  *@param error is true if the call threw an exception.
+  */
+  public void recordCall(String operationName, long elapsedNanos, boolean error)
+  {
+    OperationStats stats = (OperationStats)operations.get(operationName);
+    if (stats == null)
+    {
+      synchronized (operations)
+      {
+        stats = (OperationStats)operations.get(operationName);
+        if (stats == null)
+        {
+          stats = new OperationStats();
+          operations.put(operationName,stats);
+        }
+      }
+    }
+    stats.latencies.record(elapsedNanos / 1000L);
+    if (error)
+      stats.errors.incrementAndGet();
+  }
+  
+  /** Record time spent in one phase of a client's work, such as the lock wait or ingestion
+  * of a connector's document processing, so that it can be set beside the API's own timings.
+  *@param phaseName is the phase name.
+  *@param elapsedNanos is the time spent.
+  */
+  public void recordPhase(String phaseName, long elapsedNanos)
+  {
+    D4UHistogram h = (D4UHistogram)phases.get(phaseName);
+    if (h == null)
+    {
+      synchronized (phases)
+      {
+        h = (D4UHistogram)phases.get(phaseName);
+        if (h == null)
+        {
+          h = new D4UHistogram();
+          phases.put(phaseName,h);
+        }
+      }
+    }
+    h.record(elapsedNanos / 1000L);
+  }
+  
+  /** Set the current value of a gauge, such as a client's concurrency limit.
+  *@param gaugeName is the gauge name.
+  *@param value is the current value.
+  */
+  public void setGauge(String gaugeName, long value)
+  {
+    AtomicLong g = (AtomicLong)gauges.get(gaugeName);
+    if (g == null)
+    {
+      synchronized (gauges)
+      {
+        g = (AtomicLong)gauges.get(gaugeName);
+        if (g == null)
+        {
+          g = new AtomicLong(0L);
+          gauges.put(gaugeName,g);
+        }
+      }
+    }
+    g.set(value);
+  }
+  
+  /** Record document content read. */
+  public void recordBytesRead(long amount)
+  {
+    bytesRead.addAndGet(amount);
+  }
+  
+  /** Record document content written. */
+  public void recordBytesWritten(long amount)
+  {
+    bytesWritten.addAndGet(amount);
+  }
+  
+  /** Record a directory scan.
+  *@param entryCount is the number of entries in the directory.
+  */
+  public void recordDirectoryScan(long entryCount)
+  {
+    directoryScans.record(entryCount);
+  }
+  
+  // MBean interface
+  
+  public String getRoot()
+  {
+    return root;
+  }
+  
+  public String[] getOperationNames()
+  {
+    String[] rval = (String[])operations.keySet().toArray(new String[0]);
+    Arrays.sort(rval);
+    return rval;
+  }
+  
+  public String[] getOperationSummaries()
+  {
+    String[] names = getOperationNames();
+    String[] rval = new String[names.length];
+    int i = 0;
+    while (i < names.length)
+    {
+      String name = names[i];
+      OperationStats stats = (OperationStats)operations.get(name);
+      D4UHistogram h = stats.latencies;
+      rval[i++] = name+": calls="+h.getCount()+" errors="+stats.errors.get()+
+        " mean="+Math.round(h.getMean())+"us p50="+h.getPercentile(50.0)+"us p99="+
+        h.getPercentile(99.0)+"us max="+h.getMax()+"us";
+    }
+    return rval;
+  }
+  
+  public String[] getPhaseNames()
+  {
+    String[] rval = (String[])phases.keySet().toArray(new String[0]);
+    Arrays.sort(rval);
+    return rval;
+  }
+  
+  public String[] getPhaseSummaries()
+  {
+    String[] names = getPhaseNames();
+    String[] rval = new String[names.length];
+    int i = 0;
+    while (i < names.length)
+    {
+      String name = names[i];
+      D4UHistogram h = (D4UHistogram)phases.get(name);
+      rval[i++] = name+": count="+h.getCount()+" total="+(h.getSum() / 1000L)+"ms mean="+
+        Math.round(h.getMean())+"us p50="+h.getPercentile(50.0)+"us p99="+h.getPercentile(99.0)+
+        "us max="+h.getMax()+"us";
+    }
+    return rval;
+  }
+  
+  /** Get the histogram for a phase, or null if it hasn't been recorded.
+  */
+  public D4UHistogram getPhaseHistogram(String phaseName)
+  {
+    return (D4UHistogram)phases.get(phaseName);
+  }
+  
+  public String[] getGaugeNames()
+  {
+    String[] rval = (String[])gauges.keySet().toArray(new String[0]);
+    Arrays.sort(rval);
+    return rval;
+  }
+  
+  public String[] getGaugeSummaries()
+  {
+    String[] names = getGaugeNames();
+    String[] rval = new String[names.length];
+    int i = 0;
+    while (i < names.length)
+    {
+      String name = names[i];
+      rval[i++] = name+"="+((AtomicLong)gauges.get(name)).get();
+    }
+    return rval;
+  }
+  
+  /** Get the value of a gauge, or -1 if it hasn't been set.
+  */
+  public long getGauge(String gaugeName)
+  {
+    AtomicLong g = (AtomicLong)gauges.get(gaugeName);
+    if (g == null)
+      return -1L;
+    return g.get();
+  }
+  
+  public long getCallCount(String operationName)
+  {
+    OperationStats stats = (OperationStats)operations.get(operationName);
+    return (stats == null)?0L:stats.latencies.getCount();
+  }
+  
+  public long getErrorCount(String operationName)
+  {
+    OperationStats stats = (OperationStats)operations.get(operationName);
+    return (stats == null)?0L:stats.errors.get();
+  }
+  
+  public double getMeanLatencyMicros(String operationName)
+  {
+    OperationStats stats = (OperationStats)operations.get(operationName);
+    return (stats == null)?0.0:stats.latencies.getMean();
+  }
+  
+  public long getLatencyPercentileMicros(String operationName, double percentile)
+  {
+    OperationStats stats = (OperationStats)operations.get(operationName);
+    return (stats == null)?0L:stats.latencies.getPercentile(percentile);
+  }
+  
+  /** Get the latency histogram for an operation, or null if it hasn't been called.
+  */
+  public D4UHistogram getLatencyHistogram(String operationName)
+  {
+    OperationStats stats = (OperationStats)operations.get(operationName);
+    return (stats == null)?null:stats.latencies;
+  }
+  
+  public long getBytesRead()
+  {
+    return bytesRead.get();
+  }
+  
+  public long getBytesWritten()
+  {
+    return bytesWritten.get();
+  }
+  
+  public long getDirectoryScanCount()
+  {
+    return directoryScans.getCount();
+  }
+  
+  public long getDirectoryEntriesScanned()
+  {
+    return directoryScans.getSum();
+  }
+  
+  public long getLargestDirectoryScan()
+  {
+    return directoryScans.getMax();
+  }
+  
+  public long getLockAcquisitions()
+  {
+    return D4ULockManager.getAcquisitionCount();
+  }
+  
+  public long getLockAttempts()
+  {
+    return D4ULockManager.getAttemptCount();
+  }
+  
+  public long getContendedLockAcquisitions()
+  {
+    return D4ULockManager.getContendedCount();
+  }
+  
+  public long getLockWaitMillis()
+  {
+    return D4ULockManager.getTotalWaitMillis();
+  }
+  
+  public long getMaxLockWaitMillis()
+  {
+    return D4ULockManager.getMaxWaitMillis();
+  }
+  
+  public long getLockTimeouts()
+  {
+    return D4ULockManager.getTimeoutCount();
+  }
+  
+  public long getBrokenLeases()
+  {
+    return D4ULockManager.getBrokenLeaseCount();
+  }
+  
+  public long getReplicaLagMillis()
+  {
+    if (root.startsWith(D4UProtocol.URL_PREFIX))
+      return -1L;
+    Long syncedAsOf = D4UReplicator.getSyncedAsOf(root);
+    if (syncedAsOf == null)
+      return -1L;
+    return Math.max(0L,System.currentTimeMillis() - syncedAsOf.longValue());
+  }
+  
+  public void reset()
+  {
+    operations.clear();
+    phases.clear();
+    bytesRead.set(0L);
+    bytesWritten.set(0L);
+    directoryScans.reset();
+  }
+  
+  /** Statistics for one operation.
+  */
+  protected static class OperationStats
+  {
+    public final D4UHistogram latencies = new D4UHistogram();
+    public final AtomicLong errors = new AtomicLong(0L);
+  }
+  
+}
@@ -0,0 +1,102 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+/** JMX management interface for Docs4U metrics.  One such bean is registered for each
+* repository root in use within the process.  Latencies are in microseconds.
+*/
+public interface D4UMetricsMBean
+{
+  /** Get the repository root these metrics describe. */
+  public String getRoot();
+  
+  /** Get the names of the operations that have been called. */
+  public String[] getOperationNames();
+  
+  /** Get a one-line summary of each operation that has been called. */
+  public String[] getOperationSummaries();
+  
+  /** Get the names of the client phases that have been recorded. */
+  public String[] getPhaseNames();
+  
+  /** Get a one-line summary of each client phase that has been recorded. */
+  public String[] getPhaseSummaries();
+  
+  /** Get the names of the gauges set, such as a client's concurrency limit. */
+  public String[] getGaugeNames();
+  
+  /** Get one line per gauge, with its current value. */
+  public String[] getGaugeSummaries();
+  
+  /** Get the number of calls to an operation. */
+  public long getCallCount(String operationName);
+  
+  /** Get the number of calls to an operation that threw an exception. */
+  public long getErrorCount(String operationName);
+  
+  /** Get the mean latency of an operation. */
+  public double getMeanLatencyMicros(String operationName);
+  
+  /** Get an approximate latency percentile (0.0 to 100.0) of an operation. */
+  public long getLatencyPercentileMicros(String operationName, double percentile);
+  
+  /** Get the total number of document content bytes read. */
+  public long getBytesRead();
+  
+  /** Get the total number of document content bytes written. */
+  public long getBytesWritten();
+  
+  /** Get the number of directory scans performed. */
+  public long getDirectoryScanCount();
+  
+  /** Get the total number of directory entries scanned. */
+  public long getDirectoryEntriesScanned();
+  
+  /** Get the largest single directory scan. */
+  public long getLargestDirectoryScan();
+  
+  /** Get the number of lock acquisitions, process-wide. */
+  public long getLockAcquisitions();
+  
+  /** Get the number of lock directory creation attempts, process-wide. */
+  public long getLockAttempts();
+  
+  /** Get the number of lock acquisitions that had to wait, process-wide. */
+  public long getContendedLockAcquisitions();
+  
+  /** Get the total time spent waiting for locks in milliseconds, process-wide. */
+  public long getLockWaitMillis();
+  
+  /** Get the longest single lock wait in milliseconds, process-wide. */
+  public long getMaxLockWaitMillis();
+  
+  /** Get the number of lock waits that timed out, process-wide. */
+  public long getLockTimeouts();
+  
+  /** Get the number of abandoned leases broken, process-wide. */
+  public long getBrokenLeases();
+  
+  /** Get how far a replica root is behind its primary in milliseconds, or -1 if the root is
+  * not a replica or has not yet been synchronized. */
+  public long getReplicaLagMillis();
+  
+  /** Clear the per-operation and per-phase statistics and byte and scan counters.  Gauges
+  * hold current values, and are left alone. */
+  public void reset();
+}
@@ -0,0 +1,83 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+
+/** Metrics reporter which prints a summary to standard error.
+*/
+public class D4UMetricsPrintReporter implements D4UMetricsReporter
+{
+  protected PrintStream out;
+  
+  public D4UMetricsPrintReporter()
+  {
+    this(System.err);
+  }
+  
+  public D4UMetricsPrintReporter(PrintStream out)
+  {
+    this.out = out;
+  }
+  
+  /** Report the current metrics.
+  *@param metrics is the metrics object for one repository root.
+  */
+  public void report(D4UMetrics metrics)
+  {
+    StringBuffer sb = new StringBuffer();
+    sb.append("Docs4U metrics for '").append(metrics.getRoot()).append("':\n");
+    String[] summaries = metrics.getOperationSummaries();
+    int i = 0;
+    while (i < summaries.length)
+    {
+      sb.append("  ").append(summaries[i++]).append("\n");
+    }
+    summaries = metrics.getPhaseSummaries();
+    i = 0;
+    while (i < summaries.length)
+    {
+      sb.append("  phase ").append(summaries[i++]).append("\n");
+    }
+    summaries = metrics.getGaugeSummaries();
+    i = 0;
+    while (i < summaries.length)
+    {
+      sb.append("  gauge ").append(summaries[i++]).append("\n");
+    }
+    sb.append("  bytes read=").append(metrics.getBytesRead())
+      .append(" written=").append(metrics.getBytesWritten()).append("\n");
+    sb.append("  scans=").append(metrics.getDirectoryScanCount())
+      .append(" entries=").append(metrics.getDirectoryEntriesScanned())
+      .append(" largest=").append(metrics.getLargestDirectoryScan()).append("\n");
+    sb.append("  locks acquired=").append(metrics.getLockAcquisitions())
+      .append(" attempts=").append(metrics.getLockAttempts())
+      .append(" contended=").append(metrics.getContendedLockAcquisitions())
+      .append(" wait ms=").append(metrics.getLockWaitMillis())
+      .append(" max wait ms=").append(metrics.getMaxLockWaitMillis())
+      .append(" timeouts=").append(metrics.getLockTimeouts())
+      .append(" broken leases=").append(metrics.getBrokenLeases()).append("\n");
+    long lag = metrics.getReplicaLagMillis();
+    if (lag != -1L)
+      sb.append("  replica lag ms=").append(lag).append("\n");
+    out.print(sb.toString());
+    out.flush();
+  }
+  
+}
@@ -0,0 +1,31 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+/** Interface for pluggable metrics reporters.  A reporter is called periodically with the
+* metrics for each repository root in use.  The implementing class must have a public
+* no-argument constructor if it is to be named by the docs4u.metrics.reporter system property.
+*/
+public interface D4UMetricsReporter
+{
+  /** Report the current metrics.
+  *@param metrics is the metrics object for one repository root.
+  */
+  public void report(D4UMetrics metrics);
+}
@@ -0,0 +1,655 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.util.*;
+
+/** This class defines the binary protocol spoken between D4UServer and D4URemoteAPI.
+*
+* After a handshake, in which each side sends the magic number and version, the client sends
+* request frames and the server sends response frames.  A request frame is a request ID, an
+* operation code, and the operation's arguments.  A response frame is the request ID it
+* answers, a status byte, and either the result or an error message.  Requests are pipelined:
+* a client may send any number of requests without waiting, and the server may answer them
+* in any order, so the request ID is what matches a response to its request.
+*
+* Strings are sent as a byte count followed by UTF-8 bytes, with -1 meaning null.  Document
+* content is sent as a byte count followed by the bytes, with -1 meaning no content.
+*
+* Lengths and counts come from the peer, so they are checked before anything is allocated for
+* them: a string may be at most docs4u.protocol.maxstring bytes, and an array, map or page at
+* most docs4u.protocol.maxcount entries, whose storage grows only as the entries arrive.  The
+* server also limits each request, apart from any document content, which is spooled to disk,
+* to docs4u.protocol.maxframe bytes.  A peer that breaks a limit gets an IOException, and the
+* connection is dropped.
+*/
+public class D4UProtocol
+{
+  /** Protocol magic number */
+  public final static int PROTOCOL_MAGIC = 0x44345550;
+  /** Protocol version */
+  public final static int PROTOCOL_VERSION = 1;
+  
+  /** URL scheme that D4UFactory recognizes as a remote repository */
+  public final static String URL_PREFIX = "d4u://";
+  /** Default server port */
+  public final static int DEFAULT_PORT = 8345;
+  
+  /** Longest string accepted, in bytes */
+  public final static int MAX_STRING_LENGTH = Integer.getInteger("docs4u.protocol.maxstring",16777216).intValue();
+  /** Most entries accepted in one array, map or page */
+  public final static int MAX_COUNT = Integer.getInteger("docs4u.protocol.maxcount",10000000).intValue();
+  /** Most bytes accepted in one request, not counting document content */
+  public final static long MAX_FRAME_LENGTH = Long.getLong("docs4u.protocol.maxframe",67108864L).longValue();
+  
+  // Operation codes
+  
+  public final static byte OP_INSTALL = 1;
+  public final static byte OP_UNINSTALL = 2;
+  public final static byte OP_SANITY_CHECK = 3;
+  public final static byte OP_CHECK_INTEGRITY = 4;
+  public final static byte OP_GET_METADATA_NAMES = 5;
+  public final static byte OP_SET_METADATA_NAMES = 6;
+  public final static byte OP_CREATE_USER_OR_GROUP = 7;
+  public final static byte OP_FIND_USER = 8;
+  public final static byte OP_FIND_USER_OR_GROUP = 9;
+  public final static byte OP_UPDATE_USER_OR_GROUP = 10;
+  public final static byte OP_GET_USER_OR_GROUP_NAME = 11;
+  public final static byte OP_GET_USER_LOGIN_ID = 12;
+  public final static byte OP_GET_USER_OR_GROUP_GROUPS = 13;
+  public final static byte OP_GET_USER_OR_GROUP_IDS = 14;
+  public final static byte OP_DELETE_USER_OR_GROUP = 15;
+  public final static byte OP_FIND_DOCUMENTS = 16;
+  public final static byte OP_CREATE_DOCUMENT = 17;
+  public final static byte OP_UPDATE_DOCUMENT = 18;
+  public final static byte OP_GET_DOCUMENT = 19;
+  public final static byte OP_GET_DOCUMENT_UPDATED_TIME = 20;
+  public final static byte OP_DELETE_DOCUMENT = 21;
+  public final static byte OP_RESERVE_IDS = 22;
+  public final static byte OP_GET_DOCUMENT_URL = 23;
+  public final static byte OP_FIND_ACCESSIBLE_DOCUMENTS = 24;
+  public final static byte OP_FIND_DOCUMENT_PAGE = 25;
+  public final static byte OP_COUNT_DOCUMENTS = 26;
+  public final static byte OP_GET_CHANGE_CHECKPOINT = 27;
+  public final static byte OP_GET_CHANGES = 28;
+  public final static byte OP_SET_DOCUMENT_EXPIRATION = 29;
+  public final static byte OP_GET_DOCUMENT_EXPIRATION = 30;
+  public final static byte OP_FIND_DOCUMENTS_MATCHING_ANY = 31;
+  public final static byte OP_GET_CHANGE_CHECKPOINT_AT = 32;
+  public final static byte OP_GET_DOCUMENT_DIGESTS = 33;
+  public final static byte OP_GET_DOCUMENT_URLS = 34;
+  public final static byte OP_GET_NEXT_ID = 35;
+  
+  // Response status codes
+  
+  /** The operation succeeded; the result follows */
+  public final static byte STATUS_OK = 0;
+  /** The operation threw a D4UException; the message follows */
+  public final static byte STATUS_ERROR = 1;
+  /** The operation was interrupted on the server; the message follows */
+  public final static byte STATUS_INTERRUPTED = 2;
+  
+  private D4UProtocol()
+  {
+  }
+  
+  /** Check whether an operation returns a value, as opposed to nothing.
+  */
+  public static boolean returnsValue(byte opcode)
+  {
+    switch (opcode)
+    {
+    case OP_INSTALL:
+    case OP_UNINSTALL:
+    case OP_SANITY_CHECK:
+    case OP_SET_METADATA_NAMES:
+    case OP_UPDATE_USER_OR_GROUP:
+    case OP_DELETE_USER_OR_GROUP:
+    case OP_UPDATE_DOCUMENT:
+    case OP_DELETE_DOCUMENT:
+    case OP_SET_DOCUMENT_EXPIRATION:
+      return false;
+    default:
+      return true;
+    }
+  }
+  
+  /** Check whether an operation returns an array of strings.
+  */
+  public static boolean returnsStrings(byte opcode)
+  {
+    switch (opcode)
+    {
+    case OP_CHECK_INTEGRITY:
+    case OP_GET_METADATA_NAMES:
+    case OP_GET_USER_OR_GROUP_GROUPS:
+    case OP_GET_USER_OR_GROUP_IDS:
+    case OP_FIND_DOCUMENTS:
+    case OP_FIND_ACCESSIBLE_DOCUMENTS:
+    case OP_FIND_DOCUMENTS_MATCHING_ANY:
+    case OP_RESERVE_IDS:
+    case OP_GET_DOCUMENT_URLS:
+      return true;
+    default:
+      return false;
+    }
+  }
+  
+  /** Parse a remote repository URL.
+  *@param url is a URL of the form d4u://host[:port].
+  *@return the host name and port, or null if this isn't a remote repository URL.
+  */
+  public static Object[] parseURL(String url)
+    throws D4UException
+  {
+    if (!url.startsWith(URL_PREFIX))
+      return null;
+    String hostPort = url.substring(URL_PREFIX.length());
+    if (hostPort.endsWith("/"))
+      hostPort = hostPort.substring(0,hostPort.length()-1);
+    int port = DEFAULT_PORT;
+    int index = hostPort.lastIndexOf(":");
+    if (index != -1)
+    {
+      try
+      {
+        port = Integer.parseInt(hostPort.substring(index+1));
+      }
+      catch (NumberFormatException e)
+      {
+        throw new D4UException("Bad port in Docs4U URL '"+url+"'");
+      }
+      hostPort = hostPort.substring(0,index);
+    }
+    if (hostPort.length() == 0)
+      throw new D4UException("Missing host in Docs4U URL '"+url+"'");
+    return new Object[]{hostPort,new Integer(port)};
+  }
+  
+  /** Send the handshake. */
+  public static void writeHandshake(DataOutputStream out)
+    throws IOException
+  {
+    out.writeInt(PROTOCOL_MAGIC);
+    out.writeInt(PROTOCOL_VERSION);
+    out.flush();
+  }
+  
+  /** Receive and check the handshake. */
+  public static void readHandshake(DataInputStream in)
+    throws IOException
+  {
+    if (in.readInt() != PROTOCOL_MAGIC)
+      throw new IOException("Not a Docs4U protocol peer");
+    int version = in.readInt();
+    if (version != PROTOCOL_VERSION)
+      throw new IOException("Unsupported Docs4U protocol version "+version);
+  }
+  
+  public static void writeString(DataOutputStream out, String value)
+    throws IOException
+  {
+    if (value == null)
+    {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes("utf-8");
+    out.writeInt(bytes.length);
+    out.write(bytes,0,bytes.length);
+  }
+  
+  public static String readString(DataInputStream in)
+    throws IOException
+  {
+    int length = in.readInt();
+    if (length == -1)
+      return null;
+    if (length < 0 || length > MAX_STRING_LENGTH)
+      throw new IOException("Bad string length "+length);
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes,"utf-8");
+  }
+  
+  /** Write an array of strings, which may be null. */
+  public static void writeStrings(DataOutputStream out, String[] values)
+    throws IOException
+  {
+    if (values == null)
+    {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(values.length);
+    int i = 0;
+    while (i < values.length)
+    {
+      writeString(out,values[i++]);
+    }
+  }
+  
+  public static String[] readStrings(DataInputStream in)
+    throws IOException
+  {
+    int count = in.readInt();
+    if (count == -1)
+      return null;
+    checkCount(count,"string");
+    List rval = new ArrayList(Math.min(count,1024));
+    int i = 0;
+    while (i < count)
+    {
+      rval.add(readString(in));
+      i++;
+    }
+    return (String[])rval.toArray(new String[0]);
+  }
+  
+  /** Check a count read from the peer.
+  *@param count is the count.
+  *@param what describes what is being counted, for the error message.
+  */
+  protected static void checkCount(int count, String what)
+    throws IOException
+  {
+    if (count < 0 || count > MAX_COUNT)
+      throw new IOException("Bad "+what+" count "+count);
+  }
+  
+  /** Write a Long, which may be null. */
+  public static void writeLong(DataOutputStream out, Long value)
+    throws IOException
+  {
+    out.writeBoolean(value != null);
+    if (value != null)
+      out.writeLong(value.longValue());
+  }
+  
+  public static Long readLong(DataInputStream in)
+    throws IOException
+  {
+    if (in.readBoolean() == false)
+      return null;
+    return new Long(in.readLong());
+  }
+  
+  /** Write a metadata map of name to value, which may be null. */
+  public static void writeDocumentPage(DataOutputStream out, D4UDocumentPage page)
+    throws IOException
+  {
+    writeStrings(out,page.getDocumentIDs());
+    writeString(out,page.getContinuation());
+  }
+  
+  public static D4UDocumentPage readDocumentPage(DataInputStream in)
+    throws IOException
+  {
+    String[] documentIDs = readStrings(in);
+    return new D4UDocumentPage(documentIDs,readString(in));
+  }
+  
+  public static void writeChangePage(DataOutputStream out, D4UChangePage page)
+    throws IOException
+  {
+    D4UChange[] changes = page.getChanges();
+    out.writeInt(changes.length);
+    int i = 0;
+    while (i < changes.length)
+    {
+      D4UChange change = changes[i++];
+      out.writeByte(change.getType());
+      out.writeByte(change.getAction());
+      writeString(out,change.getID());
+      out.writeLong(change.getTime());
+    }
+    writeString(out,page.getCheckpoint());
+  }
+  
+  public static D4UChangePage readChangePage(DataInputStream in)
+    throws IOException
+  {
+    int count = in.readInt();
+    checkCount(count,"change");
+    List changes = new ArrayList(Math.min(count,1024));
+    int i = 0;
+    while (i < count)
+    {
+      int type = in.readByte();
+      int action = in.readByte();
+      String id = readString(in);
+      changes.add(new D4UChange(type,action,id,in.readLong()));
+      i++;
+    }
+    return new D4UChangePage((D4UChange[])changes.toArray(new D4UChange[0]),readString(in));
+  }
+  
+  public static void writeDocumentDigests(DataOutputStream out, D4UDocumentDigest[] digests)
+    throws IOException
+  {
+    out.writeInt(digests.length);
+    int i = 0;
+    while (i < digests.length)
+    {
+      D4UDocumentDigest digest = digests[i++];
+      out.writeBoolean(digest != null);
+      if (digest != null)
+      {
+        out.writeLong(digest.getContentTime());
+        out.writeLong(digest.getContentLength());
+        writeString(out,digest.getMetadataDigest());
+        writeString(out,digest.getAllowedDigest());
+        writeString(out,digest.getDisallowedDigest());
+      }
+    }
+  }
+  
+  public static D4UDocumentDigest[] readDocumentDigests(DataInputStream in)
+    throws IOException
+  {
+    int count = in.readInt();
+    checkCount(count,"digest");
+    List rval = new ArrayList(Math.min(count,1024));
+    int i = 0;
+    while (i < count)
+    {
+      D4UDocumentDigest digest = null;
+      if (in.readBoolean())
+      {
+        long contentTime = in.readLong();
+        long contentLength = in.readLong();
+        String metadataDigest = readString(in);
+        String allowedDigest = readString(in);
+        digest = new D4UDocumentDigest(contentTime,contentLength,metadataDigest,allowedDigest,readString(in));
+      }
+      rval.add(digest);
+      i++;
+    }
+    return (D4UDocumentDigest[])rval.toArray(new D4UDocumentDigest[0]);
+  }
+  
+  public static void writeMetadataMap(DataOutputStream out, Map metadataMap)
+    throws IOException
+  {
+    if (metadataMap == null)
+    {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(metadataMap.size());
+    Iterator iter = metadataMap.keySet().iterator();
+    while (iter.hasNext())
+    {
+      String name = (String)iter.next();
+      writeString(out,name);
+      writeString(out,(String)metadataMap.get(name));
+    }
+  }
+  
+  public static Map readMetadataMap(DataInputStream in)
+    throws IOException
+  {
+    int count = in.readInt();
+    if (count == -1)
+      return null;
+    checkCount(count,"metadata");
+    Map rval = new HashMap();
+    int i = 0;
+    while (i < count)
+    {
+      String name = readString(in);
+      rval.put(name,readString(in));
+      i++;
+    }
+    return rval;
+  }
+  
+  public static void writeMetadataMaps(DataOutputStream out, Map[] metadataMaps)
+    throws IOException
+  {
+    out.writeInt(metadataMaps.length);
+    int i = 0;
+    while (i < metadataMaps.length)
+    {
+      writeMetadataMap(out,metadataMaps[i++]);
+    }
+  }
+  
+  public static Map[] readMetadataMaps(DataInputStream in)
+    throws IOException
+  {
+    int count = in.readInt();
+    checkCount(count,"metadata map");
+    List rval = new ArrayList(Math.min(count,1024));
+    int i = 0;
+    while (i < count)
+    {
+      rval.add(readMetadataMap(in));
+      i++;
+    }
+    return (Map[])rval.toArray(new Map[0]);
+  }
+  
+  /** Write a document: its metadata, security, and content.
+  */
+  public static void writeDocInfo(DataOutputStream out, D4UDocInfo docInfo, byte[] buffer)
+    throws IOException, D4UException
+  {
+    String[] metadataNames = docInfo.getMetadataNames();
+    out.writeInt(metadataNames.length);
+    int i = 0;
+    while (i < metadataNames.length)
+    {
+      String metadataName = metadataNames[i++];
+      writeString(out,metadataName);
+      writeStrings(out,docInfo.getMetadata(metadataName));
+    }
+    writeStrings(out,docInfo.getAllowed());
+    writeStrings(out,docInfo.getDisallowed());
+    
+    Long length = docInfo.readDataLength();
+    InputStream is = docInfo.readData();
+    if (length == null || is == null)
+    {
+      out.writeLong(-1L);
+      return;
+    }
+    try
+    {
+      long remaining = length.longValue();
+      out.writeLong(remaining);
+      while (remaining > 0L)
+      {
+        int amt = is.read(buffer,0,(int)Math.min((long)buffer.length,remaining));
+        if (amt == -1)
+          throw new D4UException("Document content shorter than its recorded length");
+        out.write(buffer,0,amt);
+        remaining -= (long)amt;
+      }
+    }
+    finally
+    {
+      is.close();
+    }
+  }
+  
+  /** Read a document written by writeDocInfo().  The content is spooled by the D4UDocInfo
+  * object, so the stream is left positioned after the document.
+  */
+  public static void readDocInfo(DataInputStream in, D4UDocInfo docInfo)
+    throws IOException, D4UException
+  {
+    readDocInfo(in,docInfo,null);
+  }
+  
+  /** Read a document written by writeDocInfo(), leaving its content out of the frame limit.
+  *@param frame is the stream that in reads through, or null if there's no frame limit.
+  */
+  public static void readDocInfo(DataInputStream in, D4UDocInfo docInfo, FrameInputStream frame)
+    throws IOException, D4UException
+  {
+    docInfo.clearMetadata();
+    int count = in.readInt();
+    checkCount(count,"metadata");
+    int i = 0;
+    while (i < count)
+    {
+      String metadataName = readString(in);
+      docInfo.setMetadata(metadataName,readStrings(in));
+      i++;
+    }
+    String[] allowed = readStrings(in);
+    docInfo.setAllowed((allowed == null)?new String[0]:allowed);
+    String[] disallowed = readStrings(in);
+    docInfo.setDisallowed((disallowed == null)?new String[0]:disallowed);
+    long length = in.readLong();
+    if (length < -1L)
+      throw new IOException("Bad content length "+length);
+    if (length >= 0L)
+    {
+      if (frame != null)
+        frame.suspend();
+      try
+      {
+        docInfo.setData(new BoundedInputStream(in,length));
+      }
+      finally
+      {
+        if (frame != null)
+          frame.resume();
+      }
+    }
+  }
+  
+  /** Stream that limits how many bytes of each request frame may be read.  Call
+  * startFrame() at the start of each request; reading more than the limit before the next
+  * call fails, except while counting is suspended.
+  */
+  public static class FrameInputStream extends FilterInputStream
+  {
+    protected long limit;
+    protected long count = 0L;
+    protected int suspended = 0;
+    
+    public FrameInputStream(InputStream is, long limit)
+    {
+      super(is);
+      this.limit = limit;
+    }
+    
+    /** Start counting a new frame. */
+    public void startFrame()
+    {
+      count = 0L;
+    }
+    
+    /** Stop counting, for content that isn't held in memory. */
+    public void suspend()
+    {
+      suspended++;
+    }
+    
+    /** Start counting again. */
+    public void resume()
+    {
+      suspended--;
+    }
+    
+    public int read()
+      throws IOException
+    {
+      int rval = super.read();
+      if (rval != -1)
+        count(1L);
+      return rval;
+    }
+    
+    public int read(byte[] b, int off, int len)
+      throws IOException
+    {
+      int amt = super.read(b,off,len);
+      if (amt > 0)
+        count((long)amt);
+      return amt;
+    }
+    
+    public long skip(long n)
+      throws IOException
+    {
+      long amt = super.skip(n);
+      if (amt > 0L)
+        count(amt);
+      return amt;
+    }
+    
+    protected void count(long amount)
+      throws IOException
+    {
+      if (suspended > 0)
+        return;
+      count += amount;
+      if (count > limit)
+        throw new IOException("Request larger than "+limit+" bytes");
+    }
+  }
+  
+  /** Stream reading a fixed number of bytes from the connection, without closing it.
+  */
+  protected static class BoundedInputStream extends InputStream
+  {
+    protected InputStream is;
+    protected long remaining;
+    
+    public BoundedInputStream(InputStream is, long length)
+    {
+      this.is = is;
+      this.remaining = length;
+    }
+    
+    public int read()
+      throws IOException
+    {
+      if (remaining == 0L)
+        return -1;
+      int rval = is.read();
+      if (rval == -1)
+        throw new EOFException("Connection closed in the middle of a document");
+      remaining--;
+      return rval;
+    }
+    
+    public int read(byte[] b, int off, int len)
+      throws IOException
+    {
+      if (remaining == 0L)
+        return -1;
+      int amt = is.read(b,off,(int)Math.min((long)len,remaining));
+      if (amt == -1)
+        throw new EOFException("Connection closed in the middle of a document");
+      remaining -= (long)amt;
+      return amt;
+    }
+    
+    public void close()
+    {
+    }
+  }
+  
+}
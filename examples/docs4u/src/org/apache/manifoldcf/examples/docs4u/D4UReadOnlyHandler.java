@@ -0,0 +1,80 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+/** This class wraps a Docs4UAPI implementation so that every operation that would change the
+* repository is refused.  It is used for replica roots, which only D4UReplicator may write.
+*/
+public class D4UReadOnlyHandler implements InvocationHandler
+{
+  /** Operations that change the repository */
+  protected final static Set mutators = new HashSet(Arrays.asList(new String[]{
+    "install","uninstall","setMetadataNames","createUserOrGroup","updateUserOrGroup",
+    "deleteUserOrGroup","createDocument","updateDocument","deleteDocument","reserveIDs",
+    "setDocumentExpiration"}));
+  
+  protected Docs4UAPI delegate;
+  protected String description;
+  
+  protected D4UReadOnlyHandler(Docs4UAPI delegate, String description)
+  {
+    this.delegate = delegate;
+    this.description = description;
+  }
+  
+  /** Wrap an API implementation.
+  *@param delegate is the implementation to wrap.
+  *@param description names the repository, for error messages.
+  *@return the read-only API.
+  */
+  public static Docs4UAPI wrap(Docs4UAPI delegate, String description)
+  {
+    return (Docs4UAPI)Proxy.newProxyInstance(Docs4UAPI.class.getClassLoader(),
+      new Class[]{Docs4UAPI.class},new D4UReadOnlyHandler(delegate,description));
+  }
+  
+  /** Handle a call.
+  */
+  public Object invoke(Object proxy, Method method, Object[] args)
+    throws Throwable
+  {
+    if (method.getDeclaringClass() != Object.class)
+    {
+      String operationName = method.getName();
+      boolean mutates = mutators.contains(operationName);
+      // An integrity check is fine, but not a repair
+      if (operationName.equals("checkIntegrity") && ((Boolean)args[0]).booleanValue())
+        mutates = true;
+      if (mutates)
+        throw new D4UException("Repository '"+description+"' is a read-only replica; "+operationName+" is not allowed");
+    }
+    try
+    {
+      return method.invoke(delegate,args);
+    }
+    catch (InvocationTargetException e)
+    {
+      throw e.getCause();
+    }
+  }
+  
+}
@@ -0,0 +1,1027 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** This class implements Docs4UAPI by talking to a D4UServer over the network.
+*
+* Connections are pooled and shared by all threads using the same server, and each connection
+* carries any number of outstanding requests at once.  A thread making a call sends its request
+* and waits; a reader thread per connection receives responses, in whatever order the server
+* finishes them, and hands each one to the thread that is waiting for it.  A new connection is
+* opened only when every existing one is busy and the pool isn't yet full.
+*/
+public class D4URemoteAPI implements Docs4UAPI
+{
+  /** Default maximum number of connections per server */
+  public final static int DEFAULT_MAX_CONNECTIONS = Integer.getInteger("docs4u.remote.connections",4).intValue();
+  /** Connect timeout, in milliseconds */
+  protected final static int CONNECT_TIMEOUT = 10000;
+  
+  /** Shared instances, keyed by URL */
+  protected final static Map instances = new HashMap();
+  
+  protected String url;
+  protected String host;
+  protected int port;
+  protected int maxConnections;
+  protected List connections = new ArrayList();
+  
+  /** Constructor.
+  *@param host is the server host.
+  *@param port is the server port.
+  *@param maxConnections is the largest number of connections to open to the server.
+  */
+  public D4URemoteAPI(String host, int port, int maxConnections)
+  {
+    this.host = host;
+    this.port = port;
+    this.maxConnections = maxConnections;
+    this.url = D4UProtocol.URL_PREFIX + host + ":" + port;
+  }
+  
+  /** Get the shared instance for a server URL.
+  *@param url is the URL, of the form d4u://host[:port].
+  */
+  public static D4URemoteAPI getInstance(String url)
+    throws D4UException
+  {
+    Object[] hostPort = D4UProtocol.parseURL(url);
+    if (hostPort == null)
+      throw new D4UException("Not a Docs4U server URL: '"+url+"'");
+    synchronized (instances)
+    {
+      D4URemoteAPI rval = (D4URemoteAPI)instances.get(url);
+      if (rval == null)
+      {
+        rval = new D4URemoteAPI((String)hostPort[0],((Integer)hostPort[1]).intValue(),DEFAULT_MAX_CONNECTIONS);
+        instances.put(url,rval);
+      }
+      return rval;
+    }
+  }
+  
+  /** Close all pooled connections.  Calls in progress fail; later calls open new connections.
+  */
+  public void close()
+  {
+    Connection[] current;
+    synchronized (connections)
+    {
+      current = (Connection[])connections.toArray(new Connection[0]);
+      connections.clear();
+    }
+    int i = 0;
+    while (i < current.length)
+    {
+      current[i++].fail(new D4UException("Connection closed"));
+    }
+  }
+  
+  /** Create the instance.
+  */
+  public void install()
+    throws D4UException
+  {
+    callUninterruptibly(new Call(D4UProtocol.OP_INSTALL,new Object[0]));
+  }
+  
+  /** Remove the instance.
+  */
+  public void uninstall()
+    throws D4UException
+  {
+    callUninterruptibly(new Call(D4UProtocol.OP_UNINSTALL,new Object[0]));
+  }
+  
+  /** Check the instance.
+  */
+  public void sanityCheck()
+    throws D4UException
+  {
+    callUninterruptibly(new Call(D4UProtocol.OP_SANITY_CHECK,new Object[0]));
+  }
+  
+  /** Check the instance thoroughly, on the server.
+  *@param repair is true if problems should be fixed as well as reported.
+  *@param threadCount is the number of server threads to scan with.
+  *@param checkIDFile is false if the server's identifiers are allocated by another repository.
+  *@return descriptions of the problems found.
+  */
+  public String[] checkIntegrity(boolean repair, int threadCount, boolean checkIDFile)
+    throws InterruptedException, D4UException
+  {
+    return (String[])call(new Call(D4UProtocol.OP_CHECK_INTEGRITY,new Object[]{new Boolean(repair),new Integer(threadCount),
+      new Boolean(checkIDFile)}));
+  }
+  
+  /** Get the current legal metadata names.
+  *@return a list of the legal metadata names.
+  */
+  public String[] getMetadataNames()
+    throws InterruptedException, D4UException
+  {
+    return (String[])call(new Call(D4UProtocol.OP_GET_METADATA_NAMES,new Object[0]));
+  }
+  
+  /** Set the current legal metadata names.
+  *@param names is the list of legal metadata names.
+  */
+  public void setMetadataNames(String[] names)
+    throws InterruptedException, D4UException
+  {
+    call(new Call(D4UProtocol.OP_SET_METADATA_NAMES,new Object[]{names}));
+  }
+  
+  /** Create a user or group.
+  *@param name is the user or group's name.
+  *@param loginID is the user's login ID, null if this is a group.
+  *@param groups are the group IDs.
+  *@return the user/group ID.
+  */
+  public String createUserOrGroup(String name, String loginID, String[] groups)
+    throws InterruptedException, D4UException
+  {
+    return (String)call(new Call(D4UProtocol.OP_CREATE_USER_OR_GROUP,new Object[]{name,loginID,groups}));
+  }
+  
+  /** Find a user based on login ID.
+  *@param loginID is the login ID.
+  *@return the user ID, or null if it was not found.
+  */
+  public String findUser(String loginID)
+    throws InterruptedException, D4UException
+  {
+    return (String)call(new Call(D4UProtocol.OP_FIND_USER,new Object[]{loginID}));
+  }
+  
+  /** Find a user or group by name.
+  *@param name is the user or group name.
+  *@return the user or group ID, or null if it was not found.
+  */
+  public String findUserOrGroup(String name)
+    throws InterruptedException, D4UException
+  {
+    return (String)call(new Call(D4UProtocol.OP_FIND_USER_OR_GROUP,new Object[]{name}));
+  }
+  
+  /** Update a user or group.
+  *@param userGroupID is the user or group ID.
+  *@param name is the user or group's name.
+  *@param loginID is the user's login ID, null if this is a group.
+  *@param groups are the group IDs.
+  */
+  public void updateUserOrGroup(String userGroupID, String name, String loginID, String[] groups)
+    throws InterruptedException, D4UException
+  {
+    call(new Call(D4UProtocol.OP_UPDATE_USER_OR_GROUP,new Object[]{userGroupID,name,loginID,groups}));
+  }
+  
+  /** Get a user or group's name.
+  *@param userGroupID is the user or group ID.
+  *@return the name, or null if the ID did not exist.
+  */
+  public String getUserOrGroupName(String userGroupID)
+    throws InterruptedException, D4UException
+  {
+    return (String)call(new Call(D4UProtocol.OP_GET_USER_OR_GROUP_NAME,new Object[]{userGroupID}));
+  }
+  
+  /** Get a user's login ID.
+  *@param userGroupID is the user ID.
+  *@return the login ID, or null if the user did not exist or is a group.
+  */
+  public String getUserLoginID(String userGroupID)
+    throws InterruptedException, D4UException
+  {
+    return (String)call(new Call(D4UProtocol.OP_GET_USER_LOGIN_ID,new Object[]{userGroupID}));
+  }
+  
+  /** Get a user or group's groups.
+  *@param userGroupID is the user or group ID.
+  *@return the group IDs, or null if the user or group does not exist.
+  */
+  public String[] getUserOrGroupGroups(String userGroupID)
+    throws InterruptedException, D4UException
+  {
+    return (String[])call(new Call(D4UProtocol.OP_GET_USER_OR_GROUP_GROUPS,new Object[]{userGroupID}));
+  }
+  
+  /** Get the identifiers of all users and groups.
+  *@return the user and group IDs.
+  */
+  public String[] getUserOrGroupIDs()
+    throws InterruptedException, D4UException
+  {
+    return (String[])call(new Call(D4UProtocol.OP_GET_USER_OR_GROUP_IDS,new Object[0]));
+  }
+  
+  /** Delete a user or group.
+  *@param userGroupID is the user or group ID.
+  */
+  public void deleteUserOrGroup(String userGroupID)
+    throws InterruptedException, D4UException
+  {
+    call(new Call(D4UProtocol.OP_DELETE_USER_OR_GROUP,new Object[]{userGroupID}));
+  }
+  
+  /** Find documents.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMap is a map of metadata name to desired value.
+  *@return the iterator of document identifiers matching all the criteria.
+  */
+  public D4UDocumentIterator findDocuments(Long startTime, Long endTime, Map metadataMap)
+    throws InterruptedException, D4UException
+  {
+    String[] docIDs = (String[])call(new Call(D4UProtocol.OP_FIND_DOCUMENTS,new Object[]{startTime,endTime,metadataMap}));
+    return new ArrayDocumentIterator(docIDs);
+  }
+  
+  /** Find documents which match any one of several sets of metadata criteria, within a
+  * specified modification time window.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMaps are the sets of criteria, each a map of metadata name to desired value.
+  *@return the iterator of document identifiers matching all the criteria of at least one set.
+  */
+  public D4UDocumentIterator findDocumentsMatchingAny(Long startTime, Long endTime, Map[] metadataMaps)
+    throws InterruptedException, D4UException
+  {
+    String[] docIDs = (String[])call(new Call(D4UProtocol.OP_FIND_DOCUMENTS_MATCHING_ANY,new Object[]{startTime,endTime,metadataMaps}));
+    return new ArrayDocumentIterator(docIDs);
+  }
+  
+  /** Find documents that a user may see.
+  *@param userGroupIDs are the identifiers of the user and all the groups the user belongs to.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMap is a map of metadata name to desired value, or null if none.
+  *@return the iterator of matching document identifiers.
+  */
+  public D4UDocumentIterator findAccessibleDocuments(String[] userGroupIDs, Long startTime, Long endTime, Map metadataMap)
+    throws InterruptedException, D4UException
+  {
+    String[] docIDs = (String[])call(new Call(D4UProtocol.OP_FIND_ACCESSIBLE_DOCUMENTS,
+      new Object[]{userGroupIDs,startTime,endTime,metadataMap}));
+    return new ArrayDocumentIterator(docIDs);
+  }
+  
+  /** Find one page of documents.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMap is a map of metadata name to desired value, or null if none.
+  *@param continuation is the continuation from the previous page, or null for the first page.
+  *@param limit is the largest number of document identifiers to return.
+  *@return the page of document identifiers.
+  */
+  public D4UDocumentPage findDocumentPage(Long startTime, Long endTime, Map metadataMap, String continuation, int limit)
+    throws InterruptedException, D4UException
+  {
+    return (D4UDocumentPage)call(new Call(D4UProtocol.OP_FIND_DOCUMENT_PAGE,
+      new Object[]{startTime,endTime,metadataMap,continuation,new Integer(limit)}));
+  }
+  
+  /** Count documents.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMap is a map of metadata name to desired value, or null if none.
+  *@return the number of matching documents.
+  */
+  public long countDocuments(Long startTime, Long endTime, Map metadataMap)
+    throws InterruptedException, D4UException
+  {
+    return ((Long)call(new Call(D4UProtocol.OP_COUNT_DOCUMENTS,new Object[]{startTime,endTime,metadataMap}))).longValue();
+  }
+  
+  /** Get a checkpoint marking the present end of the change journal.
+  */
+  public String getChangeCheckpoint()
+    throws InterruptedException, D4UException
+  {
+    return (String)call(new Call(D4UProtocol.OP_GET_CHANGE_CHECKPOINT,new Object[0]));
+  }
+  
+  /** Get a checkpoint for the first change made at or after a given time.
+  *@param time is the time, in ms since epoch.
+  *@return the checkpoint, or null if the change journal does not go back that far.
+  */
+  public String getChangeCheckpointAt(long time)
+    throws InterruptedException, D4UException
+  {
+    return (String)call(new Call(D4UProtocol.OP_GET_CHANGE_CHECKPOINT_AT,new Object[]{new Long(time)}));
+  }
+  
+  /** Read changes made after a checkpoint.  The server may wait less than asked.
+  *@param checkpoint is where to start.
+  *@param limit is the largest number of changes to return.
+  *@param waitMillis is how long to wait for a change, if there are none yet.
+  *@return the changes and the checkpoint to continue from.
+  */
+  public D4UChangePage getChanges(String checkpoint, int limit, long waitMillis)
+    throws InterruptedException, D4UException
+  {
+    return (D4UChangePage)call(new Call(D4UProtocol.OP_GET_CHANGES,
+      new Object[]{checkpoint,new Integer(limit),new Long(waitMillis)}));
+  }
+  
+  /** Create a document.
+  *@param docInfo is the document info structure.
+  *@return the new document identifier.
+  */
+  public String createDocument(D4UDocInfo docInfo)
+    throws InterruptedException, D4UException
+  {
+    return (String)call(new Call(D4UProtocol.OP_CREATE_DOCUMENT,new Object[]{docInfo}));
+  }
+  
+  /** Update a document.
+  *@param docID is the document identifier.
+  *@param docInfo is the updated document information.
+  */
+  public void updateDocument(String docID, D4UDocInfo docInfo)
+    throws InterruptedException, D4UException
+  {
+    call(new Call(D4UProtocol.OP_UPDATE_DOCUMENT,new Object[]{docID,docInfo}));
+  }
+  
+  /** Find a document.
+  *@param docID is the document identifier.
+  *@param docInfo is the document information object to be filled in.  Note that
+  * it is the responsibility of the caller to close the docInfo object when they are done
+  * with it.
+  *@return true if document exists, false otherwise.
+  */
+  public boolean getDocument(String docID, D4UDocInfo docInfo)
+    throws InterruptedException, D4UException
+  {
+    Call call = new Call(D4UProtocol.OP_GET_DOCUMENT,new Object[]{docID});
+    call.target = docInfo;
+    return ((Boolean)call(call)).booleanValue();
+  }
+  
+  /** Find several documents at once.  All the requests are sent before any answer is waited
+  * for, so the server works on them together and the round trips overlap.
+  *@param docIDs are the document identifiers.
+  *@param docInfos are the document information objects to be filled in, one per identifier.
+  *@return true for each document that exists, false otherwise.
+  */
+  public boolean[] getDocuments(String[] docIDs, D4UDocInfo[] docInfos)
+    throws InterruptedException, D4UException
+  {
+    Call[] calls = new Call[docIDs.length];
+    int i = 0;
+    while (i < docIDs.length)
+    {
+      calls[i] = new Call(D4UProtocol.OP_GET_DOCUMENT,new Object[]{docIDs[i]});
+      calls[i].target = docInfos[i];
+      i++;
+    }
+    Object[] results = callAll(calls);
+    boolean[] rval = new boolean[docIDs.length];
+    i = 0;
+    while (i < results.length)
+    {
+      rval[i] = ((Boolean)results[i]).booleanValue();
+      i++;
+    }
+    return rval;
+  }
+  
+  /** Get a document's last updated timestamp.
+  *@param docID is the document identifier.
+  *@return the timestamp, in ms since epoch, or null if the document doesn't exist.
+  */
+  public Long getDocumentUpdatedTime(String docID)
+    throws InterruptedException, D4UException
+  {
+    return (Long)call(new Call(D4UProtocol.OP_GET_DOCUMENT_UPDATED_TIME,new Object[]{docID}));
+  }
+  
+  /** Get the last updated timestamps of several documents at once.  The requests are
+  * pipelined, as for getDocuments().
+  *@param docIDs are the document identifiers.
+  *@return the timestamps, in ms since epoch, one per identifier; null for documents that don't exist.
+  */
+  public Long[] getDocumentUpdatedTimes(String[] docIDs)
+    throws InterruptedException, D4UException
+  {
+    Call[] calls = new Call[docIDs.length];
+    int i = 0;
+    while (i < docIDs.length)
+    {
+      calls[i] = new Call(D4UProtocol.OP_GET_DOCUMENT_UPDATED_TIME,new Object[]{docIDs[i]});
+      i++;
+    }
+    Object[] results = callAll(calls);
+    Long[] rval = new Long[docIDs.length];
+    System.arraycopy(results,0,rval,0,results.length);
+    return rval;
+  }
+  
+  /** Summarize several documents' content, metadata and security separately.
+  *@param docIDs are the document identifiers.
+  *@return the digests, one per identifier; null for documents that don't exist.
+  */
+  public D4UDocumentDigest[] getDocumentDigests(String[] docIDs)
+    throws InterruptedException, D4UException
+  {
+    return (D4UDocumentDigest[])call(new Call(D4UProtocol.OP_GET_DOCUMENT_DIGESTS,new Object[]{docIDs}));
+  }
+  
+  /** Delete a document.
+  *@param docID is the document identifier.
+  */
+  public void deleteDocument(String docID)
+    throws InterruptedException, D4UException
+  {
+    call(new Call(D4UProtocol.OP_DELETE_DOCUMENT,new Object[]{docID}));
+  }
+  
+  /** Set or clear a document's expiration time.
+  *@param docID is the document identifier.
+  *@param expirationTime is the time in ms since epoch, or null if the document never expires.
+  */
+  public void setDocumentExpiration(String docID, Long expirationTime)
+    throws InterruptedException, D4UException
+  {
+    call(new Call(D4UProtocol.OP_SET_DOCUMENT_EXPIRATION,new Object[]{docID,expirationTime}));
+  }
+  
+  /** Get a document's expiration time.
+  *@param docID is the document identifier.
+  *@return the time in ms since epoch, or null if the document doesn't expire.
+  */
+  public Long getDocumentExpiration(String docID)
+    throws InterruptedException, D4UException
+  {
+    return (Long)call(new Call(D4UProtocol.OP_GET_DOCUMENT_EXPIRATION,new Object[]{docID}));
+  }
+  
+  /** Reserve a block of new identifiers.
+  *@param count is the number of identifiers desired.
+  *@return the reserved identifiers.
+  */
+  public String[] reserveIDs(int count)
+    throws InterruptedException, D4UException
+  {
+    return (String[])call(new Call(D4UProtocol.OP_RESERVE_IDS,new Object[]{new Integer(count)}));
+  }
+  
+  /** Find out where identifier allocation has got to, without allocating anything.
+  *@return the next identifier to be allocated.
+  */
+  public String getNextID()
+    throws InterruptedException, D4UException
+  {
+    return (String)call(new Call(D4UProtocol.OP_GET_NEXT_ID,new Object[0]));
+  }
+  
+  /** Get a document's URL, as the server sees it.
+  *@param docID is the document identifier.
+  *@return the document's URL.
+  */
+  public String getDocumentURL(String docID)
+    throws D4UException
+  {
+    return (String)callUninterruptibly(new Call(D4UProtocol.OP_GET_DOCUMENT_URL,new Object[]{docID}));
+  }
+  
+  /** Get several documents' URLs at once, as the server sees them, in one round trip.
+  *@param docIDs are the document identifiers.
+  *@return the documents' URLs, one per identifier.
+  */
+  public String[] getDocumentURLs(String[] docIDs)
+    throws InterruptedException, D4UException
+  {
+    return (String[])call(new Call(D4UProtocol.OP_GET_DOCUMENT_URLS,new Object[]{docIDs}));
+  }
+  
+  // Internals
+  
+  /** Make a call, for the few interface methods that can't throw InterruptedException.
+  */
+  protected Object callUninterruptibly(Call call)
+    throws D4UException
+  {
+    try
+    {
+      return call(call);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new D4UException("Interrupted waiting for Docs4U server",e);
+    }
+  }
+  
+  /** Send a call to the server and wait for its result.
+  */
+  protected Object call(Call call)
+    throws InterruptedException, D4UException
+  {
+    Connection connection = getConnection();
+    connection.send(call);
+    return call.waitForResult();
+  }
+  
+  /** Send several calls to the server before waiting for any of them, so that their round
+  * trips overlap.
+  *@return the results, in the same order as the calls.
+  */
+  protected Object[] callAll(Call[] calls)
+    throws InterruptedException, D4UException
+  {
+    Object[] rval = new Object[calls.length];
+    int sent = 0;
+    int i = 0;
+    try
+    {
+      while (sent < calls.length)
+      {
+        getConnection().send(calls[sent]);
+        sent++;
+      }
+      while (i < calls.length)
+      {
+        rval[i] = calls[i].waitForResult();
+        i++;
+      }
+      return rval;
+    }
+    finally
+    {
+      // On failure, make sure nothing is still being written into the caller's objects
+      while (i < sent)
+      {
+        calls[i++].abandon();
+      }
+    }
+  }
+  
+  /** Pick the connection with the fewest outstanding calls, opening another if they're all
+  * busy and there's room.
+  */
+  protected Connection getConnection()
+    throws D4UException
+  {
+    synchronized (connections)
+    {
+      Connection best = null;
+      int i = 0;
+      while (i < connections.size())
+      {
+        Connection c = (Connection)connections.get(i);
+        if (c.isFailed())
+        {
+          connections.remove(i);
+          continue;
+        }
+        if (best == null || c.getOutstandingCount() < best.getOutstandingCount())
+          best = c;
+        i++;
+      }
+      if (best == null || (best.getOutstandingCount() > 0 && connections.size() < maxConnections))
+      {
+        best = new Connection();
+        connections.add(best);
+      }
+      return best;
+    }
+  }
+  
+  /** Write a request's arguments.
+  */
+  protected static void writeArguments(DataOutputStream out, byte opcode, Object[] args, byte[] buffer)
+    throws IOException, D4UException
+  {
+    switch (opcode)
+    {
+    case D4UProtocol.OP_CHECK_INTEGRITY:
+      out.writeBoolean(((Boolean)args[0]).booleanValue());
+      out.writeInt(((Integer)args[1]).intValue());
+      out.writeBoolean(((Boolean)args[2]).booleanValue());
+      break;
+    case D4UProtocol.OP_SET_METADATA_NAMES:
+      D4UProtocol.writeStrings(out,(String[])args[0]);
+      break;
+    case D4UProtocol.OP_CREATE_USER_OR_GROUP:
+      D4UProtocol.writeString(out,(String)args[0]);
+      D4UProtocol.writeString(out,(String)args[1]);
+      D4UProtocol.writeStrings(out,(String[])args[2]);
+      break;
+    case D4UProtocol.OP_UPDATE_USER_OR_GROUP:
+      D4UProtocol.writeString(out,(String)args[0]);
+      D4UProtocol.writeString(out,(String)args[1]);
+      D4UProtocol.writeString(out,(String)args[2]);
+      D4UProtocol.writeStrings(out,(String[])args[3]);
+      break;
+    case D4UProtocol.OP_FIND_DOCUMENTS:
+      D4UProtocol.writeLong(out,(Long)args[0]);
+      D4UProtocol.writeLong(out,(Long)args[1]);
+      D4UProtocol.writeMetadataMap(out,(Map)args[2]);
+      break;
+    case D4UProtocol.OP_FIND_DOCUMENTS_MATCHING_ANY:
+      D4UProtocol.writeLong(out,(Long)args[0]);
+      D4UProtocol.writeLong(out,(Long)args[1]);
+      D4UProtocol.writeMetadataMaps(out,(Map[])args[2]);
+      break;
+    case D4UProtocol.OP_FIND_ACCESSIBLE_DOCUMENTS:
+      D4UProtocol.writeStrings(out,(String[])args[0]);
+      D4UProtocol.writeLong(out,(Long)args[1]);
+      D4UProtocol.writeLong(out,(Long)args[2]);
+      D4UProtocol.writeMetadataMap(out,(Map)args[3]);
+      break;
+    case D4UProtocol.OP_FIND_DOCUMENT_PAGE:
+      D4UProtocol.writeLong(out,(Long)args[0]);
+      D4UProtocol.writeLong(out,(Long)args[1]);
+      D4UProtocol.writeMetadataMap(out,(Map)args[2]);
+      D4UProtocol.writeString(out,(String)args[3]);
+      out.writeInt(((Integer)args[4]).intValue());
+      break;
+    case D4UProtocol.OP_GET_CHANGE_CHECKPOINT_AT:
+      out.writeLong(((Long)args[0]).longValue());
+      break;
+    case D4UProtocol.OP_GET_DOCUMENT_DIGESTS:
+    case D4UProtocol.OP_GET_DOCUMENT_URLS:
+      D4UProtocol.writeStrings(out,(String[])args[0]);
+      break;
+    case D4UProtocol.OP_GET_CHANGES:
+      D4UProtocol.writeString(out,(String)args[0]);
+      out.writeInt(((Integer)args[1]).intValue());
+      out.writeLong(((Long)args[2]).longValue());
+      break;
+    case D4UProtocol.OP_COUNT_DOCUMENTS:
+      D4UProtocol.writeLong(out,(Long)args[0]);
+      D4UProtocol.writeLong(out,(Long)args[1]);
+      D4UProtocol.writeMetadataMap(out,(Map)args[2]);
+      break;
+    case D4UProtocol.OP_CREATE_DOCUMENT:
+      D4UProtocol.writeDocInfo(out,(D4UDocInfo)args[0],buffer);
+      break;
+    case D4UProtocol.OP_UPDATE_DOCUMENT:
+      D4UProtocol.writeString(out,(String)args[0]);
+      D4UProtocol.writeDocInfo(out,(D4UDocInfo)args[1],buffer);
+      break;
+    case D4UProtocol.OP_RESERVE_IDS:
+      out.writeInt(((Integer)args[0]).intValue());
+      break;
+    case D4UProtocol.OP_SET_DOCUMENT_EXPIRATION:
+      D4UProtocol.writeString(out,(String)args[0]);
+      D4UProtocol.writeLong(out,(Long)args[1]);
+      break;
+    default:
+      // Everything else takes either nothing or a single string
+      if (args.length == 1)
+        D4UProtocol.writeString(out,(String)args[0]);
+      break;
+    }
+  }
+  
+  /** One outstanding request.
+  */
+  protected static class Call
+  {
+    public byte opcode;
+    public Object[] args;
+    /** Where getDocument() puts the document */
+    public D4UDocInfo target = null;
+    
+    protected boolean done = false;
+    protected boolean decoding = false;
+    protected boolean abandoned = false;
+    protected Object result = null;
+    protected D4UException exception = null;
+    protected boolean interrupted = false;
+    
+    public Call(byte opcode, Object[] args)
+    {
+      this.opcode = opcode;
+      this.args = args;
+    }
+    
+    /** Read the successful result from the connection.  Called by the reader thread.
+    */
+    public void readResult(DataInputStream in)
+      throws IOException, D4UException
+    {
+      Object value = null;
+      if (opcode == D4UProtocol.OP_GET_DOCUMENT)
+      {
+        boolean found = in.readBoolean();
+        if (found)
+        {
+          // Once decoding has started the caller waits for it, even if interrupted, so
+          // that it doesn't close the target out from under us.
+          D4UDocInfo docInfo;
+          synchronized (this)
+          {
+            decoding = true;
+            docInfo = abandoned?D4UFactory.makeDocInfo():target;
+          }
+          try
+          {
+            D4UProtocol.readDocInfo(in,docInfo);
+          }
+          finally
+          {
+            if (docInfo != target)
+              docInfo.close();
+          }
+        }
+        value = new Boolean(found);
+      }
+      else if (opcode == D4UProtocol.OP_GET_DOCUMENT_UPDATED_TIME || opcode == D4UProtocol.OP_GET_DOCUMENT_EXPIRATION ||
+        opcode == D4UProtocol.OP_COUNT_DOCUMENTS)
+        value = D4UProtocol.readLong(in);
+      else if (opcode == D4UProtocol.OP_FIND_DOCUMENT_PAGE)
+        value = D4UProtocol.readDocumentPage(in);
+      else if (opcode == D4UProtocol.OP_GET_CHANGES)
+        value = D4UProtocol.readChangePage(in);
+      else if (opcode == D4UProtocol.OP_GET_DOCUMENT_DIGESTS)
+        value = D4UProtocol.readDocumentDigests(in);
+      else if (D4UProtocol.returnsStrings(opcode))
+        value = D4UProtocol.readStrings(in);
+      else if (D4UProtocol.returnsValue(opcode))
+        value = D4UProtocol.readString(in);
+      complete(value,null,false);
+    }
+    
+    /** Record the outcome and wake the caller.
+    */
+    public synchronized void complete(Object result, D4UException exception, boolean interrupted)
+    {
+      if (done)
+        return;
+      this.result = result;
+      this.exception = exception;
+      this.interrupted = interrupted;
+      this.done = true;
+      notifyAll();
+    }
+    
+    /** Give up on the outcome.  If the result is already being read into the target, wait
+    * for that to finish, so that the caller can safely close the target.
+    */
+    public synchronized void abandon()
+    {
+      abandoned = true;
+      boolean wasInterrupted = false;
+      while (decoding && !done)
+      {
+        try
+        {
+          wait();
+        }
+        catch (InterruptedException e)
+        {
+          wasInterrupted = true;
+        }
+      }
+      if (wasInterrupted)
+        Thread.currentThread().interrupt();
+    }
+    
+    /** Wait for the outcome.
+    */
+    public synchronized Object waitForResult()
+      throws InterruptedException, D4UException
+    {
+      boolean wasInterrupted = false;
+      while (!done)
+      {
+        try
+        {
+          wait();
+        }
+        catch (InterruptedException e)
+        {
+          if (!decoding)
+          {
+            abandoned = true;
+            throw e;
+          }
+          wasInterrupted = true;
+        }
+      }
+      if (wasInterrupted)
+        throw new InterruptedException();
+      if (interrupted)
+        throw new InterruptedException("Interrupted on Docs4U server");
+      if (exception != null)
+        throw exception;
+      return result;
+    }
+  }
+  
+  /** One pooled connection, which may have many calls outstanding.
+  */
+  protected class Connection extends Thread
+  {
+    protected Socket socket;
+    protected DataInputStream in;
+    protected DataOutputStream out;
+    protected byte[] buffer = new byte[65536];
+    protected Map pending = new HashMap();
+    protected int nextRequestID = 0;
+    protected boolean failed = false;
+    protected D4UException failure = null;
+    
+    public Connection()
+      throws D4UException
+    {
+      super("Docs4U client connection to "+host+":"+port);
+      setDaemon(true);
+      try
+      {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host,port),CONNECT_TIMEOUT);
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),65536));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(),65536));
+        D4UProtocol.writeHandshake(out);
+        D4UProtocol.readHandshake(in);
+      }
+      catch (IOException e)
+      {
+        try
+        {
+          socket.close();
+        }
+        catch (IOException e2)
+        {
+        }
+        throw new D4UException("Could not connect to Docs4U server "+url+": "+e.getMessage(),e);
+      }
+      start();
+    }
+    
+    public synchronized boolean isFailed()
+    {
+      return failed;
+    }
+    
+    public synchronized int getOutstandingCount()
+    {
+      return pending.size();
+    }
+    
+    /** Send a request.  Whole requests are written one at a time.
+    */
+    public void send(Call call)
+      throws D4UException
+    {
+      synchronized (out)
+      {
+        int requestID;
+        synchronized (this)
+        {
+          if (failed)
+            throw failure;
+          requestID = nextRequestID++;
+          pending.put(new Integer(requestID),call);
+        }
+        try
+        {
+          out.writeInt(requestID);
+          out.writeByte(call.opcode);
+          writeArguments(out,call.opcode,call.args,buffer);
+          out.flush();
+        }
+        catch (IOException e)
+        {
+          fail(new D4UException("Lost connection to Docs4U server "+url+": "+e.getMessage(),e));
+          throw failure;
+        }
+        catch (D4UException e)
+        {
+          // Part of a request may have gone out, so nothing more can be sent on this connection
+          fail(new D4UException("Connection to Docs4U server "+url+" abandoned: "+e.getMessage(),e));
+          throw e;
+        }
+      }
+    }
+    
+    /** Receive responses until the connection fails.
+    */
+    public void run()
+    {
+      try
+      {
+        while (true)
+        {
+          int requestID = in.readInt();
+          byte status = in.readByte();
+          Call call;
+          synchronized (this)
+          {
+            call = (Call)pending.remove(new Integer(requestID));
+          }
+          if (call == null)
+            throw new IOException("Response to unknown request "+requestID);
+          if (status == D4UProtocol.STATUS_OK)
+            call.readResult(in);
+          else
+          {
+            String message = D4UProtocol.readString(in);
+            if (status == D4UProtocol.STATUS_INTERRUPTED)
+              call.complete(null,null,true);
+            else
+              call.complete(null,new D4UException(message),false);
+          }
+        }
+      }
+      catch (IOException e)
+      {
+        fail(new D4UException("Lost connection to Docs4U server "+url+": "+e.getMessage(),e));
+      }
+      catch (D4UException e)
+      {
+        fail(new D4UException("Lost connection to Docs4U server "+url+": "+e.getMessage(),e));
+      }
+    }
+    
+    /** Mark the connection as failed, and fail all outstanding calls.
+    */
+    public void fail(D4UException reason)
+    {
+      Call[] calls;
+      synchronized (this)
+      {
+        if (!failed)
+        {
+          failed = true;
+          failure = reason;
+        }
+        calls = (Call[])pending.values().toArray(new Call[0]);
+        pending.clear();
+      }
+      try
+      {
+        socket.close();
+      }
+      catch (IOException e)
+      {
+      }
+      int i = 0;
+      while (i < calls.length)
+      {
+        calls[i++].complete(null,failure,false);
+      }
+    }
+  }
+  
+  /** Iterator over a list of document identifiers received from the server.
+  */
+  protected static class ArrayDocumentIterator implements D4UDocumentIterator
+  {
+    protected String[] docIDs;
+    protected int index = 0;
+    
+    public ArrayDocumentIterator(String[] docIDs)
+    {
+      this.docIDs = (docIDs == null)?new String[0]:docIDs;
+    }
+    
+    /** Check if there's another document.
+    *@return true if there's more.
+    */
+    public boolean hasNext()
+      throws D4UException
+    {
+      return index < docIDs.length;
+    }
+    
+    /** Get the next document.
+    *@return the next document ID.
+    */
+    public String getNext()
+      throws D4UException
+    {
+      if (index == docIDs.length)
+        return null;
+      return docIDs[index++];
+    }
+  }
+  
+}
@@ -0,0 +1,508 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.util.*;
+
+/** This class keeps read replicas of a Docs4U repository up to date.  Each pass compares
+* every area of the primary with the replica by file length and modification time, and copies
+* over whatever differs, preserving modification times so that time-bounded document searches
+* behave the same on both.  Changed records are read under the primary's lock for their area,
+* a batch at a time, so that each document or user is copied as a consistent whole, and are
+* then swapped into the replica under the replica's lock, so that readers of the replica never
+* see a partly copied record.
+*
+* A replica root carries a marker file naming its primary and the time as of which it is
+* known to be current.  D4UFactory opens such roots read-only, and D4UMetrics reports how far
+* behind the primary they are.
+*/
+public class D4UReplicator
+{
+  /** Name of the marker file that makes a root a replica */
+  public final static String replicaFileName = "replica.txt";
+  /** Scratch directory, inside the replica root, for records being copied */
+  protected final static String scratchDirectoryName = "replica.tmp";
+  /** Number of records copied per lock acquisition */
+  protected final static int BATCH_SIZE = 100;
+  
+  /** Document areas, which are all guarded by the docs lock */
+  protected final static String[] documentAreas = new String[]{Docs4UAPIImpl.docsArea,Docs4UAPIImpl.docMetadataArea,
+    Docs4UAPIImpl.docAllowedPermissionsArea,Docs4UAPIImpl.docDisallowedPermissionsArea,Docs4UAPIImpl.docExpiryArea};
+  /** Interned ACL set area, also guarded by the docs lock */
+  protected final static String[] aclSetAreas = new String[]{Docs4UAPIImpl.aclSetArea};
+  /** User areas, which are guarded by the users lock */
+  protected final static String[] userAreas = new String[]{Docs4UAPIImpl.usersArea,Docs4UAPIImpl.userGroupsArea};
+  
+  protected File primaryRoot;
+  protected File replicaRoot;
+  protected File scratchDirectory;
+  protected byte[] buffer = new byte[65536];
+  
+  /** Records copied and deleted during the current pass */
+  protected int copiedCount;
+  protected int deletedCount;
+  
+  /** Constructor.
+  *@param primaryRoot is the root of the repository to replicate.
+  *@param replicaRoot is the root of the replica.  It is created if it doesn't exist.
+  */
+  public D4UReplicator(String primaryRoot, String replicaRoot)
+  {
+    this.primaryRoot = new File(primaryRoot);
+    this.replicaRoot = new File(replicaRoot);
+    this.scratchDirectory = new File(this.replicaRoot,scratchDirectoryName);
+  }
+  
+  /** Check whether a root is a replica.
+  */
+  public static boolean isReplica(String root)
+  {
+    return new File(root,replicaFileName).isFile();
+  }
+  
+  /** Find out how current a replica is.
+  *@param root is the replica root.
+  *@return the time, in ms since epoch, as of which every change to the primary is known to
+  * be in the replica, or null if the root is not a replica or has not completed a pass.
+  */
+  public static Long getSyncedAsOf(String root)
+  {
+    String[] values = Docs4UAPIImpl.readValues(new File(root,replicaFileName));
+    if (values == null || values.length < 2 || values[1].length() == 0)
+      return null;
+    try
+    {
+      return new Long(Long.parseLong(values[1]));
+    }
+    catch (NumberFormatException e)
+    {
+      return null;
+    }
+  }
+  
+  /** Bring the replica up to date.
+  *@return a one-line summary of what was done.
+  */
+  public String replicate()
+    throws InterruptedException, D4UException
+  {
+    long startTime = System.currentTimeMillis();
+    new Docs4UAPIImpl(primaryRoot.getPath()).sanityCheck();
+    initializeReplica();
+    copiedCount = 0;
+    deletedCount = 0;
+    
+    // Metadata names first, so documents never arrive carrying names the replica hasn't heard of
+    replicateFiles(new String[]{Docs4UAPIImpl.metadataFileName},Docs4UAPIImpl.metadataLockFileName);
+    replicateAreas(userAreas,Docs4UAPIImpl.usersLockFileName);
+    // New ACL sets go over before the documents that refer to them, and sets no longer used
+    // are removed only once the documents that used them have been replaced
+    replicateAreas(aclSetAreas,Docs4UAPIImpl.docsLockFileName,false);
+    replicateAreas(documentAreas,Docs4UAPIImpl.docsLockFileName);
+    replicateAreas(aclSetAreas,Docs4UAPIImpl.docsLockFileName,true);
+    replicateFiles(new String[]{Docs4UAPIImpl.idFileName},Docs4UAPIImpl.idLockFileName);
+    
+    // Everything changed before this pass started has now been copied
+    writeMarker(startTime);
+    return "Replicated '"+primaryRoot+"' to '"+replicaRoot+"': "+copiedCount+" copied, "+deletedCount+
+      " deleted in "+(System.currentTimeMillis() - startTime)+" ms";
+  }
+  
+  /** Create the replica root, if it isn't one already.
+  */
+  protected void initializeReplica()
+    throws D4UException
+  {
+    if (new File(replicaRoot,replicaFileName).isFile())
+    {
+      Docs4UAPIImpl.deleteAll(scratchDirectory);
+      if (scratchDirectory.mkdir() == false)
+        throw new D4UException("Could not create replica scratch area");
+      return;
+    }
+    if (replicaRoot.exists())
+    {
+      String[] contents = replicaRoot.list();
+      if (contents == null || contents.length > 0)
+        throw new D4UException("Replica directory '"+replicaRoot+"' is not empty and not a replica");
+    }
+    else if (replicaRoot.mkdirs() == false)
+      throw new D4UException("Could not create replica directory '"+replicaRoot+"'");
+    new Docs4UAPIImpl(replicaRoot.getPath()).install();
+    if (scratchDirectory.mkdir() == false)
+      throw new D4UException("Could not create replica scratch area");
+    writeMarker(0L);
+  }
+  
+  /** Record the primary and how current the replica is.
+  */
+  protected void writeMarker(long syncedAsOf)
+    throws D4UException
+  {
+    String primaryPath;
+    try
+    {
+      primaryPath = primaryRoot.getCanonicalPath();
+    }
+    catch (IOException e)
+    {
+      primaryPath = primaryRoot.getAbsolutePath();
+    }
+    String[] values = new String[]{primaryPath,(syncedAsOf == 0L)?"":Long.toString(syncedAsOf)};
+    File tempFile = new File(scratchDirectory,replicaFileName);
+    if (Docs4UAPIImpl.writeValues(tempFile,values) == false)
+      throw new D4UException("Could not write replica marker");
+    File markerFile = new File(replicaRoot,replicaFileName);
+    markerFile.delete();
+    if (tempFile.renameTo(markerFile) == false)
+      throw new D4UException("Could not write replica marker");
+  }
+  
+  /** Replicate single files at the top of the root, such as the id file.
+  */
+  protected void replicateFiles(String[] fileNames, String lockFileName)
+    throws InterruptedException, D4UException
+  {
+    List changed = new ArrayList();
+    int i = 0;
+    while (i < fileNames.length)
+    {
+      String fileName = fileNames[i++];
+      if (!sameFile(new File(primaryRoot,fileName),new File(replicaRoot,fileName)))
+        changed.add(fileName);
+    }
+    if (changed.size() > 0)
+      copyBatch(new String[]{null},changed,lockFileName);
+  }
+  
+  /** Replicate a set of areas that share a lock, record by record.  A record is all the files
+  * with the same name across the areas.
+  */
+  protected void replicateAreas(String[] areas, String lockFileName)
+    throws InterruptedException, D4UException
+  {
+    replicateAreas(areas,lockFileName,true);
+  }
+  
+  /** Replicate a set of areas that share a lock, record by record.
+  *@param includeRemoved is false to leave alone records that only the replica has.
+  */
+  protected void replicateAreas(String[] areas, String lockFileName, boolean includeRemoved)
+    throws InterruptedException, D4UException
+  {
+    Set changed = new TreeSet();
+    int i = 0;
+    while (i < areas.length)
+    {
+      findChanges(areas[i++],changed,includeRemoved);
+    }
+    List batch = new ArrayList();
+    Iterator iter = changed.iterator();
+    while (iter.hasNext())
+    {
+      batch.add(iter.next());
+      if (batch.size() == BATCH_SIZE || !iter.hasNext())
+      {
+        copyBatch(areas,batch,lockFileName);
+        batch.clear();
+      }
+    }
+  }
+  
+  /** Find the records in an area that differ between primary and replica.
+  */
+  protected void findChanges(String area, Set changed, boolean includeRemoved)
+    throws D4UException
+  {
+    File primaryArea = new File(primaryRoot,area);
+    File replicaArea = new File(replicaRoot,area);
+    // An area added since the repository was installed may not be there yet
+    if (!primaryArea.exists())
+      primaryArea.mkdir();
+    if (!replicaArea.exists())
+      replicaArea.mkdir();
+    File[] primaryFiles = primaryArea.listFiles();
+    File[] replicaFiles = replicaArea.listFiles();
+    if (primaryFiles == null)
+      throw new D4UException("Could not list primary area '"+area+"'");
+    if (replicaFiles == null)
+      throw new D4UException("Could not list replica area '"+area+"'");
+    Map replicaStamps = new HashMap();
+    int i = 0;
+    while (i < replicaFiles.length)
+    {
+      File f = replicaFiles[i++];
+      replicaStamps.put(f.getName(),new long[]{f.length(),f.lastModified()});
+    }
+    i = 0;
+    while (i < primaryFiles.length)
+    {
+      File f = primaryFiles[i++];
+      long[] replicaStamp = (long[])replicaStamps.remove(f.getName());
+      if (replicaStamp == null || replicaStamp[0] != f.length() || replicaStamp[1] != f.lastModified())
+        changed.add(f.getName());
+    }
+    // Whatever is left exists only in the replica
+    if (includeRemoved)
+      changed.addAll(replicaStamps.keySet());
+  }
+  
+  /** Copy a batch of records: read them from the primary under its lock, then swap them into
+  * the replica under the replica's lock.
+  *@param areas are the areas each record spans; a null area means the top of the root.
+  *@param names are the record names.
+  */
+  protected void copyBatch(String[] areas, List names, String lockFileName)
+    throws InterruptedException, D4UException
+  {
+    // Scratch file for each area and name, or null if the primary doesn't have it
+    File[][] copies = new File[names.size()][];
+    File[] primaryLocks = new File[]{new File(primaryRoot,lockFileName)};
+    Docs4UAPIImpl.makeLocks(primaryLocks);
+    try
+    {
+      int i = 0;
+      while (i < copies.length)
+      {
+        String name = (String)names.get(i);
+        copies[i] = new File[areas.length];
+        int j = 0;
+        while (j < areas.length)
+        {
+          File source = locate(primaryRoot,areas[j],name);
+          if (source.exists())
+          {
+            File copy = new File(scratchDirectory,Integer.toString(i)+"."+Integer.toString(j));
+            copyFile(source,copy);
+            copies[i][j] = copy;
+          }
+          j++;
+        }
+        i++;
+      }
+    }
+    finally
+    {
+      Docs4UAPIImpl.clearLocks(primaryLocks);
+    }
+    
+    int journalType = (areas == documentAreas)?D4UChange.TYPE_DOCUMENT:((areas == userAreas)?D4UChange.TYPE_USER_OR_GROUP:-1);
+    D4UChangeJournal replicaJournal = D4UChangeJournal.getJournal(replicaRoot.getPath());
+    File[] replicaLocks = new File[]{new File(replicaRoot,lockFileName)};
+    Docs4UAPIImpl.makeLocks(replicaLocks);
+    try
+    {
+      int i = 0;
+      while (i < copies.length)
+      {
+        String name = (String)names.get(i);
+        boolean existed = locate(replicaRoot,areas[0],name).exists();
+        boolean deleted = true;
+        int j = 0;
+        while (j < areas.length)
+        {
+          File target = locate(replicaRoot,areas[j],name);
+          target.delete();
+          if (copies[i][j] != null)
+          {
+            deleted = false;
+            if (copies[i][j].renameTo(target) == false)
+              throw new D4UException("Could not install replicated file '"+target+"'");
+          }
+          j++;
+        }
+        if (deleted)
+          deletedCount++;
+        else
+          copiedCount++;
+        // Readers of the replica's journal see replicated records as ordinary changes
+        if (journalType != -1 && (existed || !deleted))
+          replicaJournal.append(journalType,deleted?D4UChange.ACTION_DELETE:(existed?D4UChange.ACTION_UPDATE:D4UChange.ACTION_CREATE),name);
+        i++;
+      }
+    }
+    finally
+    {
+      Docs4UAPIImpl.clearLocks(replicaLocks);
+    }
+  }
+  
+  protected static File locate(File root, String area, String name)
+  {
+    if (area == null)
+      return new File(root,name);
+    return new File(new File(root,area),name);
+  }
+  
+  protected static boolean sameFile(File primary, File replica)
+  {
+    return primary.length() == replica.length() && primary.lastModified() == replica.lastModified() &&
+      primary.exists() == replica.exists();
+  }
+  
+  /** Copy a file, including its modification time.
+  */
+  protected void copyFile(File source, File target)
+    throws D4UException
+  {
+    try
+    {
+      InputStream is = new FileInputStream(source);
+      try
+      {
+        OutputStream os = new FileOutputStream(target);
+        try
+        {
+          while (true)
+          {
+            int amt = is.read(buffer);
+            if (amt == -1)
+              break;
+            os.write(buffer,0,amt);
+          }
+        }
+        finally
+        {
+          os.close();
+        }
+      }
+      finally
+      {
+        is.close();
+      }
+    }
+    catch (IOException e)
+    {
+      throw new D4UException("Could not copy '"+source+"': "+e.getMessage(),e);
+    }
+    target.setLastModified(source.lastModified());
+  }
+  
+  public static void main(String[] argv)
+  {
+    List replicas = new ArrayList();
+    long intervalSeconds = 5L;
+    boolean once = false;
+    int i = 1;
+    try
+    {
+      while (i < argv.length)
+      {
+        String arg = argv[i++];
+        if (arg.equals("-once"))
+          once = true;
+        else if (arg.equals("-interval") && i < argv.length)
+          intervalSeconds = Long.parseLong(argv[i++]);
+        else
+          replicas.add(arg);
+      }
+    }
+    catch (NumberFormatException e)
+    {
+      intervalSeconds = -1L;
+    }
+    if (argv.length < 2 || replicas.size() == 0 || intervalSeconds < 0L)
+    {
+      System.err.println("Usage: D4UReplicator <primary_directory> <replica_directory> [<replica_directory> ...] [-interval <seconds>] [-once]");
+      System.exit(1);
+    }
+    
+    // Each replica gets its own thread, so a slow replica doesn't hold up the others
+    ReplicationThread[] threads = new ReplicationThread[replicas.size()];
+    i = 0;
+    while (i < threads.length)
+    {
+      threads[i] = new ReplicationThread(new D4UReplicator(argv[0],(String)replicas.get(i)),intervalSeconds * 1000L,once);
+      threads[i].start();
+      i++;
+    }
+    boolean failed = false;
+    try
+    {
+      i = 0;
+      while (i < threads.length)
+      {
+        threads[i].join();
+        if (threads[i].getException() != null)
+          failed = true;
+        i++;
+      }
+    }
+    catch (InterruptedException e)
+    {
+      System.exit(100);
+    }
+    System.exit(failed?2:0);
+  }
+  
+  /** Thread that runs replication passes for one replica.
+  */
+  protected static class ReplicationThread extends Thread
+  {
+    protected D4UReplicator replicator;
+    protected long intervalMilliseconds;
+    protected boolean once;
+    protected D4UException exception = null;
+    
+    public ReplicationThread(D4UReplicator replicator, long intervalMilliseconds, boolean once)
+    {
+      super();
+      this.replicator = replicator;
+      this.intervalMilliseconds = intervalMilliseconds;
+      this.once = once;
+    }
+    
+    public void run()
+    {
+      try
+      {
+        while (true)
+        {
+          try
+          {
+            System.err.println(replicator.replicate());
+          }
+          catch (D4UException e)
+          {
+            // A single failed pass is retried next time, unless there won't be a next time
+            System.err.println("Replication to '"+replicator.replicaRoot+"' failed: "+e.getMessage());
+            if (once)
+            {
+              exception = e;
+              return;
+            }
+          }
+          if (once)
+            return;
+          Thread.sleep(intervalMilliseconds);
+        }
+      }
+      catch (InterruptedException e)
+      {
+      }
+    }
+    
+    public D4UException getException()
+    {
+      return exception;
+    }
+  }
+  
+}
@@ -0,0 +1,749 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** This class is a network server for a Docs4U repository.  The server process owns the
+* repository directory and serves the Docs4UAPI operations to D4URemoteAPI clients, using the
+* protocol described in D4UProtocol.  Since every client's requests are carried out in this one
+* process, contention for the repository's locks is settled by the in-process locks in
+* D4ULockManager, rather than by polling lock directories across a shared filesystem.
+*
+* Each connection has a thread that reads requests, including any document content, and hands
+* them to a shared pool of worker threads, so pipelined requests from one connection run
+* concurrently.  When the pool is saturated the reading thread runs the request itself, which
+* stops it reading more until the server catches up.
+*
+* Clients are not authenticated, so by default the server listens only on the loopback
+* interface; set docs4u.server.bindaddress to listen elsewhere.  Installing, uninstalling and
+* repairing the repository are refused unless docs4u.server.allowadmin is true, and every
+* document and user/group identifier a client sends must be a canonical one, as described by
+* isCanonicalID(), before it goes anywhere near the repository's files.
+*/
+public class D4UServer
+{
+  /** Default number of worker threads */
+  public final static int DEFAULT_THREAD_COUNT = 16;
+  /** Longest a client may wait for changes in one request, in milliseconds */
+  public final static long MAX_CHANGE_WAIT = 10000L;
+  /** Time between expiry sweeps of a local repository, in milliseconds; 0 disables sweeping */
+  protected final static long SWEEP_INTERVAL = Long.getLong("docs4u.expiry.sweepinterval",60000L).longValue();
+  /** Address to listen on; loopback if not set */
+  protected final static String BIND_ADDRESS = System.getProperty("docs4u.server.bindaddress");
+  /** Whether clients may install, uninstall or repair the repository */
+  protected final static boolean ALLOW_ADMIN = Boolean.getBoolean("docs4u.server.allowadmin");
+  /** Longest identifier accepted from a client */
+  public final static int MAX_ID_LENGTH = 64;
+  
+  protected Docs4UAPI api;
+  protected boolean allowAdmin;
+  protected ServerSocket serverSocket;
+  protected ExecutorService executor;
+  protected Set connections = new HashSet();
+  protected volatile boolean shuttingDown = false;
+  
+  /** Constructor, listening on the loopback interface only, and refusing administration.
+  *@param api is the repository to serve.
+  *@param port is the port to listen on.
+  *@param threadCount is the number of worker threads.
+  */
+  public D4UServer(Docs4UAPI api, int port, int threadCount)
+    throws IOException
+  {
+    this(api,null,port,threadCount,false);
+  }
+  
+  /** Constructor.
+  *@param api is the repository to serve.
+  *@param bindAddress is the address to listen on, or null for the loopback interface.
+  *@param port is the port to listen on.
+  *@param threadCount is the number of worker threads.
+  *@param allowAdmin is true if clients may install, uninstall or repair the repository.
+  */
+  public D4UServer(Docs4UAPI api, InetAddress bindAddress, int port, int threadCount, boolean allowAdmin)
+    throws IOException
+  {
+    this.api = api;
+    this.allowAdmin = allowAdmin;
+    if (bindAddress == null)
+      bindAddress = InetAddress.getByName(null);
+    this.serverSocket = new ServerSocket(port,50,bindAddress);
+    this.executor = new ThreadPoolExecutor(threadCount,threadCount,60L,TimeUnit.SECONDS,
+      new ArrayBlockingQueue(threadCount * 4),new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+  
+  /** Get the address being listened on. */
+  public InetAddress getAddress()
+  {
+    return serverSocket.getInetAddress();
+  }
+  
+  /** Get the port being listened on. */
+  public int getPort()
+  {
+    return serverSocket.getLocalPort();
+  }
+  
+  /** Accept connections until shutdown() is called.
+  */
+  public void run()
+    throws IOException
+  {
+    try
+    {
+      while (true)
+      {
+        Socket socket;
+        try
+        {
+          socket = serverSocket.accept();
+        }
+        catch (IOException e)
+        {
+          if (shuttingDown)
+            return;
+          throw e;
+        }
+        socket.setTcpNoDelay(true);
+        Connection connection = new Connection(socket);
+        synchronized (connections)
+        {
+          connections.add(connection);
+        }
+        connection.start();
+      }
+    }
+    finally
+    {
+      shutdown();
+    }
+  }
+  
+  /** Stop accepting connections, and close the existing ones.
+  */
+  public void shutdown()
+  {
+    shuttingDown = true;
+    try
+    {
+      serverSocket.close();
+    }
+    catch (IOException e)
+    {
+    }
+    Connection[] current;
+    synchronized (connections)
+    {
+      current = (Connection[])connections.toArray(new Connection[0]);
+    }
+    int i = 0;
+    while (i < current.length)
+    {
+      current[i++].close();
+    }
+    executor.shutdown();
+  }
+  
+  public static void main(String[] argv)
+  {
+    if (argv.length < 1 || argv.length > 3)
+    {
+      System.err.println("Usage: D4UServer <directory> [<port>] [<thread_count>]");
+      System.exit(1);
+    }
+    
+    int port = D4UProtocol.DEFAULT_PORT;
+    int threadCount = DEFAULT_THREAD_COUNT;
+    try
+    {
+      if (argv.length > 1)
+        port = Integer.parseInt(argv[1]);
+      if (argv.length > 2)
+        threadCount = Integer.parseInt(argv[2]);
+    }
+    catch (NumberFormatException e)
+    {
+      threadCount = 0;
+    }
+    if (port < 0 || threadCount < 1)
+    {
+      System.err.println("Port and thread count must be positive integers");
+      System.exit(1);
+    }
+    
+    try
+    {
+      Docs4UAPI api = D4UFactory.makeAPI(argv[0]);
+      InetAddress bindAddress = (BIND_ADDRESS == null)?null:InetAddress.getByName(BIND_ADDRESS);
+      D4UServer server = new D4UServer(api,bindAddress,port,threadCount,ALLOW_ADMIN);
+      // Expired documents are only swept where they are stored, and never in a replica
+      if (SWEEP_INTERVAL > 0L && !argv[0].startsWith(D4UProtocol.URL_PREFIX) &&
+        !argv[0].startsWith(D4UFederatedAPI.URL_PREFIX) && !D4UReplicator.isReplica(argv[0]))
+        new D4UExpirySweeper(argv[0]).startSweeping(SWEEP_INTERVAL);
+      System.err.println("Docs4U server for '"+argv[0]+"' listening on "+server.getAddress().getHostAddress()+
+        " port "+server.getPort()+(ALLOW_ADMIN?", allowing administration":""));
+      server.run();
+    }
+    catch (D4UException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(2);
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(3);
+    }
+  }
+  
+  /** Read a request's arguments.
+  *@return the arguments, which the caller must release with releaseArguments().
+  */
+  protected static Object[] readArguments(byte opcode, DataInputStream in, D4UProtocol.FrameInputStream frame)
+    throws IOException, D4UException
+  {
+    switch (opcode)
+    {
+    case D4UProtocol.OP_INSTALL:
+    case D4UProtocol.OP_UNINSTALL:
+    case D4UProtocol.OP_SANITY_CHECK:
+    case D4UProtocol.OP_GET_METADATA_NAMES:
+    case D4UProtocol.OP_GET_USER_OR_GROUP_IDS:
+    case D4UProtocol.OP_GET_CHANGE_CHECKPOINT:
+    case D4UProtocol.OP_GET_NEXT_ID:
+      return new Object[0];
+    case D4UProtocol.OP_CHECK_INTEGRITY:
+      return new Object[]{new Boolean(in.readBoolean()),new Integer(in.readInt()),new Boolean(in.readBoolean())};
+    case D4UProtocol.OP_GET_CHANGE_CHECKPOINT_AT:
+      return new Object[]{new Long(in.readLong())};
+    case D4UProtocol.OP_GET_DOCUMENT_DIGESTS:
+    case D4UProtocol.OP_GET_DOCUMENT_URLS:
+      return new Object[]{D4UProtocol.readStrings(in)};
+    case D4UProtocol.OP_SET_METADATA_NAMES:
+      return new Object[]{D4UProtocol.readStrings(in)};
+    case D4UProtocol.OP_CREATE_USER_OR_GROUP:
+      return new Object[]{D4UProtocol.readString(in),D4UProtocol.readString(in),D4UProtocol.readStrings(in)};
+    case D4UProtocol.OP_UPDATE_USER_OR_GROUP:
+      return new Object[]{D4UProtocol.readString(in),D4UProtocol.readString(in),D4UProtocol.readString(in),
+        D4UProtocol.readStrings(in)};
+    case D4UProtocol.OP_FIND_USER:
+    case D4UProtocol.OP_FIND_USER_OR_GROUP:
+    case D4UProtocol.OP_GET_USER_OR_GROUP_NAME:
+    case D4UProtocol.OP_GET_USER_LOGIN_ID:
+    case D4UProtocol.OP_GET_USER_OR_GROUP_GROUPS:
+    case D4UProtocol.OP_DELETE_USER_OR_GROUP:
+    case D4UProtocol.OP_GET_DOCUMENT:
+    case D4UProtocol.OP_GET_DOCUMENT_UPDATED_TIME:
+    case D4UProtocol.OP_GET_DOCUMENT_EXPIRATION:
+    case D4UProtocol.OP_DELETE_DOCUMENT:
+    case D4UProtocol.OP_GET_DOCUMENT_URL:
+      return new Object[]{D4UProtocol.readString(in)};
+    case D4UProtocol.OP_FIND_DOCUMENTS:
+      return new Object[]{D4UProtocol.readLong(in),D4UProtocol.readLong(in),D4UProtocol.readMetadataMap(in)};
+    case D4UProtocol.OP_FIND_DOCUMENTS_MATCHING_ANY:
+      return new Object[]{D4UProtocol.readLong(in),D4UProtocol.readLong(in),D4UProtocol.readMetadataMaps(in)};
+    case D4UProtocol.OP_FIND_ACCESSIBLE_DOCUMENTS:
+      return new Object[]{D4UProtocol.readStrings(in),D4UProtocol.readLong(in),D4UProtocol.readLong(in),
+        D4UProtocol.readMetadataMap(in)};
+    case D4UProtocol.OP_FIND_DOCUMENT_PAGE:
+      return new Object[]{D4UProtocol.readLong(in),D4UProtocol.readLong(in),D4UProtocol.readMetadataMap(in),
+        D4UProtocol.readString(in),new Integer(in.readInt())};
+    case D4UProtocol.OP_COUNT_DOCUMENTS:
+      return new Object[]{D4UProtocol.readLong(in),D4UProtocol.readLong(in),D4UProtocol.readMetadataMap(in)};
+    case D4UProtocol.OP_GET_CHANGES:
+      return new Object[]{D4UProtocol.readString(in),new Integer(in.readInt()),new Long(in.readLong())};
+    case D4UProtocol.OP_SET_DOCUMENT_EXPIRATION:
+      return new Object[]{D4UProtocol.readString(in),D4UProtocol.readLong(in)};
+    case D4UProtocol.OP_CREATE_DOCUMENT:
+      return new Object[]{readDocument(in,frame)};
+    case D4UProtocol.OP_UPDATE_DOCUMENT:
+      {
+        String docID = D4UProtocol.readString(in);
+        return new Object[]{docID,readDocument(in,frame)};
+      }
+    case D4UProtocol.OP_RESERVE_IDS:
+      return new Object[]{new Integer(in.readInt())};
+    default:
+      throw new IOException("Unknown operation code "+opcode);
+    }
+  }
+  
+  protected static D4UDocInfo readDocument(DataInputStream in, D4UProtocol.FrameInputStream frame)
+    throws IOException, D4UException
+  {
+    D4UDocInfo docInfo = D4UFactory.makeDocInfo();
+    boolean success = false;
+    try
+    {
+      D4UProtocol.readDocInfo(in,docInfo,frame);
+      success = true;
+      return docInfo;
+    }
+    finally
+    {
+      if (!success)
+        docInfo.close();
+    }
+  }
+  
+  /** Release any spooled content held by a request's arguments.
+  */
+  protected static void releaseArguments(Object[] args)
+  {
+    int i = 0;
+    while (i < args.length)
+    {
+      Object arg = args[i++];
+      if (arg instanceof D4UDocInfo)
+      {
+        try
+        {
+          ((D4UDocInfo)arg).close();
+        }
+        catch (D4UException e)
+        {
+        }
+      }
+    }
+  }
+  
+  /** Check whether an identifier from a client is canonical: one to sixty-four letters,
+  * digits, '-' or '_'.  Identifiers are used as file names within the repository, so
+  * anything else, such as "..", a path separator or a line break, could reach outside it or
+  * corrupt its files.
+  */
+  public static boolean isCanonicalID(String id)
+  {
+    if (id == null || id.length() == 0 || id.length() > MAX_ID_LENGTH)
+      return false;
+    int i = 0;
+    while (i < id.length())
+    {
+      char x = id.charAt(i++);
+      if (!((x >= 'a' && x <= 'z') || (x >= 'A' && x <= 'Z') || (x >= '0' && x <= '9') || x == '-' || x == '_'))
+        return false;
+    }
+    return true;
+  }
+  
+  /** Reject an identifier from a client that isn't canonical.
+  */
+  protected static void checkID(String id)
+    throws D4UException
+  {
+    if (!isCanonicalID(id))
+      throw new D4UException("Bad identifier '"+id+"'");
+  }
+  
+  /** Reject an array of identifiers from a client, if any isn't canonical.  A null array is
+  * allowed, since operations treat it as empty.
+  */
+  protected static void checkIDs(String[] ids)
+    throws D4UException
+  {
+    if (ids == null)
+      return;
+    int i = 0;
+    while (i < ids.length)
+    {
+      checkID(ids[i++]);
+    }
+  }
+  
+  /** Check a request's arguments before it is performed: administration must be allowed for
+  * the operations that need it, and identifiers must be canonical.
+  */
+  protected void checkRequest(byte opcode, Object[] args)
+    throws D4UException
+  {
+    switch (opcode)
+    {
+    case D4UProtocol.OP_INSTALL:
+    case D4UProtocol.OP_UNINSTALL:
+      if (!allowAdmin)
+        throw new D4UException("Installing and uninstalling are not allowed over the network");
+      break;
+    case D4UProtocol.OP_CHECK_INTEGRITY:
+      if (((Boolean)args[0]).booleanValue() && !allowAdmin)
+        throw new D4UException("Repairing is not allowed over the network");
+      break;
+    case D4UProtocol.OP_GET_USER_OR_GROUP_NAME:
+    case D4UProtocol.OP_GET_USER_LOGIN_ID:
+    case D4UProtocol.OP_GET_USER_OR_GROUP_GROUPS:
+    case D4UProtocol.OP_DELETE_USER_OR_GROUP:
+    case D4UProtocol.OP_GET_DOCUMENT:
+    case D4UProtocol.OP_GET_DOCUMENT_UPDATED_TIME:
+    case D4UProtocol.OP_GET_DOCUMENT_EXPIRATION:
+    case D4UProtocol.OP_DELETE_DOCUMENT:
+    case D4UProtocol.OP_GET_DOCUMENT_URL:
+    case D4UProtocol.OP_SET_DOCUMENT_EXPIRATION:
+      checkID((String)args[0]);
+      break;
+    case D4UProtocol.OP_CREATE_USER_OR_GROUP:
+      checkIDs((String[])args[2]);
+      break;
+    case D4UProtocol.OP_UPDATE_USER_OR_GROUP:
+      checkID((String)args[0]);
+      checkIDs((String[])args[3]);
+      break;
+    case D4UProtocol.OP_FIND_ACCESSIBLE_DOCUMENTS:
+    case D4UProtocol.OP_GET_DOCUMENT_DIGESTS:
+    case D4UProtocol.OP_GET_DOCUMENT_URLS:
+      checkIDs((String[])args[0]);
+      break;
+    case D4UProtocol.OP_CREATE_DOCUMENT:
+      checkIDs(((D4UDocInfo)args[0]).getAllowed());
+      checkIDs(((D4UDocInfo)args[0]).getDisallowed());
+      break;
+    case D4UProtocol.OP_UPDATE_DOCUMENT:
+      checkID((String)args[0]);
+      checkIDs(((D4UDocInfo)args[1]).getAllowed());
+      checkIDs(((D4UDocInfo)args[1]).getDisallowed());
+      break;
+    default:
+      break;
+    }
+  }
+  
+  /** Perform a request against the repository.
+  *@return the result, which for OP_GET_DOCUMENT is a D4UDocInfo the caller must close, or
+  * null if the document wasn't found.
+  */
+  protected Object execute(byte opcode, Object[] args)
+    throws InterruptedException, D4UException
+  {
+    checkRequest(opcode,args);
+    switch (opcode)
+    {
+    case D4UProtocol.OP_INSTALL:
+      api.install();
+      return null;
+    case D4UProtocol.OP_UNINSTALL:
+      api.uninstall();
+      return null;
+    case D4UProtocol.OP_SANITY_CHECK:
+      api.sanityCheck();
+      return null;
+    case D4UProtocol.OP_CHECK_INTEGRITY:
+      return api.checkIntegrity(((Boolean)args[0]).booleanValue(),((Integer)args[1]).intValue(),
+        ((Boolean)args[2]).booleanValue());
+    case D4UProtocol.OP_GET_METADATA_NAMES:
+      return api.getMetadataNames();
+    case D4UProtocol.OP_SET_METADATA_NAMES:
+      api.setMetadataNames((String[])args[0]);
+      return null;
+    case D4UProtocol.OP_CREATE_USER_OR_GROUP:
+      return api.createUserOrGroup((String)args[0],(String)args[1],(String[])args[2]);
+    case D4UProtocol.OP_FIND_USER:
+      return api.findUser((String)args[0]);
+    case D4UProtocol.OP_FIND_USER_OR_GROUP:
+      return api.findUserOrGroup((String)args[0]);
+    case D4UProtocol.OP_UPDATE_USER_OR_GROUP:
+      api.updateUserOrGroup((String)args[0],(String)args[1],(String)args[2],(String[])args[3]);
+      return null;
+    case D4UProtocol.OP_GET_USER_OR_GROUP_NAME:
+      return api.getUserOrGroupName((String)args[0]);
+    case D4UProtocol.OP_GET_USER_LOGIN_ID:
+      return api.getUserLoginID((String)args[0]);
+    case D4UProtocol.OP_GET_USER_OR_GROUP_GROUPS:
+      return api.getUserOrGroupGroups((String)args[0]);
+    case D4UProtocol.OP_GET_USER_OR_GROUP_IDS:
+      return api.getUserOrGroupIDs();
+    case D4UProtocol.OP_DELETE_USER_OR_GROUP:
+      api.deleteUserOrGroup((String)args[0]);
+      return null;
+    case D4UProtocol.OP_FIND_DOCUMENTS:
+      {
+        List rval = new ArrayList();
+        D4UDocumentIterator iter = api.findDocuments((Long)args[0],(Long)args[1],(Map)args[2]);
+        while (iter.hasNext())
+        {
+          rval.add(iter.getNext());
+        }
+        return (String[])rval.toArray(new String[0]);
+      }
+    case D4UProtocol.OP_FIND_DOCUMENTS_MATCHING_ANY:
+      {
+        List rval = new ArrayList();
+        D4UDocumentIterator iter = api.findDocumentsMatchingAny((Long)args[0],(Long)args[1],(Map[])args[2]);
+        while (iter.hasNext())
+        {
+          rval.add(iter.getNext());
+        }
+        return (String[])rval.toArray(new String[0]);
+      }
+    case D4UProtocol.OP_FIND_ACCESSIBLE_DOCUMENTS:
+      {
+        List rval = new ArrayList();
+        D4UDocumentIterator iter = api.findAccessibleDocuments((String[])args[0],(Long)args[1],(Long)args[2],(Map)args[3]);
+        while (iter.hasNext())
+        {
+          rval.add(iter.getNext());
+        }
+        return (String[])rval.toArray(new String[0]);
+      }
+    case D4UProtocol.OP_CREATE_DOCUMENT:
+      return api.createDocument((D4UDocInfo)args[0]);
+    case D4UProtocol.OP_UPDATE_DOCUMENT:
+      api.updateDocument((String)args[0],(D4UDocInfo)args[1]);
+      return null;
+    case D4UProtocol.OP_GET_DOCUMENT:
+      {
+        D4UDocInfo docInfo = D4UFactory.makeDocInfo();
+        boolean found = false;
+        try
+        {
+          found = api.getDocument((String)args[0],docInfo);
+        }
+        finally
+        {
+          if (!found)
+            docInfo.close();
+        }
+        return found?docInfo:null;
+      }
+    case D4UProtocol.OP_GET_DOCUMENT_UPDATED_TIME:
+      return api.getDocumentUpdatedTime((String)args[0]);
+    case D4UProtocol.OP_DELETE_DOCUMENT:
+      api.deleteDocument((String)args[0]);
+      return null;
+    case D4UProtocol.OP_SET_DOCUMENT_EXPIRATION:
+      api.setDocumentExpiration((String)args[0],(Long)args[1]);
+      return null;
+    case D4UProtocol.OP_GET_DOCUMENT_EXPIRATION:
+      return api.getDocumentExpiration((String)args[0]);
+    case D4UProtocol.OP_FIND_DOCUMENT_PAGE:
+      return api.findDocumentPage((Long)args[0],(Long)args[1],(Map)args[2],(String)args[3],((Integer)args[4]).intValue());
+    case D4UProtocol.OP_COUNT_DOCUMENTS:
+      return new Long(api.countDocuments((Long)args[0],(Long)args[1],(Map)args[2]));
+    case D4UProtocol.OP_GET_CHANGE_CHECKPOINT:
+      return api.getChangeCheckpoint();
+    case D4UProtocol.OP_GET_CHANGE_CHECKPOINT_AT:
+      return api.getChangeCheckpointAt(((Long)args[0]).longValue());
+    case D4UProtocol.OP_GET_CHANGES:
+      // A waiting read holds a worker thread, so don't let it hold one for long
+      return api.getChanges((String)args[0],((Integer)args[1]).intValue(),
+        Math.min(((Long)args[2]).longValue(),MAX_CHANGE_WAIT));
+    case D4UProtocol.OP_RESERVE_IDS:
+      return api.reserveIDs(((Integer)args[0]).intValue());
+    case D4UProtocol.OP_GET_NEXT_ID:
+      return api.getNextID();
+    case D4UProtocol.OP_GET_DOCUMENT_URL:
+      return api.getDocumentURL((String)args[0]);
+    case D4UProtocol.OP_GET_DOCUMENT_DIGESTS:
+      return api.getDocumentDigests((String[])args[0]);
+    case D4UProtocol.OP_GET_DOCUMENT_URLS:
+      return api.getDocumentURLs((String[])args[0]);
+    default:
+      throw new D4UException("Unknown operation code "+opcode);
+    }
+  }
+  
+  /** Write a successful result.
+  */
+  protected static void writeResult(DataOutputStream out, byte opcode, Object result, byte[] buffer)
+    throws IOException, D4UException
+  {
+    if (opcode == D4UProtocol.OP_GET_DOCUMENT)
+    {
+      out.writeBoolean(result != null);
+      if (result != null)
+        D4UProtocol.writeDocInfo(out,(D4UDocInfo)result,buffer);
+    }
+    else if (opcode == D4UProtocol.OP_GET_DOCUMENT_UPDATED_TIME || opcode == D4UProtocol.OP_GET_DOCUMENT_EXPIRATION ||
+      opcode == D4UProtocol.OP_COUNT_DOCUMENTS)
+      D4UProtocol.writeLong(out,(Long)result);
+    else if (opcode == D4UProtocol.OP_FIND_DOCUMENT_PAGE)
+      D4UProtocol.writeDocumentPage(out,(D4UDocumentPage)result);
+    else if (opcode == D4UProtocol.OP_GET_CHANGES)
+      D4UProtocol.writeChangePage(out,(D4UChangePage)result);
+    else if (opcode == D4UProtocol.OP_GET_DOCUMENT_DIGESTS)
+      D4UProtocol.writeDocumentDigests(out,(D4UDocumentDigest[])result);
+    else if (result instanceof String[])
+      D4UProtocol.writeStrings(out,(String[])result);
+    else if (result instanceof String)
+      D4UProtocol.writeString(out,(String)result);
+    else if (result == null)
+    {
+      // Void operations send nothing more, but a null string or array result is sent as such
+      if (D4UProtocol.returnsValue(opcode))
+        D4UProtocol.writeString(out,null);
+    }
+  }
+  
+  /** One client connection.
+  */
+  protected class Connection extends Thread
+  {
+    protected Socket socket;
+    protected DataOutputStream out = null;
+    protected byte[] buffer = new byte[65536];
+    
+    public Connection(Socket socket)
+    {
+      super("Docs4U server connection "+socket.getRemoteSocketAddress());
+      setDaemon(true);
+      this.socket = socket;
+    }
+    
+    public void run()
+    {
+      try
+      {
+        D4UProtocol.FrameInputStream frame = new D4UProtocol.FrameInputStream(
+          new BufferedInputStream(socket.getInputStream(),65536),D4UProtocol.MAX_FRAME_LENGTH);
+        DataInputStream in = new DataInputStream(frame);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),65536));
+        D4UProtocol.readHandshake(in);
+        D4UProtocol.writeHandshake(out);
+        while (true)
+        {
+          int requestID;
+          frame.startFrame();
+          try
+          {
+            requestID = in.readInt();
+          }
+          catch (EOFException e)
+          {
+            // Client hung up
+            return;
+          }
+          byte opcode = in.readByte();
+          Object[] args = readArguments(opcode,in,frame);
+          executor.execute(new RequestTask(this,requestID,opcode,args));
+        }
+      }
+      catch (RejectedExecutionException e)
+      {
+        // Shutting down
+      }
+      catch (IOException e)
+      {
+        if (!shuttingDown)
+          System.err.println("Docs4U server connection "+socket.getRemoteSocketAddress()+" failed: "+e.getMessage());
+      }
+      catch (D4UException e)
+      {
+        System.err.println("Docs4U server connection "+socket.getRemoteSocketAddress()+" failed: "+e.getMessage());
+      }
+      finally
+      {
+        close();
+        synchronized (connections)
+        {
+          connections.remove(this);
+        }
+      }
+    }
+    
+    /** Send a response.  Responses from different worker threads are written whole, one at
+    * a time.
+    */
+    public void respond(int requestID, byte opcode, byte status, Object result)
+    {
+      synchronized (this)
+      {
+        try
+        {
+          out.writeInt(requestID);
+          out.writeByte(status);
+          if (status == D4UProtocol.STATUS_OK)
+            writeResult(out,opcode,result,buffer);
+          else
+            D4UProtocol.writeString(out,(String)result);
+          out.flush();
+        }
+        catch (IOException e)
+        {
+          // The connection is broken; the reading thread will notice
+          close();
+        }
+        catch (D4UException e)
+        {
+          // A partial response can't be taken back, so the connection has to go
+          System.err.println("Docs4U server failed sending response: "+e.getMessage());
+          close();
+        }
+      }
+    }
+    
+    public void close()
+    {
+      try
+      {
+        socket.close();
+      }
+      catch (IOException e)
+      {
+      }
+    }
+  }
+  
+  /** One request, run on a worker thread.
+  */
+  protected class RequestTask implements Runnable
+  {
+    protected Connection connection;
+    protected int requestID;
+    protected byte opcode;
+    protected Object[] args;
+    
+    public RequestTask(Connection connection, int requestID, byte opcode, Object[] args)
+    {
+      this.connection = connection;
+      this.requestID = requestID;
+      this.opcode = opcode;
+      this.args = args;
+    }
+    
+    public void run()
+    {
+      Object result = null;
+      try
+      {
+        result = execute(opcode,args);
+        connection.respond(requestID,opcode,D4UProtocol.STATUS_OK,result);
+      }
+      catch (InterruptedException e)
+      {
+        connection.respond(requestID,opcode,D4UProtocol.STATUS_INTERRUPTED,"Interrupted on server");
+      }
+      catch (D4UException e)
+      {
+        connection.respond(requestID,opcode,D4UProtocol.STATUS_ERROR,e.getMessage());
+      }
+      catch (RuntimeException e)
+      {
+        connection.respond(requestID,opcode,D4UProtocol.STATUS_ERROR,e.toString());
+      }
+      finally
+      {
+        releaseArguments(args);
+        if (result instanceof D4UDocInfo)
+          releaseArguments(new Object[]{result});
+      }
+    }
+  }
+  
+}
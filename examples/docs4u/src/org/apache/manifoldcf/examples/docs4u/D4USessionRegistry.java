@@ -0,0 +1,130 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.util.*;
+
+/** This class shares Docs4U API instances among everything in a process that uses the same
+* repository, such as the pooled instances of the repository, authority and output
+* connectors.  A session is obtained with acquire() and handed back with release(); the
+* instance for a root is made on first use and dropped when nobody holds it any more.
+*
+* The caches behind an instance (the metadata registry, document index, ACL sets and users
+* and groups) are per root and per process in any case, and their sizes are bounded by the
+* docs4u.index.maxslot, docs4u.aclsets.cachesize and docs4u.users.maxindexed properties, so
+* letting go of the last session does not throw away what they have learned.
+*/
+public class D4USessionRegistry
+{
+  /** Sessions, keyed by canonical root path or by URL */
+  protected final static Map sessions = new HashMap();
+  /** Sessions, keyed by the API instance handed out */
+  protected final static Map sessionsByAPI = new IdentityHashMap();
+  
+  protected D4USessionRegistry()
+  {
+  }
+  
+  /** Get the shared API instance for a root, making it if needed.  Each call must be matched
+  * by a call to release().
+  *@param root is the root, as for D4UFactory.makeAPI().
+  */
+  public static Docs4UAPI acquire(String root)
+    throws D4UException
+  {
+    String key = getKey(root);
+    synchronized (sessions)
+    {
+      Session session = (Session)sessions.get(key);
+      if (session == null)
+      {
+        session = new Session(key,D4UFactory.makeAPI(root));
+        sessions.put(key,session);
+        sessionsByAPI.put(session.api,session);
+      }
+      session.referenceCount++;
+      return session.api;
+    }
+  }
+  
+  /** Hand back an API instance obtained from acquire().
+  *@param api is the instance.
+  */
+  public static void release(Docs4UAPI api)
+  {
+    synchronized (sessions)
+    {
+      Session session = (Session)sessionsByAPI.get(api);
+      if (session == null)
+        return;
+      if (--session.referenceCount == 0)
+      {
+        sessions.remove(session.key);
+        sessionsByAPI.remove(api);
+      }
+    }
+  }
+  
+  /** Get the number of holders of a root's session.
+  *@param root is the root.
+  *@return the count, which is 0 if there is no session.
+  */
+  public static int getReferenceCount(String root)
+  {
+    String key = getKey(root);
+    synchronized (sessions)
+    {
+      Session session = (Session)sessions.get(key);
+      if (session == null)
+        return 0;
+      return session.referenceCount;
+    }
+  }
+  
+  /** Local roots are keyed by canonical path, so that different spellings share. */
+  protected static String getKey(String root)
+  {
+    if (root.startsWith(D4UProtocol.URL_PREFIX) || root.startsWith(D4UFederatedAPI.URL_PREFIX))
+      return root;
+    try
+    {
+      return new File(root).getCanonicalPath();
+    }
+    catch (IOException e)
+    {
+      return new File(root).getAbsolutePath();
+    }
+  }
+  
+  /** One shared instance */
+  protected static class Session
+  {
+    public final String key;
+    public final Docs4UAPI api;
+    public int referenceCount = 0;
+    
+    public Session(String key, Docs4UAPI api)
+    {
+      this.key = key;
+      this.api = api;
+    }
+  }
+  
+}
@@ -0,0 +1,330 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.util.*;
+
+/** This class caches a Docs4U repository's users and groups in memory, so that looking a
+* user up by login ID or name doesn't read every user file.  There is one instance per root
+* per process, obtained with getIndex().
+*
+* Every user and group change is recorded in the change journal while the users lock is
+* still held, so the index keeps a journal checkpoint and, before each lookup, reads the
+* journal from there and re-reads just the users and groups that changed.  Changes made by
+* other processes are therefore seen as soon as they are complete.  If the checkpoint can't
+* be used, because the repository was reinstalled, everything is read again.
+*
+* The index holds at most docs4u.users.maxindexed users and groups.  Beyond that, refresh()
+* returns false and callers go back to reading the files.
+*/
+public class D4UUserIndex
+{
+  /** Largest number of users and groups to hold in memory */
+  protected final static int MAX_INDEXED = Integer.getInteger("docs4u.users.maxindexed",100000).intValue();
+  /** How many journal records to read at a time */
+  protected final static int JOURNAL_PAGE_SIZE = 1000;
+  
+  /** Indexes, keyed by canonical root path */
+  protected final static Map instances = new HashMap();
+  
+  protected final File usersFolder;
+  protected final File userGroupsFolder;
+  protected final File usersLockFile;
+  protected final D4UChangeJournal changeJournal;
+  
+  // Everything below is guarded by this object's monitor.
+  
+  /** Journal checkpoint the index is current as of, or null if it must be loaded */
+  protected String checkpoint = null;
+  /** User/group ID to Record */
+  protected final Map records = new HashMap();
+  /** Name to sorted set of user/group IDs, since names need not be unique */
+  protected final Map nameIDs = new HashMap();
+  /** Login ID to sorted set of user IDs */
+  protected final Map loginIDs = new HashMap();
+  
+  protected D4UUserIndex(String root)
+  {
+    this.usersFolder = new File(root,Docs4UAPIImpl.usersArea);
+    this.userGroupsFolder = new File(root,Docs4UAPIImpl.userGroupsArea);
+    this.usersLockFile = new File(root,Docs4UAPIImpl.usersLockFileName);
+    this.changeJournal = D4UChangeJournal.getJournal(root);
+  }
+  
+  /** Get the index for a repository root, creating it if needed.
+  *@param root is the repository root directory.
+  */
+  public static D4UUserIndex getIndex(String root)
+  {
+    String key;
+    try
+    {
+      key = new File(root).getCanonicalPath();
+    }
+    catch (IOException e)
+    {
+      key = new File(root).getAbsolutePath();
+    }
+    synchronized (instances)
+    {
+      D4UUserIndex rval = (D4UUserIndex)instances.get(key);
+      if (rval == null)
+      {
+        rval = new D4UUserIndex(key);
+        instances.put(key,rval);
+      }
+      return rval;
+    }
+  }
+  
+  /** Bring the index up to date.  Call without the users lock held.
+  *@param metrics is where to record any directory scan.
+  *@return true if the index can be used, or false if there are too many users and groups
+  * to hold, and the caller should read the files instead.
+  */
+  public synchronized boolean refresh(D4UMetrics metrics)
+    throws InterruptedException, D4UException
+  {
+    if (checkpoint == null)
+      return load(metrics);
+    
+    Set changedIDs = new HashSet();
+    String newCheckpoint = checkpoint;
+    try
+    {
+      while (true)
+      {
+        D4UChangePage page = changeJournal.read(newCheckpoint,JOURNAL_PAGE_SIZE,0L);
+        D4UChange[] changes = page.getChanges();
+        int i = 0;
+        while (i < changes.length)
+        {
+          D4UChange change = changes[i++];
+          if (change.getType() == D4UChange.TYPE_USER_OR_GROUP)
+            changedIDs.add(change.getID());
+        }
+        newCheckpoint = page.getCheckpoint();
+        if (changes.length < JOURNAL_PAGE_SIZE)
+          break;
+      }
+    }
+    catch (D4UException e)
+    {
+      // The repository was reinstalled or removed
+      return load(metrics);
+    }
+    
+    if (changedIDs.size() > 0)
+    {
+      // The writer appends to the journal before letting go of the lock, so once we have
+      // the lock its files are complete
+      File[] usersLocks = new File[]{usersLockFile};
+      Docs4UAPIImpl.makeLocks(usersLocks);
+      try
+      {
+        Iterator iter = changedIDs.iterator();
+        while (iter.hasNext())
+        {
+          reload((String)iter.next());
+        }
+      }
+      finally
+      {
+        Docs4UAPIImpl.clearLocks(usersLocks);
+      }
+      if (records.size() > MAX_INDEXED)
+      {
+        clear();
+        return false;
+      }
+    }
+    checkpoint = newCheckpoint;
+    return true;
+  }
+  
+  /** Find a user by login ID.  Call after refresh() has returned true.
+  *@return the user ID, or null if there is none.
+  */
+  public synchronized String findUser(String loginID)
+  {
+    return first(loginIDs,loginID);
+  }
+  
+  /** Find a user or group by name.  Call after refresh() has returned true.
+  *@return the user or group ID, or null if there is none.
+  */
+  public synchronized String findUserOrGroup(String name)
+  {
+    return first(nameIDs,name);
+  }
+  
+  /** Get a user or group's name.  Call after refresh() has returned true.
+  *@return the name, or null if the ID does not exist.
+  */
+  public synchronized String getUserOrGroupName(String userGroupID)
+  {
+    Record record = (Record)records.get(userGroupID);
+    if (record == null)
+      return null;
+    return record.name;
+  }
+  
+  /** Get a user's login ID.  Call after refresh() has returned true.
+  *@return the login ID, or null if the ID does not exist or is a group.
+  */
+  public synchronized String getUserLoginID(String userGroupID)
+  {
+    Record record = (Record)records.get(userGroupID);
+    if (record == null)
+      return null;
+    return record.loginID;
+  }
+  
+  /** Get a user or group's groups.  Call after refresh() has returned true.
+  *@return a copy of the group IDs, or null if the ID does not exist.
+  */
+  public synchronized String[] getUserOrGroupGroups(String userGroupID)
+  {
+    Record record = (Record)records.get(userGroupID);
+    if (record == null || record.groups == null)
+      return null;
+    return record.groups.clone();
+  }
+  
+  // Internals
+  
+  /** Read every user and group.  Call with this object's monitor held.
+  */
+  protected boolean load(D4UMetrics metrics)
+    throws InterruptedException, D4UException
+  {
+    clear();
+    if (!usersFolder.isDirectory())
+    {
+      // Not installed; nothing to find, and nothing to keep
+      return true;
+    }
+    // Take the checkpoint first, so that anything that changes while we read is read again
+    String newCheckpoint = changeJournal.getCheckpoint();
+    File[] usersLocks = new File[]{usersLockFile};
+    Docs4UAPIImpl.makeLocks(usersLocks);
+    try
+    {
+      String[] userGroupIDs = usersFolder.list();
+      if (userGroupIDs == null)
+        return true;
+      metrics.recordDirectoryScan(userGroupIDs.length);
+      if (userGroupIDs.length > MAX_INDEXED)
+        return false;
+      int i = 0;
+      while (i < userGroupIDs.length)
+      {
+        reload(userGroupIDs[i++]);
+      }
+    }
+    finally
+    {
+      Docs4UAPIImpl.clearLocks(usersLocks);
+    }
+    checkpoint = newCheckpoint;
+    return true;
+  }
+  
+  /** Forget everything.  Call with this object's monitor held.
+  */
+  protected void clear()
+  {
+    records.clear();
+    nameIDs.clear();
+    loginIDs.clear();
+    checkpoint = null;
+  }
+  
+  /** Re-read one user or group.  Call with this object's monitor and the users lock held.
+  */
+  protected void reload(String userGroupID)
+  {
+    Record oldRecord = (Record)records.remove(userGroupID);
+    if (oldRecord != null)
+    {
+      remove(nameIDs,oldRecord.name,userGroupID);
+      if (oldRecord.loginID != null)
+        remove(loginIDs,oldRecord.loginID,userGroupID);
+    }
+    File userFile = new File(usersFolder,userGroupID);
+    if (!userFile.exists())
+      return;
+    String[] userGroupFileContent = Docs4UAPIImpl.readValues(userFile);
+    if (userGroupFileContent == null)
+      return;
+    Record record = new Record(Docs4UAPIImpl.getUserGroupName(userGroupFileContent),
+      Docs4UAPIImpl.getUserGroupLoginID(userGroupFileContent),
+      Docs4UAPIImpl.readValues(new File(userGroupsFolder,userGroupID)));
+    records.put(userGroupID,record);
+    add(nameIDs,record.name,userGroupID);
+    if (record.loginID != null)
+      add(loginIDs,record.loginID,userGroupID);
+  }
+  
+  protected static String first(Map map, String key)
+  {
+    SortedSet ids = (SortedSet)map.get(key);
+    if (ids == null)
+      return null;
+    return (String)ids.first();
+  }
+  
+  protected static void add(Map map, String key, String userGroupID)
+  {
+    SortedSet ids = (SortedSet)map.get(key);
+    if (ids == null)
+    {
+      ids = new TreeSet();
+      map.put(key,ids);
+    }
+    ids.add(userGroupID);
+  }
+  
+  protected static void remove(Map map, String key, String userGroupID)
+  {
+    SortedSet ids = (SortedSet)map.get(key);
+    if (ids == null)
+      return;
+    ids.remove(userGroupID);
+    if (ids.size() == 0)
+      map.remove(key);
+  }
+  
+  /** One user or group */
+  protected static class Record
+  {
+    public final String name;
+    public final String loginID;
+    public final String[] groups;
+    
+    public Record(String name, String loginID, String[] groups)
+    {
+      this.name = name;
+      this.loginID = loginID;
+      this.groups = groups;
+    }
+  }
+  
+}
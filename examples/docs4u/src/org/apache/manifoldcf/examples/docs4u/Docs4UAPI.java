@@ -43,6 +43,18 @@ public interface Docs4UAPI
   */
   public void sanityCheck()
     throws D4UException;
+
+  /** Check the repository in depth.  Every document and user/group record is cross-checked
+  * for completeness, parseability, and dangling references, and stale lock directories are
+  * detected.
+  *@param repair is true if problems should be fixed where possible.
+  *@param threadCount is the number of threads to use for the scan.
+  *@param checkIDFile is false if this repository's identifiers are allocated by another one,
+  * as in all but the first root of a federation, so that its ID file is not in use.
+  *@return a description of each problem found; empty if there were none.
+  */
+  public String[] checkIntegrity(boolean repair, int threadCount, boolean checkIDFile)
+    throws InterruptedException, D4UException;
   
   // Manage metadata definitions
   
@@ -99,12 +111,25 @@ public interface Docs4UAPI
   public String getUserOrGroupName(String userGroupID)
     throws InterruptedException, D4UException;
   
+  /** Get a user's login ID.
+  *@param userGroupID is the user or group ID.
+  *@return the login ID, or null if the ID did not exist or describes a group.
+  */
+  public String getUserLoginID(String userGroupID)
+    throws InterruptedException, D4UException;
+
   /** Get a user or group's groups.
   *@param userGroupID is the user or group ID.
   *@return the group id's, or null if the user or group does not exist.
   */
   public String[] getUserOrGroupGroups(String userGroupID)
     throws InterruptedException, D4UException;
+  
+  /** Get the identifiers of all users and groups.
+  *@return the user and group IDs.
+  */
+  public String[] getUserOrGroupIDs()
+    throws InterruptedException, D4UException;
     
   /** Delete a user or group.
   *@param userGroupID is the user or group ID.
@@ -124,6 +149,78 @@ public interface Docs4UAPI
   public D4UDocumentIterator findDocuments(Long startTime, Long endTime, Map metadataMap)
     throws InterruptedException, D4UException;
   
+  /** Find documents which match any one of several sets of metadata criteria, within a
+  * specified modification time window.  This costs about the same as a single findDocuments()
+  * call, however many sets of criteria there are.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMaps are the sets of criteria, each a map of metadata name to desired value.
+  *@return the iterator of document identifiers matching all the criteria of at least one set.
+  * Each document is returned only once.
+  */
+  public D4UDocumentIterator findDocumentsMatchingAny(Long startTime, Long endTime, Map[] metadataMaps)
+    throws InterruptedException, D4UException;
+  
+  /** Find documents which match metadata criteria, within a specified modification
+  * time window, and which a given user may see.
+  *@param userGroupIDs are the identifiers of the user and all the groups the user belongs to.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMap is a map of metadata name to desired value, or null if none.
+  *@return the iterator of document identifiers matching all the criteria, which allow at least
+  * one of the given identifiers and disallow none of them.
+  */
+  public D4UDocumentIterator findAccessibleDocuments(String[] userGroupIDs, Long startTime, Long endTime, Map metadataMap)
+    throws InterruptedException, D4UException;
+  
+  /** Find one page of documents which match metadata criteria, within a specified
+  * modification time window.  Pages come in a stable order, so a continuation picks up
+  * after the last document returned even if the repository has changed in between.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMap is a map of metadata name to desired value, or null if none.
+  *@param continuation is the continuation from the previous page, or null for the first page.
+  *@param limit is the largest number of document identifiers to return.
+  *@return the page of document identifiers.
+  */
+  public D4UDocumentPage findDocumentPage(Long startTime, Long endTime, Map metadataMap, String continuation, int limit)
+    throws InterruptedException, D4UException;
+  
+  /** Count documents which match metadata criteria, within a specified modification
+  * time window, without listing them.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMap is a map of metadata name to desired value, or null if none.
+  *@return the number of matching documents.
+  */
+  public long countDocuments(Long startTime, Long endTime, Map metadataMap)
+    throws InterruptedException, D4UException;
+  
+  /** Get a checkpoint marking the present end of the repository's change journal.
+  *@return the checkpoint, to pass to getChanges() to read changes made from now on.
+  */
+  public String getChangeCheckpoint()
+    throws InterruptedException, D4UException;
+  
+  /** Get a checkpoint for the first change made at or after a given time, so that changes can
+  * be read from there without having kept a checkpoint.
+  *@param time is the time, in ms since epoch.
+  *@return the checkpoint, or null if the change journal does not go back that far.
+  */
+  public String getChangeCheckpointAt(long time)
+    throws InterruptedException, D4UException;
+  
+  /** Read changes to documents and users/groups made after a checkpoint.
+  *@param checkpoint is where to start, from getChangeCheckpoint() or from an earlier page.
+  * A checkpoint from before the repository was reinstalled, or for changes the journal has
+  * since dropped as too old, is refused with an exception.
+  *@param limit is the largest number of changes to return.
+  *@param waitMillis is how long to wait for a change, if there are none yet; 0 not to wait.
+  *@return the changes, oldest first, and the checkpoint to continue from.
+  */
+  public D4UChangePage getChanges(String checkpoint, int limit, long waitMillis)
+    throws InterruptedException, D4UException;
+  
   /** Create a document.
   *@param docInfo is the document info structure.  Note that it is the responsibility
   * of the caller to close the docInfo object when they are done with it.
@@ -149,6 +246,15 @@ public interface Docs4UAPI
   public boolean getDocument(String docID, D4UDocInfo docInfo)
     throws InterruptedException, D4UException;
   
+  /** Find several documents at once.  This costs much less than finding them one at a time.
+  *@param docIDs are the document identifiers.
+  *@param docInfos are the document information objects to be filled in, one per identifier.
+  * It is the responsibility of the caller to close them all when they are done with them.
+  *@return true for each document that exists, false otherwise.
+  */
+  public boolean[] getDocuments(String[] docIDs, D4UDocInfo[] docInfos)
+    throws InterruptedException, D4UException;
+  
   /** Get a document's last updated timestamp.
   *@param docID is the document identifier.
   *@return the timestamp, in ms since epoch, or null if the document doesn't exist.
@@ -156,11 +262,56 @@ public interface Docs4UAPI
   public Long getDocumentUpdatedTime(String docID)
     throws InterruptedException, D4UException;
 
+  /** Get the last updated timestamps of several documents at once.
+  *@param docIDs are the document identifiers.
+  *@return the timestamps, in ms since epoch, one per identifier; null for documents that don't exist.
+  */
+  public Long[] getDocumentUpdatedTimes(String[] docIDs)
+    throws InterruptedException, D4UException;
+  
+  /** Summarize several documents' content, metadata and security separately, without
+  * fetching them.
+  *@param docIDs are the document identifiers.
+  *@return the digests, one per identifier; null for documents that don't exist.
+  */
+  public D4UDocumentDigest[] getDocumentDigests(String[] docIDs)
+    throws InterruptedException, D4UException;
+
   /** Delete a document.
   *@param docID is the document identifier.
   */
   public void deleteDocument(String docID)
     throws InterruptedException, D4UException;
+  
+  /** Set or clear a document's expiration time.  Once it has passed, the document is deleted
+  * by the next sweep of expired documents.
+  *@param docID is the document identifier.
+  *@param expirationTime is the time in ms since epoch, or null if the document never expires.
+  */
+  public void setDocumentExpiration(String docID, Long expirationTime)
+    throws InterruptedException, D4UException;
+  
+  /** Get a document's expiration time.
+  *@param docID is the document identifier.
+  *@return the time in ms since epoch, or null if the document doesn't expire.
+  */
+  public Long getDocumentExpiration(String docID)
+    throws InterruptedException, D4UException;
+
+  /** Reserve a block of new identifiers, for callers which create many documents or
+  * users at once.  The identifiers are allocated under a single lock.
+  *@param count is the number of identifiers desired.
+  *@return the reserved identifiers.
+  */
+  public String[] reserveIDs(int count)
+    throws InterruptedException, D4UException;
+
+  /** Find out where identifier allocation has got to, without allocating anything.  Every
+  * identifier allocated so far is a number below this one.
+  *@return the next identifier to be allocated.
+  */
+  public String getNextID()
+    throws InterruptedException, D4UException;
 
   /** Get a document's URL, as a string.
   *@param docID is the document identifier.
@@ -169,4 +320,11 @@ public interface Docs4UAPI
   public String getDocumentURL(String docID)
     throws D4UException;
 
+  /** Get several documents' URLs at once.
+  *@param docIDs are the document identifiers.
+  *@return the URLs to use to access the documents, one per identifier.
+  */
+  public String[] getDocumentURLs(String[] docIDs)
+    throws InterruptedException, D4UException;
+
 }
@@ -29,7 +29,10 @@ public class Docs4UAPIImpl implements Docs4UAPI
   protected final static String docsArea = "docs";
   protected final static String docAllowedPermissionsArea = "docallowed";
   protected final static String docDisallowedPermissionsArea = "docdisallowed";
+  protected final static String aclSetArea = "aclsets";
   protected final static String docMetadataArea = "docmetadata";
+  protected final static String docExpiryArea = "docexpiry";
+  protected final static String expiryIndexArea = "expiryindex";
   protected final static String usersArea = "users";
   protected final static String userGroupsArea = "usergroups";
   
@@ -40,6 +43,15 @@ public class Docs4UAPIImpl implements Docs4UAPI
   protected final static String docsLockFileName = "docs.lock";
   protected final static String usersLockFileName = "users.lock";
   
+  /** Width of each expiry index bucket, in milliseconds */
+  protected final static long EXPIRY_BUCKET_MILLIS = 3600000L;
+  /** How much older than the start of a collection an unused ACL set must be to be removed,
+  * allowing for file systems that keep modification times to the second or coarser */
+  protected final static long ACL_SET_TIME_SLACK_MILLIS = 2000L;
+  
+  protected final static String journalFileName = "changes.log";
+  protected final static String journalLockFileName = "changes.lock";
+  
   // Member variables.
   
   /** Root folder. */
@@ -51,8 +63,14 @@ public class Docs4UAPIImpl implements Docs4UAPI
   protected File docAllowedPermissionsFolder;
   /** Doc disallowed permissions folder. */
   protected File docDisallowedPermissionsFolder;
+  /** Interned ACL set folder */
+  protected File aclSetFolder;
   /** Doc metadata folder */
   protected File docMetadataFolder;
+  /** Doc expiration time folder */
+  protected File docExpiryFolder;
+  /** Expiry index folder, holding one folder per bucket of expiration times */
+  protected File expiryIndexFolder;
   /** Users folder */
   protected File usersFolder;
   /** User groups folder */
@@ -72,8 +90,19 @@ public class Docs4UAPIImpl implements Docs4UAPI
   /** Users lock file */
   protected File usersLockFile;
   
-  /** Random number generator. */
-  protected static Random randomGenerator = new Random();
+  /** Metrics for this root */
+  protected D4UMetrics metrics;
+  /** Cached metadata names for this root */
+  protected D4UMetadataRegistry metadataRegistry;
+  /** Shared index over document metadata and permissions */
+  protected D4UDocumentIndex documentIndex;
+  /** Shared change journal */
+  protected D4UChangeJournal changeJournal;
+  /** Interned ACL sets */
+  protected D4UAclSetStore aclSetStore;
+  /** Shared user and group cache */
+  protected D4UUserIndex userIndex;
+  
   
   /** Constructor.  All this needs to know is where the root of the system is.
   *@param root is the root directory.
@@ -86,7 +115,10 @@ public class Docs4UAPIImpl implements Docs4UAPI
     this.docsFolder = new File(this.root,docsArea);
     this.docAllowedPermissionsFolder = new File(this.root,docAllowedPermissionsArea);
     this.docDisallowedPermissionsFolder = new File(this.root,docDisallowedPermissionsArea);
+    this.aclSetFolder = new File(this.root,aclSetArea);
     this.docMetadataFolder = new File(this.root,docMetadataArea);
+    this.docExpiryFolder = new File(this.root,docExpiryArea);
+    this.expiryIndexFolder = new File(this.root,expiryIndexArea);
     this.usersFolder = new File(this.root,usersArea);
     this.userGroupsFolder = new File(this.root,userGroupsArea);
     
@@ -97,6 +129,13 @@ public class Docs4UAPIImpl implements Docs4UAPI
     this.metadataLockFile = new File(this.root,metadataLockFileName);
     this.docsLockFile = new File(this.root,docsLockFileName);
     this.usersLockFile = new File(this.root,usersLockFileName);
+
+    this.metrics = D4UMetrics.getMetrics(root);
+    this.metadataRegistry = D4UMetadataRegistry.getRegistry(root);
+    this.documentIndex = D4UDocumentIndex.getIndex(root);
+    this.changeJournal = D4UChangeJournal.getJournal(root);
+    this.aclSetStore = D4UAclSetStore.getStore(root);
+    this.userIndex = D4UUserIndex.getIndex(root);
     
   }
   
@@ -116,15 +155,22 @@ public class Docs4UAPIImpl implements Docs4UAPI
       throw new D4UException("Could not create doc allowed permissions area");
     if (docDisallowedPermissionsFolder.mkdir() == false)
       throw new D4UException("Could not create doc disallowed permissions area");
+    if (aclSetFolder.mkdir() == false)
+      throw new D4UException("Could not create ACL set area");
     if (usersFolder.mkdir() == false)
       throw new D4UException("Could not create users area");
     if (userGroupsFolder.mkdir() == false)
       throw new D4UException("Could not create user groups area");
+    if (docExpiryFolder.mkdir() == false)
+      throw new D4UException("Could not create doc expiry area");
+    if (expiryIndexFolder.mkdir() == false)
+      throw new D4UException("Could not create expiry index area");
     
     if (writeValue(idFile,"0") == false)
       throw new D4UException("Could not create id file");
     if (writeValues(metadataFile,new String[0]) == false)
       throw new D4UException("Could not create metadata file");
+    changeJournal.create();
   }
   
   
@@ -135,14 +181,21 @@ public class Docs4UAPIImpl implements Docs4UAPI
   {
     if (metadataFile.delete() == false)
       throw new D4UException("Could not delete metadata file");
+    metadataRegistry.invalidate();
     if (idFile.delete() == false)
       throw new D4UException("Could not delete id file");
     deleteAll(userGroupsFolder);
     deleteAll(usersFolder);
     deleteAll(docAllowedPermissionsFolder);
     deleteAll(docDisallowedPermissionsFolder);
+    deleteAll(aclSetFolder);
+    aclSetStore.invalidate();
+    documentIndex.invalidate();
     deleteAll(docMetadataFolder);
     deleteAll(docsFolder);
+    deleteAll(docExpiryFolder);
+    deleteAll(expiryIndexFolder);
+    changeJournal.delete();
   }
 
   // System integrity check
@@ -171,28 +224,32 @@ public class Docs4UAPIImpl implements Docs4UAPI
     if (!docsFolder.exists() || !docsFolder.isDirectory())
       throw new D4UException("Repository has no docs area");
   }
+
+  /** Check the repository in depth.  Every document and user/group record is cross-checked
+  * for completeness, parseability, and dangling references, and stale lock directories are
+  * detected.
+  *@param repair is true if problems should be fixed where possible.
+  *@param threadCount is the number of threads to use for the scan.
+  *@param checkIDFile is false if this repository's identifiers are allocated by another one.
+  *@return a description of each problem found; empty if there were none.
+  */
+  public String[] checkIntegrity(boolean repair, int threadCount, boolean checkIDFile)
+    throws InterruptedException, D4UException
+  {
+    sanityCheck();
+    return new D4UIntegrityChecker(this,repair,threadCount,checkIDFile).check();
+  }
   
   // Manage metadata definitions
   
-  /** Get the current metadata names.
+  /** Get the current metadata names.  These come from the root's D4UMetadataRegistry, which
+  * only re-reads the metadata file when it has changed.
   *@return the global list of legal names of metadata.
   */
   public String[] getMetadataNames()
     throws InterruptedException, D4UException
   {
-    File[] metadataLocks = new File[]{metadataLockFile};
-    makeLocks(metadataLocks);
-    try
-    {
-      String[] rval = readValues(metadataFile);
-      if (rval == null)
-        throw new D4UException("No metadata file found");
-      return rval;
-    }
-    finally
-    {
-      clearLocks(metadataLocks);
-    }
+    return metadataRegistry.getMetadataNames();
   }
   
   /** Set the current metadata names.
@@ -201,17 +258,7 @@ public class Docs4UAPIImpl implements Docs4UAPI
   public void setMetadataNames(String[] names)
     throws InterruptedException, D4UException
   {
-    File[] metadataLocks = new File[]{metadataLockFile};
-    makeLocks(metadataLocks);
-    try
-    {
-      if (writeValues(metadataFile,names) == false)
-        throw new D4UException("Could not write to metadata file");
-    }
-    finally
-    {
-      clearLocks(metadataLocks);
-    }
+    metadataRegistry.setMetadataNames(names);
   }
 
   // User/group methods
@@ -252,8 +299,11 @@ public class Docs4UAPIImpl implements Docs4UAPI
     makeLocks(usersLocks);
     try
     {
-      writeValues(new File(usersFolder,userGroupID),userGroupFileContent);
+      File userFile = new File(usersFolder,userGroupID);
+      boolean existed = userFile.exists();
+      writeValues(userFile,userGroupFileContent);
       writeValues(new File(userGroupsFolder,userGroupID),groups);
+      changeJournal.append(D4UChange.TYPE_USER_OR_GROUP,existed?D4UChange.ACTION_UPDATE:D4UChange.ACTION_CREATE,userGroupID);
     }
     finally
     {
@@ -268,6 +318,8 @@ public class Docs4UAPIImpl implements Docs4UAPI
   public String findUser(String loginID)
     throws InterruptedException, D4UException
   {
+    if (userIndex.refresh(metrics))
+      return userIndex.findUser(loginID);
     File[] usersLocks = new File[]{usersLockFile};
     makeLocks(usersLocks);
     try
@@ -275,6 +327,7 @@ public class Docs4UAPIImpl implements Docs4UAPI
       File[] files = usersFolder.listFiles();
       if (files == null)
         return null;
+      metrics.recordDirectoryScan(files.length);
       int i = 0;
       while (i < files.length)
       {
@@ -283,7 +336,8 @@ public class Docs4UAPIImpl implements Docs4UAPI
         if (userGroupFileContent != null)
         {
           String login = getUserGroupLoginID(userGroupFileContent);
-          if (login.equals(loginID))
+          // Groups have no login ID
+          if (login != null && login.equals(loginID))
             return f.getName();
         }
       }
@@ -302,6 +356,8 @@ public class Docs4UAPIImpl implements Docs4UAPI
   public String findUserOrGroup(String name)
     throws InterruptedException, D4UException
   {
+    if (userIndex.refresh(metrics))
+      return userIndex.findUserOrGroup(name);
     File[] usersLocks = new File[]{usersLockFile};
     makeLocks(usersLocks);
     try
@@ -309,6 +365,7 @@ public class Docs4UAPIImpl implements Docs4UAPI
       File[] files = usersFolder.listFiles();
       if (files == null)
         return null;
+      metrics.recordDirectoryScan(files.length);
       int i = 0;
       while (i < files.length)
       {
@@ -336,6 +393,8 @@ public class Docs4UAPIImpl implements Docs4UAPI
   public String getUserOrGroupName(String userGroupID)
     throws InterruptedException, D4UException
   {
+    if (userIndex.refresh(metrics))
+      return userIndex.getUserOrGroupName(userGroupID);
     File[] usersLocks = new File[]{usersLockFile};
     makeLocks(usersLocks);
     try
@@ -351,6 +410,30 @@ public class Docs4UAPIImpl implements Docs4UAPI
     }
   }
   
+  /** Get a user's login ID.
+  *@param userGroupID is the user or group ID.
+  *@return the login ID, or null if the ID did not exist or describes a group.
+  */
+  public String getUserLoginID(String userGroupID)
+    throws InterruptedException, D4UException
+  {
+    if (userIndex.refresh(metrics))
+      return userIndex.getUserLoginID(userGroupID);
+    File[] usersLocks = new File[]{usersLockFile};
+    makeLocks(usersLocks);
+    try
+    {
+      String[] userGroupFileContent = readValues(new File(usersFolder,userGroupID));
+      if (userGroupFileContent == null)
+        return null;
+      return getUserGroupLoginID(userGroupFileContent);
+    }
+    finally
+    {
+      clearLocks(usersLocks);
+    }
+  }
+
   /** Get a user or group's groups.
   *@param userGroupID is the user or group ID.
   *@return the group id's, or null if the user or group does not exist.
@@ -358,6 +441,8 @@ public class Docs4UAPIImpl implements Docs4UAPI
   public String[] getUserOrGroupGroups(String userGroupID)
     throws InterruptedException, D4UException
   {
+    if (userIndex.refresh(metrics))
+      return userIndex.getUserOrGroupGroups(userGroupID);
     File[] usersLocks = new File[]{usersLockFile};
     makeLocks(usersLocks);
     try
@@ -369,6 +454,28 @@ public class Docs4UAPIImpl implements Docs4UAPI
       clearLocks(usersLocks);
     }
   }
+
+  /** Get the identifiers of all users and groups.
+  *@return the user and group IDs.
+  */
+  public String[] getUserOrGroupIDs()
+    throws InterruptedException, D4UException
+  {
+    File[] usersLocks = new File[]{usersLockFile};
+    makeLocks(usersLocks);
+    try
+    {
+      String[] names = usersFolder.list();
+      if (names == null)
+        return new String[0];
+      metrics.recordDirectoryScan(names.length);
+      return names;
+    }
+    finally
+    {
+      clearLocks(usersLocks);
+    }
+  }
     
   /** Delete a user or group.
   *@param userGroupID is the user or group ID.
@@ -380,8 +487,10 @@ public class Docs4UAPIImpl implements Docs4UAPI
     makeLocks(usersLocks);
     try
     {
-      new File(usersFolder,userGroupID).delete();
+      boolean existed = new File(usersFolder,userGroupID).delete();
       new File(userGroupsFolder,userGroupID).delete();
+      if (existed)
+        changeJournal.append(D4UChange.TYPE_USER_OR_GROUP,D4UChange.ACTION_DELETE,userGroupID);
     }
     finally
     {
@@ -400,54 +509,95 @@ public class Docs4UAPIImpl implements Docs4UAPI
   public D4UDocumentIterator findDocuments(Long startTime, Long endTime, Map metadataMap)
     throws InterruptedException, D4UException
   {
-    File[] files = docMetadataFolder.listFiles();
-    List includedFiles = new ArrayList();
-    int i = 0;
-    while (i < files.length)
-    {
-      File theFile = files[i++];
-      long fileStamp = theFile.lastModified();
-      if (startTime != null && startTime.longValue() > fileStamp)
-        continue;
-      if (endTime != null && endTime.longValue() < fileStamp)
-        continue;
-      if (metadataMap != null)
-      {
-        // Read this metadata file
-        String[] content = readValues(theFile);
-        D4UDocInfo stuff = new D4UDocInfoImpl();
-        getMetadataContent(stuff,content);
-        Iterator iter = metadataMap.keySet().iterator();
-        boolean include = true;
-        while (iter.hasNext())
-        {
-          String attributeName = (String)iter.next();
-          String value = (String)metadataMap.get(attributeName);
-          String[] values = stuff.getMetadata(attributeName);
-          if (values == null)
-          {
-            include = false;
-            break;
-          }
-          int j = 0;
-          while (j < values.length)
-          {
-            if (values[j].equals(value))
-              break;
-            j++;
-          }
-          if (j == values.length)
-          {
-            include = false;
-            break;
-          }
-        }
-        if (!include)
-          continue;
-      }
-      includedFiles.add(theFile.getName());
-    }
-    return new DocIterator(includedFiles);
+    return new DocIterator(documentIndex.findDocuments(startTime,endTime,metadataMap,null,metrics));
+  }
+  
+  /** Find documents which match any one of several sets of metadata criteria, within a
+  * specified modification time window.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMaps are the sets of criteria, each a map of metadata name to desired value.
+  *@return the iterator of document identifiers matching all the criteria of at least one set.
+  */
+  public D4UDocumentIterator findDocumentsMatchingAny(Long startTime, Long endTime, Map[] metadataMaps)
+    throws InterruptedException, D4UException
+  {
+    return new DocIterator(documentIndex.findDocumentsMatchingAny(startTime,endTime,metadataMaps,metrics));
+  }
+  
+  /** Find documents that a user may see.
+  *@param userGroupIDs are the identifiers of the user and all the groups the user belongs to.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMap is a map of metadata name to desired value, or null if none.
+  *@return the iterator of document identifiers matching all the criteria, which allow at least
+  * one of the given identifiers and disallow none of them.
+  */
+  public D4UDocumentIterator findAccessibleDocuments(String[] userGroupIDs, Long startTime, Long endTime, Map metadataMap)
+    throws InterruptedException, D4UException
+  {
+    return new DocIterator(documentIndex.findDocuments(startTime,endTime,metadataMap,userGroupIDs,metrics));
+  }
+  
+  /** Find one page of documents which match metadata criteria, within a specified
+  * modification time window.  Pages come in a stable order, so a continuation picks up
+  * after the last document returned even if the repository has changed in between.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMap is a map of metadata name to desired value, or null if none.
+  *@param continuation is the continuation from the previous page, or null for the first page.
+  *@param limit is the largest number of document identifiers to return.
+  *@return the page of document identifiers.
+  */
+  public D4UDocumentPage findDocumentPage(Long startTime, Long endTime, Map metadataMap, String continuation, int limit)
+    throws InterruptedException, D4UException
+  {
+    return documentIndex.findDocumentPage(startTime,endTime,metadataMap,continuation,limit,metrics);
+  }
+  
+  /** Count documents which match metadata criteria, within a specified modification
+  * time window, without listing them.
+  *@param startTime is the starting timestamp in ms since epoch, or null if none.
+  *@param endTime is the ending timestamp in ms since epoch, or null if none.
+  *@param metadataMap is a map of metadata name to desired value, or null if none.
+  *@return the number of matching documents.
+  */
+  public long countDocuments(Long startTime, Long endTime, Map metadataMap)
+    throws InterruptedException, D4UException
+  {
+    return documentIndex.countDocuments(startTime,endTime,metadataMap,metrics);
+  }
+  
+  /** Get a checkpoint marking the present end of the repository's change journal.
+  *@return the checkpoint, to pass to getChanges() to read changes made from now on.
+  */
+  public String getChangeCheckpoint()
+    throws InterruptedException, D4UException
+  {
+    return changeJournal.getCheckpoint();
+  }
+  
+  /** Get a checkpoint for the first change made at or after a given time.
+  *@param time is the time, in ms since epoch.
+  *@return the checkpoint, or null if the change journal does not go back that far.
+  */
+  public String getChangeCheckpointAt(long time)
+    throws InterruptedException, D4UException
+  {
+    return changeJournal.getCheckpoint(time);
+  }
+  
+  /** Read changes to documents and users/groups made after a checkpoint.
+  *@param checkpoint is where to start, from getChangeCheckpoint() or from an earlier page.
+  * A checkpoint from before the repository was reinstalled is refused with an exception.
+  *@param limit is the largest number of changes to return.
+  *@param waitMillis is how long to wait for a change, if there are none yet; 0 not to wait.
+  *@return the changes, oldest first, and the checkpoint to continue from.
+  */
+  public D4UChangePage getChanges(String checkpoint, int limit, long waitMillis)
+    throws InterruptedException, D4UException
+  {
+    return changeJournal.read(checkpoint,limit,waitMillis);
   }
   
   /** Create a document.
@@ -483,26 +633,35 @@ public class Docs4UAPIImpl implements Docs4UAPI
     makeLocks(docsLocks);
     try
     {
-      try
+      File metadataFile = new File(docMetadataFolder,docID);
+      boolean existed = metadataFile.exists();
+      File docFile = new File(docsFolder,docID);
+      // Content that hasn't changed is left alone, so its timestamp says when it last did
+      if (!existed || !hasContent(docFile,docInfo))
       {
-        OutputStream os = new FileOutputStream(new File(docsFolder,docID));
         try
         {
-          docInfo.getData(os);
+          OutputStream os = new FileOutputStream(docFile);
+          try
+          {
+            docInfo.getData(os);
+          }
+          finally
+          {
+            os.close();
+          }
         }
-        finally
+        catch (IOException e)
         {
-          os.close();
+          throw new D4UException(e.getMessage(),e);
         }
       }
-      catch (IOException e)
-      {
-        throw new D4UException(e.getMessage(),e);
-      }
         
-      writeValues(new File(docMetadataFolder,docID),metadataContent);
-      writeValues(new File(docAllowedPermissionsFolder,docID),docInfo.getAllowed());
-      writeValues(new File(docDisallowedPermissionsFolder,docID),docInfo.getDisallowed());
+      writeValues(metadataFile,metadataContent);
+      // Each ACL is stored once, as a shared set, and referred to here
+      aclSetStore.writeAcl(new File(docAllowedPermissionsFolder,docID),docInfo.getAllowed());
+      aclSetStore.writeAcl(new File(docDisallowedPermissionsFolder,docID),docInfo.getDisallowed());
+      changeJournal.append(D4UChange.TYPE_DOCUMENT,existed?D4UChange.ACTION_UPDATE:D4UChange.ACTION_CREATE,docID);
     }
     finally
     {
@@ -525,43 +684,41 @@ public class Docs4UAPIImpl implements Docs4UAPI
     makeLocks(docsLocks);
     try
     {
-      try
-      {
-        InputStream is = new FileInputStream(new File(docsFolder,docID));
-        try
-        {
-          docInfo.setData(is);
-        }
-        finally
-        {
-          is.close();
-        }
-      }
-      catch (IOException e)
+      return readDocument(docID,docInfo);
+    }
+    finally
+    {
+      clearLocks(docsLocks);
+    }
+
+  }
+  
+  /** Find several documents at once, under a single acquisition of the docs lock.
+  *@param docIDs are the document identifiers.
+  *@param docInfos are the document information objects to be filled in, one per identifier.
+  * It is the responsibility of the caller to close them all when they are done with them.
+  *@return true for each document that exists, false otherwise.
+  */
+  public boolean[] getDocuments(String[] docIDs, D4UDocInfo[] docInfos)
+    throws InterruptedException, D4UException
+  {
+    boolean[] rval = new boolean[docIDs.length];
+    File[] docsLocks = new File[]{docsLockFile};
+    makeLocks(docsLocks);
+    try
+    {
+      int i = 0;
+      while (i < docIDs.length)
       {
-        return false;
+        rval[i] = readDocument(docIDs[i],docInfos[i]);
+        i++;
       }
-
-      String[] metadataContent = readValues(new File(docMetadataFolder,docID));
-      if (metadataContent == null)
-        throw new D4UException("Could not find document metadata");
-      getMetadataContent(docInfo,metadataContent);
-      String[] allowed = readValues(new File(docAllowedPermissionsFolder,docID));
-      if (allowed == null)
-        throw new D4UException("Could not find document allowed permissions");
-      docInfo.setAllowed(allowed);
-      String[] disallowed = readValues(new File(docDisallowedPermissionsFolder,docID));
-      if (disallowed == null)
-        throw new D4UException("Could not find document disallowed permissions");
-      docInfo.setDisallowed(disallowed);
-
-      return true;
+      return rval;
     }
     finally
     {
       clearLocks(docsLocks);
     }
-
   }
   
   /** Get a document's last updated timestamp.
@@ -571,11 +728,65 @@ public class Docs4UAPIImpl implements Docs4UAPI
   public Long getDocumentUpdatedTime(String docID)
     throws InterruptedException, D4UException
   {
-    long time = new File(docsFolder,docID).lastModified();
+    long time = readUpdatedTime(docID);
     if (time == 0L)
       return null;
     return new Long(time);
   }
+  
+  /** Get the last updated timestamps of several documents at once.
+  *@param docIDs are the document identifiers.
+  *@return the timestamps, in ms since epoch, one per identifier; null for documents that don't exist.
+  */
+  public Long[] getDocumentUpdatedTimes(String[] docIDs)
+    throws InterruptedException, D4UException
+  {
+    Long[] rval = new Long[docIDs.length];
+    int i = 0;
+    while (i < docIDs.length)
+    {
+      long time = readUpdatedTime(docIDs[i]);
+      if (time != 0L)
+        rval[i] = new Long(time);
+      i++;
+    }
+    return rval;
+  }
+  
+  /** Summarize several documents' content, metadata and security separately.
+  *@param docIDs are the document identifiers.
+  *@return the digests, one per identifier; null for documents that don't exist.
+  */
+  public D4UDocumentDigest[] getDocumentDigests(String[] docIDs)
+    throws InterruptedException, D4UException
+  {
+    D4UDocumentDigest[] rval = new D4UDocumentDigest[docIDs.length];
+    int i = 0;
+    while (i < docIDs.length)
+    {
+      String docID = docIDs[i];
+      // Read without the docs lock, the way the document index does, and only take it for a
+      // document whose files changed while we looked, or too recently to be sure they didn't
+      long stamp = getLatestStamp(docID);
+      D4UDocumentDigest digest = readDigest(docID);
+      long checkStamp = getLatestStamp(docID);
+      if (checkStamp != stamp || checkStamp + D4UDocumentIndex.RACY_WINDOW > System.currentTimeMillis())
+      {
+        File[] docsLocks = new File[]{docsLockFile};
+        makeLocks(docsLocks);
+        try
+        {
+          digest = readDigest(docID);
+        }
+        finally
+        {
+          clearLocks(docsLocks);
+        }
+      }
+      rval[i++] = digest;
+    }
+    return rval;
+  }
     
   /** Delete a document.
   *@param docID is the document identifier.
@@ -587,10 +798,7 @@ public class Docs4UAPIImpl implements Docs4UAPI
     makeLocks(docsLocks);
     try
     {
-      new File(docsFolder,docID).delete();
-      new File(docMetadataFolder,docID).delete();
-      new File(docAllowedPermissionsFolder,docID).delete();
-      new File(docDisallowedPermissionsFolder,docID).delete();
+      removeDocument(docID);
     }
     finally
     {
@@ -598,6 +806,82 @@ public class Docs4UAPIImpl implements Docs4UAPI
     }
   }
   
+  /** Set or clear a document's expiration time.  Once it has passed, the document is deleted
+  * by the next run of a D4UExpirySweeper.  Updating the document leaves it in place.
+  *@param docID is the document identifier.
+  *@param expirationTime is the time in ms since epoch, or null if the document never expires.
+  */
+  public void setDocumentExpiration(String docID, Long expirationTime)
+    throws InterruptedException, D4UException
+  {
+    File[] docsLocks = new File[]{docsLockFile};
+    makeLocks(docsLocks);
+    try
+    {
+      if (!new File(docMetadataFolder,docID).exists())
+        throw new D4UException("Document '"+docID+"' does not exist");
+      clearExpiration(docID);
+      if (expirationTime != null)
+      {
+        // Repositories installed before expiry existed won't have the areas yet
+        docExpiryFolder.mkdir();
+        File bucketFolder = new File(expiryIndexFolder,Long.toString(getExpiryBucket(expirationTime.longValue())));
+        bucketFolder.mkdirs();
+        // The index entry goes first; one without an expiration file is just cleaned up by the sweeper
+        if (writeValue(new File(bucketFolder,docID),"") == false)
+          throw new D4UException("Could not write expiry index entry");
+        if (writeValue(new File(docExpiryFolder,docID),expirationTime.toString()) == false)
+          throw new D4UException("Could not write document expiration");
+      }
+    }
+    finally
+    {
+      clearLocks(docsLocks);
+    }
+  }
+  
+  /** Get a document's expiration time.
+  *@param docID is the document identifier.
+  *@return the time in ms since epoch, or null if the document doesn't expire.
+  */
+  public Long getDocumentExpiration(String docID)
+    throws InterruptedException, D4UException
+  {
+    return readExpiration(docID);
+  }
+  
+  /** Reserve a block of new identifiers, for callers which create many documents or
+  * users at once.  The identifiers are allocated under a single lock.
+  *@param count is the number of identifiers desired.
+  *@return the reserved identifiers.
+  */
+  public String[] reserveIDs(int count)
+    throws InterruptedException, D4UException
+  {
+    return getNewIDs(count);
+  }
+
+  /** Find out where identifier allocation has got to, without allocating anything.
+  *@return the next identifier to be allocated.
+  */
+  public String getNextID()
+    throws InterruptedException, D4UException
+  {
+    File[] idLocks = new File[]{idLockFile};
+    makeLocks(idLocks);
+    try
+    {
+      String value = readValue(idFile);
+      if (value == null)
+        throw new D4UException("Could not read ID file");
+      return value;
+    }
+    finally
+    {
+      clearLocks(idLocks);
+    }
+  }
+
   /** Get a document's URL, as a string.
   *@param docID is the document identifier.
   *@return the URL to use to access the document.
@@ -615,13 +899,310 @@ public class Docs4UAPIImpl implements Docs4UAPI
     }
   }
 
+  /** Get several documents' URLs at once.
+  *@param docIDs are the document identifiers.
+  *@return the URLs to use to access the documents, one per identifier.
+  */
+  public String[] getDocumentURLs(String[] docIDs)
+    throws InterruptedException, D4UException
+  {
+    String[] rval = new String[docIDs.length];
+    int i = 0;
+    while (i < docIDs.length)
+    {
+      rval[i] = getDocumentURL(docIDs[i]);
+      i++;
+    }
+    return rval;
+  }
+
   // Utility methods
 
+  /** Get the time a document was last updated.  Its metadata file is written on every
+  * update, but its content file only when the content changes.
+  *@return the time in ms since epoch, or 0 if the document doesn't exist.
+  */
+  protected long readUpdatedTime(String docID)
+  {
+    long contentTime = new File(docsFolder,docID).lastModified();
+    if (contentTime == 0L)
+      return 0L;
+    return Math.max(contentTime,new File(docMetadataFolder,docID).lastModified());
+  }
+  
+  /** Check whether a content file already holds a document's content.  Only files of the
+  * same length are compared.  Call with the docs lock held.
+  */
+  protected static boolean hasContent(File docFile, D4UDocInfo docInfo)
+    throws D4UException
+  {
+    Long length = docInfo.readDataLength();
+    if (length == null || !docFile.exists() || docFile.length() != length.longValue())
+      return false;
+    try
+    {
+      InputStream existing = new BufferedInputStream(new FileInputStream(docFile));
+      try
+      {
+        InputStream proposed = docInfo.readData();
+        if (proposed == null)
+          return false;
+        try
+        {
+          proposed = new BufferedInputStream(proposed);
+          while (true)
+          {
+            int value = existing.read();
+            if (value != proposed.read())
+              return false;
+            if (value == -1)
+              return true;
+          }
+        }
+        finally
+        {
+          proposed.close();
+        }
+      }
+      finally
+      {
+        existing.close();
+      }
+    }
+    catch (IOException e)
+    {
+      // Can't tell, so write it again
+      return false;
+    }
+  }
+  
+  /** Find when any of a document's files last changed.  An update rewrites some of them and
+  * a delete removes them all, so a read that began and ended with the same value saw no writer.
+  *@return the latest modification time, or 0 if none of the files exist.
+  */
+  protected long getLatestStamp(String docID)
+  {
+    long rval = new File(docsFolder,docID).lastModified();
+    rval = Math.max(rval,new File(docMetadataFolder,docID).lastModified());
+    rval = Math.max(rval,new File(docAllowedPermissionsFolder,docID).lastModified());
+    rval = Math.max(rval,new File(docDisallowedPermissionsFolder,docID).lastModified());
+    return rval;
+  }
+  
+  /** Summarize a document's files.  Call with the docs lock held, or check the files' stamps
+  * around the call.
+  *@return the digest, or null if the document doesn't exist.
+  */
+  protected D4UDocumentDigest readDigest(String docID)
+    throws D4UException
+  {
+    File docFile = new File(docsFolder,docID);
+    long contentTime = docFile.lastModified();
+    if (contentTime == 0L)
+      return null;
+    String[] metadataContent = readValues(new File(docMetadataFolder,docID));
+    String allowedDigest = D4UAclSetStore.getAclDigest(new File(docAllowedPermissionsFolder,docID));
+    String disallowedDigest = D4UAclSetStore.getAclDigest(new File(docDisallowedPermissionsFolder,docID));
+    if (metadataContent == null || allowedDigest == null || disallowedDigest == null)
+      return null;
+    return new D4UDocumentDigest(contentTime,docFile.length(),D4UAclSetStore.makeDigest(metadataContent),
+      allowedDigest,disallowedDigest);
+  }
+  
+  /** Read a document's files.  Call with the docs lock held.
+  *@return true if document exists, false otherwise.
+  */
+  protected boolean readDocument(String docID, D4UDocInfo docInfo)
+    throws D4UException
+  {
+    try
+    {
+      InputStream is = new FileInputStream(new File(docsFolder,docID));
+      try
+      {
+        docInfo.setData(is);
+      }
+      finally
+      {
+        is.close();
+      }
+    }
+    catch (IOException e)
+    {
+      return false;
+    }
+
+    String[] metadataContent = readValues(new File(docMetadataFolder,docID));
+    if (metadataContent == null)
+      throw new D4UException("Could not find document metadata");
+    getMetadataContent(docInfo,metadataContent);
+    String[] allowed = aclSetStore.readAcl(new File(docAllowedPermissionsFolder,docID));
+    if (allowed == null)
+      throw new D4UException("Could not find document allowed permissions");
+    docInfo.setAllowed(allowed);
+    String[] disallowed = aclSetStore.readAcl(new File(docDisallowedPermissionsFolder,docID));
+    if (disallowed == null)
+      throw new D4UException("Could not find document disallowed permissions");
+    docInfo.setDisallowed(disallowed);
+    return true;
+  }
+  
+  /** Delete all of a document's files.  Call with the docs lock held.
+  */
+  protected void removeDocument(String docID)
+    throws InterruptedException, D4UException
+  {
+    new File(docsFolder,docID).delete();
+    boolean existed = new File(docMetadataFolder,docID).delete();
+    new File(docAllowedPermissionsFolder,docID).delete();
+    new File(docDisallowedPermissionsFolder,docID).delete();
+    clearExpiration(docID);
+    if (existed)
+      changeJournal.append(D4UChange.TYPE_DOCUMENT,D4UChange.ACTION_DELETE,docID);
+  }
+  
+  /** Delete those of a batch of documents, all indexed in one expiry bucket, that have
+  * expired.  Index entries that no longer match the document's expiration are removed.
+  * Used by D4UExpirySweeper; the whole batch is done under one acquisition of the docs lock.
+  *@param bucket is the bucket the documents were found in.
+  *@param docIDs are the document identifiers.
+  *@param now is the present time, in ms since epoch.
+  *@return the number of documents deleted.
+  */
+  protected int deleteExpiredDocuments(long bucket, String[] docIDs, long now)
+    throws InterruptedException, D4UException
+  {
+    File bucketFolder = new File(expiryIndexFolder,Long.toString(bucket));
+    int rval = 0;
+    File[] docsLocks = new File[]{docsLockFile};
+    makeLocks(docsLocks);
+    try
+    {
+      int i = 0;
+      while (i < docIDs.length)
+      {
+        String docID = docIDs[i++];
+        Long expirationTime = readExpiration(docID);
+        if (expirationTime == null || getExpiryBucket(expirationTime.longValue()) != bucket)
+        {
+          // Left over from an expiration that was since changed or cleared
+          new File(bucketFolder,docID).delete();
+          continue;
+        }
+        if (expirationTime.longValue() > now)
+          continue;
+        removeDocument(docID);
+        rval++;
+      }
+    }
+    finally
+    {
+      clearLocks(docsLocks);
+    }
+    return rval;
+  }
+  
+  /** Begin a collection of unused ACL sets.  Taking the docs lock makes sure that any write
+  * begun earlier has finished, so the collection will see its references.  Used by
+  * D4UExpirySweeper.
+  *@return the time the collection began, in ms since epoch.
+  */
+  protected long beginAclSetCollection()
+    throws InterruptedException, D4UException
+  {
+    File[] docsLocks = new File[]{docsLockFile};
+    makeLocks(docsLocks);
+    try
+    {
+      return System.currentTimeMillis();
+    }
+    finally
+    {
+      clearLocks(docsLocks);
+    }
+  }
+  
+  /** Remove those of a batch of ACL sets, found unused by a collection, that haven't been
+  * used since it began either.  The whole batch is done under one acquisition of the docs lock.
+  *@param setIDs are the set IDs no document was found to refer to.
+  *@param collectionStart is when the collection began, in ms since epoch.
+  *@return the number of sets removed.
+  */
+  protected int removeUnusedAclSets(String[] setIDs, long collectionStart)
+    throws InterruptedException, D4UException
+  {
+    int rval = 0;
+    File[] docsLocks = new File[]{docsLockFile};
+    makeLocks(docsLocks);
+    try
+    {
+      int i = 0;
+      while (i < setIDs.length)
+      {
+        File setFile = new File(aclSetFolder,setIDs[i++]);
+        long modified = setFile.lastModified();
+        if (modified != 0L && modified < collectionStart - ACL_SET_TIME_SLACK_MILLIS && setFile.delete())
+          rval++;
+      }
+    }
+    finally
+    {
+      clearLocks(docsLocks);
+    }
+    return rval;
+  }
+  
+  /** Remove a document's expiration and its index entry.  Call with the docs lock held.
+  */
+  protected void clearExpiration(String docID)
+  {
+    Long expirationTime = readExpiration(docID);
+    if (expirationTime == null)
+      return;
+    new File(new File(expiryIndexFolder,Long.toString(getExpiryBucket(expirationTime.longValue()))),docID).delete();
+    new File(docExpiryFolder,docID).delete();
+  }
+  
+  /** Read a document's expiration time, or null if it has none. */
+  protected Long readExpiration(String docID)
+  {
+    File expiryFile = new File(docExpiryFolder,docID);
+    if (!expiryFile.exists())
+      return null;
+    String value = readValue(expiryFile);
+    if (value == null)
+      return null;
+    try
+    {
+      return new Long(value);
+    }
+    catch (NumberFormatException e)
+    {
+      return null;
+    }
+  }
+  
+  /** Get the expiry index bucket for a time.  Buckets are named by their start time. */
+  protected static long getExpiryBucket(long time)
+  {
+    return time - (((time % EXPIRY_BUCKET_MILLIS) + EXPIRY_BUCKET_MILLIS) % EXPIRY_BUCKET_MILLIS);
+  }
+
   /** Get a new identifier.
   */
   protected String getNewID()
     throws InterruptedException, D4UException
   {
+    return getNewIDs(1)[0];
+  }
+
+  /** Get a contiguous block of new identifiers, with only one trip through the ID lock.
+  */
+  protected String[] getNewIDs(int count)
+    throws InterruptedException, D4UException
+  {
+    if (count < 1)
+      throw new D4UException("Must reserve at least one ID");
     File[] idLocks = new File[]{idLockFile};
     makeLocks(idLocks);
     try
@@ -630,18 +1211,25 @@ public class Docs4UAPIImpl implements Docs4UAPI
       String value = readValue(idFile);
       if (value == null)
         throw new D4UException("Could not read ID file");
-      // Increment the value
+      // Advance the value past the whole block
       try
       {
         int x = Integer.parseInt(value);
-        x++;
-        writeValue(idFile,Integer.toString(x));
+        if (writeValue(idFile,Integer.toString(x + count)) == false)
+          throw new D4UException("Could not write ID file");
+        String[] rval = new String[count];
+        int i = 0;
+        while (i < count)
+        {
+          rval[i] = Integer.toString(x + i);
+          i++;
+        }
+        return rval;
       }
       catch (NumberFormatException e)
       {
         throw new D4UException("Bad number in ID file");
       }
-      return value;
     }
     finally
     {
@@ -777,69 +1365,21 @@ public class Docs4UAPIImpl implements Docs4UAPI
       throw new D4UException("Could not remove directory '"+directory.toString()+"'");
   }
 
-  /** Create locks.
+  /** Create locks.  See D4ULockManager for how abandoned locks are recovered.
   */
   protected static void makeLocks(File[] lockDirs)
     throws InterruptedException, D4UException
   {
-    while (true)
-    {
-      if (makeLocksNoWait(lockDirs) == false)
-      {
-        waitRandom();
-        continue;
-      }
-      break;
-    }
+    D4ULockManager.makeLocks(lockDirs);
   }
 
-  /** Create locks without waiting.
-  */
-  protected static boolean makeLocksNoWait(File[] lockDirs)
-    throws D4UException
-  {
-    int i = 0;
-    while (i < lockDirs.length)
-    {
-      if (lockDirs[i].mkdir() == false)
-      {
-        // Assume we didn't get lock i.
-        while (i > 0)
-        {
-          --i;
-          if (lockDirs[i].delete() == false)
-            throw new D4UException("Couldn't clean up locks; failing");
-        }
-        return false;
-      }
-      i++;
-    }
-    return true;
-  }
-  
   /** Clear locks.
   */
   protected static void clearLocks(File[] lockDirs)
     throws D4UException
   {
-    int i = 0;
-    while (i < lockDirs.length)
-    {
-      if (lockDirs[i].delete() == false)
-        throw new D4UException("Couldn't clean up locks; failing");
-      i++;
-    }
-  }
-  
-  /** Wait for a random amount of time.
-  */
-  protected static void waitRandom()
-    throws InterruptedException
-  {
-    long amt = (long)randomGenerator.nextInt(60000);
-    Thread.sleep(amt);
+    D4ULockManager.clearLocks(lockDirs);
   }
-  
 
   /** Write a set of strings to a file.
   */
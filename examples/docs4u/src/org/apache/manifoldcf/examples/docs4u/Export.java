@@ -0,0 +1,119 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+
+/** This class exports the contents of a Docs4U content management system to a single
+* archive file.
+*/
+public class Export
+{
+  private Export()
+  {
+  }
+  
+  public static void main(String[] argv)
+  {
+    if (argv.length < 2 || argv.length > 3 || (argv.length == 3 && !argv[2].equals("-z")))
+    {
+      System.err.println("Usage: Export <directory> <archive_file> [-z]");
+      System.err.println("-z compresses the archive");
+      System.exit(1);
+    }
+    
+    String directory = argv[0];
+    File archiveFile = new File(argv[1]);
+    boolean compress = (argv.length == 3);
+    
+    try
+    {
+      OutputStream os = new FileOutputStream(archiveFile);
+      try
+      {
+        Docs4UAPI api = D4UFactory.makeAPI(directory);
+        D4UArchiveWriter writer = new D4UArchiveWriter(os,compress);
+        
+        // Metadata names first
+        writer.writeMetadataNames(api.getMetadataNames());
+        
+        // Then users and groups, so that an importer can resolve ACLs as documents arrive
+        String[] userGroupIDs = api.getUserOrGroupIDs();
+        int userCount = 0;
+        int i = 0;
+        while (i < userGroupIDs.length)
+        {
+          String userGroupID = userGroupIDs[i++];
+          String name = api.getUserOrGroupName(userGroupID);
+          String[] groups = api.getUserOrGroupGroups(userGroupID);
+          // Skip anything deleted since we listed it
+          if (name == null || groups == null)
+            continue;
+          writer.writeUserOrGroup(userGroupID,name,api.getUserLoginID(userGroupID),groups);
+          userCount++;
+        }
+        
+        // Finally, the documents
+        int docCount = 0;
+        D4UDocumentIterator iter = api.findDocuments(null,null,null);
+        while (iter.hasNext())
+        {
+          String docID = iter.getNext();
+          D4UDocInfo docInfo = D4UFactory.makeDocInfo();
+          try
+          {
+            if (api.getDocument(docID,docInfo))
+            {
+              writer.writeDocument(docID,docInfo);
+              docCount++;
+            }
+          }
+          finally
+          {
+            docInfo.close();
+          }
+        }
+        
+        writer.finish();
+        System.out.println("Exported "+Integer.toString(userCount)+" users/groups and "+
+          Integer.toString(docCount)+" documents");
+      }
+      catch (InterruptedException e)
+      {
+        e.printStackTrace(System.err);
+        System.exit(100);
+      }
+      catch (D4UException e)
+      {
+        e.printStackTrace(System.err);
+        System.exit(2);
+      }
+      finally
+      {
+        os.close();
+      }
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(3);
+    }
+  }
+  
+}
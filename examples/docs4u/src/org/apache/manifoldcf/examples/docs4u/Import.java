@@ -0,0 +1,345 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** This class imports a Docs4U archive, as written by Export, into a Docs4U content
+* management system.  The archive is read sequentially by one thread, while a pool of worker
+* threads writes documents into the repository.  Imported users, groups, and documents all
+* receive new identifiers, which are reserved in blocks, so an archive may be imported into a
+* repository that already has content.  Security references to imported users and groups are
+* translated to the new identifiers.
+*/
+public class Import
+{
+  /** Number of identifiers each thread reserves at a time */
+  protected final static int ID_BLOCK_SIZE = 256;
+  /** Marker telling a worker thread to quit */
+  protected final static Object END_OF_WORK = new Object();
+  
+  private Import()
+  {
+  }
+  
+  public static void main(String[] argv)
+  {
+    if (argv.length < 2 || argv.length > 3)
+    {
+      System.err.println("Usage: Import <directory> <archive_file> [<thread_count>]");
+      System.exit(1);
+    }
+    
+    String directory = argv[0];
+    File archiveFile = new File(argv[1]);
+    int threadCount = 4;
+    if (argv.length == 3)
+    {
+      try
+      {
+        threadCount = Integer.parseInt(argv[2]);
+      }
+      catch (NumberFormatException e)
+      {
+        threadCount = 0;
+      }
+      if (threadCount < 1)
+      {
+        System.err.println("Thread count must be a positive integer");
+        System.exit(1);
+      }
+    }
+    
+    try
+    {
+      InputStream is = new FileInputStream(archiveFile);
+      try
+      {
+        Docs4UAPI api = D4UFactory.makeAPI(directory);
+        D4UArchiveReader reader = new D4UArchiveReader(is);
+        
+        // Start the workers.  The queue is bounded so that spooled content can't pile up.
+        BlockingQueue queue = new ArrayBlockingQueue(threadCount * 4);
+        ImportWorker[] workers = new ImportWorker[threadCount];
+        int i = 0;
+        while (i < workers.length)
+        {
+          workers[i] = new ImportWorker(api,queue);
+          workers[i].start();
+          i++;
+        }
+        
+        int userCount = 0;
+        int docCount = 0;
+        try
+        {
+          Map idMap = new HashMap();
+          IDBlock userIDs = new IDBlock(api);
+          while (true)
+          {
+            D4UDocInfo docInfo = D4UFactory.makeDocInfo();
+            boolean queued = false;
+            try
+            {
+              byte recordType = reader.next(docInfo);
+              if (recordType == D4UArchiveWriter.RECORD_END)
+                break;
+              if (recordType == D4UArchiveWriter.RECORD_METADATA_NAMES)
+                mergeMetadataNames(api,reader.getMetadataNames());
+              else if (recordType == D4UArchiveWriter.RECORD_USER_OR_GROUP)
+              {
+                String newID = mapUserOrGroupID(idMap,userIDs,reader.getUserOrGroupID());
+                String[] groups = reader.getGroups();
+                String[] newGroups = new String[groups.length];
+                int j = 0;
+                while (j < groups.length)
+                {
+                  newGroups[j] = mapUserOrGroupID(idMap,userIDs,groups[j]);
+                  j++;
+                }
+                api.updateUserOrGroup(newID,reader.getUserOrGroupName(),reader.getLoginID(),newGroups);
+                userCount++;
+              }
+              else
+              {
+                reader.readContent(docInfo);
+                docInfo.setAllowed(translateACL(idMap,docInfo.getAllowed()));
+                docInfo.setDisallowed(translateACL(idMap,docInfo.getDisallowed()));
+                checkWorkers(workers);
+                queue.put(docInfo);
+                queued = true;
+                docCount++;
+              }
+            }
+            finally
+            {
+              // Once queued, the worker owns the document info object
+              if (!queued)
+                docInfo.close();
+            }
+          }
+        }
+        finally
+        {
+          // Shut down the workers, discarding any work they didn't get to if one failed
+          i = 0;
+          while (i < workers.length)
+          {
+            workers[i++].stopWorking();
+          }
+          i = 0;
+          while (i < workers.length)
+          {
+            workers[i++].join();
+          }
+        }
+        checkWorkers(workers);
+        System.out.println("Imported "+Integer.toString(userCount)+" users/groups and "+
+          Integer.toString(docCount)+" documents");
+      }
+      catch (InterruptedException e)
+      {
+        e.printStackTrace(System.err);
+        System.exit(100);
+      }
+      catch (D4UException e)
+      {
+        e.printStackTrace(System.err);
+        System.exit(2);
+      }
+      finally
+      {
+        is.close();
+      }
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(3);
+    }
+  }
+  
+  /** Add the archive's metadata names to those already present in the repository.
+  */
+  protected static void mergeMetadataNames(Docs4UAPI api, String[] archiveNames)
+    throws InterruptedException, D4UException
+  {
+    Set names = new LinkedHashSet(Arrays.asList(api.getMetadataNames()));
+    int originalSize = names.size();
+    names.addAll(Arrays.asList(archiveNames));
+    if (names.size() != originalSize)
+      api.setMetadataNames((String[])names.toArray(new String[0]));
+  }
+  
+  /** Find or assign the new identifier corresponding to an archived user or group ID.
+  * Groups may be referenced before their own records appear, so assignment happens on
+  * first reference.
+  */
+  protected static String mapUserOrGroupID(Map idMap, IDBlock userIDs, String oldID)
+    throws InterruptedException, D4UException
+  {
+    String newID = (String)idMap.get(oldID);
+    if (newID == null)
+    {
+      newID = userIDs.next();
+      idMap.put(oldID,newID);
+    }
+    return newID;
+  }
+  
+  /** Translate a document ACL.  IDs that don't refer to imported users or groups are
+  * left alone.
+  */
+  protected static String[] translateACL(Map idMap, String[] acl)
+  {
+    String[] rval = new String[acl.length];
+    int i = 0;
+    while (i < acl.length)
+    {
+      String newID = (String)idMap.get(acl[i]);
+      rval[i] = (newID == null)?acl[i]:newID;
+      i++;
+    }
+    return rval;
+  }
+  
+  /** Throw the first error any worker encountered.
+  */
+  protected static void checkWorkers(ImportWorker[] workers)
+    throws InterruptedException, D4UException
+  {
+    int i = 0;
+    while (i < workers.length)
+    {
+      workers[i++].checkError();
+    }
+  }
+  
+  /** A block of reserved identifiers, which is refilled as needed.
+  */
+  protected static class IDBlock
+  {
+    protected Docs4UAPI api;
+    protected String[] ids = new String[0];
+    protected int index = 0;
+    
+    public IDBlock(Docs4UAPI api)
+    {
+      this.api = api;
+    }
+    
+    public String next()
+      throws InterruptedException, D4UException
+    {
+      if (index == ids.length)
+      {
+        ids = api.reserveIDs(ID_BLOCK_SIZE);
+        index = 0;
+      }
+      return ids[index++];
+    }
+  }
+  
+  /** Worker thread, which writes queued documents into the repository.
+  */
+  protected static class ImportWorker extends Thread
+  {
+    protected Docs4UAPI api;
+    protected BlockingQueue queue;
+    protected IDBlock docIDs;
+    protected volatile Throwable exception = null;
+    
+    public ImportWorker(Docs4UAPI api, BlockingQueue queue)
+    {
+      super();
+      setDaemon(true);
+      this.api = api;
+      this.queue = queue;
+      this.docIDs = new IDBlock(api);
+    }
+    
+    public void run()
+    {
+      try
+      {
+        while (true)
+        {
+          Object item = queue.take();
+          if (item == END_OF_WORK)
+            break;
+          D4UDocInfo docInfo = (D4UDocInfo)item;
+          try
+          {
+            // Already failed?  Just drain the queue.
+            if (exception == null)
+              api.updateDocument(docIDs.next(),docInfo);
+          }
+          catch (Throwable e)
+          {
+            exception = e;
+          }
+          finally
+          {
+            try
+            {
+              docInfo.close();
+            }
+            catch (D4UException e)
+            {
+              if (exception == null)
+                exception = e;
+            }
+          }
+        }
+      }
+      catch (InterruptedException e)
+      {
+        exception = e;
+      }
+    }
+    
+    /** Signal the worker to finish once the queue is drained.
+    */
+    public void stopWorking()
+      throws InterruptedException
+    {
+      queue.put(END_OF_WORK);
+    }
+    
+    public void checkError()
+      throws InterruptedException, D4UException
+    {
+      Throwable e = exception;
+      if (e == null)
+        return;
+      if (e instanceof InterruptedException)
+        throw (InterruptedException)e;
+      if (e instanceof D4UException)
+        throw (D4UException)e;
+      if (e instanceof RuntimeException)
+        throw (RuntimeException)e;
+      if (e instanceof Error)
+        throw (Error)e;
+      throw new D4UException(e.getMessage(),e);
+    }
+  }
+  
+}
@@ -0,0 +1,777 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** This class drives a synthetic workload against a Docs4U content management system, so that
+* lock contention and scan behavior can be examined under production-like load.  It can first
+* populate the repository with a generated corpus, and then runs a weighted mix of document
+* reads, updates, creates, metadata searches, and user lookups from a number of threads, in
+* this process or in several child processes, optionally paced to a target rate.  Throughput
+* and latency percentiles are reported per operation.
+*
+* When a target rate is given, each operation is timed from when it was scheduled to start
+* rather than when it actually started, so a repository that falls behind shows up in the
+* latencies instead of just lowering the rate.
+*/
+public class LoadGenerator
+{
+  /** Operation names, in the order used by the mix */
+  protected final static String[] OPERATIONS = new String[]{"get","update","create","find","finduser"};
+  /** Documents each thread prepares for updates and creates */
+  protected final static int PREPARED_PER_THREAD = 8;
+  /** Marker for result lines written by child processes */
+  protected final static String RESULT_MARKER = "RESULT";
+  protected final static String LOCKS_MARKER = "LOCKS";
+  protected final static String ELAPSED_MARKER = "ELAPSED";
+
+  protected String directory;
+  protected D4UCorpusGenerator generator = new D4UCorpusGenerator();
+  protected String[] metadataNames = D4UCorpusGenerator.DEFAULT_METADATA_NAMES;
+  protected int metadataCardinality = 10;
+  protected int userCount = 100;
+  protected long seed = 1L;
+  protected int[] mix = new int[]{70,10,5,10,5};
+  protected int threadCount = 4;
+  protected int processCount = 1;
+  protected double rate = 0.0;
+  protected long durationSeconds = 30L;
+  
+  /** Latencies per operation, in microseconds */
+  protected D4UHistogram[] latencies;
+  /** Errors per operation */
+  protected AtomicLong[] errors;
+  /** Lock statistics: acquisitions, contended, wait milliseconds, timeouts, broken leases */
+  protected long[] lockStats = new long[5];
+  /** Longest measured run time across processes, in nanoseconds */
+  protected long elapsedNanos = 0L;
+  
+  public LoadGenerator(String directory)
+  {
+    this.directory = directory;
+    latencies = new D4UHistogram[OPERATIONS.length];
+    errors = new AtomicLong[OPERATIONS.length];
+    int i = 0;
+    while (i < OPERATIONS.length)
+    {
+      latencies[i] = new D4UHistogram();
+      errors[i] = new AtomicLong(0L);
+      i++;
+    }
+  }
+  
+  protected static void usage()
+  {
+    System.err.println("Usage: LoadGenerator <directory> [<option> <value> ...]");
+    System.err.println("Corpus options, used with -populate:");
+    System.err.println("  -populate <document_count>   install the directory and fill it with generated content");
+    System.err.println("  -sizes <size[*weight],...>   document size distribution, e.g. 1024*8,65536*2,1048576");
+    System.err.println("  -cardinality <n>             distinct values per metadata field");
+    System.err.println("  -users <n>  -groups <n>      number of users and groups");
+    System.err.println("  -fanout <n>                  users and groups in each document's allowed list");
+    System.err.println("  -depth <n>                   group nesting depth");
+    System.err.println("Workload options:");
+    System.err.println("  -mix get=70,update=10,create=5,find=10,finduser=5");
+    System.err.println("  -threads <n>  -processes <n> threads per process, and processes");
+    System.err.println("  -rate <ops_per_second>       total target rate; 0 means as fast as possible");
+    System.err.println("  -duration <seconds>  -seed <n>");
+    System.exit(1);
+  }
+  
+  public static void main(String[] argv)
+  {
+    if (argv.length < 1)
+      usage();
+    
+    LoadGenerator loadGenerator = new LoadGenerator(argv[0]);
+    int populateCount = -1;
+    int workerIndex = -1;
+    // Arguments passed along to child processes
+    List workerArgs = new ArrayList();
+    try
+    {
+      int i = 1;
+      while (i < argv.length)
+      {
+        String option = argv[i++];
+        if (i == argv.length)
+          usage();
+        String value = argv[i++];
+        if (option.equals("-populate"))
+          populateCount = Integer.parseInt(value);
+        else if (option.equals("-processes"))
+          loadGenerator.processCount = Integer.parseInt(value);
+        else if (option.equals("-worker"))
+          workerIndex = Integer.parseInt(value);
+        else
+        {
+          if (loadGenerator.setOption(option,value) == false)
+            usage();
+          workerArgs.add(option);
+          workerArgs.add(value);
+        }
+      }
+    }
+    catch (NumberFormatException e)
+    {
+      usage();
+    }
+    if (loadGenerator.threadCount < 1 || loadGenerator.processCount < 1 || loadGenerator.durationSeconds < 1L)
+    {
+      System.err.println("Thread count, process count, and duration must be positive");
+      System.exit(1);
+    }
+    
+    try
+    {
+      if (workerIndex != -1)
+      {
+        // Child process: run, and hand the raw results back to the parent
+        loadGenerator.runWorkers(workerIndex);
+        loadGenerator.writeResults(System.out);
+        System.out.flush();
+        System.exit(0);
+      }
+      
+      if (populateCount >= 0)
+        loadGenerator.populate(populateCount);
+      if (loadGenerator.processCount == 1)
+        loadGenerator.runWorkers(0);
+      else
+        loadGenerator.runProcesses(workerArgs);
+      loadGenerator.report(System.out);
+    }
+    catch (InterruptedException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(100);
+    }
+    catch (D4UException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(2);
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(3);
+    }
+  }
+  
+  /** Apply a command-line option.
+  *@return false if the option isn't recognized.
+  */
+  protected boolean setOption(String option, String value)
+  {
+    if (option.equals("-sizes"))
+      generator.setContentSizes(parseSizes(value));
+    else if (option.equals("-cardinality"))
+    {
+      metadataCardinality = Integer.parseInt(value);
+      generator.setMetadataCardinality(metadataCardinality);
+    }
+    else if (option.equals("-users"))
+    {
+      userCount = Integer.parseInt(value);
+      generator.setUserCount(userCount);
+    }
+    else if (option.equals("-groups"))
+      generator.setGroupCount(Integer.parseInt(value));
+    else if (option.equals("-fanout"))
+      generator.setAclFanout(Integer.parseInt(value));
+    else if (option.equals("-depth"))
+      generator.setGroupDepth(Integer.parseInt(value));
+    else if (option.equals("-seed"))
+    {
+      seed = Long.parseLong(value);
+      generator.setSeed(seed);
+    }
+    else if (option.equals("-mix"))
+      mix = parseMix(value);
+    else if (option.equals("-threads"))
+      threadCount = Integer.parseInt(value);
+    else if (option.equals("-rate"))
+      rate = Double.parseDouble(value);
+    else if (option.equals("-duration"))
+      durationSeconds = Long.parseLong(value);
+    else
+      return false;
+    return true;
+  }
+  
+  /** Parse a size distribution, such as "1024*8,65536*2,1048576".
+  */
+  protected static int[] parseSizes(String value)
+  {
+    List sizes = new ArrayList();
+    String[] pieces = value.split(",");
+    int i = 0;
+    while (i < pieces.length)
+    {
+      String piece = pieces[i++].trim();
+      int weight = 1;
+      int index = piece.indexOf("*");
+      if (index != -1)
+      {
+        weight = Integer.parseInt(piece.substring(index+1).trim());
+        piece = piece.substring(0,index).trim();
+      }
+      Integer size = new Integer(Integer.parseInt(piece));
+      while (weight-- > 0)
+      {
+        sizes.add(size);
+      }
+    }
+    if (sizes.size() == 0)
+      throw new NumberFormatException("No sizes given");
+    int[] rval = new int[sizes.size()];
+    i = 0;
+    while (i < rval.length)
+    {
+      rval[i] = ((Integer)sizes.get(i)).intValue();
+      i++;
+    }
+    return rval;
+  }
+  
+  /** Parse an operation mix, such as "get=70,update=10".  Operations not mentioned get no weight.
+  */
+  protected static int[] parseMix(String value)
+  {
+    int[] rval = new int[OPERATIONS.length];
+    int total = 0;
+    String[] pieces = value.split(",");
+    int i = 0;
+    while (i < pieces.length)
+    {
+      String piece = pieces[i++].trim();
+      int index = piece.indexOf("=");
+      if (index == -1)
+        throw new NumberFormatException("Bad mix entry '"+piece+"'");
+      int op = findOperation(piece.substring(0,index).trim());
+      if (op == -1)
+        throw new NumberFormatException("Unknown operation in '"+piece+"'");
+      rval[op] = Integer.parseInt(piece.substring(index+1).trim());
+      if (rval[op] < 0)
+        throw new NumberFormatException("Negative weight in '"+piece+"'");
+      total += rval[op];
+    }
+    if (total == 0)
+      throw new NumberFormatException("Mix has no weight");
+    return rval;
+  }
+  
+  protected static int findOperation(String name)
+  {
+    int i = 0;
+    while (i < OPERATIONS.length)
+    {
+      if (OPERATIONS[i].equals(name))
+        return i;
+      i++;
+    }
+    return -1;
+  }
+  
+  /** Install the repository and fill it with a generated corpus.
+  */
+  protected void populate(int documentCount)
+    throws InterruptedException, D4UException
+  {
+    makeRootDirectories(directory);
+    Docs4UAPI api = D4UFactory.makeAPI(directory);
+    api.install();
+    System.err.println("Populating: "+generator.describe()+" documents="+documentCount);
+    long startTime = System.currentTimeMillis();
+    generator.generate(api,documentCount);
+    System.err.println("Populated in "+(System.currentTimeMillis() - startTime)+" ms");
+  }
+  
+  /** Create the directories of any local roots, since installing expects them to exist.
+  *@param root is the repository root, which may be a federation of several.
+  */
+  protected static void makeRootDirectories(String root)
+  {
+    String[] roots = D4UFederatedAPI.parseURL(root);
+    if (roots == null)
+      roots = new String[]{root};
+    int i = 0;
+    while (i < roots.length)
+    {
+      String memberRoot = roots[i++];
+      if (!memberRoot.startsWith(D4UProtocol.URL_PREFIX))
+        new File(memberRoot).mkdirs();
+    }
+  }
+  
+  /** Run the workload from this process's threads.
+  *@param processIndex distinguishes this process's random choices from other processes'.
+  */
+  protected void runWorkers(int processIndex)
+    throws InterruptedException, D4UException
+  {
+    Docs4UAPI api = D4UFactory.makeAPI(directory);
+    String[] docIDs = listDocuments(api);
+    if (docIDs.length == 0 && (mix[0] > 0 || mix[1] > 0))
+      throw new D4UException("Repository has no documents to read or update; use -populate");
+    String[] principals = api.getUserOrGroupIDs();
+    long[] startLockStats = getLockStats();
+    
+    // Each thread gets an equal share of the target rate
+    long intervalNanos = 0L;
+    if (rate > 0.0)
+      intervalNanos = (long)(1000000000.0 * (double)threadCount * (double)processCount / rate);
+    long startTime = System.nanoTime();
+    long endTime = startTime + durationSeconds * 1000000000L;
+    WorkerThread[] threads = new WorkerThread[threadCount];
+    int i = 0;
+    while (i < threadCount)
+    {
+      Random random = new Random(seed + (long)processIndex * 1000L + (long)i);
+      threads[i] = new WorkerThread(api,random,docIDs,principals,startTime,endTime,intervalNanos);
+      threads[i].start();
+      i++;
+    }
+    D4UException exception = null;
+    i = 0;
+    while (i < threadCount)
+    {
+      threads[i].join();
+      if (exception == null)
+        exception = threads[i].getException();
+      i++;
+    }
+    if (exception != null)
+      throw exception;
+    elapsedNanos = System.nanoTime() - startTime;
+    long[] endLockStats = getLockStats();
+    i = 0;
+    while (i < lockStats.length)
+    {
+      lockStats[i] = endLockStats[i] - startLockStats[i];
+      i++;
+    }
+  }
+  
+  /** Run the workload in child processes, and gather their results.
+  */
+  protected void runProcesses(List workerArgs)
+    throws InterruptedException, D4UException, IOException
+  {
+    ProcessReader[] readers = new ProcessReader[processCount];
+    int i = 0;
+    while (i < processCount)
+    {
+      List command = new ArrayList();
+      command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+      // Pass along any Docs4U tuning properties
+      Iterator iter = System.getProperties().keySet().iterator();
+      while (iter.hasNext())
+      {
+        String key = (String)iter.next();
+        if (key.startsWith("docs4u."))
+          command.add("-D" + key + "=" + System.getProperty(key));
+      }
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      command.add(LoadGenerator.class.getName());
+      command.add(directory);
+      command.addAll(workerArgs);
+      command.add("-processes");
+      command.add(Integer.toString(processCount));
+      command.add("-worker");
+      command.add(Integer.toString(i));
+      ProcessBuilder pb = new ProcessBuilder(command);
+      pb.redirectErrorStream(true);
+      readers[i] = new ProcessReader(pb.start(),i);
+      readers[i].start();
+      i++;
+    }
+    D4UException exception = null;
+    i = 0;
+    while (i < processCount)
+    {
+      ProcessReader reader = readers[i];
+      reader.join();
+      int exitCode = reader.getProcess().waitFor();
+      if (exception == null && (exitCode != 0 || reader.getException() != null))
+        exception = new D4UException("Load process "+i+" failed with exit code "+exitCode, reader.getException());
+      i++;
+    }
+    if (exception != null)
+      throw exception;
+  }
+  
+  /** Write this process's raw results, in the form readResultLine() understands.
+  */
+  protected void writeResults(PrintStream out)
+  {
+    int i = 0;
+    while (i < OPERATIONS.length)
+    {
+      D4UHistogram h = latencies[i];
+      StringBuffer sb = new StringBuffer(RESULT_MARKER);
+      sb.append(" ").append(OPERATIONS[i]).append(" ").append(errors[i].get());
+      sb.append(" ").append(h.getSum()).append(" ").append(h.getMax()).append(" ");
+      long[] buckets = h.getBuckets();
+      int j = 0;
+      while (j < buckets.length)
+      {
+        if (j > 0)
+          sb.append(",");
+        sb.append(buckets[j++]);
+      }
+      out.println(sb.toString());
+      i++;
+    }
+    StringBuffer sb = new StringBuffer(LOCKS_MARKER);
+    i = 0;
+    while (i < lockStats.length)
+    {
+      sb.append(" ").append(lockStats[i++]);
+    }
+    out.println(sb.toString());
+    out.println(ELAPSED_MARKER + " " + elapsedNanos);
+  }
+  
+  /** Merge one line of a child process's results.
+  *@return false if the line isn't a result line.
+  */
+  protected synchronized boolean readResultLine(String line)
+  {
+    String[] pieces = line.split(" ");
+    try
+    {
+      if (pieces[0].equals(RESULT_MARKER) && pieces.length == 6)
+      {
+        int op = findOperation(pieces[1]);
+        if (op == -1)
+          return false;
+        errors[op].addAndGet(Long.parseLong(pieces[2]));
+        String[] bucketStrings = pieces[5].split(",");
+        long[] buckets = new long[bucketStrings.length];
+        int i = 0;
+        while (i < buckets.length)
+        {
+          buckets[i] = Long.parseLong(bucketStrings[i]);
+          i++;
+        }
+        latencies[op].merge(buckets,Long.parseLong(pieces[3]),Long.parseLong(pieces[4]));
+        return true;
+      }
+      if (pieces[0].equals(LOCKS_MARKER) && pieces.length == lockStats.length + 1)
+      {
+        int i = 0;
+        while (i < lockStats.length)
+        {
+          lockStats[i] += Long.parseLong(pieces[i+1]);
+          i++;
+        }
+        return true;
+      }
+      if (pieces[0].equals(ELAPSED_MARKER) && pieces.length == 2)
+      {
+        elapsedNanos = Math.max(elapsedNanos,Long.parseLong(pieces[1]));
+        return true;
+      }
+    }
+    catch (NumberFormatException e)
+    {
+    }
+    return false;
+  }
+  
+  /** Print the report.
+  */
+  protected void report(PrintStream out)
+  {
+    double seconds = (double)elapsedNanos / 1000000000.0;
+    long totalCount = 0L;
+    long totalErrors = 0L;
+    out.println(pad("Operation",10)+lpad("count",10)+lpad("errors",8)+lpad("ops/s",10)+
+      lpad("mean us",10)+lpad("p50 us",10)+lpad("p95 us",10)+lpad("p99 us",10)+lpad("max us",10));
+    int i = 0;
+    while (i < OPERATIONS.length)
+    {
+      D4UHistogram h = latencies[i];
+      long count = h.getCount();
+      totalCount += count;
+      totalErrors += errors[i].get();
+      if (count > 0L || errors[i].get() > 0L)
+      {
+        out.println(pad(OPERATIONS[i],10)+lpad(Long.toString(count),10)+lpad(Long.toString(errors[i].get()),8)+
+          lpad(Long.toString(Math.round((double)count / seconds)),10)+lpad(Long.toString(Math.round(h.getMean())),10)+
+          lpad(Long.toString(h.getPercentile(50.0)),10)+lpad(Long.toString(h.getPercentile(95.0)),10)+
+          lpad(Long.toString(h.getPercentile(99.0)),10)+lpad(Long.toString(h.getMax()),10));
+      }
+      i++;
+    }
+    out.println("Total: "+totalCount+" operations, "+totalErrors+" errors in "+Math.round(seconds * 10.0) / 10.0+
+      " s = "+Math.round((double)totalCount / seconds)+" ops/s from "+threadCount * processCount+" threads in "+
+      processCount+" process(es)");
+    out.println("Locks: "+lockStats[0]+" acquired, "+lockStats[1]+" contended, "+lockStats[2]+" ms waiting, "+
+      lockStats[3]+" timeouts, "+lockStats[4]+" broken leases");
+  }
+  
+  protected static long[] getLockStats()
+  {
+    return new long[]{D4ULockManager.getAcquisitionCount(),D4ULockManager.getContendedCount(),
+      D4ULockManager.getTotalWaitMillis(),D4ULockManager.getTimeoutCount(),D4ULockManager.getBrokenLeaseCount()};
+  }
+  
+  protected static String[] listDocuments(Docs4UAPI api)
+    throws InterruptedException, D4UException
+  {
+    List rval = new ArrayList();
+    D4UDocumentIterator iter = api.findDocuments(null,null,null);
+    while (iter.hasNext())
+    {
+      rval.add(iter.getNext());
+    }
+    return (String[])rval.toArray(new String[0]);
+  }
+  
+  protected static String pad(String value, int width)
+  {
+    StringBuffer sb = new StringBuffer(value);
+    while (sb.length() < width)
+    {
+      sb.append(' ');
+    }
+    return sb.toString();
+  }
+  
+  protected static String lpad(String value, int width)
+  {
+    StringBuffer sb = new StringBuffer();
+    while (sb.length() + value.length() < width)
+    {
+      sb.append(' ');
+    }
+    sb.append(value);
+    return sb.toString();
+  }
+  
+  /** Thread that performs workload operations until the end time.
+  */
+  protected class WorkerThread extends Thread
+  {
+    protected Docs4UAPI api;
+    protected Random random;
+    protected String[] docIDs;
+    protected long startTime;
+    protected long endTime;
+    protected long intervalNanos;
+    protected D4UDocInfo[] prepared;
+    protected int totalWeight = 0;
+    protected D4UException exception = null;
+    
+    public WorkerThread(Docs4UAPI api, Random random, String[] docIDs, String[] principals,
+      long startTime, long endTime, long intervalNanos)
+      throws D4UException
+    {
+      super();
+      setDaemon(true);
+      this.api = api;
+      this.random = random;
+      this.docIDs = docIDs;
+      // Stagger the threads so that paced operations don't all fire together
+      this.startTime = startTime + ((intervalNanos > 0L)?(long)(random.nextDouble() * (double)intervalNanos):0L);
+      this.endTime = endTime;
+      this.intervalNanos = intervalNanos;
+      int i = 0;
+      while (i < mix.length)
+      {
+        totalWeight += mix[i++];
+      }
+      prepared = new D4UDocInfo[PREPARED_PER_THREAD];
+      i = 0;
+      while (i < prepared.length)
+      {
+        prepared[i++] = generator.makeDocument(random,principals);
+      }
+    }
+    
+    public void run()
+    {
+      try
+      {
+        long operationCount = 0L;
+        while (true)
+        {
+          long scheduled;
+          if (intervalNanos > 0L)
+          {
+            scheduled = startTime + operationCount * intervalNanos;
+            long delay = scheduled - System.nanoTime();
+            if (delay > 0L)
+              Thread.sleep(delay / 1000000L,(int)(delay % 1000000L));
+          }
+          else
+            scheduled = System.nanoTime();
+          if (scheduled >= endTime)
+            break;
+          int op = pickOperation();
+          try
+          {
+            performOperation(op);
+          }
+          catch (D4UException e)
+          {
+            if (errors[op].incrementAndGet() == 1L)
+              System.err.println("First "+OPERATIONS[op]+" error: "+e.getMessage());
+          }
+          latencies[op].record((System.nanoTime() - scheduled) / 1000L);
+          operationCount++;
+        }
+      }
+      catch (InterruptedException e)
+      {
+        exception = new D4UException("Interrupted",e);
+      }
+      try
+      {
+        int i = 0;
+        while (i < prepared.length)
+        {
+          prepared[i++].close();
+        }
+      }
+      catch (D4UException e)
+      {
+        if (exception == null)
+          exception = e;
+      }
+    }
+    
+    public D4UException getException()
+    {
+      return exception;
+    }
+    
+    protected int pickOperation()
+    {
+      int value = random.nextInt(totalWeight);
+      int i = 0;
+      while (true)
+      {
+        value -= mix[i];
+        if (value < 0)
+          return i;
+        i++;
+      }
+    }
+    
+    protected void performOperation(int op)
+      throws InterruptedException, D4UException
+    {
+      switch (op)
+      {
+      case 0:
+        D4UDocInfo docInfo = D4UFactory.makeDocInfo();
+        try
+        {
+          api.getDocument(docIDs[random.nextInt(docIDs.length)],docInfo);
+        }
+        finally
+        {
+          docInfo.close();
+        }
+        break;
+      case 1:
+        api.updateDocument(docIDs[random.nextInt(docIDs.length)],prepared[random.nextInt(prepared.length)]);
+        break;
+      case 2:
+        api.createDocument(prepared[random.nextInt(prepared.length)]);
+        break;
+      case 3:
+        Map metadataMap = new HashMap();
+        metadataMap.put(metadataNames[random.nextInt(metadataNames.length)],
+          D4UCorpusGenerator.metadataValue(random.nextInt(metadataCardinality)));
+        D4UDocumentIterator iter = api.findDocuments(null,null,metadataMap);
+        while (iter.hasNext())
+        {
+          iter.getNext();
+        }
+        break;
+      case 4:
+        api.findUser("user"+random.nextInt(userCount));
+        break;
+      }
+    }
+  }
+  
+  /** Thread that reads a child process's output, merging its results and echoing the rest.
+  */
+  protected class ProcessReader extends Thread
+  {
+    protected Process process;
+    protected int processIndex;
+    protected IOException exception = null;
+    
+    public ProcessReader(Process process, int processIndex)
+    {
+      super();
+      setDaemon(true);
+      this.process = process;
+      this.processIndex = processIndex;
+    }
+    
+    public void run()
+    {
+      try
+      {
+        BufferedReader r = new BufferedReader(new InputStreamReader(process.getInputStream(),"utf-8"));
+        try
+        {
+          while (true)
+          {
+            String line = r.readLine();
+            if (line == null)
+              break;
+            if (readResultLine(line) == false)
+              System.err.println("[process "+processIndex+"] "+line);
+          }
+        }
+        finally
+        {
+          r.close();
+        }
+      }
+      catch (IOException e)
+      {
+        exception = e;
+      }
+    }
+    
+    public Process getProcess()
+    {
+      return process;
+    }
+    
+    public IOException getException()
+    {
+      return exception;
+    }
+  }
+  
+}
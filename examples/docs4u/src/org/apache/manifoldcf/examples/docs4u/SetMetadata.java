@@ -53,6 +53,11 @@ public class SetMetadata
       e.printStackTrace(System.err);
       System.exit(2);
     }
+    catch (InterruptedException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(100);
+    }
   }
   
 }
@@ -0,0 +1,82 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u;
+
+/** This class prints changes to the Docs4U content management system as they happen, one
+* batch per line group, until killed.
+*/
+public class WatchChanges
+{
+  private WatchChanges()
+  {
+  }
+  
+  public static void main(String[] argv)
+  {
+    if (argv.length < 1 || argv.length > 2)
+    {
+      System.err.println("Usage: WatchChanges <directory> [<checkpoint>]");
+      System.exit(1);
+    }
+    
+    String directory = argv[0];
+    String checkpoint = (argv.length > 1)?argv[1]:null;
+    
+    try
+    {
+      Docs4UAPI api = D4UFactory.makeAPI(directory);
+      final D4UChangeNotifier notifier = new D4UChangeNotifier(api,checkpoint);
+      System.out.println("Watching from checkpoint "+notifier.getCheckpoint());
+      notifier.addListener(new D4UChangeListener()
+        {
+          public void changesOccurred(D4UChange[] changes)
+          {
+            long now = System.currentTimeMillis();
+            int i = 0;
+            while (i < changes.length)
+            {
+              D4UChange change = changes[i++];
+              System.out.println(change.toString()+" (+"+(now - change.getTime())+" ms)");
+            }
+            System.out.println("-- "+changes.length+" change(s); checkpoint "+notifier.getCheckpoint());
+          }
+          
+          public void changesLost()
+          {
+            System.out.println("-- changes lost; now at checkpoint "+notifier.getCheckpoint());
+          }
+        });
+      while (true)
+      {
+        Thread.sleep(60000L);
+      }
+    }
+    catch (InterruptedException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(100);
+    }
+    catch (D4UException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(2);
+    }
+  }
+  
+}
@@ -0,0 +1,78 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u.benchmark;
+
+import org.apache.manifoldcf.examples.docs4u.*;
+import java.io.*;
+import java.util.*;
+
+/** Base class for a Docs4U benchmark.  The runner calls setUp() once, then calls operation()
+* repeatedly from each of getThreadCount() threads while timing each call, then calls
+* tearDown().
+*/
+public abstract class Benchmark
+{
+  protected String name;
+  protected String parameters;
+  
+  protected Benchmark(String name, String parameters)
+  {
+    this.name = name;
+    this.parameters = parameters;
+  }
+  
+  /** Get the benchmark name. */
+  public String getName()
+  {
+    return name;
+  }
+  
+  /** Get a description of the benchmark's parameters. */
+  public String getParameters()
+  {
+    return parameters;
+  }
+  
+  /** Get the number of threads to run the operation from concurrently. */
+  public int getThreadCount()
+  {
+    return 1;
+  }
+  
+  /** Prepare to run.
+  *@param workDirectory is where repositories may be created or reused.
+  */
+  public abstract void setUp(File workDirectory)
+    throws InterruptedException, D4UException;
+  
+  /** Perform one operation.
+  *@param threadIndex is the index of the calling thread.
+  *@param random is the calling thread's random number generator.
+  */
+  public abstract void operation(int threadIndex, Random random)
+    throws InterruptedException, D4UException;
+  
+  /** Clean up after running.
+  */
+  public void tearDown()
+    throws InterruptedException, D4UException
+  {
+  }
+  
+}
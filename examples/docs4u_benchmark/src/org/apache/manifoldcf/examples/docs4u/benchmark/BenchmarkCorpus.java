@@ -0,0 +1,138 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u.benchmark;
+
+import org.apache.manifoldcf.examples.docs4u.*;
+import java.io.*;
+
+/** This class prepares benchmark repositories.  Corpora are generated reproducibly by
+* D4UCorpusGenerator and kept in the work directory, along with a description of the settings
+* that produced them, so that later runs with the same settings reuse them instead of spending
+* time regenerating.
+*/
+public class BenchmarkCorpus
+{
+  /** File recording how a corpus was generated */
+  protected final static String descriptionFileName = "corpus.txt";
+  
+  private BenchmarkCorpus()
+  {
+  }
+  
+  /** Get a populated repository, generating it if necessary.
+  *@param workDirectory is the benchmark work directory.
+  *@param generator is the configured corpus generator.
+  *@param documentCount is the number of documents desired.
+  *@return the repository root.
+  */
+  public static File getCorpus(File workDirectory, D4UCorpusGenerator generator, int documentCount)
+    throws InterruptedException, D4UException
+  {
+    String description = generator.describe() + " documents=" + documentCount;
+    File root = new File(workDirectory,"corpus-"+Integer.toHexString(description.hashCode()));
+    File descriptionFile = new File(root,descriptionFileName);
+    if (description.equals(readDescription(descriptionFile)))
+      return root;
+    
+    if (root.exists())
+      deleteTree(root);
+    if (root.mkdirs() == false)
+      throw new D4UException("Could not create corpus directory '"+root+"'");
+    System.err.println("Generating corpus in '"+root+"': "+description);
+    Docs4UAPI api = D4UFactory.makeAPI(root.getPath());
+    api.install();
+    generator.generate(api,documentCount);
+    writeDescription(descriptionFile,description);
+    return root;
+  }
+  
+  /** Create an empty repository, replacing anything already there.
+  */
+  public static File getEmptyRepository(File workDirectory, String name)
+    throws D4UException
+  {
+    File root = new File(workDirectory,name);
+    if (root.exists())
+      deleteTree(root);
+    if (root.mkdirs() == false)
+      throw new D4UException("Could not create repository directory '"+root+"'");
+    D4UFactory.makeAPI(root.getPath()).install();
+    return root;
+  }
+  
+  /** Delete a directory tree.
+  */
+  public static void deleteTree(File file)
+    throws D4UException
+  {
+    File[] children = file.listFiles();
+    if (children != null)
+    {
+      int i = 0;
+      while (i < children.length)
+      {
+        deleteTree(children[i++]);
+      }
+    }
+    if (file.delete() == false)
+      throw new D4UException("Could not delete '"+file+"'");
+  }
+  
+  protected static String readDescription(File file)
+  {
+    try
+    {
+      BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file),"utf-8"));
+      try
+      {
+        return r.readLine();
+      }
+      finally
+      {
+        r.close();
+      }
+    }
+    catch (IOException e)
+    {
+      return null;
+    }
+  }
+  
+  protected static void writeDescription(File file, String description)
+    throws D4UException
+  {
+    try
+    {
+      Writer w = new OutputStreamWriter(new FileOutputStream(file),"utf-8");
+      try
+      {
+        w.write(description+"\n");
+      }
+      finally
+      {
+        w.close();
+      }
+    }
+    catch (IOException e)
+    {
+      throw new D4UException(e.getMessage(),e);
+    }
+  }
+  
+}
@@ -0,0 +1,157 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u.benchmark;
+
+import org.apache.manifoldcf.examples.docs4u.*;
+import java.util.*;
+
+/** Measurements gathered for one benchmark.  Latencies are in microseconds.
+*/
+public class BenchmarkResult
+{
+  protected String name;
+  protected String parameters;
+  protected int threadCount;
+  protected D4UHistogram latency = new D4UHistogram();
+  protected List iterationRates = new ArrayList();
+  
+  public BenchmarkResult(Benchmark benchmark)
+  {
+    this.name = benchmark.getName();
+    this.parameters = benchmark.getParameters();
+    this.threadCount = benchmark.getThreadCount();
+  }
+  
+  /** Get the latency histogram to record measured operations into. */
+  public D4UHistogram getLatency()
+  {
+    return latency;
+  }
+  
+  /** Record the throughput of one measurement iteration. */
+  public void addIteration(long operations, long elapsedNanos)
+  {
+    double rate = 0.0;
+    if (elapsedNanos > 0L)
+      rate = (double)operations * 1000000000.0 / (double)elapsedNanos;
+    iterationRates.add(new Double(rate));
+  }
+  
+  /** Get the mean operations per second across iterations. */
+  public double getOpsPerSecond()
+  {
+    if (iterationRates.size() == 0)
+      return 0.0;
+    double sum = 0.0;
+    int i = 0;
+    while (i < iterationRates.size())
+    {
+      sum += ((Double)iterationRates.get(i++)).doubleValue();
+    }
+    return sum / (double)iterationRates.size();
+  }
+  
+  /** Get the standard deviation of operations per second across iterations. */
+  public double getOpsPerSecondError()
+  {
+    if (iterationRates.size() < 2)
+      return 0.0;
+    double mean = getOpsPerSecond();
+    double sum = 0.0;
+    int i = 0;
+    while (i < iterationRates.size())
+    {
+      double diff = ((Double)iterationRates.get(i++)).doubleValue() - mean;
+      sum += diff * diff;
+    }
+    return Math.sqrt(sum / (double)(iterationRates.size() - 1));
+  }
+  
+  /** Format as a table row. */
+  public String toRow()
+  {
+    return pad(name,16) + pad(parameters,32) + lpad(format(getOpsPerSecond()),12) + " +- " + pad(format(getOpsPerSecondError()),10) +
+      lpad(format(latency.getMean()),10) + lpad(Long.toString(latency.getPercentile(50.0)),10) +
+      lpad(Long.toString(latency.getPercentile(99.0)),10) + lpad(Long.toString(latency.getMax()),10);
+  }
+  
+  /** Get the table header. */
+  public static String headerRow()
+  {
+    return pad("Benchmark",16) + pad("Parameters",32) + lpad("ops/s",12) + " +- " + pad("error",10) +
+      lpad("mean us",10) + lpad("p50 us",10) + lpad("p99 us",10) + lpad("max us",10);
+  }
+  
+  /** Format as a JSON object. */
+  public String toJSON()
+  {
+    return "{\"benchmark\":" + quote(name) +
+      ",\"params\":" + quote(parameters) +
+      ",\"threads\":" + threadCount +
+      ",\"operations\":" + latency.getCount() +
+      ",\"opsPerSecond\":" + format(getOpsPerSecond()) +
+      ",\"opsPerSecondError\":" + format(getOpsPerSecondError()) +
+      ",\"meanMicros\":" + format(latency.getMean()) +
+      ",\"p50Micros\":" + latency.getPercentile(50.0) +
+      ",\"p99Micros\":" + latency.getPercentile(99.0) +
+      ",\"maxMicros\":" + latency.getMax() + "}";
+  }
+  
+  protected static String format(double value)
+  {
+    return Long.toString(Math.round(value * 10.0) / 10L) + "." + Long.toString(Math.abs(Math.round(value * 10.0)) % 10L);
+  }
+  
+  protected static String quote(String value)
+  {
+    StringBuffer sb = new StringBuffer("\"");
+    int i = 0;
+    while (i < value.length())
+    {
+      char x = value.charAt(i++);
+      if (x == '"' || x == '\\')
+        sb.append('\\');
+      sb.append(x);
+    }
+    sb.append('"');
+    return sb.toString();
+  }
+  
+  protected static String pad(String value, int width)
+  {
+    StringBuffer sb = new StringBuffer(value);
+    while (sb.length() < width)
+    {
+      sb.append(' ');
+    }
+    return sb.toString();
+  }
+
+  protected static String lpad(String value, int width)
+  {
+    StringBuffer sb = new StringBuffer();
+    while (sb.length() + value.length() < width)
+    {
+      sb.append(' ');
+    }
+    sb.append(value);
+    return sb.toString();
+  }
+  
+}
@@ -0,0 +1,336 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u.benchmark;
+
+import org.apache.manifoldcf.examples.docs4u.*;
+import java.io.*;
+import java.util.*;
+
+/** Command-line harness that runs the Docs4U storage benchmarks.  Each benchmark gets a
+* number of timed warmup iterations, whose results are discarded, followed by timed
+* measurement iterations.  Throughput per iteration and per-operation latency are recorded,
+* a summary table is printed, and results can be written as JSON so that runs can be compared
+* across commits.
+*/
+public class BenchmarkRunner
+{
+  protected int warmupIterations = 2;
+  protected int measurementIterations = 5;
+  protected long iterationMilliseconds = 2000L;
+  
+  public BenchmarkRunner()
+  {
+  }
+  
+  public void setWarmupIterations(int warmupIterations)
+  {
+    this.warmupIterations = warmupIterations;
+  }
+  
+  public void setMeasurementIterations(int measurementIterations)
+  {
+    this.measurementIterations = measurementIterations;
+  }
+  
+  public void setIterationMilliseconds(long iterationMilliseconds)
+  {
+    this.iterationMilliseconds = iterationMilliseconds;
+  }
+  
+  /** Build the standard benchmark list.
+  *@param scales are the corpus sizes for the findDocuments benchmarks.
+  *@param threadCount is the thread count for the contended benchmark.
+  */
+  public static List makeBenchmarks(int[] scales, int threadCount)
+  {
+    int[] sizes = new int[]{1024,65536,1048576};
+    List rval = new ArrayList();
+    int i = 0;
+    while (i < sizes.length)
+    {
+      rval.add(new DocumentWriteBenchmark(true,sizes[i]));
+      rval.add(new DocumentWriteBenchmark(false,sizes[i]));
+      rval.add(new DocumentReadBenchmark(sizes[i]));
+      i++;
+    }
+    i = 0;
+    while (i < scales.length)
+    {
+      rval.add(new FindDocumentsBenchmark(scales[i],false));
+      rval.add(new FindDocumentsBenchmark(scales[i],true));
+      i++;
+    }
+    rval.add(new FindUserBenchmark(100));
+    rval.add(new FindUserBenchmark(1000));
+    rval.add(new FindUserBenchmark(10000));
+    rval.add(new MixedWorkloadBenchmark(threadCount,10));
+    return rval;
+  }
+  
+  /** Run one benchmark.
+  */
+  public BenchmarkResult run(Benchmark benchmark, File workDirectory)
+    throws InterruptedException, D4UException
+  {
+    benchmark.setUp(workDirectory);
+    try
+    {
+      BenchmarkResult result = new BenchmarkResult(benchmark);
+      int i = 0;
+      while (i < warmupIterations)
+      {
+        runIteration(benchmark,null,i);
+        i++;
+      }
+      i = 0;
+      while (i < measurementIterations)
+      {
+        runIteration(benchmark,result,warmupIterations + i);
+        i++;
+      }
+      return result;
+    }
+    finally
+    {
+      benchmark.tearDown();
+    }
+  }
+  
+  /** Run one timed iteration on all the benchmark's threads.
+  *@param result is where to record measurements, or null for a warmup iteration.
+  */
+  protected void runIteration(Benchmark benchmark, BenchmarkResult result, int iteration)
+    throws InterruptedException, D4UException
+  {
+    int threadCount = benchmark.getThreadCount();
+    long startTime = System.nanoTime();
+    long endTime = startTime + iterationMilliseconds * 1000000L;
+    BenchmarkThread[] threads = new BenchmarkThread[threadCount];
+    int i = 0;
+    while (i < threadCount)
+    {
+      threads[i] = new BenchmarkThread(benchmark,i,iteration,endTime,(result==null)?null:result.getLatency());
+      threads[i].start();
+      i++;
+    }
+    long operations = 0L;
+    D4UException exception = null;
+    i = 0;
+    while (i < threadCount)
+    {
+      threads[i].join();
+      operations += threads[i].getOperationCount();
+      if (exception == null)
+        exception = threads[i].getException();
+      i++;
+    }
+    if (exception != null)
+      throw exception;
+    if (result != null)
+      result.addIteration(operations,System.nanoTime() - startTime);
+  }
+  
+  /** Thread that performs operations until the iteration's end time.
+  */
+  protected static class BenchmarkThread extends Thread
+  {
+    protected Benchmark benchmark;
+    protected int threadIndex;
+    protected long endTime;
+    protected D4UHistogram latency;
+    protected Random random;
+    protected long operationCount = 0L;
+    protected D4UException exception = null;
+    
+    public BenchmarkThread(Benchmark benchmark, int threadIndex, int iteration, long endTime, D4UHistogram latency)
+    {
+      super();
+      setDaemon(true);
+      this.benchmark = benchmark;
+      this.threadIndex = threadIndex;
+      this.endTime = endTime;
+      this.latency = latency;
+      this.random = new Random(((long)iteration << 16) + (long)threadIndex);
+    }
+    
+    public void run()
+    {
+      try
+      {
+        while (true)
+        {
+          long start = System.nanoTime();
+          if (start >= endTime)
+            break;
+          benchmark.operation(threadIndex,random);
+          if (latency != null)
+            latency.record((System.nanoTime() - start) / 1000L);
+          operationCount++;
+        }
+      }
+      catch (InterruptedException e)
+      {
+        exception = new D4UException("Interrupted",e);
+      }
+      catch (D4UException e)
+      {
+        exception = e;
+      }
+      catch (RuntimeException e)
+      {
+        exception = new D4UException("Benchmark operation failed: "+e.getMessage(),e);
+      }
+    }
+    
+    public long getOperationCount()
+    {
+      return operationCount;
+    }
+    
+    public D4UException getException()
+    {
+      return exception;
+    }
+  }
+  
+  /** Write results as a JSON array.
+  */
+  public static void writeJSON(File file, List results)
+    throws IOException
+  {
+    Writer w = new OutputStreamWriter(new FileOutputStream(file),"utf-8");
+    try
+    {
+      w.write("[\n");
+      int i = 0;
+      while (i < results.size())
+      {
+        w.write("  " + ((BenchmarkResult)results.get(i)).toJSON());
+        i++;
+        w.write((i < results.size())?",\n":"\n");
+      }
+      w.write("]\n");
+    }
+    finally
+    {
+      w.close();
+    }
+  }
+  
+  protected static int[] parseIntList(String value)
+  {
+    String[] pieces = value.split(",");
+    int[] rval = new int[pieces.length];
+    int i = 0;
+    while (i < pieces.length)
+    {
+      rval[i] = Integer.parseInt(pieces[i].trim());
+      i++;
+    }
+    return rval;
+  }
+  
+  protected static void usage()
+  {
+    System.err.println("Usage: BenchmarkRunner <work_directory> [-o <results.json>] [-scales <n,n,...>] [-only <substring>]");
+    System.err.println("         [-warmup <iterations>] [-iterations <iterations>] [-time <milliseconds>] [-threads <count>]");
+    System.exit(1);
+  }
+  
+  public static void main(String[] args)
+  {
+    if (args.length < 1)
+      usage();
+    
+    File workDirectory = new File(args[0]);
+    File outputFile = null;
+    int[] scales = new int[]{10000,100000,1000000};
+    String only = null;
+    int threadCount = 8;
+    BenchmarkRunner runner = new BenchmarkRunner();
+    try
+    {
+      int i = 1;
+      while (i < args.length)
+      {
+        String arg = args[i++];
+        if (i == args.length)
+          usage();
+        String value = args[i++];
+        if (arg.equals("-o"))
+          outputFile = new File(value);
+        else if (arg.equals("-scales"))
+          scales = parseIntList(value);
+        else if (arg.equals("-only"))
+          only = value;
+        else if (arg.equals("-warmup"))
+          runner.setWarmupIterations(Integer.parseInt(value));
+        else if (arg.equals("-iterations"))
+          runner.setMeasurementIterations(Integer.parseInt(value));
+        else if (arg.equals("-time"))
+          runner.setIterationMilliseconds(Long.parseLong(value));
+        else if (arg.equals("-threads"))
+          threadCount = Integer.parseInt(value);
+        else
+          usage();
+      }
+    }
+    catch (NumberFormatException e)
+    {
+      usage();
+    }
+    
+    try
+    {
+      if (workDirectory.exists() == false && workDirectory.mkdirs() == false)
+        throw new D4UException("Could not create work directory '"+workDirectory+"'");
+      List benchmarks = makeBenchmarks(scales,threadCount);
+      List results = new ArrayList();
+      System.out.println(BenchmarkResult.headerRow());
+      int i = 0;
+      while (i < benchmarks.size())
+      {
+        Benchmark benchmark = (Benchmark)benchmarks.get(i++);
+        if (only != null && (benchmark.getName()+" "+benchmark.getParameters()).indexOf(only) == -1)
+          continue;
+        BenchmarkResult result = runner.run(benchmark,workDirectory);
+        results.add(result);
+        System.out.println(result.toRow());
+      }
+      if (outputFile != null)
+        writeJSON(outputFile,results);
+    }
+    catch (InterruptedException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(100);
+    }
+    catch (D4UException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(2);
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace(System.err);
+      System.exit(3);
+    }
+  }
+  
+}
@@ -0,0 +1,84 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u.benchmark;
+
+import org.apache.manifoldcf.examples.docs4u.*;
+import java.io.*;
+import java.util.*;
+
+/** Benchmark for getDocument() at a given content size.
+*/
+public class DocumentReadBenchmark extends Benchmark
+{
+  /** Number of documents read in rotation */
+  protected final static int DOCUMENT_COUNT = 256;
+  
+  protected int size;
+  protected Docs4UAPI api = null;
+  protected String[] docIDs = null;
+  
+  /** Constructor.
+  *@param size is the content size in bytes.
+  */
+  public DocumentReadBenchmark(int size)
+  {
+    super("getDocument","size="+size);
+    this.size = size;
+  }
+  
+  public void setUp(File workDirectory)
+    throws InterruptedException, D4UException
+  {
+    D4UCorpusGenerator generator = new D4UCorpusGenerator();
+    generator.setContentSizes(new int[]{size});
+    File root = BenchmarkCorpus.getCorpus(workDirectory,generator,DOCUMENT_COUNT);
+    api = D4UFactory.makeAPI(root.getPath());
+    docIDs = listDocuments(api,null);
+  }
+  
+  public void operation(int threadIndex, Random random)
+    throws InterruptedException, D4UException
+  {
+    D4UDocInfo docInfo = D4UFactory.makeDocInfo();
+    try
+    {
+      if (api.getDocument(docIDs[random.nextInt(docIDs.length)],docInfo) == false)
+        throw new D4UException("Benchmark document missing");
+    }
+    finally
+    {
+      docInfo.close();
+    }
+  }
+  
+  /** List the documents in a repository.
+  */
+  public static String[] listDocuments(Docs4UAPI api, Map metadataMap)
+    throws InterruptedException, D4UException
+  {
+    List rval = new ArrayList();
+    D4UDocumentIterator iter = api.findDocuments(null,null,metadataMap);
+    while (iter.hasNext())
+    {
+      rval.add(iter.getNext());
+    }
+    return (String[])rval.toArray(new String[0]);
+  }
+  
+}
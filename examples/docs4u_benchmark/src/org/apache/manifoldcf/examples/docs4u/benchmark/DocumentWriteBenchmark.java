@@ -0,0 +1,100 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u.benchmark;
+
+import org.apache.manifoldcf.examples.docs4u.*;
+import java.io.*;
+import java.util.*;
+
+/** Benchmark for createDocument() and updateDocument() at a given content size.
+*/
+public class DocumentWriteBenchmark extends Benchmark
+{
+  /** Number of documents updated in rotation */
+  protected final static int UPDATE_DOCUMENT_COUNT = 256;
+  /** Number of prepared document info objects */
+  protected final static int PREPARED_COUNT = 16;
+  
+  protected boolean create;
+  protected int size;
+  protected File root = null;
+  protected Docs4UAPI api = null;
+  protected D4UDocInfo[] prepared = null;
+  protected String[] docIDs = null;
+  
+  /** Constructor.
+  *@param create is true to benchmark createDocument(), false for updateDocument().
+  *@param size is the content size in bytes.
+  */
+  public DocumentWriteBenchmark(boolean create, int size)
+  {
+    super(create?"createDocument":"updateDocument","size="+size);
+    this.create = create;
+    this.size = size;
+  }
+  
+  public void setUp(File workDirectory)
+    throws InterruptedException, D4UException
+  {
+    // Writes change the repository, so always start from a fresh one
+    root = BenchmarkCorpus.getEmptyRepository(workDirectory,"scratch-"+name+"-"+size);
+    api = D4UFactory.makeAPI(root.getPath());
+    D4UCorpusGenerator generator = new D4UCorpusGenerator();
+    generator.setContentSizes(new int[]{size});
+    Random random = new Random(1L);
+    prepared = new D4UDocInfo[PREPARED_COUNT];
+    int i = 0;
+    while (i < prepared.length)
+    {
+      prepared[i++] = generator.makeDocument(random,new String[0]);
+    }
+    if (!create)
+    {
+      docIDs = api.reserveIDs(UPDATE_DOCUMENT_COUNT);
+      i = 0;
+      while (i < docIDs.length)
+      {
+        api.updateDocument(docIDs[i],prepared[i % prepared.length]);
+        i++;
+      }
+    }
+  }
+  
+  public void operation(int threadIndex, Random random)
+    throws InterruptedException, D4UException
+  {
+    D4UDocInfo docInfo = prepared[random.nextInt(prepared.length)];
+    if (create)
+      api.createDocument(docInfo);
+    else
+      api.updateDocument(docIDs[random.nextInt(docIDs.length)],docInfo);
+  }
+  
+  public void tearDown()
+    throws InterruptedException, D4UException
+  {
+    int i = 0;
+    while (i < prepared.length)
+    {
+      prepared[i++].close();
+    }
+    BenchmarkCorpus.deleteTree(root);
+  }
+  
+}
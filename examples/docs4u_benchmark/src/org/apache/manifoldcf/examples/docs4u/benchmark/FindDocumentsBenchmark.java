@@ -0,0 +1,69 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u.benchmark;
+
+import org.apache.manifoldcf.examples.docs4u.*;
+import java.io.*;
+import java.util.*;
+
+/** Benchmark for findDocuments() over a corpus of a given size, with or without a metadata
+* filter.  Each operation drains the returned iterator.
+*/
+public class FindDocumentsBenchmark extends Benchmark
+{
+  protected int documentCount;
+  protected boolean filtered;
+  protected Docs4UAPI api = null;
+  protected Map metadataMap = null;
+  
+  /** Constructor.
+  *@param documentCount is the corpus size.
+  *@param filtered is true if a one-value metadata filter should be applied.
+  */
+  public FindDocumentsBenchmark(int documentCount, boolean filtered)
+  {
+    super("findDocuments","documents="+documentCount+" filtered="+filtered);
+    this.documentCount = documentCount;
+    this.filtered = filtered;
+  }
+  
+  public void setUp(File workDirectory)
+    throws InterruptedException, D4UException
+  {
+    D4UCorpusGenerator generator = new D4UCorpusGenerator();
+    File root = BenchmarkCorpus.getCorpus(workDirectory,generator,documentCount);
+    api = D4UFactory.makeAPI(root.getPath());
+    if (filtered)
+    {
+      metadataMap = new HashMap();
+      metadataMap.put(D4UCorpusGenerator.DEFAULT_METADATA_NAMES[0],D4UCorpusGenerator.metadataValue(0));
+    }
+  }
+  
+  public void operation(int threadIndex, Random random)
+    throws InterruptedException, D4UException
+  {
+    D4UDocumentIterator iter = api.findDocuments(null,null,metadataMap);
+    while (iter.hasNext())
+    {
+      iter.getNext();
+    }
+  }
+  
+}
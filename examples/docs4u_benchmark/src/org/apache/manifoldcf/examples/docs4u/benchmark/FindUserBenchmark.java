@@ -0,0 +1,57 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u.benchmark;
+
+import org.apache.manifoldcf.examples.docs4u.*;
+import java.io.*;
+import java.util.*;
+
+/** Benchmark for findUser() with a given number of users.
+*/
+public class FindUserBenchmark extends Benchmark
+{
+  protected int userCount;
+  protected Docs4UAPI api = null;
+  
+  /** Constructor.
+  *@param userCount is the number of users in the repository.
+  */
+  public FindUserBenchmark(int userCount)
+  {
+    super("findUser","users="+userCount);
+    this.userCount = userCount;
+  }
+  
+  public void setUp(File workDirectory)
+    throws InterruptedException, D4UException
+  {
+    D4UCorpusGenerator generator = new D4UCorpusGenerator();
+    generator.setUserCount(userCount);
+    File root = BenchmarkCorpus.getCorpus(workDirectory,generator,0);
+    api = D4UFactory.makeAPI(root.getPath());
+  }
+  
+  public void operation(int threadIndex, Random random)
+    throws InterruptedException, D4UException
+  {
+    if (api.findUser("user"+random.nextInt(userCount)) == null)
+      throw new D4UException("Benchmark user missing");
+  }
+  
+}
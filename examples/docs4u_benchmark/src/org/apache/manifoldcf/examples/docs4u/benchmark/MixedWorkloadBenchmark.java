@@ -0,0 +1,103 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.examples.docs4u.benchmark;
+
+import org.apache.manifoldcf.examples.docs4u.*;
+import java.io.*;
+import java.util.*;
+
+/** Benchmark for a contended mix of document reads and writes from several threads.
+*/
+public class MixedWorkloadBenchmark extends Benchmark
+{
+  /** Corpus size */
+  protected final static int DOCUMENT_COUNT = 10000;
+  
+  protected int threadCount;
+  protected int writePercent;
+  protected File root = null;
+  protected Docs4UAPI api = null;
+  protected String[] docIDs = null;
+  protected D4UDocInfo[] prepared = null;
+  
+  /** Constructor.
+  *@param threadCount is the number of concurrent threads.
+  *@param writePercent is the percentage of operations that are updates.
+  */
+  public MixedWorkloadBenchmark(int threadCount, int writePercent)
+  {
+    super("mixedReadWrite","threads="+threadCount+" writes="+writePercent+"%");
+    this.threadCount = threadCount;
+    this.writePercent = writePercent;
+  }
+  
+  public int getThreadCount()
+  {
+    return threadCount;
+  }
+  
+  public void setUp(File workDirectory)
+    throws InterruptedException, D4UException
+  {
+    D4UCorpusGenerator generator = new D4UCorpusGenerator();
+    root = BenchmarkCorpus.getCorpus(workDirectory,generator,DOCUMENT_COUNT);
+    api = D4UFactory.makeAPI(root.getPath());
+    docIDs = DocumentReadBenchmark.listDocuments(api,null);
+    Random random = new Random(2L);
+    prepared = new D4UDocInfo[threadCount];
+    int i = 0;
+    while (i < prepared.length)
+    {
+      prepared[i++] = generator.makeDocument(random,new String[0]);
+    }
+  }
+  
+  public void operation(int threadIndex, Random random)
+    throws InterruptedException, D4UException
+  {
+    String docID = docIDs[random.nextInt(docIDs.length)];
+    if (random.nextInt(100) < writePercent)
+    {
+      api.updateDocument(docID,prepared[threadIndex]);
+      return;
+    }
+    D4UDocInfo docInfo = D4UFactory.makeDocInfo();
+    try
+    {
+      api.getDocument(docID,docInfo);
+    }
+    finally
+    {
+      docInfo.close();
+    }
+  }
+  
+  public void tearDown()
+    throws InterruptedException, D4UException
+  {
+    int i = 0;
+    while (i < prepared.length)
+    {
+      prepared[i++].close();
+    }
+    // The corpus was modified, so don't let a later run reuse it
+    new File(root,BenchmarkCorpus.descriptionFileName).delete();
+  }
+  
+}
@@ -49,8 +49,8 @@ import org.apache.manifoldcf.ui.util.Encoder;
 // Here are the imports that are specific for this connector
 import org.apache.manifoldcf.examples.docs4u.Docs4UAPI;
 import org.apache.manifoldcf.examples.docs4u.D4UFactory;
+import org.apache.manifoldcf.examples.docs4u.D4USessionRegistry;
 import org.apache.manifoldcf.examples.docs4u.D4UDocInfo;
-import org.apache.manifoldcf.examples.docs4u.D4UDocumentIterator;
 import org.apache.manifoldcf.examples.docs4u.D4UException;
 
 /** This is the Docs4U output connector class.  This extends the base output connectors class,
@@ -283,7 +283,7 @@ public class Docs4UOutputConnector extends BaseOutputConnector
       // We need to establish a new session
       try
       {
-        session = D4UFactory.makeAPI(rootDirectory);
+        session = D4USessionRegistry.acquire(rootDirectory);
       }
       catch (D4UException e)
       {
@@ -300,10 +300,13 @@ public class Docs4UOutputConnector extends BaseOutputConnector
     return session;
   }
   
-  /** Expire any current session.
+  /** Expire any current session.  The shared session, and the caches behind it, stay
+  * around for as long as other connector instances are using the same root.
   */
   protected void expireSession()
   {
+    if (session != null)
+      D4USessionRegistry.release(session);
     session = null;
     sessionExpiration = -1L;
   }
@@ -619,11 +622,12 @@ public class Docs4UOutputConnector extends BaseOutputConnector
           // Next, look up the Docs4U identifier for the document.
           Map<String,String> lookupMap = new HashMap<String,String>();
           lookupMap.put(urlMetadataName,documentURI);
-          D4UDocumentIterator iter = session.findDocuments(null,null,lookupMap);
+          // Only the first match matters, so don't ask for more.
+          String[] matches = session.findDocumentPage(null,null,lookupMap,null,1).getDocumentIDs();
           String documentID;
-          if (iter.hasNext())
+          if (matches.length > 0)
           {
-            documentID = iter.getNext();
+            documentID = matches[0];
             session.updateDocument(documentID,docObject);
           }
           else
@@ -795,12 +799,9 @@ public class Docs4UOutputConnector extends BaseOutputConnector
       {
         Map<String,String> lookupMap = new HashMap<String,String>();
         lookupMap.put(urlMetadataName,documentURI);
-        D4UDocumentIterator iter = session.findDocuments(null,null,lookupMap);
-        if (iter.hasNext())
-        {
-          String documentID = iter.getNext();
-          session.deleteDocument(documentID);
-        }
+        String[] matches = session.findDocumentPage(null,null,lookupMap,null,1).getDocumentIDs();
+        if (matches.length > 0)
+          session.deleteDocument(matches[0]);
       }
       catch (InterruptedException e)
       {
@@ -32,6 +32,16 @@ import java.util.HashMap;
 import java.util.Locale;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 
 // This is where we get pull-agent system loggers
 import org.apache.manifoldcf.crawler.system.Logging;
@@ -48,9 +58,16 @@ import org.apache.manifoldcf.ui.util.Encoder;
 // Here are the imports that are specific for this connector
 import org.apache.manifoldcf.examples.docs4u.Docs4UAPI;
 import org.apache.manifoldcf.examples.docs4u.D4UFactory;
+import org.apache.manifoldcf.examples.docs4u.D4USessionRegistry;
 import org.apache.manifoldcf.examples.docs4u.D4UDocInfo;
 import org.apache.manifoldcf.examples.docs4u.D4UDocumentIterator;
+import org.apache.manifoldcf.examples.docs4u.D4UDocumentDigest;
+import org.apache.manifoldcf.examples.docs4u.D4UChange;
+import org.apache.manifoldcf.examples.docs4u.D4UChangePage;
 import org.apache.manifoldcf.examples.docs4u.D4UException;
+import org.apache.manifoldcf.examples.docs4u.D4UFederatedAPI;
+import org.apache.manifoldcf.examples.docs4u.D4UMetrics;
+import org.apache.manifoldcf.examples.docs4u.D4ULockManager;
 
 /** This is the Docs4U repository connector class.  This extends the base connectors class,
 * which implements IRepositoryConnector, and provides some degree of insulation from future
@@ -63,6 +80,17 @@ public class Docs4UConnector extends BaseRepositoryConnector
   
   /** Repository root parameter */
   protected final static String PARAMETER_REPOSITORY_ROOT = "rootdirectory";
+  /** Documents per processing batch parameter */
+  protected final static String PARAMETER_BATCH_SIZE = "batchsize";
+  /** Documents to prefetch while ingesting parameter */
+  protected final static String PARAMETER_PREFETCH_SIZE = "prefetchsize";
+  /** Most concurrent fetches from one bin the adaptive limit may allow, or 0 for no adaptive limit */
+  protected final static String PARAMETER_MAX_ADAPTIVE_FETCHES = "maxadaptivefetches";
+  
+  // These are the configuration node names
+  
+  /** Limit on concurrent fetches from the bins matching a regular expression */
+  protected final static String NODE_BIN_LIMIT = "binlimit";
   
   // These are the document specification node names
   
@@ -77,16 +105,81 @@ public class Docs4UConnector extends BaseRepositoryConnector
   protected final static String ATTRIBUTE_NAME = "name";
   /** A value */
   protected final static String ATTRIBUTE_VALUE = "value";
+  /** A regular expression */
+  protected final static String ATTRIBUTE_REGEXP = "regexp";
+  /** A number of concurrent fetches */
+  protected final static String ATTRIBUTE_MAX_FETCHES = "maxfetches";
   
   // These are the activity names
   
   /** Fetch activity */
   protected final static String ACTIVITY_FETCH = "fetch";
+  /** Version activity, recorded once per batch against the repository root */
+  protected final static String ACTIVITY_VERSION = "version";
+  
+  // These are the phase names recorded in the repository root's D4UMetrics
+  
+  /** Getting the digests for a batch of versions, per batch */
+  protected final static String PHASE_VERSION = "connector version lookup";
+  /** Waiting for a bin's concurrent fetch limit, per chunk */
+  protected final static String PHASE_BIN_WAIT = "connector bin wait";
+  /** Waiting for a bin's adaptive fetch limit, per chunk */
+  protected final static String PHASE_LIMIT_WAIT = "connector adaptive limit wait";
+  /** Waiting for repository locks while fetching, per chunk */
+  protected final static String PHASE_LOCK_WAIT = "connector lock wait";
+  /** Fetching content, metadata and ACLs, apart from lock waits, per chunk */
+  protected final static String PHASE_BODY_READ = "connector body read";
+  /** Building the repository document's metadata and ACLs, per document */
+  protected final static String PHASE_BUILD = "connector document build";
+  /** Handing the document to the framework for indexing, per document */
+  protected final static String PHASE_INGEST = "connector ingest";
+  
+  // These are the gauges set in each bin's D4UMetrics
+  
+  /** A bin's current adaptive fetch limit */
+  protected final static String GAUGE_FETCH_LIMIT = "connector adaptive fetch limit";
+  /** Fetches from a bin under its adaptive limit right now */
+  protected final static String GAUGE_FETCHES_IN_FLIGHT = "connector adaptive fetches in flight";
   
   // Local constants
   
   /** Session expiration time interval */
   protected final static long SESSION_EXPIRATION_MILLISECONDS = 300000L;
+  /** How many changes to read from the change journal at a time */
+  protected final static int CHANGE_PAGE_SIZE = 1000;
+  /** How far before the start of a seeding interval to begin reading changes, to allow for
+  * changes still being recorded at the end of the last one, and for clock differences */
+  protected final static long CHANGE_TIME_SLACK_MILLISECONDS = 60000L;
+  /** Most identifiers to look through for deleted documents when the change journal doesn't
+  * go back far enough; beyond this, it amounts to a scan of the whole corpus */
+  protected final static long MAX_MISSING_ID_SCAN = 100000L;
+  /** Documents per processing batch, if not configured */
+  protected final static int DEFAULT_BATCH_SIZE = 50;
+  /** Documents to prefetch while ingesting, if not configured */
+  protected final static int DEFAULT_PREFETCH_SIZE = 10;
+  /** Most concurrent fetches from one bin the adaptive limit may allow, if not configured */
+  protected final static int DEFAULT_MAX_ADAPTIVE_FETCHES = 16;
+  
+  /** Threads that fetch the next few documents while the current ones are being ingested.
+  * Each processDocuments() call has at most one fetch outstanding, so the number of threads
+  * never exceeds the number of worker threads. */
+  protected final static ExecutorService prefetchExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r,"Docs4U prefetch");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  
+  /** Permits for concurrent fetches, keyed by bin name and limit.  These are per process, and
+  * shared by every connection that sets the same limit on the same bin. */
+  protected final static Map<String,Semaphore> binSemaphores = new HashMap<String,Semaphore>();
+  
+  /** Adaptive fetch limits, keyed by bin name and ceiling.  Like the bin permits, these are per
+  * process, and shared by every connection with the same ceiling. */
+  protected final static Map<String,FetchLimiter> fetchLimiters = new HashMap<String,FetchLimiter>();
   
   // The global deny token
   
@@ -97,6 +190,16 @@ public class Docs4UConnector extends BaseRepositoryConnector
   
   /** The root directory */
   protected String rootDirectory = null;
+  /** The number of documents per processing batch */
+  protected int batchSize = DEFAULT_BATCH_SIZE;
+  /** The number of documents to prefetch while ingesting, or 0 to fetch each batch at once */
+  protected int prefetchSize = DEFAULT_PREFETCH_SIZE;
+  /** Concurrent fetch limits, by bin name regular expression, in order of precedence */
+  protected Map<Pattern,Integer> binLimits = new LinkedHashMap<Pattern,Integer>();
+  /** Most concurrent fetches from one bin the adaptive limit may allow, or 0 for no adaptive limit */
+  protected int maxAdaptiveFetches = DEFAULT_MAX_ADAPTIVE_FETCHES;
+  /** The federation, if the root is one, for working out which member a document is on */
+  protected D4UFederatedAPI federation = null;
   
   /** The Docs4U API session */
   protected Docs4UAPI session = null;
@@ -117,7 +220,8 @@ public class Docs4UConnector extends BaseRepositoryConnector
   @Override
   public int getConnectorModel()
   {
-    return MODEL_ADD_CHANGE;
+    // Deleted documents are seeded too, from the change journal
+    return MODEL_ADD_CHANGE_DELETE;
   }
 
   /** Return the list of activities that this connector supports (i.e. writes into the log).
@@ -127,7 +231,7 @@ public class Docs4UConnector extends BaseRepositoryConnector
   @Override
   public String[] getActivitiesList()
   {
-    return new String[]{ACTIVITY_FETCH};
+    return new String[]{ACTIVITY_FETCH,ACTIVITY_VERSION};
   }
 
   /** Return the list of relationship types that this connector recognizes.
@@ -157,6 +261,7 @@ public class Docs4UConnector extends BaseRepositoryConnector
     throws ManifoldCFException, IOException
   {
     tabsArray.add("Repository");
+    tabsArray.add("Bin Limits");
     Messages.outputResourceWithVelocity(out,locale,"ConfigurationHeader.html",null);
   }
 
@@ -182,6 +287,9 @@ public class Docs4UConnector extends BaseRepositoryConnector
     velocityContext.put("TabName",tabName);
     fillInRepositoryTab(velocityContext,parameters);
     Messages.outputResourceWithVelocity(out,locale,"Configuration_Repository.html",velocityContext);
+    // Output the Bin Limits tab
+    fillInBinLimitsTab(velocityContext,parameters);
+    Messages.outputResourceWithVelocity(out,locale,"Configuration_BinLimits.html",velocityContext);
   }
   
   /** Fill in Velocity context for Repository tab.
@@ -193,6 +301,39 @@ public class Docs4UConnector extends BaseRepositoryConnector
     if (repositoryRoot == null)
       repositoryRoot = "";
     velocityContext.put("repositoryroot",repositoryRoot);
+    String batchSize = parameters.getParameter(PARAMETER_BATCH_SIZE);
+    if (batchSize == null)
+      batchSize = Integer.toString(DEFAULT_BATCH_SIZE);
+    velocityContext.put("batchsize",batchSize);
+    String prefetchSize = parameters.getParameter(PARAMETER_PREFETCH_SIZE);
+    if (prefetchSize == null)
+      prefetchSize = Integer.toString(DEFAULT_PREFETCH_SIZE);
+    velocityContext.put("prefetchsize",prefetchSize);
+    String maxAdaptiveFetches = parameters.getParameter(PARAMETER_MAX_ADAPTIVE_FETCHES);
+    if (maxAdaptiveFetches == null)
+      maxAdaptiveFetches = Integer.toString(DEFAULT_MAX_ADAPTIVE_FETCHES);
+    velocityContext.put("maxadaptivefetches",maxAdaptiveFetches);
+  }
+  
+  /** Fill in Velocity context for Bin Limits tab.
+  */
+  protected static void fillInBinLimitsTab(Map<String,Object> velocityContext,
+    ConfigParams parameters)
+  {
+    List<Map<String,String>> list = new ArrayList<Map<String,String>>();
+    int i = 0;
+    while (i < parameters.getChildCount())
+    {
+      ConfigNode cn = parameters.getChild(i++);
+      if (cn.getType().equals(NODE_BIN_LIMIT))
+      {
+        Map<String,String> row = new HashMap<String,String>();
+        row.put("regexp",cn.getAttributeValue(ATTRIBUTE_REGEXP));
+        row.put("maxfetches",cn.getAttributeValue(ATTRIBUTE_MAX_FETCHES));
+        list.add(row);
+      }
+    }
+    velocityContext.put("binlimits",list);
   }
   
   /** Process a configuration post.
@@ -215,8 +356,91 @@ public class Docs4UConnector extends BaseRepositoryConnector
     String repositoryRoot = variableContext.getParameter("repositoryroot");
     if (repositoryRoot != null)
       parameters.setParameter(PARAMETER_REPOSITORY_ROOT,repositoryRoot);
+    String batchSize = variableContext.getParameter("batchsize");
+    if (batchSize != null)
+      parameters.setParameter(PARAMETER_BATCH_SIZE,batchSize);
+    String prefetchSize = variableContext.getParameter("prefetchsize");
+    if (prefetchSize != null)
+      parameters.setParameter(PARAMETER_PREFETCH_SIZE,prefetchSize);
+    String maxAdaptiveFetches = variableContext.getParameter("maxadaptivefetches");
+    if (maxAdaptiveFetches != null)
+      parameters.setParameter(PARAMETER_MAX_ADAPTIVE_FETCHES,maxAdaptiveFetches);
+    return processBinLimitsTab(variableContext,parameters);
+  }
+  
+  /** Process form post for Bin Limits tab.
+  */
+  protected static String processBinLimitsTab(IPostParameters variableContext, ConfigParams parameters)
+  {
+    // Parse the number of records that were posted; if there are none, the tab wasn't shown
+    String binLimitCountString = variableContext.getParameter("binlimitcount");
+    if (binLimitCountString == null)
+      return null;
+    
+    // Remove old bin limits
+    int i = 0;
+    while (i < parameters.getChildCount())
+    {
+      ConfigNode cn = parameters.getChild(i);
+      if (cn.getType().equals(NODE_BIN_LIMIT))
+        parameters.removeChild(i);
+      else
+        i++;
+    }
+    
+    // Loop through them and add the ones that were not deleted
+    int binLimitCount = Integer.parseInt(binLimitCountString);
+    i = 0;
+    while (i < binLimitCount)
+    {
+      String suffix = "_"+Integer.toString(i++);
+      String binLimitOp = variableContext.getParameter("binlimitop"+suffix);
+      if (binLimitOp == null || !binLimitOp.equals("Delete"))
+      {
+        addBinLimitNode(parameters,variableContext.getParameter("binlimitregexp"+suffix),
+          variableContext.getParameter("binlimitmaxfetches"+suffix));
+      }
+    }
+    
+    // Now, look for a global "Add" operation
+    String operation = variableContext.getParameter("binlimitop");
+    if (operation != null && operation.equals("Add"))
+    {
+      String regexp = variableContext.getParameter("binlimitregexp");
+      if (regexp == null || regexp.length() == 0)
+        return "Bin regular expression must not be empty";
+      try
+      {
+        Pattern.compile(regexp);
+      }
+      catch (PatternSyntaxException e)
+      {
+        return "Bad bin regular expression '"+regexp+"': "+e.getMessage();
+      }
+      String maxFetches = variableContext.getParameter("binlimitmaxfetches");
+      try
+      {
+        if (maxFetches == null || Integer.parseInt(maxFetches) < 1)
+          return "Bin maximum fetches must be a positive integer";
+      }
+      catch (NumberFormatException e)
+      {
+        return "Bad bin maximum fetches '"+maxFetches+"': must be a positive integer";
+      }
+      addBinLimitNode(parameters,regexp,maxFetches);
+    }
     return null;
   }
+  
+  /** Add a BIN_LIMIT node to the configuration.
+  */
+  protected static void addBinLimitNode(ConfigParams parameters, String regexp, String maxFetches)
+  {
+    ConfigNode cn = new ConfigNode(NODE_BIN_LIMIT);
+    cn.setAttribute(ATTRIBUTE_REGEXP,regexp);
+    cn.setAttribute(ATTRIBUTE_MAX_FETCHES,maxFetches);
+    parameters.addChild(parameters.getChildCount(),cn);
+  }
 
   /** View configuration.
   * This method is called in the body section of the connector's view configuration page.  Its purpose is to present
@@ -235,6 +459,7 @@ public class Docs4UConnector extends BaseRepositoryConnector
   {
     Map<String,Object> velocityContext = new HashMap<String,Object>();
     fillInRepositoryTab(velocityContext,parameters);
+    fillInBinLimitsTab(velocityContext,parameters);
     Messages.outputResourceWithVelocity(out,locale,"ConfigurationView.html",velocityContext);
   }
   
@@ -248,7 +473,7 @@ public class Docs4UConnector extends BaseRepositoryConnector
       // We need to establish a new session
       try
       {
-        session = D4UFactory.makeAPI(rootDirectory);
+        session = D4USessionRegistry.acquire(rootDirectory);
       }
       catch (D4UException e)
       {
@@ -265,10 +490,13 @@ public class Docs4UConnector extends BaseRepositoryConnector
     return session;
   }
   
-  /** Expire any current session.
+  /** Expire any current session.  The shared session, and the caches behind it, stay
+  * around for as long as other connector instances are using the same root.
   */
   protected void expireSession()
   {
+    if (session != null)
+      D4USessionRegistry.release(session);
     session = null;
     sessionExpiration = -1L;
   }
@@ -283,6 +511,74 @@ public class Docs4UConnector extends BaseRepositoryConnector
     super.connect(configParameters);
     // This is needed by getDocumentBins()
     rootDirectory = configParameters.getParameter(PARAMETER_REPOSITORY_ROOT);
+    // This is needed by getMaxDocumentRequest()
+    batchSize = parseCount(configParameters.getParameter(PARAMETER_BATCH_SIZE),"batch size",1,DEFAULT_BATCH_SIZE);
+    prefetchSize = parseCount(configParameters.getParameter(PARAMETER_PREFETCH_SIZE),"prefetch size",0,DEFAULT_PREFETCH_SIZE);
+    // These are needed by processDocuments()
+    binLimits = parseBinLimits(configParameters);
+    maxAdaptiveFetches = parseCount(configParameters.getParameter(PARAMETER_MAX_ADAPTIVE_FETCHES),
+      "adaptive fetch ceiling",0,DEFAULT_MAX_ADAPTIVE_FETCHES);
+  }
+  
+  /** Interpret the bin limit nodes, skipping any that are bad.
+  *@return the limits, by bin name regular expression, in the configured order.
+  */
+  protected static Map<Pattern,Integer> parseBinLimits(ConfigParams configParameters)
+  {
+    Map<Pattern,Integer> rval = new LinkedHashMap<Pattern,Integer>();
+    int i = 0;
+    while (i < configParameters.getChildCount())
+    {
+      ConfigNode cn = configParameters.getChild(i++);
+      if (!cn.getType().equals(NODE_BIN_LIMIT))
+        continue;
+      String regexp = cn.getAttributeValue(ATTRIBUTE_REGEXP);
+      String maxFetches = cn.getAttributeValue(ATTRIBUTE_MAX_FETCHES);
+      if (regexp != null && maxFetches != null)
+      {
+        try
+        {
+          Pattern pattern = Pattern.compile(regexp);
+          int limit = Integer.parseInt(maxFetches.trim());
+          if (limit >= 1)
+          {
+            rval.put(pattern,new Integer(limit));
+            continue;
+          }
+        }
+        catch (PatternSyntaxException e)
+        {
+        }
+        catch (NumberFormatException e)
+        {
+        }
+      }
+      Logging.connectors.warn("Docs4U: Ignoring bad bin limit '"+regexp+"': '"+maxFetches+"'");
+    }
+    return rval;
+  }
+  
+  /** Interpret a count parameter, falling back to the default if it is missing or bad.
+  *@param value is the parameter value, or null.
+  *@param description describes the parameter, for logging.
+  *@param minimum is the smallest legal value.
+  *@param defaultValue is the value to use if the parameter is missing or bad.
+  */
+  protected static int parseCount(String value, String description, int minimum, int defaultValue)
+  {
+    if (value == null)
+      return defaultValue;
+    try
+    {
+      int rval = Integer.parseInt(value.trim());
+      if (rval >= minimum)
+        return rval;
+    }
+    catch (NumberFormatException e)
+    {
+    }
+    Logging.connectors.warn("Docs4U: Bad "+description+" '"+value+"'; using "+defaultValue);
+    return defaultValue;
   }
 
   /** Close the connection.  Call this before discarding this instance of the
@@ -294,6 +590,11 @@ public class Docs4UConnector extends BaseRepositoryConnector
   {
     expireSession();
     rootDirectory = null;
+    batchSize = DEFAULT_BATCH_SIZE;
+    prefetchSize = DEFAULT_PREFETCH_SIZE;
+    binLimits = new LinkedHashMap<Pattern,Integer>();
+    maxAdaptiveFetches = DEFAULT_MAX_ADAPTIVE_FETCHES;
+    federation = null;
     super.disconnect();
   }
 
@@ -356,7 +657,79 @@ public class Docs4UConnector extends BaseRepositoryConnector
   @Override
   public String[] getBinNames(String documentIdentifier)
   {
-    return new String[]{rootDirectory};
+    return new String[]{getStorageBin(documentIdentifier)};
+  }
+  
+  /** Get the bin for a document, which names the storage it is on: the member root that owns
+  * it if the root is a federation, or otherwise the root itself, which is a directory or a
+  * server.  Each can then be throttled on its own.
+  *@param documentIdentifier is the document identifier.
+  *@return the bin name.
+  */
+  protected String getStorageBin(String documentIdentifier)
+  {
+    if (!rootDirectory.startsWith(D4UFederatedAPI.URL_PREFIX))
+      return rootDirectory;
+    if (federation == null)
+    {
+      try
+      {
+        federation = D4UFederatedAPI.getInstance(rootDirectory);
+      }
+      catch (D4UException e)
+      {
+        Logging.connectors.warn("Docs4U: Can't open federation: "+e.getMessage(),e);
+        return rootDirectory;
+      }
+    }
+    return federation.getMemberRoot(documentIdentifier);
+  }
+  
+  /** Get the permits for concurrent fetches from a bin, according to the configured limits.
+  *@param binName is the bin name.
+  *@return the permits, or null if fetches from the bin are not limited.
+  */
+  protected Semaphore getBinSemaphore(String binName)
+  {
+    for (Map.Entry<Pattern,Integer> entry : binLimits.entrySet())
+    {
+      if (entry.getKey().matcher(binName).find())
+      {
+        String key = entry.getValue().toString() + ":" + binName;
+        synchronized (binSemaphores)
+        {
+          Semaphore rval = binSemaphores.get(key);
+          if (rval == null)
+          {
+            rval = new Semaphore(entry.getValue().intValue(),true);
+            binSemaphores.put(key,rval);
+          }
+          return rval;
+        }
+      }
+    }
+    return null;
+  }
+  
+  /** Get the adaptive limit on concurrent fetches from a bin.
+  *@param binName is the bin name.
+  *@return the limiter, or null if there's no adaptive limit.
+  */
+  protected FetchLimiter getFetchLimiter(String binName)
+  {
+    if (maxAdaptiveFetches == 0)
+      return null;
+    String key = Integer.toString(maxAdaptiveFetches) + ":" + binName;
+    synchronized (fetchLimiters)
+    {
+      FetchLimiter rval = fetchLimiters.get(key);
+      if (rval == null)
+      {
+        rval = new FetchLimiter(maxAdaptiveFetches,D4UMetrics.getMetrics(binName));
+        fetchLimiters.put(key,rval);
+      }
+      return rval;
+    }
   }
   
   /** Request arbitrary connector information.
@@ -436,45 +809,208 @@ public class Docs4UConnector extends BaseRepositoryConnector
     long startTime, long endTime, int jobMode)
     throws ManifoldCFException, ServiceInterruption
   {
+    // Scan document specification for findparameter nodes, and make each into a set of criteria
+    List<Map> findMaps = getFindParameters(spec);
+    if (findMaps.size() == 0)
+      return;
+    
     // Get a session handle
     Docs4UAPI currentSession = getSession();
-    // Scan document specification for findparameter nodes
+    try
+    {
+      if (startTime > 0L)
+      {
+        // After the first time, only the documents that changed need seeding, if the change
+        // journal goes back far enough to say which they are.
+        if (seedChangedDocuments(currentSession,activities,startTime,endTime))
+          return;
+        // Otherwise the time window shows which documents were created or changed, but not
+        // which were deleted, so seed every document changed in the window, whether or not
+        // it still matches, and every identifier that no longer names a document.
+        if (Logging.connectors.isDebugEnabled())
+          Logging.connectors.debug("Docs4U: Change journal starts after "+startTime+"; finding changed and missing documents");
+        D4UDocumentIterator iter = currentSession.findDocuments(new Long(startTime),new Long(endTime),null);
+        while (iter.hasNext())
+        {
+          activities.addSeedDocument(iter.getNext());
+        }
+        seedMissingDocuments(currentSession,activities);
+        return;
+      }
+      
+      // Execute one Docs4U query for all the find parameters, which returns each matching
+      // document once
+      if (Logging.connectors.isDebugEnabled())
+        Logging.connectors.debug("Docs4U: Finding documents where "+describeFindParameters(findMaps));
+      D4UDocumentIterator iter = currentSession.findDocumentsMatchingAny(new Long(startTime),
+        new Long(endTime),findMaps.toArray(new Map[0]));
+      while (iter.hasNext())
+      {
+        String docID = iter.getNext();
+        // Add this to the job queue
+        activities.addSeedDocument(docID);
+      }
+    }
+    catch (InterruptedException e)
+    {
+      throw new ManifoldCFException(e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+    }
+    catch (D4UException e)
+    {
+      Logging.connectors.warn("Docs4U: Error finding documents: "+e.getMessage(),e);
+      throw new ManifoldCFException(e.getMessage(),e);
+    }
+  }
+  
+  /** Seed every document that was created, changed or deleted during a time interval, as
+  * recorded by the Docs4U change journal.  Documents that don't match the find parameters
+  * are seeded too; processDocuments() removes them from the index.
+  *@return false if the change journal doesn't go back as far as the start of the interval,
+  * or can't be read.
+  */
+  protected boolean seedChangedDocuments(Docs4UAPI currentSession, ISeedingActivity activities,
+    long startTime, long endTime)
+    throws ManifoldCFException, InterruptedException, D4UException
+  {
+    String checkpoint = currentSession.getChangeCheckpointAt(startTime - CHANGE_TIME_SLACK_MILLISECONDS);
+    if (checkpoint == null)
+      return false;
+    Set<String> seeded = new HashSet<String>();
+    while (true)
+    {
+      D4UChangePage page;
+      try
+      {
+        page = currentSession.getChanges(checkpoint,CHANGE_PAGE_SIZE,0L);
+      }
+      catch (D4UException e)
+      {
+        // The journal dropped the changes being read, or was started over, since the
+        // checkpoint was taken; what was seeded already does no harm
+        Logging.connectors.warn("Docs4U: Could not read change journal: "+e.getMessage());
+        return false;
+      }
+      checkpoint = page.getCheckpoint();
+      D4UChange[] changes = page.getChanges();
+      if (changes.length == 0)
+        break;
+      // Stop once a whole page is from after the interval; the next interval will see it again
+      boolean pastEnd = true;
+      for (D4UChange change : changes)
+      {
+        if (change.getTime() < endTime)
+          pastEnd = false;
+        if (change.getType() == D4UChange.TYPE_DOCUMENT && seeded.add(change.getID()))
+          activities.addSeedDocument(change.getID());
+      }
+      if (pastEnd)
+        break;
+    }
+    if (Logging.connectors.isDebugEnabled())
+      Logging.connectors.debug("Docs4U: Seeded "+seeded.size()+" changed documents");
+    return true;
+  }
+  
+  /** Seed every identifier allocated so far that no longer names a document, so that
+  * processDocuments() finds it gone and it is deleted from the index if it was ever there.
+  * This is how deletes are found when the change journal can't say which they were.
+  * Identifiers are allocated in order from zero, so all of them lie below the next one;
+  * documents created with identifiers of the caller's choosing are not covered, nor are
+  * documents of an earlier installation of the repository whose identifiers were never
+  * reached again, so a job should be reset after its repository is reinstalled.  Only
+  * whether each document's metadata file exists is looked at, without locks, and a
+  * repository with more identifiers than MAX_MISSING_ID_SCAN is not looked through at all.
+  */
+  protected void seedMissingDocuments(Docs4UAPI currentSession, ISeedingActivity activities)
+    throws ManifoldCFException, InterruptedException, D4UException
+  {
+    long nextID;
+    try
+    {
+      nextID = Long.parseLong(currentSession.getNextID());
+    }
+    catch (NumberFormatException e)
+    {
+      throw new D4UException("Bad next identifier: "+e.getMessage(),e);
+    }
+    if (nextID > MAX_MISSING_ID_SCAN)
+    {
+      Logging.connectors.warn("Docs4U: Not looking through "+nextID+" identifiers for deleted documents; "+
+        "documents deleted since the change journal began won't be removed until the job is reset");
+      return;
+    }
+    Set<String> userGroupIDs = new HashSet<String>();
+    Collections.addAll(userGroupIDs,currentSession.getUserOrGroupIDs());
+    int missing = 0;
+    long id = 0L;
+    while (id < nextID)
+    {
+      String[] docIDs = new String[(int)Math.min(nextID - id,(long)CHANGE_PAGE_SIZE)];
+      for (int i = 0; i < docIDs.length; i++)
+      {
+        docIDs[i] = Long.toString(id++);
+      }
+      Long[] updatedTimes = currentSession.getDocumentUpdatedTimes(docIDs);
+      for (int i = 0; i < docIDs.length; i++)
+      {
+        if (updatedTimes[i] == null && !userGroupIDs.contains(docIDs[i]))
+        {
+          activities.addSeedDocument(docIDs[i]);
+          missing++;
+        }
+      }
+    }
+    if (Logging.connectors.isDebugEnabled())
+      Logging.connectors.debug("Docs4U: Seeded "+missing+" missing documents");
+  }
+  
+  /** Get the find parameters from a document specification.
+  *@return a map of metadata name to value for each findparameter node.
+  */
+  protected static List<Map> getFindParameters(DocumentSpecification spec)
+  {
+    List<Map> rval = new ArrayList<Map>();
     int i = 0;
     while (i < spec.getChildCount())
     {
       SpecificationNode sn = spec.getChild(i++);
       if (sn.getType().equals(NODE_FIND_PARAMETER))
       {
-        // Found a findparameter node.  Execute a Docs4U query based on it.
-        String findParameterName = sn.getAttributeValue(ATTRIBUTE_NAME);
-        String findParameterValue = sn.getAttributeValue(ATTRIBUTE_VALUE);
         Map findMap = new HashMap();
-        findMap.put(findParameterName,findParameterValue);
-        try
-        {
-          if (Logging.connectors.isDebugEnabled())
-            Logging.connectors.debug("Docs4U: Finding documents where "+findParameterName+
-              "= '"+findParameterValue+"'");
-          D4UDocumentIterator iter = currentSession.findDocuments(new Long(startTime),
-            new Long(endTime),findMap);
-          while (iter.hasNext())
-          {
-            String docID = iter.getNext();
-            // Add this to the job queue
-            activities.addSeedDocument(docID);
-          }
-        }
-        catch (InterruptedException e)
-        {
-          throw new ManifoldCFException(e.getMessage(),e,ManifoldCFException.INTERRUPTED);
-        }
-        catch (D4UException e)
-        {
-          Logging.connectors.warn("Docs4U: Error finding documents: "+e.getMessage(),e);
-          throw new ManifoldCFException(e.getMessage(),e);
-        }
+        findMap.put(sn.getAttributeValue(ATTRIBUTE_NAME),sn.getAttributeValue(ATTRIBUTE_VALUE));
+        rval.add(findMap);
       }
     }
+    return rval;
+  }
+  
+  /** Describe find parameters, for logging.
+  */
+  protected static String describeFindParameters(List<Map> findMaps)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (Map findMap : findMaps)
+    {
+      Map.Entry entry = (Map.Entry)findMap.entrySet().iterator().next();
+      if (sb.length() > 0)
+        sb.append(" or ");
+      sb.append(entry.getKey()).append("= '").append(entry.getValue()).append("'");
+    }
+    return sb.toString();
+  }
+  
+  /** Check whether a fetched document matches any of the find parameters.
+  */
+  protected static boolean matchesFindParameters(D4UDocInfo docData, List<Map> findMaps)
+  {
+    for (Map findMap : findMaps)
+    {
+      Map.Entry entry = (Map.Entry)findMap.entrySet().iterator().next();
+      String[] values = docData.getMetadata((String)entry.getKey());
+      if (values != null && java.util.Arrays.asList(values).contains(entry.getValue()))
+        return true;
+    }
+    return false;
   }
 
   /** Get document versions given an array of document identifiers.
@@ -514,6 +1050,11 @@ public class Docs4UConnector extends BaseRepositoryConnector
     String[] namesToVersion = metadataNames.toArray(new String[0]);
     java.util.Arrays.sort(namesToVersion);
     
+    // Pack the metadata names once; every version string starts with them.
+    StringBuilder versionBuffer = new StringBuilder();
+    packList(versionBuffer,namesToVersion,'+');
+    int prefixLength = versionBuffer.length();
+    
     // Get the current docs4u session
     Docs4UAPI currentSession = getSession();
     // Prepare a place for the return values
@@ -521,23 +1062,35 @@ public class Docs4UConnector extends BaseRepositoryConnector
     // Capture Docs4U exceptions
     try
     {
+      if (Logging.connectors.isDebugEnabled())
+        Logging.connectors.debug("Docs4U: Getting digests for "+documentIdentifiers.length+" documents");
+      long startTime = System.currentTimeMillis();
+      long startNanos = System.nanoTime();
+      D4UDocumentDigest[] digests = currentSession.getDocumentDigests(documentIdentifiers);
+      long elapsedNanos = System.nanoTime() - startNanos;
+      D4UMetrics.getMetrics(rootDirectory).recordPhase(PHASE_VERSION,elapsedNanos);
+      activities.recordActivity(new Long(startTime),ACTIVITY_VERSION,null,rootDirectory,"OK",
+        Integer.toString(documentIdentifiers.length)+" documents in "+formatMillis(elapsedNanos),null);
       i = 0;
       while (i < documentIdentifiers.length)
       {
-        if (Logging.connectors.isDebugEnabled())
-          Logging.connectors.debug("Docs4U: Getting update time for '"+documentIdentifiers[i]+"'");
-        Long time = currentSession.getDocumentUpdatedTime(documentIdentifiers[i]);
+        D4UDocumentDigest digest = digests[i];
         // A null return means the document doesn't exist
-        if (time == null)
+        if (digest == null)
           rval[i] = null;
         else
         {
-          StringBuilder versionBuffer = new StringBuilder();
-          // Pack the metadata names.
-          packList(versionBuffer,namesToVersion,'+');
-          // Add the updated time.
-          versionBuffer.append(time.toString());
+          // Add the content, metadata and security parts to the metadata names.  The security
+          // parts go last, so that a change to them alone can be recognized.
+          versionBuffer.setLength(prefixLength);
+          versionBuffer.append(digest.getContentTime()).append(':');
+          versionBuffer.append(digest.getContentLength()).append(':');
+          versionBuffer.append(digest.getMetadataDigest()).append(':');
+          versionBuffer.append(digest.getAllowedDigest()).append(':');
+          versionBuffer.append(digest.getDisallowedDigest());
           rval[i] = versionBuffer.toString();
+          if (Logging.connectors.isDebugEnabled() && isSecurityOnlyChange(oldVersions[i],rval[i]))
+            Logging.connectors.debug("Docs4U: Only the security of '"+documentIdentifiers[i]+"' has changed");
         }
         i++;
       }
@@ -554,6 +1107,30 @@ public class Docs4UConnector extends BaseRepositoryConnector
     }
   }
 
+  /** Check whether two version strings differ only in their security parts.
+  */
+  protected static boolean isSecurityOnlyChange(String oldVersion, String newVersion)
+  {
+    if (oldVersion == null || oldVersion.equals(newVersion))
+      return false;
+    String oldRest = stripSecurity(oldVersion);
+    return oldRest != null && oldRest.equals(stripSecurity(newVersion));
+  }
+  
+  /** Remove the security parts from the end of a version string.
+  *@return the rest of the version string, or null if it has no security parts.
+  */
+  protected static String stripSecurity(String version)
+  {
+    int colon = version.lastIndexOf(':');
+    if (colon == -1)
+      return null;
+    colon = version.lastIndexOf(':',colon - 1);
+    if (colon == -1)
+      return null;
+    return version.substring(0,colon);
+  }
+
   /** Process a set of documents.
   * This is the method that should cause each document to be fetched, processed, and the results either added
   * to the queue of documents for the current job, and/or entered into the incremental ingestion manager.
@@ -579,100 +1156,129 @@ public class Docs4UConnector extends BaseRepositoryConnector
     // Capture exceptions from Docs4U
     try
     {
+      // Work out which documents need fetching.  ScanOnly indicates that we should only
+      // extract, never index.  Get the documents' URLs first, all in one request, so we don't
+      // have a potential race condition.
+      List<String> urlIDs = new ArrayList<String>();
+      for (int i = 0; i < documentIdentifiers.length; i++)
+      {
+        if (!scanOnly[i])
+          urlIDs.add(documentIdentifiers[i]);
+      }
+      if (urlIDs.size() == 0)
+        return;
+      String[] foundURLs = currentSession.getDocumentURLs(urlIDs.toArray(new String[0]));
+      List<Integer> fetchIndexes = new ArrayList<Integer>();
+      String[] urls = new String[documentIdentifiers.length];
+      int urlIndex = 0;
       for (int i = 0; i < documentIdentifiers.length; i++)
       {
-        // ScanOnly indicates that we should only extract, never index.
         if (!scanOnly[i])
         {
-          String docID = documentIdentifiers[i];
-          String version = versions[i];
-          
-          // Fetch and index the document.  First, we fetch, but we keep track of time.
-          
-          // Set up variables for recording the fetch activity status
-          long startTime = System.currentTimeMillis();
-          long dataSize = 0L;
-          String status = "OK";
-          String description = null;
-          boolean fetchOccurred = false;
+          urls[i] = foundURLs[urlIndex++];
+          if (urls[i] == null)
+          {
+            // Not found: delete it
+            activities.deleteDocument(documentIdentifiers[i]);
+          }
+          else
+            fetchIndexes.add(new Integer(i));
+        }
+      }
+      if (fetchIndexes.size() == 0)
+        return;
+      D4UMetrics metrics = D4UMetrics.getMetrics(rootDirectory);
+      // Documents seeded from the change journal may not match the find parameters
+      List<Map> findMaps = getFindParameters(spec);
+      
+      // Group the documents by bin, so that each chunk comes from one place and counts against
+      // that bin's fetch limit alone.
+      final Map<Integer,String> bins = new HashMap<Integer,String>();
+      for (Integer index : fetchIndexes)
+      {
+        bins.put(index,getStorageBin(documentIdentifiers[index.intValue()]));
+      }
+      Collections.sort(fetchIndexes,new Comparator<Integer>()
+        {
+          @Override
+          public int compare(Integer a, Integer b)
+          {
+            return bins.get(a).compareTo(bins.get(b));
+          }
+        });
+      String[] fetchIDs = new String[fetchIndexes.size()];
+      String[] fetchBins = new String[fetchIndexes.size()];
+      for (int j = 0; j < fetchIDs.length; j++)
+      {
+        Integer index = fetchIndexes.get(j);
+        fetchIDs[j] = documentIdentifiers[index.intValue()];
+        fetchBins[j] = bins.get(index);
+      }
+      
+      // Fetch the documents a chunk at a time.  While one chunk is being ingested, the next is
+      // fetched in the background, so at most two chunks are ever held at once.
+      int chunkSize = (prefetchSize == 0)?fetchIDs.length:prefetchSize;
+      Prefetch current = new Prefetch(currentSession,fetchIDs,0,getChunkCount(fetchBins,0,chunkSize),
+        getBinSemaphore(fetchBins[0]),getFetchLimiter(fetchBins[0]));
+      Prefetch next = null;
+      current.run();
+      try
+      {
+        while (current != null)
+        {
+          int nextStart = current.getStart() + current.getCount();
+          if (nextStart < fetchIDs.length)
+          {
+            next = new Prefetch(currentSession,fetchIDs,nextStart,getChunkCount(fetchBins,nextStart,chunkSize),
+              getBinSemaphore(fetchBins[nextStart]),getFetchLimiter(fetchBins[nextStart]));
+            next.start(prefetchExecutor);
+          }
           
-          D4UDocInfo docData = D4UFactory.makeDocInfo();
+          boolean[] found = null;
           try
           {
-            // Get the document's URL first, so we don't have a potential race condition.
-            String url = currentSession.getDocumentURL(docID);
-            if (url == null || currentSession.getDocument(docID,docData) == false)
-            {
-              // Not found: delete it
-              activities.deleteDocument(docID);
-            }
-            else
-            {
-              // Found: index it
-              fetchOccurred = true;
-              RepositoryDocument rd = new RepositoryDocument();
-              InputStream is = docData.readData();
-              if (is != null)
-              {
-                try
-                {
-                  // Set the contents
-                  dataSize = docData.readDataLength().longValue();
-                  rd.setBinary(is,dataSize);
-                  
-                  // Unpack metadata info
-                  List<String> metadataNames = new ArrayList<String>();
-                  unpackList(metadataNames,version,0,'+');
-                  for (String metadataName : metadataNames)
-                  {
-                    // Get the value from the doc info object
-                    String[] metadataValues = docData.getMetadata(metadataName);
-                    if (metadataValues != null)
-                    {
-                      // Add to the repository document
-                      rd.addField(metadataName,metadataValues);
-                    }
-                  }
-                  
-                  // Handle the security information
-                  rd.setSecurityACL(RepositoryDocument.SECURITY_TYPE_DOCUMENT,
-                    docData.getAllowed());
-                  // For disallowed, we must add in a global deny token
-                  String[] disallowed = docData.getDisallowed();
-                  List<String> list = new ArrayList<String>();
-                  list.add(globalDenyToken);
-                  for (String disallowedToken : disallowed)
-                  {
-                    list.add(disallowedToken);
-                  }
-                  rd.setSecurityDenyACL(RepositoryDocument.SECURITY_TYPE_DOCUMENT,
-                    list.toArray(disallowed));
-                  
-                  // Index the document!
-                  activities.ingestDocument(docID,version,url,rd);
-                }
-                finally
-                {
-                  is.close();
-                }
-              }
-            }
+            found = current.waitForDocuments();
           }
           catch (D4UException e)
           {
-            status = "ERROR";
-            description = e.getMessage();
-            throw e;
+            Logging.connectors.warn("Docs4U: Error fetching "+current.getCount()+
+              " documents; fetching them one at a time: "+e.getMessage());
           }
-          finally
+          if (found == null)
+            processSingly(currentSession,current,fetchIDs,fetchBins,fetchIndexes,versions,urls,findMaps,
+              metrics,activities);
+          else
           {
-            docData.close();
-            // Record the status
-            if (fetchOccurred)
-              activities.recordActivity(new Long(startTime),ACTIVITY_FETCH,dataSize,docID,status,description,null);
+            recordFetchPhases(metrics,current);
+            String fetchDescription = current.describeShare();
+            
+            // Index the documents, one at a time.
+            for (int j = 0; j < found.length; j++)
+            {
+              int k = current.getStart() + j;
+              int i = fetchIndexes.get(k).intValue();
+              if (!found[j] || !matchesFindParameters(current.getDocInfo(j),findMaps))
+              {
+                // Not found, or no longer wanted: delete it
+                activities.deleteDocument(fetchIDs[k]);
+              }
+              else
+                ingestDocument(fetchIDs[k],versions[i],urls[i],current.getDocInfo(j),current.getStartTime(),
+                  fetchDescription,metrics,activities);
+            }
           }
+          current.release();
+          current = next;
+          next = null;
         }
       }
+      finally
+      {
+        if (current != null)
+          current.release();
+        if (next != null)
+          next.release();
+      }
     }
     catch (InterruptedIOException e)
     {
@@ -694,6 +1300,150 @@ public class Docs4UConnector extends BaseRepositoryConnector
     }
   }
 
+  /** Fetch and index a chunk's documents one at a time, after fetching them together failed,
+  * so that only the documents that can't be fetched fail.  Those are left unindexed, to be
+  * tried again next time.  If none can be fetched, the repository itself is checked, so that
+  * an outage fails the whole batch rather than every document in it.
+  */
+  protected void processSingly(Docs4UAPI currentSession, Prefetch chunk, String[] fetchIDs, String[] fetchBins,
+    List<Integer> fetchIndexes, String[] versions, String[] urls, List<Map> findMaps, D4UMetrics metrics,
+    IProcessActivity activities)
+    throws ManifoldCFException, ServiceInterruption, IOException, InterruptedException, D4UException
+  {
+    int failedCount = 0;
+    for (int j = 0; j < chunk.getCount(); j++)
+    {
+      int k = chunk.getStart() + j;
+      int i = fetchIndexes.get(k).intValue();
+      Prefetch single = new Prefetch(currentSession,fetchIDs,k,1,getBinSemaphore(fetchBins[k]),
+        getFetchLimiter(fetchBins[k]));
+      try
+      {
+        single.run();
+        boolean[] found;
+        try
+        {
+          found = single.waitForDocuments();
+        }
+        catch (D4UException e)
+        {
+          activities.recordActivity(new Long(single.getStartTime()),ACTIVITY_FETCH,0L,
+            fetchIDs[k],"ERROR",e.getMessage(),null);
+          failedCount++;
+          continue;
+        }
+        recordFetchPhases(metrics,single);
+        if (!found[0] || !matchesFindParameters(single.getDocInfo(0),findMaps))
+          activities.deleteDocument(fetchIDs[k]);
+        else
+          ingestDocument(fetchIDs[k],versions[i],urls[i],single.getDocInfo(0),single.getStartTime(),
+            single.describeShare(),metrics,activities);
+      }
+      finally
+      {
+        single.release();
+      }
+    }
+    if (failedCount == chunk.getCount())
+      currentSession.sanityCheck();
+  }
+  
+  /** Record how long a fetch spent in each of its phases.
+  */
+  protected static void recordFetchPhases(D4UMetrics metrics, Prefetch fetch)
+  {
+    metrics.recordPhase(PHASE_BIN_WAIT,fetch.getBinWaitNanos());
+    metrics.recordPhase(PHASE_LIMIT_WAIT,fetch.getLimitWaitNanos());
+    metrics.recordPhase(PHASE_LOCK_WAIT,fetch.getLockWaitNanos());
+    metrics.recordPhase(PHASE_BODY_READ,fetch.getReadNanos());
+  }
+  
+  /** Index one fetched document, and record the fetch activity for it.
+  *@param docID is the document identifier.
+  *@param version is the document version, as returned by getDocumentVersions().
+  *@param url is the document URL.
+  *@param docData is the fetched document.
+  *@param startTime is the time the fetch began.
+  *@param activities is the interface used to ingest the document.
+  */
+  protected void ingestDocument(String docID, String version, String url, D4UDocInfo docData,
+    long startTime, String fetchDescription, D4UMetrics metrics, IProcessActivity activities)
+    throws ManifoldCFException, ServiceInterruption, IOException, D4UException
+  {
+    // Set up variables for recording the fetch activity status
+    long dataSize = 0L;
+    String status = "OK";
+    String description = null;
+    try
+    {
+      RepositoryDocument rd = new RepositoryDocument();
+      InputStream is = docData.readData();
+      if (is != null)
+      {
+        try
+        {
+          long buildStartNanos = System.nanoTime();
+          // Set the contents
+          dataSize = docData.readDataLength().longValue();
+          rd.setBinary(is,dataSize);
+          
+          // Unpack metadata info
+          List<String> metadataNames = new ArrayList<String>();
+          unpackList(metadataNames,version,0,'+');
+          for (String metadataName : metadataNames)
+          {
+            // Get the value from the doc info object
+            String[] metadataValues = docData.getMetadata(metadataName);
+            if (metadataValues != null)
+            {
+              // Add to the repository document
+              rd.addField(metadataName,metadataValues);
+            }
+          }
+          
+          // Handle the security information
+          rd.setSecurityACL(RepositoryDocument.SECURITY_TYPE_DOCUMENT,
+            docData.getAllowed());
+          // For disallowed, we must add in a global deny token
+          String[] disallowed = docData.getDisallowed();
+          List<String> list = new ArrayList<String>();
+          list.add(globalDenyToken);
+          for (String disallowedToken : disallowed)
+          {
+            list.add(disallowedToken);
+          }
+          rd.setSecurityDenyACL(RepositoryDocument.SECURITY_TYPE_DOCUMENT,
+            list.toArray(disallowed));
+          
+          long ingestStartNanos = System.nanoTime();
+          long buildNanos = ingestStartNanos - buildStartNanos;
+          metrics.recordPhase(PHASE_BUILD,buildNanos);
+          
+          // Index the document!
+          activities.ingestDocument(docID,version,url,rd);
+          long ingestNanos = System.nanoTime() - ingestStartNanos;
+          metrics.recordPhase(PHASE_INGEST,ingestNanos);
+          description = fetchDescription+", build "+formatMillis(buildNanos)+", ingest "+formatMillis(ingestNanos);
+        }
+        finally
+        {
+          is.close();
+        }
+      }
+    }
+    catch (D4UException e)
+    {
+      status = "ERROR";
+      description = e.getMessage();
+      throw e;
+    }
+    finally
+    {
+      // Record the status
+      activities.recordActivity(new Long(startTime),ACTIVITY_FETCH,dataSize,docID,status,description,null);
+    }
+  }
+
   /** Free a set of documents.  This method is called for all documents whose versions have been fetched using
   * the getDocumentVersions() method, including those that returned null versions.  It may be used to free resources
   * committed during the getDocumentVersions() method.  It is guaranteed to be called AFTER any calls to
@@ -716,7 +1466,7 @@ public class Docs4UConnector extends BaseRepositoryConnector
   @Override
   public int getMaxDocumentRequest()
   {
-    return 1;
+    return batchSize;
   }
 
   // UI support methods.
@@ -1040,5 +1790,375 @@ public class Docs4UConnector extends BaseRepositoryConnector
     }
   }
   
+  /** Format a time in nanoseconds as milliseconds, to a tenth of a millisecond.
+  */
+  protected static String formatMillis(long nanos)
+  {
+    long tenths = (nanos + 50000L) / 100000L;
+    return Long.toString(tenths / 10L)+"."+Long.toString(tenths % 10L)+"ms";
+  }
+  
+  /** Work out how many documents go in a chunk, which holds documents from just one bin.
+  *@param fetchBins are the bins of the documents to fetch, grouped by bin.
+  *@param start is the index of the chunk's first document.
+  *@param chunkSize is the most documents to put in a chunk.
+  */
+  protected static int getChunkCount(String[] fetchBins, int start, int chunkSize)
+  {
+    int end = Math.min(start + chunkSize,fetchBins.length);
+    int count = 1;
+    while (start + count < end && fetchBins[start + count].equals(fetchBins[start]))
+    {
+      count++;
+    }
+    return count;
+  }
+  
+  /** One chunk of documents, fetched either directly or in the background.  The document info
+  * objects belong to the chunk, and are closed when it is released, even if the fetch is still
+  * going on at the time.
+  */
+  protected static class Prefetch implements Runnable
+  {
+    protected final Docs4UAPI session;
+    protected final String[] docIDs;
+    protected final int start;
+    protected final int count;
+    protected final Semaphore binPermits;
+    protected final FetchLimiter limiter;
+    
+    protected Future<?> future = null;
+    protected D4UDocInfo[] docDatas = null;
+    protected long startTime = -1L;
+    protected boolean[] found = null;
+    protected Throwable exception = null;
+    protected boolean done = false;
+    protected boolean released = false;
+    protected long binWaitNanos = 0L;
+    protected long limitWaitNanos = 0L;
+    protected long lockWaitNanos = 0L;
+    protected long readNanos = 0L;
+    
+    public Prefetch(Docs4UAPI session, String[] docIDs, int start, int count, Semaphore binPermits,
+      FetchLimiter limiter)
+    {
+      this.session = session;
+      this.docIDs = docIDs;
+      this.start = start;
+      this.count = count;
+      this.binPermits = binPermits;
+      this.limiter = limiter;
+    }
+    
+    /** Begin fetching in the background.
+    */
+    public void start(ExecutorService executor)
+    {
+      future = executor.submit(this);
+    }
+    
+    /** Do the fetch.
+    */
+    @Override
+    public void run()
+    {
+      D4UDocInfo[] infos = new D4UDocInfo[count];
+      String[] ids = new String[count];
+      boolean[] result = null;
+      Throwable error = null;
+      long binWait = 0L;
+      long limitWait = 0L;
+      long lockWait = 0L;
+      long read = 0L;
+      synchronized (this)
+      {
+        if (released)
+          return;
+        startTime = System.currentTimeMillis();
+        docDatas = infos;
+      }
+      try
+      {
+        for (int j = 0; j < count; j++)
+        {
+          ids[j] = docIDs[start + j];
+          infos[j] = D4UFactory.makeDocInfo();
+        }
+        // Wait for the bin to have room for another fetch, if it's limited
+        if (binPermits != null)
+        {
+          long waitStartNanos = System.nanoTime();
+          binPermits.acquire();
+          binWait = System.nanoTime() - waitStartNanos;
+        }
+        try
+        {
+          // Then for the adaptive limit, so that time spent queued for the bin doesn't count
+          // as a slow fetch
+          long limitStartNanos = System.nanoTime();
+          if (limiter != null)
+            limiter.acquire();
+          limitWait = System.nanoTime() - limitStartNanos;
+          boolean sampled = false;
+          try
+          {
+            // Only locks taken in this thread are seen here; waits elsewhere count as reading
+            long lockWaitStartMillis = D4ULockManager.getThreadWaitMillis();
+            long readStartNanos = System.nanoTime();
+            result = session.getDocuments(ids,infos);
+            long fetchNanos = System.nanoTime() - readStartNanos;
+            lockWait = Math.min((D4ULockManager.getThreadWaitMillis() - lockWaitStartMillis) * 1000000L,fetchNanos);
+            read = fetchNanos - lockWait;
+            if (limiter != null)
+              limiter.release(readStartNanos,count,fetchNanos,lockWait);
+            sampled = true;
+          }
+          finally
+          {
+            // A failed fetch says nothing about how busy the bin is
+            if (limiter != null && !sampled)
+              limiter.release();
+          }
+        }
+        finally
+        {
+          if (binPermits != null)
+            binPermits.release();
+        }
+      }
+      catch (Throwable e)
+      {
+        error = e;
+      }
+      synchronized (this)
+      {
+        found = result;
+        exception = error;
+        binWaitNanos = binWait;
+        limitWaitNanos = limitWait;
+        lockWaitNanos = lockWait;
+        readNanos = read;
+        done = true;
+        notifyAll();
+        if (released)
+          closeDocInfos();
+      }
+    }
+    
+    /** Wait for the fetch to finish.
+    *@return true for each document in the chunk that was found.
+    */
+    public synchronized boolean[] waitForDocuments()
+      throws InterruptedException, D4UException
+    {
+      while (!done)
+      {
+        wait();
+      }
+      if (exception instanceof InterruptedException)
+        throw (InterruptedException)exception;
+      if (exception instanceof D4UException)
+        throw (D4UException)exception;
+      if (exception instanceof RuntimeException)
+        throw (RuntimeException)exception;
+      if (exception instanceof Error)
+        throw (Error)exception;
+      return found;
+    }
+    
+    /** Release the chunk, cancelling the fetch if it's still going on.
+    */
+    public void release()
+    {
+      synchronized (this)
+      {
+        if (released)
+          return;
+        released = true;
+        if (done)
+        {
+          closeDocInfos();
+          return;
+        }
+      }
+      // The fetch thread closes the document info objects when it finishes
+      if (future != null)
+        future.cancel(true);
+    }
+    
+    public int getStart()
+    {
+      return start;
+    }
+    
+    public int getCount()
+    {
+      return count;
+    }
+    
+    public synchronized long getStartTime()
+    {
+      return startTime;
+    }
+    
+    public synchronized D4UDocInfo getDocInfo(int index)
+    {
+      return docDatas[index];
+    }
+    
+    public synchronized long getBinWaitNanos()
+    {
+      return binWaitNanos;
+    }
+    
+    public synchronized long getLimitWaitNanos()
+    {
+      return limitWaitNanos;
+    }
+    
+    public synchronized long getLockWaitNanos()
+    {
+      return lockWaitNanos;
+    }
+    
+    public synchronized long getReadNanos()
+    {
+      return readNanos;
+    }
+    
+    /** Describe each document's share of the chunk's fetch time, for its fetch activity.
+    */
+    public synchronized String describeShare()
+    {
+      return "bin wait "+formatMillis(binWaitNanos/count)+", limit wait "+formatMillis(limitWaitNanos/count)+
+        ", lock wait "+formatMillis(lockWaitNanos/count)+", body read "+formatMillis(readNanos/count);
+    }
+    
+    protected void closeDocInfos()
+    {
+      if (docDatas == null)
+        return;
+      for (D4UDocInfo docData : docDatas)
+      {
+        if (docData != null)
+        {
+          try
+          {
+            docData.close();
+          }
+          catch (D4UException e)
+          {
+            Logging.connectors.warn("Docs4U: Error releasing document: "+e.getMessage(),e);
+          }
+        }
+      }
+      docDatas = null;
+    }
+  }
+  
+  /** An adaptive limit on concurrent fetches from one bin, raised by one at a time and halved
+  * when the bin looks saturated.  A fetch that takes much longer per document than the bin's
+  * baseline, the quickest seen lately, or that spends most of its time waiting for locks,
+  * means extra fetches are only queueing up, so the limit is halved.  Otherwise the limit
+  * grows by one each time a limit's worth of fetches finish without trouble, up to the
+  * ceiling.  Only fetches begun since the last cut can cut the limit again, so one burst of
+  * slow fetches halves it just once.
+  */
+  protected static class FetchLimiter
+  {
+    /** How many times the baseline a fetch may take per document before the bin counts as
+    * saturated */
+    protected final static long LATENCY_TOLERANCE = 2L;
+    /** Fetches quicker than this per document never count as saturated, whatever the baseline */
+    protected final static long MIN_SATURATED_NANOS = 1000000L;
+    /** The baseline moves this fraction of the way towards each slower fetch, so that it
+    * follows lasting changes such as larger documents */
+    protected final static long BASELINE_DRIFT = 32L;
+    
+    protected final int ceiling;
+    protected final D4UMetrics metrics;
+    protected int limit;
+    protected int inFlight = 0;
+    protected int successes = 0;
+    protected long baselineNanos = -1L;
+    protected long lastCutNanos;
+    
+    public FetchLimiter(int ceiling, D4UMetrics metrics)
+    {
+      this.ceiling = ceiling;
+      this.metrics = metrics;
+      this.limit = ceiling;
+      this.lastCutNanos = System.nanoTime();
+      publish();
+    }
+    
+    /** Wait for the limit to allow another fetch.
+    */
+    public synchronized void acquire()
+      throws InterruptedException
+    {
+      while (inFlight >= limit)
+      {
+        wait();
+      }
+      inFlight++;
+      publish();
+    }
+    
+    /** Finish a fetch that failed, without adjusting the limit.
+    */
+    public synchronized void release()
+    {
+      inFlight--;
+      publish();
+      notifyAll();
+    }
+    
+    /** Finish a fetch, adjusting the limit according to how it went.
+    *@param startNanos is when the fetch began.
+    *@param documentCount is the number of documents fetched.
+    *@param fetchNanos is how long the fetch took.
+    *@param lockWaitNanos is how much of that was spent waiting for locks.
+    */
+    public synchronized void release(long startNanos, int documentCount, long fetchNanos, long lockWaitNanos)
+    {
+      inFlight--;
+      long perDocumentNanos = fetchNanos / Math.max(documentCount,1);
+      if (baselineNanos < 0L || perDocumentNanos < baselineNanos)
+        baselineNanos = perDocumentNanos;
+      else
+        baselineNanos += (perDocumentNanos - baselineNanos) / BASELINE_DRIFT;
+      boolean saturated = perDocumentNanos >= MIN_SATURATED_NANOS &&
+        (perDocumentNanos > baselineNanos * LATENCY_TOLERANCE || lockWaitNanos * 2L > fetchNanos);
+      if (saturated)
+      {
+        if (startNanos - lastCutNanos >= 0L)
+        {
+          limit = Math.max(1,limit / 2);
+          successes = 0;
+          lastCutNanos = System.nanoTime();
+        }
+      }
+      else if (++successes >= limit)
+      {
+        limit = Math.min(ceiling,limit + 1);
+        successes = 0;
+      }
+      publish();
+      notifyAll();
+    }
+    
+    public synchronized int getLimit()
+    {
+      return limit;
+    }
+    
+    protected void publish()
+    {
+      metrics.setGauge(GAUGE_FETCH_LIMIT,limit);
+      metrics.setGauge(GAUGE_FETCHES_IN_FLIGHT,inFlight);
+    }
+  }
+  
 }
 